@@ -34,6 +34,7 @@ public class ClientResponse {
     private final boolean disconnected;
     private final UnsupportedVersionException versionMismatch;
     private final AbstractResponse responseBody;
+    private final long requestSizeInBytes;
 
     /**
      * @param requestHeader The header of the corresponding request
@@ -54,6 +55,31 @@ public class ClientResponse {
                           boolean disconnected,
                           UnsupportedVersionException versionMismatch,
                           AbstractResponse responseBody) {
+        this(requestHeader, callback, destination, createdTimeMs, receivedTimeMs, disconnected, versionMismatch,
+                responseBody, -1L);
+    }
+
+    /**
+     * @param requestHeader The header of the corresponding request
+     * @param callback The callback to be invoked
+     * @param createdTimeMs The unix timestamp when the corresponding request was created
+     * @param destination The node the corresponding request was sent to
+     * @param receivedTimeMs The unix timestamp when this response was received
+     * @param disconnected Whether the client disconnected before fully reading a response
+     * @param versionMismatch Whether there was a version mismatch that prevented sending the request.
+     * @param responseBody The response contents (or null) if we disconnected, no response was expected,
+     *                     or if there was a version mismatch.
+     * @param requestSizeInBytes The size of the corresponding request as sent, or -1 if it was not sent
+     */
+    public ClientResponse(RequestHeader requestHeader,
+                          RequestCompletionHandler callback,
+                          String destination,
+                          long createdTimeMs,
+                          long receivedTimeMs,
+                          boolean disconnected,
+                          UnsupportedVersionException versionMismatch,
+                          AbstractResponse responseBody,
+                          long requestSizeInBytes) {
         this.requestHeader = requestHeader;
         this.callback = callback;
         this.destination = destination;
@@ -62,6 +88,7 @@ public class ClientResponse {
         this.disconnected = disconnected;
         this.versionMismatch = versionMismatch;
         this.responseBody = responseBody;
+        this.requestSizeInBytes = requestSizeInBytes;
     }
 
     public long receivedTimeMs() {
@@ -96,6 +123,13 @@ public class ClientResponse {
         return latencyMs;
     }
 
+    /**
+     * The size in bytes of the corresponding request as it was sent, including its size prefix, or -1 if unknown
+     */
+    public long requestSizeInBytes() {
+        return requestSizeInBytes;
+    }
+
     public void onComplete() {
         if (callback != null)
             callback.onComplete(this);
@@ -960,11 +960,13 @@ public class NetworkClient implements KafkaClient {
         }
 
         public ClientResponse completed(AbstractResponse response, long timeMs) {
-            return new ClientResponse(header, callback, destination, createdTimeMs, timeMs, false, null, response);
+            return new ClientResponse(header, callback, destination, createdTimeMs, timeMs, false, null, response,
+                    send.size());
         }
 
         public ClientResponse disconnected(long timeMs) {
-            return new ClientResponse(header, callback, destination, createdTimeMs, timeMs, true, null, null);
+            return new ClientResponse(header, callback, destination, createdTimeMs, timeMs, true, null, null,
+                    send.size());
         }
     }
 
@@ -1160,10 +1160,34 @@ public class Protocol {
 
     public static final Schema UPDATE_METADATA_RESPONSE_V3 = UPDATE_METADATA_RESPONSE_V2;
 
+    // V4 groups the partition states by topic so that the topic name is sent once per topic rather than once per partition
+    public static final Schema UPDATE_METADATA_REQUEST_PARTITION_STATE_V4 =
+            new Schema(new Field("partition", INT32, "Topic partition id."),
+                    new Field("controller_epoch", INT32, "The controller epoch."),
+                    new Field("leader", INT32, "The broker id for the leader."),
+                    new Field("leader_epoch", INT32, "The leader epoch."),
+                    new Field("isr", new ArrayOf(INT32), "The in sync replica ids."),
+                    new Field("zk_version", INT32, "The ZK version."),
+                    new Field("replicas", new ArrayOf(INT32), "The replica ids."));
+
+    public static final Schema UPDATE_METADATA_REQUEST_TOPIC_STATE_V4 =
+            new Schema(new Field("topic", STRING, "Topic name."),
+                    new Field("partition_states", new ArrayOf(UPDATE_METADATA_REQUEST_PARTITION_STATE_V4)));
+
+    public static final Schema UPDATE_METADATA_REQUEST_BROKER_V4 = UPDATE_METADATA_REQUEST_BROKER_V3;
+
+    public static final Schema UPDATE_METADATA_REQUEST_V4 =
+            new Schema(new Field("controller_id", INT32, "The controller id."),
+                    new Field("controller_epoch", INT32, "The controller epoch."),
+                    new Field("topic_states", new ArrayOf(UPDATE_METADATA_REQUEST_TOPIC_STATE_V4)),
+                    new Field("live_brokers", new ArrayOf(UPDATE_METADATA_REQUEST_BROKER_V4)));
+
+    public static final Schema UPDATE_METADATA_RESPONSE_V4 = UPDATE_METADATA_RESPONSE_V3;
+
     public static final Schema[] UPDATE_METADATA_REQUEST = {UPDATE_METADATA_REQUEST_V0, UPDATE_METADATA_REQUEST_V1,
-        UPDATE_METADATA_REQUEST_V2, UPDATE_METADATA_REQUEST_V3};
+        UPDATE_METADATA_REQUEST_V2, UPDATE_METADATA_REQUEST_V3, UPDATE_METADATA_REQUEST_V4};
     public static final Schema[] UPDATE_METADATA_RESPONSE = {UPDATE_METADATA_RESPONSE_V0, UPDATE_METADATA_RESPONSE_V1,
-        UPDATE_METADATA_RESPONSE_V2, UPDATE_METADATA_RESPONSE_V3};
+        UPDATE_METADATA_RESPONSE_V2, UPDATE_METADATA_RESPONSE_V3, UPDATE_METADATA_RESPONSE_V4};
 
     /* SASL handshake api */
     public static final Schema SASL_HANDSHAKE_REQUEST_V0 = new Schema(
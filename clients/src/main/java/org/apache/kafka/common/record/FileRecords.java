@@ -155,6 +155,25 @@ public class FileRecords extends AbstractRecords implements Closeable {
         return written;
     }
 
+    /**
+     * Append several sets of log batches with a single gathering write where the channel allows it
+     * @param records The record sets to append, in order
+     * @return the number of bytes written to the underlying file
+     */
+    public int append(List<MemoryRecords> records) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[records.size()];
+        long sizeInBytes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = records.get(i).buffer();
+            sizeInBytes += buffers[i].remaining();
+        }
+        long written = 0;
+        while (written < sizeInBytes)
+            written += channel.write(buffers);
+        size.getAndAdd((int) written);
+        return (int) written;
+    }
+
     /**
      * Commit all written data to the physical disk
      */
@@ -47,6 +47,18 @@ public abstract class AbstractResponse extends AbstractRequestResponse {
         return serialize(responseHeader.toStruct(), toStruct(version));
     }
 
+    /**
+     * Serialize only the response body. This allows a response that is shared by several requests to be serialized
+     * once and sent with a different response header each time.
+     */
+    public ByteBuffer serializeBody(short version) {
+        Struct bodyStruct = toStruct(version);
+        ByteBuffer buffer = ByteBuffer.allocate(bodyStruct.sizeOf());
+        bodyStruct.writeTo(buffer);
+        buffer.rewind();
+        return buffer;
+    }
+
     protected abstract Struct toStruct(short version);
 
     public static AbstractResponse getResponse(ApiKeys apiKey, Struct struct) {
@@ -23,6 +23,7 @@ import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.SecurityProtocol;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.utils.CollectionUtils;
 import org.apache.kafka.common.utils.Utils;
 
 import java.nio.ByteBuffer;
@@ -119,6 +120,7 @@ public class UpdateMetadataRequest extends AbstractRequest {
     private static final String CONTROLLER_ID_KEY_NAME = "controller_id";
     private static final String CONTROLLER_EPOCH_KEY_NAME = "controller_epoch";
     private static final String PARTITION_STATES_KEY_NAME = "partition_states";
+    private static final String TOPIC_STATES_KEY_NAME = "topic_states";
     private static final String LIVE_BROKERS_KEY_NAME = "live_brokers";
 
     // PartitionState key names
@@ -158,29 +160,23 @@ public class UpdateMetadataRequest extends AbstractRequest {
     public UpdateMetadataRequest(Struct struct, short versionId) {
         super(versionId);
         Map<TopicPartition, PartitionState> partitionStates = new HashMap<>();
-        for (Object partitionStateDataObj : struct.getArray(PARTITION_STATES_KEY_NAME)) {
-            Struct partitionStateData = (Struct) partitionStateDataObj;
-            String topic = partitionStateData.getString(TOPIC_KEY_NAME);
-            int partition = partitionStateData.getInt(PARTITION_KEY_NAME);
-            int controllerEpoch = partitionStateData.getInt(CONTROLLER_EPOCH_KEY_NAME);
-            int leader = partitionStateData.getInt(LEADER_KEY_NAME);
-            int leaderEpoch = partitionStateData.getInt(LEADER_EPOCH_KEY_NAME);
-
-            Object[] isrArray = partitionStateData.getArray(ISR_KEY_NAME);
-            List<Integer> isr = new ArrayList<>(isrArray.length);
-            for (Object r : isrArray)
-                isr.add((Integer) r);
-
-            int zkVersion = partitionStateData.getInt(ZK_VERSION_KEY_NAME);
-
-            Object[] replicasArray = partitionStateData.getArray(REPLICAS_KEY_NAME);
-            List<Integer> replicas = new ArrayList<>(replicasArray.length);
-            for (Object r : replicasArray)
-                replicas.add((Integer) r);
-
-            PartitionState partitionState = new PartitionState(controllerEpoch, leader, leaderEpoch, isr, zkVersion, replicas);
-            partitionStates.put(new TopicPartition(topic, partition), partitionState);
-
+        if (struct.hasField(TOPIC_STATES_KEY_NAME)) { // V4
+            for (Object topicStateDataObj : struct.getArray(TOPIC_STATES_KEY_NAME)) {
+                Struct topicStateData = (Struct) topicStateDataObj;
+                String topic = topicStateData.getString(TOPIC_KEY_NAME);
+                for (Object partitionStateDataObj : topicStateData.getArray(PARTITION_STATES_KEY_NAME)) {
+                    Struct partitionStateData = (Struct) partitionStateDataObj;
+                    int partition = partitionStateData.getInt(PARTITION_KEY_NAME);
+                    partitionStates.put(new TopicPartition(topic, partition), partitionState(partitionStateData));
+                }
+            }
+        } else {
+            for (Object partitionStateDataObj : struct.getArray(PARTITION_STATES_KEY_NAME)) {
+                Struct partitionStateData = (Struct) partitionStateDataObj;
+                String topic = partitionStateData.getString(TOPIC_KEY_NAME);
+                int partition = partitionStateData.getInt(PARTITION_KEY_NAME);
+                partitionStates.put(new TopicPartition(topic, partition), partitionState(partitionStateData));
+            }
         }
 
         Set<Broker> liveBrokers = new HashSet<>();
@@ -197,7 +193,7 @@ public class UpdateMetadataRequest extends AbstractRequest {
                 SecurityProtocol securityProtocol = SecurityProtocol.PLAINTEXT;
                 endPoints.add(new EndPoint(host, port, securityProtocol, ListenerName.forSecurityProtocol(securityProtocol)));
                 liveBrokers.add(new Broker(brokerId, endPoints, null));
-            } else { // V1, V2 or V3
+            } else { // V1, V2, V3 or V4
                 List<EndPoint> endPoints = new ArrayList<>();
                 for (Object endPointDataObj : brokerData.getArray(ENDPOINTS_KEY_NAME)) {
                     Struct endPointData = (Struct) endPointDataObj;
@@ -232,22 +228,35 @@ public class UpdateMetadataRequest extends AbstractRequest {
         struct.set(CONTROLLER_ID_KEY_NAME, controllerId);
         struct.set(CONTROLLER_EPOCH_KEY_NAME, controllerEpoch);
 
-        List<Struct> partitionStatesData = new ArrayList<>(partitionStates.size());
-        for (Map.Entry<TopicPartition, PartitionState> entry : partitionStates.entrySet()) {
-            Struct partitionStateData = struct.instance(PARTITION_STATES_KEY_NAME);
-            TopicPartition topicPartition = entry.getKey();
-            partitionStateData.set(TOPIC_KEY_NAME, topicPartition.topic());
-            partitionStateData.set(PARTITION_KEY_NAME, topicPartition.partition());
-            PartitionState partitionState = entry.getValue();
-            partitionStateData.set(CONTROLLER_EPOCH_KEY_NAME, partitionState.controllerEpoch);
-            partitionStateData.set(LEADER_KEY_NAME, partitionState.leader);
-            partitionStateData.set(LEADER_EPOCH_KEY_NAME, partitionState.leaderEpoch);
-            partitionStateData.set(ISR_KEY_NAME, partitionState.isr.toArray());
-            partitionStateData.set(ZK_VERSION_KEY_NAME, partitionState.zkVersion);
-            partitionStateData.set(REPLICAS_KEY_NAME, partitionState.replicas.toArray());
-            partitionStatesData.add(partitionStateData);
+        if (version >= 4) {
+            Map<String, Map<Integer, PartitionState>> partitionStatesByTopic = CollectionUtils.groupDataByTopic(partitionStates);
+            List<Struct> topicStatesData = new ArrayList<>(partitionStatesByTopic.size());
+            for (Map.Entry<String, Map<Integer, PartitionState>> topicEntry : partitionStatesByTopic.entrySet()) {
+                Struct topicStateData = struct.instance(TOPIC_STATES_KEY_NAME);
+                topicStateData.set(TOPIC_KEY_NAME, topicEntry.getKey());
+                List<Struct> partitionStatesData = new ArrayList<>(topicEntry.getValue().size());
+                for (Map.Entry<Integer, PartitionState> partitionEntry : topicEntry.getValue().entrySet()) {
+                    Struct partitionStateData = topicStateData.instance(PARTITION_STATES_KEY_NAME);
+                    partitionStateData.set(PARTITION_KEY_NAME, partitionEntry.getKey());
+                    setPartitionState(partitionStateData, partitionEntry.getValue());
+                    partitionStatesData.add(partitionStateData);
+                }
+                topicStateData.set(PARTITION_STATES_KEY_NAME, partitionStatesData.toArray());
+                topicStatesData.add(topicStateData);
+            }
+            struct.set(TOPIC_STATES_KEY_NAME, topicStatesData.toArray());
+        } else {
+            List<Struct> partitionStatesData = new ArrayList<>(partitionStates.size());
+            for (Map.Entry<TopicPartition, PartitionState> entry : partitionStates.entrySet()) {
+                Struct partitionStateData = struct.instance(PARTITION_STATES_KEY_NAME);
+                TopicPartition topicPartition = entry.getKey();
+                partitionStateData.set(TOPIC_KEY_NAME, topicPartition.topic());
+                partitionStateData.set(PARTITION_KEY_NAME, topicPartition.partition());
+                setPartitionState(partitionStateData, entry.getValue());
+                partitionStatesData.add(partitionStateData);
+            }
+            struct.set(PARTITION_STATES_KEY_NAME, partitionStatesData.toArray());
         }
-        struct.set(PARTITION_STATES_KEY_NAME, partitionStatesData.toArray());
 
         List<Struct> brokersData = new ArrayList<>(liveBrokers.size());
         for (Broker broker : liveBrokers) {
@@ -283,10 +292,39 @@ public class UpdateMetadataRequest extends AbstractRequest {
         return struct;
     }
 
+    private static PartitionState partitionState(Struct partitionStateData) {
+        int controllerEpoch = partitionStateData.getInt(CONTROLLER_EPOCH_KEY_NAME);
+        int leader = partitionStateData.getInt(LEADER_KEY_NAME);
+        int leaderEpoch = partitionStateData.getInt(LEADER_EPOCH_KEY_NAME);
+
+        Object[] isrArray = partitionStateData.getArray(ISR_KEY_NAME);
+        List<Integer> isr = new ArrayList<>(isrArray.length);
+        for (Object r : isrArray)
+            isr.add((Integer) r);
+
+        int zkVersion = partitionStateData.getInt(ZK_VERSION_KEY_NAME);
+
+        Object[] replicasArray = partitionStateData.getArray(REPLICAS_KEY_NAME);
+        List<Integer> replicas = new ArrayList<>(replicasArray.length);
+        for (Object r : replicasArray)
+            replicas.add((Integer) r);
+
+        return new PartitionState(controllerEpoch, leader, leaderEpoch, isr, zkVersion, replicas);
+    }
+
+    private static void setPartitionState(Struct partitionStateData, PartitionState partitionState) {
+        partitionStateData.set(CONTROLLER_EPOCH_KEY_NAME, partitionState.controllerEpoch);
+        partitionStateData.set(LEADER_KEY_NAME, partitionState.leader);
+        partitionStateData.set(LEADER_EPOCH_KEY_NAME, partitionState.leaderEpoch);
+        partitionStateData.set(ISR_KEY_NAME, partitionState.isr.toArray());
+        partitionStateData.set(ZK_VERSION_KEY_NAME, partitionState.zkVersion);
+        partitionStateData.set(REPLICAS_KEY_NAME, partitionState.replicas.toArray());
+    }
+
     @Override
     public AbstractResponse getErrorResponse(int throttleTimeMs, Throwable e) {
         short versionId = version();
-        if (versionId <= 3)
+        if (versionId <= 4)
             return new UpdateMetadataResponse(Errors.forException(e));
         else
             throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
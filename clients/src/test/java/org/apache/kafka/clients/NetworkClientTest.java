@@ -157,6 +157,7 @@ public class NetworkClientTest {
         assertTrue("Should have a response body.", handler.response.hasResponse());
         assertEquals("Should be correlated to the original request",
                 request.correlationId(), handler.response.requestHeader().correlationId());
+        assertTrue("Should carry the size of the sent request", handler.response.requestSizeInBytes() > 0);
     }
 
     private void maybeSetExpectedApiVersionsResponse() {
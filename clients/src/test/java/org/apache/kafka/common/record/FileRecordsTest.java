@@ -65,6 +65,29 @@ public class FileRecordsTest {
         }
     }
 
+    /**
+     * Test that several record sets appended with one gathering write are read back in order
+     */
+    @Test
+    public void testAppendMultipleRecordSets() throws IOException {
+        int sizeBefore = fileRecords.sizeInBytes();
+        List<MemoryRecords> recordSets = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            recordSets.add(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(("value" + i).getBytes())));
+        int written = fileRecords.append(recordSets);
+        assertEquals(recordSets.get(0).sizeInBytes() * 3, written);
+        assertEquals(sizeBefore + written, fileRecords.sizeInBytes());
+        assertEquals(fileRecords.channel().size(), fileRecords.sizeInBytes());
+
+        List<Record> appended = new ArrayList<>();
+        for (RecordBatch batch : fileRecords.read(sizeBefore, written).batches())
+            for (Record record : batch)
+                appended.add(record);
+        assertEquals(3, appended.size());
+        for (int i = 0; i < 3; i++)
+            assertEquals(ByteBuffer.wrap(("value" + i).getBytes()), appended.get(i).value());
+    }
+
     /**
      * Test that adding invalid bytes to the end of the log doesn't break iteration
      */
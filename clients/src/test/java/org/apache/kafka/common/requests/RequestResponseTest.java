@@ -202,6 +202,9 @@ public class RequestResponseTest {
         checkRequest(createUpdateMetadataRequest(3, "rack1"));
         checkRequest(createUpdateMetadataRequest(3, null));
         checkErrorResponse(createUpdateMetadataRequest(3, "rack1"), new UnknownServerException());
+        checkRequest(createUpdateMetadataRequest(4, "rack1"));
+        checkRequest(createUpdateMetadataRequest(4, null));
+        checkErrorResponse(createUpdateMetadataRequest(4, "rack1"), new UnknownServerException());
         checkResponse(createUpdateMetadataResponse(), 0);
         checkRequest(createListOffsetRequest(0));
         checkErrorResponse(createListOffsetRequest(0), new UnknownServerException());
@@ -555,6 +558,30 @@ public class RequestResponseTest {
         assertEquals(jgr2.rebalanceTimeout(), jgr.rebalanceTimeout());
     }
 
+    @Test
+    public void testUpdateMetadataRequestV4GroupsPartitionsByTopic() throws Exception {
+        UpdateMetadataRequest request = createUpdateMetadataRequest(4, "rack1");
+        UpdateMetadataRequest deserialized = (UpdateMetadataRequest) deserialize(request, request.toStruct(), request.version());
+        assertEquals(request.partitionStates().keySet(), deserialized.partitionStates().keySet());
+        for (Map.Entry<TopicPartition, PartitionState> entry : request.partitionStates().entrySet()) {
+            PartitionState partitionState = deserialized.partitionStates().get(entry.getKey());
+            assertEquals(entry.getValue().leader, partitionState.leader);
+            assertEquals(entry.getValue().leaderEpoch, partitionState.leaderEpoch);
+            assertEquals(entry.getValue().isr, partitionState.isr);
+            assertEquals(entry.getValue().replicas, partitionState.replicas);
+        }
+        assertEquals(request.liveBrokers().size(), deserialized.liveBrokers().size());
+
+        Map<TopicPartition, PartitionState> partitionStates = new HashMap<>();
+        for (int partition = 0; partition < 10; partition++)
+            partitionStates.put(new TopicPartition("topic", partition),
+                    new PartitionState(1, 0, 1, asList(0, 1), 2, asList(0, 1, 2)));
+        Set<UpdateMetadataRequest.Broker> liveBrokers = Collections.emptySet();
+        int sizeV3 = new UpdateMetadataRequest.Builder((short) 3, 1, 10, partitionStates, liveBrokers).build().toStruct().sizeOf();
+        int sizeV4 = new UpdateMetadataRequest.Builder((short) 4, 1, 10, partitionStates, liveBrokers).build().toStruct().sizeOf();
+        assertTrue("V4 should send the topic name once rather than once per partition", sizeV4 < sizeV3);
+    }
+
     private RequestHeader createRequestHeader() {
         return new RequestHeader((short) 10, (short) 1, "", 10);
     }
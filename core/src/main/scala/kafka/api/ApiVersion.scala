@@ -69,7 +69,11 @@ object ApiVersion {
     "0.11.0-IV1" -> KAFKA_0_11_0_IV1,
     // Introduced leader epoch fetches to the replica fetcher via KIP-101
     "0.11.0-IV2" -> KAFKA_0_11_0_IV2,
-    "0.11.0" -> KAFKA_0_11_0_IV2
+    "0.11.0" -> KAFKA_0_11_0_IV2,
+    // introduced UpdateMetadataRequest v4 which groups the partition states by topic, and UpdateMetadata requests
+    // carrying only the partitions that changed
+    "0.11.1-IV0" -> KAFKA_0_11_1_IV0,
+    "0.11.1" -> KAFKA_0_11_1_IV0
   )
 
   private val versionPattern = "\\.".r
@@ -171,3 +175,9 @@ case object KAFKA_0_11_0_IV2 extends ApiVersion {
   val messageFormatVersion: Byte = RecordBatch.MAGIC_VALUE_V2
   val id: Int = 12
 }
+
+case object KAFKA_0_11_1_IV0 extends ApiVersion {
+  val version: String = "0.11.1-IV0"
+  val messageFormatVersion: Byte = RecordBatch.MAGIC_VALUE_V2
+  val id: Int = 13
+}
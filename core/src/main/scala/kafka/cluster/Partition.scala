@@ -24,7 +24,7 @@ import kafka.admin.AdminUtils
 import kafka.api.LeaderAndIsr
 import kafka.common.NotAssignedReplicaException
 import kafka.controller.KafkaController
-import kafka.log.LogConfig
+import kafka.log.{LogAppendInfo, LogConfig, ValidatedAppend}
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server._
 import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
@@ -39,6 +39,7 @@ import org.apache.kafka.common.requests.{EpochEndOffset, PartitionState}
 import org.apache.kafka.common.utils.Time
 
 import scala.collection.JavaConverters._
+import scala.util.{Failure, Try}
 
 /**
  * Data structure that represents a topic partition. The leader maintains the AR, ISR, CUR, RAR
@@ -469,8 +470,29 @@ class Partition(val topic: String,
     laggingReplicas
   }
 
-  def appendRecordsToLeader(records: MemoryRecords, isFromClient: Boolean, requiredAcks: Int = 0) = {
-    val (info, leaderHWIncremented) = inReadLock(leaderIsrUpdateLock) {
+  def appendRecordsToLeader(records: MemoryRecords, isFromClient: Boolean, requiredAcks: Int = 0): LogAppendInfo = {
+    appendValidatedToLeader(Seq(validateForLeader(records, isFromClient) -> requiredAcks), isFromClient).head.get
+  }
+
+  /**
+   * Validate records to be appended with `appendValidatedToLeader`, see `Log.validateAsLeader`. The leader and ISR lock
+   * is not taken, whether the local replica is the leader is only checked when the records are appended.
+   */
+  def validateForLeader(records: MemoryRecords, isFromClient: Boolean): Try[ValidatedAppend] = {
+    getReplica().flatMap(_.log) match {
+      case Some(log) => log.validateAsLeader(records, isFromClient)
+      case None =>
+        Failure(new NotLeaderForPartitionException("Leader not local for partition %s on broker %d"
+          .format(topicPartition, localBrokerId)))
+    }
+  }
+
+  /**
+   * Append the validated records of several produce requests, each with its required acks, to the leader replica with
+   * `Log.appendValidatedAsLeader`. Each append succeeds or fails on its own, the results are in the order of `entries`.
+   */
+  def appendValidatedToLeader(entries: Seq[(Try[ValidatedAppend], Int)], isFromClient: Boolean): Seq[Try[LogAppendInfo]] = {
+    val (results, leaderHWIncremented) = inReadLock(leaderIsrUpdateLock) {
       leaderReplicaIfLocal match {
         case Some(leaderReplica) =>
           val log = leaderReplica.log.get
@@ -478,16 +500,21 @@ class Partition(val topic: String,
           val inSyncSize = inSyncReplicas.size
 
           // Avoid writing to leader if there are not enough insync replicas to make it safe
-          if (inSyncSize < minIsr && requiredAcks == -1) {
-            throw new NotEnoughReplicasException("Number of insync replicas for partition %s is [%d], below required minimum [%d]"
-              .format(topicPartition, inSyncSize, minIsr))
+          val (rejected, accepted) = entries.indices.partition(i => inSyncSize < minIsr && entries(i)._2 == -1)
+          val appended = log.appendValidatedAsLeader(accepted.map(i => entries(i)._1), leaderEpoch = this.leaderEpoch, isFromClient)
+          val results = new Array[Try[LogAppendInfo]](entries.size)
+          accepted.zip(appended).foreach { case (i, result) => results(i) = result }
+          rejected.foreach { i =>
+            results(i) = Failure(new NotEnoughReplicasException("Number of insync replicas for partition %s is [%d], below required minimum [%d]"
+              .format(topicPartition, inSyncSize, minIsr)))
           }
-
-          val info = log.appendAsLeader(records, leaderEpoch = this.leaderEpoch, isFromClient)
-          // probably unblock some follower fetch requests since log end offset has been updated
-          replicaManager.tryCompleteDelayedFetch(TopicPartitionOperationKey(this.topic, this.partitionId))
-          // we may need to increment high watermark since ISR could be down to 1
-          (info, maybeIncrementLeaderHW(leaderReplica))
+          if (accepted.nonEmpty) {
+            // probably unblock some follower fetch requests since log end offset has been updated
+            replicaManager.tryCompleteDelayedFetch(TopicPartitionOperationKey(this.topic, this.partitionId))
+            // we may need to increment high watermark since ISR could be down to 1
+            (results.toSeq, maybeIncrementLeaderHW(leaderReplica))
+          } else
+            (results.toSeq, false)
 
         case None =>
           throw new NotLeaderForPartitionException("Leader not local for partition %s on broker %d"
@@ -499,7 +526,7 @@ class Partition(val topic: String,
     if (leaderHWIncremented)
       tryCompleteDelayedRequests()
 
-    info
+    results
   }
 
   /**
@@ -80,7 +80,7 @@ class ControllerChannelManager(controllerContext: ControllerContext, config: Kaf
       val stateInfoOpt = brokerStateInfo.get(brokerId)
       stateInfoOpt match {
         case Some(stateInfo) =>
-          stateInfo.messageQueue.put(QueueItem(apiKey, request, callback))
+          stateInfo.messageQueue.put(QueueItem(apiKey, request, callback, time.milliseconds()))
         case None =>
           warn("Not sending request %s to broker %d, since it is offline.".format(request, brokerId))
       }
@@ -189,7 +189,7 @@ class ControllerChannelManager(controllerContext: ControllerContext, config: Kaf
 }
 
 case class QueueItem(apiKey: ApiKeys, request: AbstractRequest.Builder[_ <: AbstractRequest],
-                     callback: AbstractResponse => Unit)
+                     callback: AbstractResponse => Unit, enqueueTimeMs: Long)
 
 class RequestSendThread(val controllerId: Int,
                         val controllerContext: ControllerContext,
@@ -208,7 +208,7 @@ class RequestSendThread(val controllerId: Int,
 
     def backoff(): Unit = CoreUtils.swallowTrace(Thread.sleep(100))
 
-    val QueueItem(apiKey, requestBuilder, callback) = queue.take()
+    val QueueItem(apiKey, requestBuilder, callback, enqueueTimeMs) = queue.take()
     var clientResponse: ClientResponse = null
     try {
       var isSendSuccessful = false
@@ -241,6 +241,10 @@ class RequestSendThread(val controllerId: Int,
         val api = ApiKeys.forId(requestHeader.apiKey)
         if (api != ApiKeys.LEADER_AND_ISR && api != ApiKeys.STOP_REPLICA && api != ApiKeys.UPDATE_METADATA_KEY)
           throw new KafkaException(s"Unexpected apiKey received: $apiKey")
+        controllerContext.stats.requestPropagationTimeHists(api).update(time.milliseconds() - enqueueTimeMs)
+        // the size of the request is taken from its send, so it is not serialized again to measure it
+        if (api == ApiKeys.UPDATE_METADATA_KEY && clientResponse.requestSizeInBytes >= 0)
+          controllerContext.stats.updateMetadataRequestBytesHist.update(clientResponse.requestSizeInBytes)
 
         val response = clientResponse.responseBody
 
@@ -284,7 +288,10 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
   val controllerId: Int = controller.config.brokerId
   val leaderAndIsrRequestMap = mutable.Map.empty[Int, mutable.Map[TopicPartition, PartitionStateInfo]]
   val stopReplicaRequestMap = mutable.Map.empty[Int, Seq[StopReplicaRequestInfo]]
-  val updateMetadataRequestBrokerSet = mutable.Set.empty[Int]
+  // brokers which are sent the state of every partition, such as brokers which have just started
+  val updateMetadataRequestFullBrokerSet = mutable.Set.empty[Int]
+  // the partitions whose state is sent to the other brokers, keyed by the brokers they are sent to
+  val updateMetadataRequestPartitionsByBrokers = mutable.Map.empty[Set[Int], mutable.Set[TopicPartition]]
   val updateMetadataRequestPartitionInfoMap = mutable.Map.empty[TopicPartition, PartitionStateInfo]
   private val stateChangeLogger = KafkaController.stateChangeLogger
 
@@ -296,19 +303,23 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
     if (stopReplicaRequestMap.nonEmpty)
       throw new IllegalStateException("Controller to broker state change requests batch is not empty while creating a " +
         "new one. Some StopReplica state changes %s might be lost ".format(stopReplicaRequestMap.toString()))
-    if (updateMetadataRequestBrokerSet.nonEmpty)
+    if (updateMetadataRequestBrokers.nonEmpty)
       throw new IllegalStateException("Controller to broker state change requests batch is not empty while creating a " +
         "new one. Some UpdateMetadata state changes to brokers %s with partition info %s might be lost ".format(
-          updateMetadataRequestBrokerSet.toString(), updateMetadataRequestPartitionInfoMap.toString()))
+          updateMetadataRequestBrokers.toString(), updateMetadataRequestPartitionInfoMap.toString()))
   }
 
   def clear() {
     leaderAndIsrRequestMap.clear()
     stopReplicaRequestMap.clear()
-    updateMetadataRequestBrokerSet.clear()
+    updateMetadataRequestFullBrokerSet.clear()
+    updateMetadataRequestPartitionsByBrokers.clear()
     updateMetadataRequestPartitionInfoMap.clear()
   }
 
+  private def updateMetadataRequestBrokers: Set[Int] =
+    updateMetadataRequestFullBrokerSet ++ updateMetadataRequestPartitionsByBrokers.keySet.flatten
+
   def addLeaderAndIsrRequestForBrokers(brokerIds: Seq[Int], topic: String, partition: Int,
                                        leaderIsrAndControllerEpoch: LeaderIsrAndControllerEpoch,
                                        replicas: Seq[Int], callback: AbstractResponse => Unit = null) {
@@ -337,11 +348,35 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
     }
   }
 
-  /** Send UpdateMetadataRequest to the given brokers for the given partitions and partitions that are being deleted */
+  /**
+   * Send UpdateMetadataRequest to the given brokers for the given partitions and partitions that are being deleted, or
+   * for every partition if no partition is given
+   */
   def addUpdateMetadataRequestForBrokers(brokerIds: Seq[Int],
                                          partitions: collection.Set[TopicAndPartition] = Set.empty[TopicAndPartition]) {
+    if (partitions.isEmpty)
+      addUpdateMetadataRequest(brokerIds, controllerContext.partitionLeadershipInfo.keySet, full = true)
+    else
+      addUpdateMetadataRequest(brokerIds, partitions, full = false)
+  }
+
+  /**
+   * Send UpdateMetadataRequest with the live brokers and the partitions that are being deleted only to the given
+   * brokers, which already have the state of the other partitions
+   */
+  def addLiveBrokersUpdateMetadataRequestForBrokers(brokerIds: Seq[Int]) {
+    if (deltaUpdateMetadataRequestEnabled)
+      addUpdateMetadataRequest(brokerIds, Set.empty[TopicAndPartition], full = false)
+    else
+      addUpdateMetadataRequestForBrokers(brokerIds)
+  }
 
-    def updateMetadataRequestPartitionInfo(partition: TopicAndPartition, beingDeleted: Boolean) {
+  private def deltaUpdateMetadataRequestEnabled: Boolean =
+    controller.config.interBrokerProtocolVersion >= KAFKA_0_11_1_IV0
+
+  private def addUpdateMetadataRequest(brokerIds: Seq[Int], partitions: collection.Set[TopicAndPartition], full: Boolean) {
+
+    def updateMetadataRequestPartitionInfo(partition: TopicAndPartition, beingDeleted: Boolean): Option[TopicPartition] = {
       val leaderIsrAndControllerEpochOpt = controllerContext.partitionLeadershipInfo.get(partition)
       leaderIsrAndControllerEpochOpt match {
         case Some(l @ LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch)) =>
@@ -355,27 +390,30 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
           }
 
           val partitionStateInfo = PartitionStateInfo(leaderIsrAndControllerEpoch, replicas)
-          updateMetadataRequestPartitionInfoMap.put(new TopicPartition(partition.topic, partition.partition), partitionStateInfo)
+          val topicPartition = new TopicPartition(partition.topic, partition.partition)
+          updateMetadataRequestPartitionInfoMap.put(topicPartition, partitionStateInfo)
+          Some(topicPartition)
 
         case None =>
           info("Leader not yet assigned for partition %s. Skip sending UpdateMetadataRequest.".format(partition))
+          None
       }
     }
 
     val filteredPartitions = {
-      val givenPartitions = if (partitions.isEmpty)
-        controllerContext.partitionLeadershipInfo.keySet
-      else
-        partitions
       if (controller.topicDeletionManager.partitionsToBeDeleted.isEmpty)
-        givenPartitions
+        partitions
       else
-        givenPartitions -- controller.topicDeletionManager.partitionsToBeDeleted
+        partitions -- controller.topicDeletionManager.partitionsToBeDeleted
     }
 
-    updateMetadataRequestBrokerSet ++= brokerIds.filter(_ >= 0)
-    filteredPartitions.foreach(partition => updateMetadataRequestPartitionInfo(partition, beingDeleted = false))
-    controller.topicDeletionManager.partitionsToBeDeleted.foreach(partition => updateMetadataRequestPartitionInfo(partition, beingDeleted = true))
+    val addedPartitions = filteredPartitions.toSeq.flatMap(partition => updateMetadataRequestPartitionInfo(partition, beingDeleted = false)) ++
+      controller.topicDeletionManager.partitionsToBeDeleted.toSeq.flatMap(partition => updateMetadataRequestPartitionInfo(partition, beingDeleted = true))
+
+    if (full)
+      updateMetadataRequestFullBrokerSet ++= brokerIds.filter(_ >= 0)
+    else
+      updateMetadataRequestPartitionsByBrokers.getOrElseUpdate(brokerIds.filter(_ >= 0).toSet, mutable.Set.empty) ++= addedPartitions
   }
 
   def sendRequestsToBrokers(controllerEpoch: Int) {
@@ -409,7 +447,7 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
 
       updateMetadataRequestPartitionInfoMap.foreach(p => stateChangeLogger.trace(("Controller %d epoch %d sending UpdateMetadata request %s " +
         "to brokers %s for partition %s").format(controllerId, controllerEpoch, p._2.leaderIsrAndControllerEpoch,
-        updateMetadataRequestBrokerSet.toString(), p._1)))
+        updateMetadataRequestBrokers.toString(), p._1)))
       val partitionStates = updateMetadataRequestPartitionInfoMap.map { case (topicPartition, partitionStateInfo) =>
         val LeaderIsrAndControllerEpoch(leaderIsr, controllerEpoch) = partitionStateInfo.leaderIsrAndControllerEpoch
         val partitionState = new requests.PartitionState(controllerEpoch, leaderIsr.leader,
@@ -419,37 +457,54 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
       }
 
       val version: Short =
-        if (controller.config.interBrokerProtocolVersion >= KAFKA_0_10_2_IV0) 3
+        if (controller.config.interBrokerProtocolVersion >= KAFKA_0_11_1_IV0) 4
+        else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_10_2_IV0) 3
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_10_0_IV1) 2
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_9_0) 1
         else 0
 
-      val updateMetadataRequest = {
-        val liveBrokers = if (version == 0) {
-          // Version 0 of UpdateMetadataRequest only supports PLAINTEXT.
-          controllerContext.liveOrShuttingDownBrokers.map { broker =>
-            val securityProtocol = SecurityProtocol.PLAINTEXT
-            val listenerName = ListenerName.forSecurityProtocol(securityProtocol)
-            val node = broker.getNode(listenerName)
-            val endPoints = Seq(new EndPoint(node.host, node.port, securityProtocol, listenerName))
-            new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
-          }
-        } else {
-          controllerContext.liveOrShuttingDownBrokers.map { broker =>
-            val endPoints = broker.endPoints.map { endPoint =>
-              new UpdateMetadataRequest.EndPoint(endPoint.host, endPoint.port, endPoint.securityProtocol, endPoint.listenerName)
-            }
-            new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
+      lazy val liveBrokers = if (version == 0) {
+        // Version 0 of UpdateMetadataRequest only supports PLAINTEXT.
+        controllerContext.liveOrShuttingDownBrokers.map { broker =>
+          val securityProtocol = SecurityProtocol.PLAINTEXT
+          val listenerName = ListenerName.forSecurityProtocol(securityProtocol)
+          val node = broker.getNode(listenerName)
+          val endPoints = Seq(new EndPoint(node.host, node.port, securityProtocol, listenerName))
+          new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
+        }
+      } else {
+        controllerContext.liveOrShuttingDownBrokers.map { broker =>
+          val endPoints = broker.endPoints.map { endPoint =>
+            new UpdateMetadataRequest.EndPoint(endPoint.host, endPoint.port, endPoint.securityProtocol, endPoint.listenerName)
           }
+          new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
+        }
+      }
+
+      def sendUpdateMetadataRequest(brokerIds: Iterable[Int], partitionStates: collection.Map[TopicPartition, requests.PartitionState]) {
+        val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, controllerId, controllerEpoch,
+          partitionStates.asJava, liveBrokers.asJava)
+        brokerIds.foreach { broker =>
+          controller.sendRequest(broker, ApiKeys.UPDATE_METADATA_KEY, updateMetadataRequest, null)
+          controllerContext.stats.updateMetadataRequestPartitionsHist.update(partitionStates.size)
         }
-        new UpdateMetadataRequest.Builder(version, controllerId, controllerEpoch, partitionStates.asJava,
-          liveBrokers.asJava)
       }
 
-      updateMetadataRequestBrokerSet.foreach { broker =>
-        controller.sendRequest(broker, ApiKeys.UPDATE_METADATA_KEY, updateMetadataRequest, null)
+      // brokers which already have the state of the other partitions are only sent the partitions of the batch added
+      // for them, and brokers which are sent the same partitions share a request. Older brokers are sent every
+      // partition of the batch as before.
+      if (!deltaUpdateMetadataRequestEnabled)
+        updateMetadataRequestFullBrokerSet ++= updateMetadataRequestPartitionsByBrokers.keySet.flatten
+      if (updateMetadataRequestFullBrokerSet.nonEmpty)
+        sendUpdateMetadataRequest(updateMetadataRequestFullBrokerSet, partitionStates)
+      val deltaBrokers = updateMetadataRequestPartitionsByBrokers.keySet.flatten -- updateMetadataRequestFullBrokerSet
+      deltaBrokers.groupBy(broker => updateMetadataRequestPartitionsByBrokers.keySet.filter(_.contains(broker))).foreach {
+        case (brokerSets, brokers) =>
+          val partitions = brokerSets.flatMap(updateMetadataRequestPartitionsByBrokers)
+          sendUpdateMetadataRequest(brokers, partitions.iterator.map(tp => tp -> partitionStates(tp)).toMap)
       }
-      updateMetadataRequestBrokerSet.clear()
+      updateMetadataRequestFullBrokerSet.clear()
+      updateMetadataRequestPartitionsByBrokers.clear()
       updateMetadataRequestPartitionInfoMap.clear()
 
       stopReplicaRequestMap.foreach { case (broker, replicaInfoList) =>
@@ -482,8 +537,8 @@ class ControllerBrokerRequestBatch(controller: KafkaController) extends  Logging
           error("Haven't been able to send leader and isr requests, current state of " +
               s"the map is $leaderAndIsrRequestMap. Exception message: $e")
         }
-        if (updateMetadataRequestBrokerSet.nonEmpty) {
-          error(s"Haven't been able to send metadata update requests to brokers $updateMetadataRequestBrokerSet, " +
+        if (updateMetadataRequestBrokers.nonEmpty) {
+          error(s"Haven't been able to send metadata update requests to brokers $updateMetadataRequestBrokers, " +
                 s"current state of the partition info is $updateMetadataRequestPartitionInfoMap. Exception message: $e")
         }
         if (stopReplicaRequestMap.nonEmpty) {
@@ -18,10 +18,12 @@
 package kafka.controller
 
 import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.locks.ReentrantLock
 
 import scala.collection._
 
 import kafka.metrics.KafkaTimer
+import kafka.utils.CoreUtils.inLock
 import kafka.utils.ShutdownableThread
 
 class ControllerEventManager(rateAndTimeMetrics: Map[ControllerState, KafkaTimer],
@@ -29,7 +31,10 @@ class ControllerEventManager(rateAndTimeMetrics: Map[ControllerState, KafkaTimer
 
   @volatile private var _state: ControllerState = ControllerState.Idle
 
-  private val queue = new LinkedBlockingQueue[ControllerEvent]
+  private val queue = new LinkedBlockingQueue[QueuedEvent]
+  // the queued events that a coalescable event of the same key is merged into, until they are taken off the queue
+  private val pendingEvents = mutable.Map[Any, QueuedEvent]()
+  private val pendingEventsLock = new ReentrantLock
   private val thread = new ControllerEventThread("controller-event-thread")
 
   def state: ControllerState = _state
@@ -38,11 +43,39 @@ class ControllerEventManager(rateAndTimeMetrics: Map[ControllerState, KafkaTimer
 
   def close(): Unit = thread.shutdown()
 
-  def put(event: ControllerEvent): Unit = queue.put(event)
+  /**
+   * Queues an event for the controller event thread. A coalescable event is merged into a queued event of the same
+   * coalescing key that has not been taken yet, which keeps its position in the queue, so that a burst of zookeeper
+   * notifications is processed once rather than once per notification.
+   */
+  def put(event: ControllerEvent): Unit = event match {
+    case coalescableEvent: CoalescableControllerEvent =>
+      inLock(pendingEventsLock) {
+        pendingEvents.get(coalescableEvent.coalescingKey) match {
+          case Some(pendingEvent) =>
+            pendingEvent.event = coalescableEvent.coalesce(pendingEvent.event.asInstanceOf[CoalescableControllerEvent])
+          case None =>
+            val queuedEvent = new QueuedEvent(event)
+            pendingEvents.put(coalescableEvent.coalescingKey, queuedEvent)
+            queue.put(queuedEvent)
+        }
+      }
+    case _ => queue.put(new QueuedEvent(event))
+  }
+
+  private class QueuedEvent(var event: ControllerEvent)
 
   class ControllerEventThread(name: String) extends ShutdownableThread(name = name) {
     override def doWork(): Unit = {
-      val controllerEvent = queue.take()
+      val queuedEvent = queue.take()
+      val controllerEvent = inLock(pendingEventsLock) {
+        queuedEvent.event match {
+          case coalescableEvent: CoalescableControllerEvent =>
+            pendingEvents.remove(coalescableEvent.coalescingKey)
+          case _ =>
+        }
+        queuedEvent.event
+      }
       _state = controllerEvent.state
 
       try {
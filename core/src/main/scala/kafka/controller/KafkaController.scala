@@ -18,7 +18,7 @@ package kafka.controller
 
 import java.util.concurrent.TimeUnit
 
-import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.{Gauge, Histogram}
 import kafka.admin.{AdminUtils, PreferredReplicaLeaderElectionCommand}
 import kafka.api._
 import kafka.cluster.Broker
@@ -265,6 +265,9 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     // are started. The is because brokers need to receive the list of live brokers from UpdateMetadataRequest before
     // they can process the LeaderAndIsrRequests that are generated by replicaStateMachine.startup() and
     // partitionStateMachine.startup().
+    // Unlike broker startup and failure, failover sends the state of every partition to every broker: the new controller
+    // does not know which updates of the previous controller reached each broker, and no request lets a broker report
+    // the state it caches, so a delta request cannot be computed here.
     sendUpdateMetadataRequest(controllerContext.liveOrShuttingDownBrokerIds.toSeq)
 
     replicaStateMachine.startup()
@@ -332,7 +335,8 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
   /**
    * This callback is invoked by the replica state machine's broker change listener, with the list of newly started
    * brokers as input. It does the following -
-   * 1. Sends update metadata request to all live and shutting down brokers
+   * 1. Sends update metadata request with every partition to the new brokers, and with the live brokers only to the
+   *    other live and shutting down brokers
    * 2. Triggers the OnlinePartition state change for all new/offline partitions
    * 3. It checks whether there are reassigned replicas assigned to any newly started brokers.  If
    *    so, it performs the reassignment logic for each topic/partition.
@@ -347,10 +351,11 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     info("New broker startup callback for %s".format(newBrokers.mkString(",")))
     val newBrokersSet = newBrokers.toSet
     // send update metadata request to all live and shutting down brokers. Old brokers will get to know of the new
-    // broker via this update.
+    // broker via this update, and already have the state of every partition.
     // In cases of controlled shutdown leaders will not be elected when a new broker comes up. So at least in the
     // common controlled shutdown case, the metadata will reach the new brokers faster
-    sendUpdateMetadataRequest(controllerContext.liveOrShuttingDownBrokerIds.toSeq)
+    sendUpdateMetadataRequest(newBrokers)
+    sendLiveBrokersUpdateMetadataRequest(controllerContext.liveOrShuttingDownBrokerIds.toSeq.filterNot(newBrokersSet))
     // the very first thing to do when a new broker comes up is send it the entire list of partitions that it is
     // supposed to host. Based on that the broker starts the high watermark threads for the input list of partitions
     val allReplicasOnNewBrokers = controllerContext.replicasOnBrokers(newBrokersSet)
@@ -416,7 +421,7 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     // If broker failure did not require leader re-election, inform brokers of failed broker
     // Note that during leader re-election, brokers update their metadata
     if (partitionsWithoutLeader.isEmpty) {
-      sendUpdateMetadataRequest(controllerContext.liveOrShuttingDownBrokerIds.toSeq)
+      sendLiveBrokersUpdateMetadataRequest(controllerContext.liveOrShuttingDownBrokerIds.toSeq)
     }
   }
 
@@ -981,6 +986,23 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     }
   }
 
+  /**
+   * Send the live brokers and the partitions being deleted to brokers which already have the state of the other
+   * partitions, so that they learn of started and failed brokers without being sent every partition again
+   *
+   * @param brokers The brokers that the update metadata request should be sent to
+   */
+  def sendLiveBrokersUpdateMetadataRequest(brokers: Seq[Int]) {
+    try {
+      brokerRequestBatch.newBatch()
+      brokerRequestBatch.addLiveBrokersUpdateMetadataRequestForBrokers(brokers)
+      brokerRequestBatch.sendRequestsToBrokers(epoch)
+    } catch {
+      case e: IllegalStateException =>
+        handleIllegalState(e)
+    }
+  }
+
   /**
    * Removes a given partition replica from the ISR; if it is not the current
    * leader and there are sufficient remaining replicas in ISR.
@@ -1009,20 +1031,7 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
               "means the current controller with epoch %d went through a soft failure and another ".format(epoch) +
               "controller was elected with epoch %d. Aborting state change by this controller".format(controllerEpoch))
           if (leaderAndIsr.isr.contains(replicaId)) {
-            // if the replica to be removed from the ISR is also the leader, set the new leader value to -1
-            val newLeader = if (replicaId == leaderAndIsr.leader) LeaderAndIsr.NoLeader else leaderAndIsr.leader
-            var newIsr = leaderAndIsr.isr.filter(b => b != replicaId)
-
-            // if the replica to be removed from the ISR is the last surviving member of the ISR and unclean leader election
-            // is disallowed for the corresponding topic, then we must preserve the ISR membership so that the replica can
-            // eventually be restored as the leader.
-            if (newIsr.isEmpty && !LogConfig.fromProps(config.originals, AdminUtils.fetchEntityConfig(zkUtils,
-              ConfigType.Topic, topicAndPartition.topic)).uncleanLeaderElectionEnable) {
-              info("Retaining last ISR %d of partition %s since unclean leader election is disabled".format(replicaId, topicAndPartition))
-              newIsr = leaderAndIsr.isr
-            }
-
-            val newLeaderAndIsr = leaderAndIsr.newLeaderAndIsr(newLeader, newIsr)
+            val newLeaderAndIsr = leaderAndIsrWithoutReplica(topicAndPartition, leaderAndIsr, replicaId)
             // update the new leadership decision in zookeeper or retry
             val (updateSucceeded, newVersion) = ReplicationUtils.updateLeaderAndIsr(zkUtils, topic, partition,
               newLeaderAndIsr, epoch, leaderAndIsr.zkVersion)
@@ -1049,6 +1058,74 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     finalLeaderIsrAndControllerEpoch
   }
 
+  /**
+   * Removes each replica from the ISR of its partition as `removeReplicaFromIsr` does, but reads and writes the leader
+   * and isr paths of all the partitions with pipelined zookeeper requests rather than round trips per partition, which
+   * matters when a broker hosting many partitions fails. The replicas of a partition with several of them, of a partition
+   * whose leader and isr path was written by a newer controller or of a partition whose path was updated concurrently
+   * are left out of the returned map, to be removed by `removeReplicaFromIsr`.
+   */
+  def removeReplicasFromIsr(replicas: Seq[PartitionAndReplica]): Map[PartitionAndReplica, Option[LeaderIsrAndControllerEpoch]] = {
+    val removals = replicas.groupBy(r => TopicAndPartition(r.topic, r.partition)).collect {
+      case (topicAndPartition, Seq(replica)) => topicAndPartition -> replica
+    }.toSeq
+    val leaderIsrAndEpochs = ReplicationUtils.getLeaderIsrAndEpochForPartitions(zkUtils, removals.map(_._1))
+    val results = mutable.Map[PartitionAndReplica, Option[LeaderIsrAndControllerEpoch]]()
+    val updates = removals.flatMap { case (topicAndPartition, replica) =>
+      leaderIsrAndEpochs.get(topicAndPartition) match {
+        case Some(leaderIsrAndEpoch) if leaderIsrAndEpoch.controllerEpoch > epoch => None
+        case Some(leaderIsrAndEpoch) =>
+          val leaderAndIsr = leaderIsrAndEpoch.leaderAndIsr
+          if (leaderAndIsr.isr.contains(replica.replica))
+            Some((replica, topicAndPartition, leaderAndIsrWithoutReplica(topicAndPartition, leaderAndIsr, replica.replica),
+              leaderAndIsr.zkVersion))
+          else {
+            warn(s"Cannot remove replica ${replica.replica} from ISR of partition $topicAndPartition since it is not in the ISR." +
+              s" Leader = ${leaderAndIsr.leader} ; ISR = ${leaderAndIsr.isr}")
+            val leaderIsrAndControllerEpoch = LeaderIsrAndControllerEpoch(leaderAndIsr, epoch)
+            controllerContext.partitionLeadershipInfo.put(topicAndPartition, leaderIsrAndControllerEpoch)
+            results.put(replica, Some(leaderIsrAndControllerEpoch))
+            None
+          }
+        case None =>
+          warn("Cannot remove replica %d from ISR of %s - leaderAndIsr is empty.".format(replica.replica, topicAndPartition))
+          results.put(replica, None)
+          None
+      }
+    }
+    val updateResults = ReplicationUtils.updateLeaderAndIsrs(zkUtils, updates.map {
+      case (_, topicAndPartition, newLeaderAndIsr, zkVersion) => (topicAndPartition, newLeaderAndIsr, zkVersion)
+    }, epoch)
+    updates.zip(updateResults).foreach { case ((replica, topicAndPartition, newLeaderAndIsr, _), (updateSucceeded, newVersion)) =>
+      if (updateSucceeded) {
+        val leaderWithNewVersion = newLeaderAndIsr.withZkVersion(newVersion)
+        val leaderIsrAndControllerEpoch = LeaderIsrAndControllerEpoch(leaderWithNewVersion, epoch)
+        controllerContext.partitionLeadershipInfo.put(topicAndPartition, leaderIsrAndControllerEpoch)
+        info(s"New leader and ISR for partition $topicAndPartition is $leaderWithNewVersion")
+        results.put(replica, Some(leaderIsrAndControllerEpoch))
+      }
+    }
+    results
+  }
+
+  private def leaderAndIsrWithoutReplica(topicAndPartition: TopicAndPartition, leaderAndIsr: LeaderAndIsr,
+                                         replicaId: Int): LeaderAndIsr = {
+    // if the replica to be removed from the ISR is also the leader, set the new leader value to -1
+    val newLeader = if (replicaId == leaderAndIsr.leader) LeaderAndIsr.NoLeader else leaderAndIsr.leader
+    var newIsr = leaderAndIsr.isr.filter(b => b != replicaId)
+
+    // if the replica to be removed from the ISR is the last surviving member of the ISR and unclean leader election
+    // is disallowed for the corresponding topic, then we must preserve the ISR membership so that the replica can
+    // eventually be restored as the leader.
+    if (newIsr.isEmpty && !LogConfig.fromProps(config.originals, AdminUtils.fetchEntityConfig(zkUtils,
+      ConfigType.Topic, topicAndPartition.topic)).uncleanLeaderElectionEnable) {
+      info("Retaining last ISR %d of partition %s since unclean leader election is disabled".format(replicaId, topicAndPartition))
+      newIsr = leaderAndIsr.isr
+    }
+
+    leaderAndIsr.newLeaderAndIsr(newLeader, newIsr)
+  }
+
   /**
    * Does not change leader or isr, but just increments the leader epoch
    *
@@ -1164,10 +1241,15 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     }
   }
 
-  case class TopicChange(topics: Set[String]) extends ControllerEvent {
+  case class TopicChange(topics: Set[String]) extends CoalescableControllerEvent {
 
     def state = ControllerState.TopicChange
 
+    // the latest children of the topics path supersede the earlier ones
+    def coalescingKey = classOf[TopicChange]
+
+    def coalesce(pending: CoalescableControllerEvent) = this
+
     override def process(): Unit = {
       if (!isActive) return
       val newTopics = topics -- controllerContext.allTopics
@@ -1185,10 +1267,15 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     }
   }
 
-  case class PartitionModifications(topic: String) extends ControllerEvent {
+  case class PartitionModifications(topic: String) extends CoalescableControllerEvent {
 
     def state = ControllerState.TopicChange
 
+    // the replica assignment of the topic is read when the event is processed
+    def coalescingKey = (classOf[PartitionModifications], topic)
+
+    def coalesce(pending: CoalescableControllerEvent) = pending
+
     override def process(): Unit = {
       if (!isActive) return
       val partitionReplicaAssignment = zkUtils.getReplicaAssignmentForTopics(List(topic))
@@ -1207,10 +1294,15 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     }
   }
 
-  case class TopicDeletion(var topicsToBeDeleted: Set[String]) extends ControllerEvent {
+  case class TopicDeletion(var topicsToBeDeleted: Set[String]) extends CoalescableControllerEvent {
 
     def state = ControllerState.TopicDeletion
 
+    // the latest children of the delete topics path supersede the earlier ones
+    def coalescingKey = classOf[TopicDeletion]
+
+    def coalesce(pending: CoalescableControllerEvent) = this
+
     override def process(): Unit = {
       if (!isActive) return
       debug("Delete topics listener fired for topics %s to be deleted".format(topicsToBeDeleted.mkString(",")))
@@ -1298,14 +1390,26 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
     }
   }
 
-  case class IsrChangeNotification(sequenceNumbers: Seq[String]) extends ControllerEvent {
+  case class IsrChangeNotification(sequenceNumbers: Seq[String]) extends CoalescableControllerEvent {
 
     def state = ControllerState.IsrChange
 
+    def coalescingKey = classOf[IsrChangeNotification]
+
+    def coalesce(pending: CoalescableControllerEvent) = pending match {
+      case IsrChangeNotification(pendingSequenceNumbers) =>
+        IsrChangeNotification((pendingSequenceNumbers ++ sequenceNumbers).distinct)
+      case _ => this
+    }
+
     override def process(): Unit = {
       if (!isActive) return
       try {
-        val topicAndPartitions = sequenceNumbers.flatMap(getTopicAndPartition).toSet
+        // the notifications are read with pipelined requests as a burst of them may have been coalesced
+        val changeZnodes = sequenceNumbers.map(ZkUtils.IsrChangeNotificationPath + "/" + _)
+        val topicAndPartitions = changeZnodes.zip(controllerContext.zkUtils.readDataMaybeNull(changeZnodes)).flatMap {
+          case (changeZnode, (jsonOpt, _)) => getTopicAndPartition(changeZnode, jsonOpt)
+        }.toSet
         if (topicAndPartitions.nonEmpty) {
           updateLeaderAndIsrCache(topicAndPartitions)
           processUpdateNotifications(topicAndPartitions)
@@ -1322,9 +1426,7 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
       sendUpdateMetadataRequest(liveBrokers, topicAndPartitions)
     }
 
-    private def getTopicAndPartition(child: String): Set[TopicAndPartition] = {
-      val changeZnode: String = ZkUtils.IsrChangeNotificationPath + "/" + child
-      val (jsonOpt, _) = controllerContext.zkUtils.readDataMaybeNull(changeZnode)
+    private def getTopicAndPartition(changeZnode: String, jsonOpt: Option[String]): Set[TopicAndPartition] = {
       if (jsonOpt.isDefined) {
         val json = Json.parseFull(jsonOpt.get)
 
@@ -1409,32 +1511,38 @@ class KafkaController(val config: KafkaConfig, zkUtils: ZkUtils, time: Time, met
           controllerContext.partitionsOnBroker(id)
             .map(topicAndPartition => (topicAndPartition, controllerContext.partitionReplicaAssignment(topicAndPartition).size))
 
-      allPartitionsAndReplicationFactorOnBroker.foreach { case (topicAndPartition, replicationFactor) =>
-        controllerContext.partitionLeadershipInfo.get(topicAndPartition).foreach { currLeaderIsrAndControllerEpoch =>
-          if (replicationFactor > 1) {
-            if (currLeaderIsrAndControllerEpoch.leaderAndIsr.leader == id) {
-              // If the broker leads the topic partition, transition the leader and update isr. Updates zk and
-              // notifies all affected brokers
-              partitionStateMachine.handleStateChanges(Set(topicAndPartition), OnlinePartition,
-                controlledShutdownPartitionLeaderSelector)
-            } else {
-              // Stop the replica first. The state change below initiates ZK changes which should take some time
-              // before which the stop replica request should be completed (in most cases)
-              try {
-                brokerRequestBatch.newBatch()
-                brokerRequestBatch.addStopReplicaRequestForBrokers(Seq(id), topicAndPartition.topic,
-                  topicAndPartition.partition, deletePartition = false)
-                brokerRequestBatch.sendRequestsToBrokers(epoch)
-              } catch {
-                case e: IllegalStateException =>
-                  handleIllegalState(e)
-              }
-              // If the broker is a follower, updates the isr in ZK and notifies the current leader
-              replicaStateMachine.handleStateChanges(Set(PartitionAndReplica(topicAndPartition.topic,
-                topicAndPartition.partition, id)), OfflineReplica)
-            }
+      val replicatedPartitionsOnBroker = allPartitionsAndReplicationFactorOnBroker.collect {
+        case (topicAndPartition, replicationFactor)
+          if replicationFactor > 1 && controllerContext.partitionLeadershipInfo.contains(topicAndPartition) => topicAndPartition
+      }
+      val (partitionsLedByBroker, partitionsFollowedByBroker) = replicatedPartitionsOnBroker.partition { topicAndPartition =>
+        controllerContext.partitionLeadershipInfo(topicAndPartition).leaderAndIsr.leader == id
+      }
+
+      // If the broker leads the topic partitions, transition the leaders and update the isrs, in a single batch of
+      // zk updates and requests to the affected brokers
+      if (partitionsLedByBroker.nonEmpty)
+        partitionStateMachine.handleStateChanges(partitionsLedByBroker, OnlinePartition,
+          controlledShutdownPartitionLeaderSelector)
+
+      if (partitionsFollowedByBroker.nonEmpty) {
+        // Stop the replicas first. The state change below initiates ZK changes which should take some time
+        // before which the stop replica requests should be completed (in most cases)
+        try {
+          brokerRequestBatch.newBatch()
+          partitionsFollowedByBroker.foreach { topicAndPartition =>
+            brokerRequestBatch.addStopReplicaRequestForBrokers(Seq(id), topicAndPartition.topic,
+              topicAndPartition.partition, deletePartition = false)
           }
+          brokerRequestBatch.sendRequestsToBrokers(epoch)
+        } catch {
+          case e: IllegalStateException =>
+            handleIllegalState(e)
         }
+        // If the broker is a follower, updates the isrs in ZK and notifies the current leaders
+        replicaStateMachine.handleStateChanges(partitionsFollowedByBroker.map { topicAndPartition =>
+          PartitionAndReplica(topicAndPartition.topic, topicAndPartition.partition, id)
+        }, OfflineReplica)
       }
       def replicatedPartitionsBrokerLeads() = {
         trace("All leaders = " + controllerContext.partitionLeadershipInfo.mkString(","))
@@ -1740,9 +1848,33 @@ private[controller] class ControllerStats extends KafkaMetricsGroup {
     }
   }.toMap
 
+  // the number of partition states in and the size in bytes of each UpdateMetadataRequest sent to a broker
+  val updateMetadataRequestPartitionsHist = newHistogram("UpdateMetadataRequestPartitions")
+  val updateMetadataRequestBytesHist = newHistogram("UpdateMetadataRequestBytes")
+
+  // time from the enqueueing of a request to a broker to the receipt of the response of the broker
+  val requestPropagationTimeHists: Map[ApiKeys, Histogram] =
+    Seq(ApiKeys.LEADER_AND_ISR, ApiKeys.UPDATE_METADATA_KEY, ApiKeys.STOP_REPLICA).map { apiKey =>
+      apiKey -> newHistogram("RequestPropagationTimeMs", biased = true, Map("request" -> apiKey.name))
+    }.toMap
+
 }
 
 sealed trait ControllerEvent {
   def state: ControllerState
   def process(): Unit
 }
+
+/**
+ * An event that may be merged with a queued event of the same `coalescingKey` which has not been processed yet. Events
+ * carrying a snapshot of zookeeper children or notifications that are handled together are coalescable, while events
+ * whose every occurrence matters (e.g. a broker bouncing) are not.
+ */
+trait CoalescableControllerEvent extends ControllerEvent {
+  def coalescingKey: Any
+
+  /**
+   * Returns the event to process in place of `pending`, the queued event of the same key, and of this event.
+   */
+  def coalesce(pending: CoalescableControllerEvent): ControllerEvent
+}
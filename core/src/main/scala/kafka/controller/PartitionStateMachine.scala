@@ -79,11 +79,15 @@ class PartitionStateMachine(controller: KafkaController) extends Logging {
       brokerRequestBatch.newBatch()
       // try to move all partitions in NewPartition or OfflinePartition state to OnlinePartition state except partitions
       // that belong to topics to be deleted
-      for ((topicAndPartition, partitionState) <- partitionState
-          if !controller.topicDeletionManager.isTopicQueuedUpForDeletion(topicAndPartition.topic)) {
-        if (partitionState.equals(OfflinePartition) || partitionState.equals(NewPartition))
-          handleStateChange(topicAndPartition.topic, topicAndPartition.partition, OnlinePartition, controller.offlinePartitionSelector,
-                            (new CallbackBuilder).build)
+      val partitions = partitionState.filter { case (topicAndPartition, partitionState) =>
+        !controller.topicDeletionManager.isTopicQueuedUpForDeletion(topicAndPartition.topic) &&
+          (partitionState.equals(OfflinePartition) || partitionState.equals(NewPartition))
+      }.keySet
+      val offlinePartitions = partitions.filter(partitionState(_) == OfflinePartition)
+      val concurrentlyUpdatedPartitions = electLeadersForPartitions(offlinePartitions.toSeq, controller.offlinePartitionSelector)
+      (partitions -- offlinePartitions ++ concurrentlyUpdatedPartitions).foreach { topicAndPartition =>
+        handleStateChange(topicAndPartition.topic, topicAndPartition.partition, OnlinePartition, controller.offlinePartitionSelector,
+                          (new CallbackBuilder).build)
       }
       brokerRequestBatch.sendRequestsToBrokers(controller.epoch)
     } catch {
@@ -107,7 +111,13 @@ class PartitionStateMachine(controller: KafkaController) extends Logging {
     info("Invoking state change to %s for partitions %s".format(targetState, partitions.mkString(",")))
     try {
       brokerRequestBatch.newBatch()
-      partitions.foreach { topicAndPartition =>
+      // the leaders of partitions which are already online or offline are elected together
+      val partitionsToElect = if (targetState == OnlinePartition)
+        partitions.filter(partition => partitionState.get(partition).exists(state => state == OfflinePartition || state == OnlinePartition))
+      else
+        Set.empty[TopicAndPartition]
+      val concurrentlyUpdatedPartitions = electLeadersForPartitions(partitionsToElect.toSeq, leaderSelector)
+      (partitions -- partitionsToElect ++ concurrentlyUpdatedPartitions).foreach { topicAndPartition =>
         handleStateChange(topicAndPartition.topic, topicAndPartition.partition, targetState, leaderSelector, callbacks)
       }
       brokerRequestBatch.sendRequestsToBrokers(controller.epoch)
@@ -166,10 +176,7 @@ class PartitionStateMachine(controller: KafkaController) extends Logging {
               electLeaderForPartition(topic, partition, leaderSelector)
             case _ => // should never come here since illegal previous states are checked above
           }
-          partitionState.put(topicAndPartition, OnlinePartition)
-          val leader = controllerContext.partitionLeadershipInfo(topicAndPartition).leaderAndIsr.leader
-          stateChangeLogger.trace("Controller %d epoch %d changed partition %s from %s to %s with leader %d"
-                                    .format(controllerId, controller.epoch, topicAndPartition, currState, targetState, leader))
+          movedToOnline(topicAndPartition, currState)
            // post: partition has a leader
         case OfflinePartition =>
           // should be called when the leader for a partition is no longer alive
@@ -184,12 +191,23 @@ class PartitionStateMachine(controller: KafkaController) extends Logging {
           // post: partition state is deleted from all brokers and zookeeper
       }
     } catch {
-      case t: Throwable =>
-        stateChangeLogger.error("Controller %d epoch %d initiated state change for partition %s from %s to %s failed"
-          .format(controllerId, controller.epoch, topicAndPartition, currState, targetState), t)
+      case t: Throwable => stateChangeFailed(topicAndPartition, currState, targetState, t)
     }
   }
 
+  private def movedToOnline(topicAndPartition: TopicAndPartition, currState: PartitionState) {
+    partitionState.put(topicAndPartition, OnlinePartition)
+    val leader = controllerContext.partitionLeadershipInfo(topicAndPartition).leaderAndIsr.leader
+    stateChangeLogger.trace("Controller %d epoch %d changed partition %s from %s to %s with leader %d"
+                              .format(controllerId, controller.epoch, topicAndPartition, currState, OnlinePartition, leader))
+  }
+
+  private def stateChangeFailed(topicAndPartition: TopicAndPartition, currState: PartitionState, targetState: PartitionState,
+                                t: Throwable) {
+    stateChangeLogger.error("Controller %d epoch %d initiated state change for partition %s from %s to %s failed"
+      .format(controllerId, controller.epoch, topicAndPartition, currState, targetState), t)
+  }
+
   /**
    * Invoked on startup of the partition's state machine to set the initial state for all existing partitions in
    * zookeeper
@@ -295,53 +313,122 @@ class PartitionStateMachine(controller: KafkaController) extends Logging {
       while(!zookeeperPathUpdateSucceeded) {
         val currentLeaderIsrAndEpoch = getLeaderIsrAndEpochOrThrowException(topic, partition)
         val currentLeaderAndIsr = currentLeaderIsrAndEpoch.leaderAndIsr
-        val controllerEpoch = currentLeaderIsrAndEpoch.controllerEpoch
-        if (controllerEpoch > controller.epoch) {
-          val failMsg = ("aborted leader election for partition [%s,%d] since the LeaderAndIsr path was " +
-                         "already written by another controller. This probably means that the current controller %d went through " +
-                         "a soft failure and another controller was elected with epoch %d.")
-                           .format(topic, partition, controllerId, controllerEpoch)
-          stateChangeLogger.error("Controller %d epoch %d ".format(controllerId, controller.epoch) + failMsg)
-          throw new StateChangeFailedException(failMsg)
-        }
-        // elect new leader or throw exception
-        val (leaderAndIsr, replicas) = leaderSelector.selectLeader(topicAndPartition, currentLeaderAndIsr)
+        val (leaderAndIsr, replicas) = selectLeader(topicAndPartition, currentLeaderIsrAndEpoch, leaderSelector)
         val (updateSucceeded, newVersion) = ReplicationUtils.updateLeaderAndIsr(zkUtils, topic, partition,
           leaderAndIsr, controller.epoch, currentLeaderAndIsr.zkVersion)
         newLeaderAndIsr = leaderAndIsr.withZkVersion(newVersion)
         zookeeperPathUpdateSucceeded = updateSucceeded
         replicasForThisPartition = replicas
       }
-      val newLeaderIsrAndControllerEpoch = LeaderIsrAndControllerEpoch(newLeaderAndIsr, controller.epoch)
-      // update the leader cache
-      controllerContext.partitionLeadershipInfo.put(TopicAndPartition(topic, partition), newLeaderIsrAndControllerEpoch)
-      stateChangeLogger.trace("Controller %d epoch %d elected leader %d for Offline partition %s"
-                                .format(controllerId, controller.epoch, newLeaderAndIsr.leader, topicAndPartition))
-      val replicas = controllerContext.partitionReplicaAssignment(TopicAndPartition(topic, partition))
-      // store new leader and isr info in cache
-      brokerRequestBatch.addLeaderAndIsrRequestForBrokers(replicasForThisPartition, topic, partition,
-        newLeaderIsrAndControllerEpoch, replicas)
+      leaderElected(topicAndPartition, newLeaderAndIsr, replicasForThisPartition)
     } catch {
       case _: LeaderElectionNotNeededException => // swallow
-      case nroe: NoReplicaOnlineException => throw nroe
-      case sce: Throwable =>
-        val failMsg = "encountered error while electing leader for partition %s due to: %s.".format(topicAndPartition, sce.getMessage)
-        stateChangeLogger.error("Controller %d epoch %d ".format(controllerId, controller.epoch) + failMsg)
-        throw new StateChangeFailedException(failMsg, sce)
+      case e: Throwable => throw leaderElectionFailure(topicAndPartition, e)
+    }
+    debug("After leader election, leader cache is updated to %s".format(controllerContext.partitionLeadershipInfo.map(l => (l._1, l._2))))
+  }
+
+  /**
+   * Invoked on the OfflinePartition,OnlinePartition->OnlinePartition state change of several partitions. It elects
+   * their leaders as `electLeaderForPartition` does, but reads and writes the leader and isr paths of all the partitions
+   * with pipelined zookeeper requests rather than round trips per partition, and moves the partitions to the
+   * OnlinePartition state.
+   * @param partitions          The offline or online partitions
+   * @param leaderSelector      Specific leader selector (e.g., offline/reassigned/etc.)
+   * @return The partitions whose leader and isr path was updated concurrently, whose state change is left to the caller
+   */
+  private def electLeadersForPartitions(partitions: Seq[TopicAndPartition],
+                                        leaderSelector: PartitionLeaderSelector): Seq[TopicAndPartition] = {
+    if (partitions.isEmpty)
+      return Seq.empty
+    val currentLeaderIsrAndEpochs = ReplicationUtils.getLeaderIsrAndEpochForPartitions(zkUtils, partitions)
+    val elections = partitions.flatMap { topicAndPartition =>
+      val currState = partitionState(topicAndPartition)
+      stateChangeLogger.trace("Controller %d epoch %d started leader election for partition %s"
+                                .format(controllerId, controller.epoch, topicAndPartition))
+      try {
+        val currentLeaderIsrAndEpoch = currentLeaderIsrAndEpochs.getOrElse(topicAndPartition,
+          throw leaderAndIsrNotFound(topicAndPartition))
+        val (leaderAndIsr, replicas) = selectLeader(topicAndPartition, currentLeaderIsrAndEpoch, leaderSelector)
+        Some((topicAndPartition, currState, currentLeaderIsrAndEpoch.leaderAndIsr.zkVersion, leaderAndIsr, replicas))
+      } catch {
+        case _: LeaderElectionNotNeededException =>
+          movedToOnline(topicAndPartition, currState)
+          None
+        case e: Throwable =>
+          stateChangeFailed(topicAndPartition, currState, OnlinePartition, leaderElectionFailure(topicAndPartition, e))
+          None
+      }
+    }
+    val updateResults = ReplicationUtils.updateLeaderAndIsrs(zkUtils, elections.map {
+      case (topicAndPartition, _, zkVersion, leaderAndIsr, _) => (topicAndPartition, leaderAndIsr, zkVersion)
+    }, controller.epoch)
+    val concurrentlyUpdatedPartitions = elections.zip(updateResults).flatMap {
+      case ((topicAndPartition, currState, _, leaderAndIsr, replicas), (updateSucceeded, newVersion)) =>
+        if (updateSucceeded) {
+          try {
+            leaderElected(topicAndPartition, leaderAndIsr.withZkVersion(newVersion), replicas)
+            movedToOnline(topicAndPartition, currState)
+          } catch {
+            case t: Throwable => stateChangeFailed(topicAndPartition, currState, OnlinePartition, t)
+          }
+          None
+        } else
+          Some(topicAndPartition)
     }
     debug("After leader election, leader cache is updated to %s".format(controllerContext.partitionLeadershipInfo.map(l => (l._1, l._2))))
+    concurrentlyUpdatedPartitions
+  }
+
+  private def selectLeader(topicAndPartition: TopicAndPartition, currentLeaderIsrAndEpoch: LeaderIsrAndControllerEpoch,
+                           leaderSelector: PartitionLeaderSelector): (LeaderAndIsr, Seq[Int]) = {
+    val controllerEpoch = currentLeaderIsrAndEpoch.controllerEpoch
+    if (controllerEpoch > controller.epoch) {
+      val failMsg = ("aborted leader election for partition [%s,%d] since the LeaderAndIsr path was " +
+                     "already written by another controller. This probably means that the current controller %d went through " +
+                     "a soft failure and another controller was elected with epoch %d.")
+                       .format(topicAndPartition.topic, topicAndPartition.partition, controllerId, controllerEpoch)
+      stateChangeLogger.error("Controller %d epoch %d ".format(controllerId, controller.epoch) + failMsg)
+      throw new StateChangeFailedException(failMsg)
+    }
+    // elect new leader or throw exception
+    leaderSelector.selectLeader(topicAndPartition, currentLeaderIsrAndEpoch.leaderAndIsr)
+  }
+
+  private def leaderElected(topicAndPartition: TopicAndPartition, newLeaderAndIsr: LeaderAndIsr,
+                            replicasForThisPartition: Seq[Int]) {
+    val newLeaderIsrAndControllerEpoch = LeaderIsrAndControllerEpoch(newLeaderAndIsr, controller.epoch)
+    // update the leader cache
+    controllerContext.partitionLeadershipInfo.put(topicAndPartition, newLeaderIsrAndControllerEpoch)
+    stateChangeLogger.trace("Controller %d epoch %d elected leader %d for Offline partition %s"
+                              .format(controllerId, controller.epoch, newLeaderAndIsr.leader, topicAndPartition))
+    val replicas = controllerContext.partitionReplicaAssignment(topicAndPartition)
+    // store new leader and isr info in cache
+    brokerRequestBatch.addLeaderAndIsrRequestForBrokers(replicasForThisPartition, topicAndPartition.topic,
+      topicAndPartition.partition, newLeaderIsrAndControllerEpoch, replicas)
+  }
+
+  private def leaderElectionFailure(topicAndPartition: TopicAndPartition, e: Throwable): Throwable = e match {
+    case nroe: NoReplicaOnlineException => nroe
+    case sce: Throwable =>
+      val failMsg = "encountered error while electing leader for partition %s due to: %s.".format(topicAndPartition, sce.getMessage)
+      stateChangeLogger.error("Controller %d epoch %d ".format(controllerId, controller.epoch) + failMsg)
+      new StateChangeFailedException(failMsg, sce)
   }
 
   private def getLeaderIsrAndEpochOrThrowException(topic: String, partition: Int): LeaderIsrAndControllerEpoch = {
     val topicAndPartition = TopicAndPartition(topic, partition)
     ReplicationUtils.getLeaderIsrAndEpochForPartition(zkUtils, topic, partition) match {
       case Some(currentLeaderIsrAndEpoch) => currentLeaderIsrAndEpoch
-      case None =>
-        val failMsg = "LeaderAndIsr information doesn't exist for partition %s in %s state"
-                        .format(topicAndPartition, partitionState(topicAndPartition))
-        throw new StateChangeFailedException(failMsg)
+      case None => throw leaderAndIsrNotFound(topicAndPartition)
     }
   }
+
+  private def leaderAndIsrNotFound(topicAndPartition: TopicAndPartition): StateChangeFailedException = {
+    val failMsg = "LeaderAndIsr information doesn't exist for partition %s in %s state"
+                    .format(topicAndPartition, partitionState(topicAndPartition))
+    new StateChangeFailedException(failMsg)
+  }
 }
 
 sealed trait PartitionState {
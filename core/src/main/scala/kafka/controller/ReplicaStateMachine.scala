@@ -85,7 +85,10 @@ class ReplicaStateMachine(controller: KafkaController) extends Logging {
       info("Invoking state change to %s for replicas %s".format(targetState, replicas.mkString(",")))
       try {
         brokerRequestBatch.newBatch()
-        replicas.foreach(r => handleStateChange(r, targetState, callbacks))
+        val isrRemovals =
+          if (targetState == OfflineReplica) removeReplicasFromIsr(replicas)
+          else Map.empty[PartitionAndReplica, Option[LeaderIsrAndControllerEpoch]]
+        replicas.foreach(r => handleStateChange(r, targetState, callbacks, isrRemovals))
         brokerRequestBatch.sendRequestsToBrokers(controller.epoch)
       } catch {
         case e: Throwable => error("Error while moving some replicas to %s state".format(targetState), e)
@@ -93,6 +96,26 @@ class ReplicaStateMachine(controller: KafkaController) extends Logging {
     }
   }
 
+  /**
+   * Removes the replicas moving to the OfflineReplica state from the isr of their partitions together, see
+   * `KafkaController.removeReplicasFromIsr`. The replicas left out, or all of them if the removal fails, are removed by
+   * `handleStateChange` one at a time.
+   */
+  private def removeReplicasFromIsr(replicas: Set[PartitionAndReplica]): Map[PartitionAndReplica, Option[LeaderIsrAndControllerEpoch]] = {
+    val replicasToRemove = replicas.filter { r =>
+      val topicAndPartition = TopicAndPartition(r.topic, r.partition)
+      replicaState.get(r).exists(OfflineReplica.validPreviousStates.contains) &&
+        controllerContext.partitionReplicaAssignment.contains(topicAndPartition) &&
+        controllerContext.partitionLeadershipInfo.contains(topicAndPartition)
+    }
+    try controller.removeReplicasFromIsr(replicasToRemove.toSeq)
+    catch {
+      case e: Throwable =>
+        warn("Error while removing replicas %s from the isr together".format(replicasToRemove.mkString(",")), e)
+        Map.empty
+    }
+  }
+
   /**
    * This API exercises the replica's state machine. It ensures that every state transition happens from a legal
    * previous state to the target state. Valid state transitions are:
@@ -127,9 +150,11 @@ class ReplicaStateMachine(controller: KafkaController) extends Logging {
 
    * @param partitionAndReplica The replica for which the state transition is invoked
    * @param targetState The end state that the replica should be moved to
+   * @param isrRemovals The replicas already removed from the isr of their partitions, see `removeReplicasFromIsr`
    */
   def handleStateChange(partitionAndReplica: PartitionAndReplica, targetState: ReplicaState,
-                        callbacks: Callbacks) {
+                        callbacks: Callbacks,
+                        isrRemovals: Map[PartitionAndReplica, Option[LeaderIsrAndControllerEpoch]] = Map.empty) {
     val topic = partitionAndReplica.topic
     val partition = partitionAndReplica.partition
     val replicaId = partitionAndReplica.replica
@@ -209,7 +234,7 @@ class ReplicaStateMachine(controller: KafkaController) extends Logging {
           val leaderAndIsrIsEmpty: Boolean =
             controllerContext.partitionLeadershipInfo.get(topicAndPartition) match {
               case Some(_) =>
-                controller.removeReplicaFromIsr(topic, partition, replicaId) match {
+                isrRemovals.getOrElse(partitionAndReplica, controller.removeReplicaFromIsr(topic, partition, replicaId)) match {
                   case Some(updatedLeaderIsrAndControllerEpoch) =>
                     // send the shrunk ISR state change request to all the remaining alive replicas of the partition.
                     val currentAssignedReplicas = controllerContext.partitionReplicaAssignment(topicAndPartition)
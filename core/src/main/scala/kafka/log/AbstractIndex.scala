@@ -20,7 +20,8 @@ package kafka.log
 import java.io.{File, IOException, RandomAccessFile}
 import java.nio.{ByteBuffer, MappedByteBuffer}
 import java.nio.channels.FileChannel
-import java.util.concurrent.locks.{Lock, ReentrantLock}
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.{Lock, ReentrantLock, ReentrantReadWriteLock}
 
 import kafka.log.IndexSearchType.IndexSearchEntity
 import kafka.utils.CoreUtils.inLock
@@ -33,6 +34,17 @@ import scala.math.ceil
 /**
  * The abstract index class which holds entry format agnostic methods.
  *
+ * The index file is only memory-mapped when the index is first accessed, so opening the indexes of a log with many
+ * segments is cheap. The mapping of an index which is no longer used may be released with `releaseMmap()`, it will be
+ * mapped again on the next access. Lookups hold the read lock of the mapping while they use it, so that it is only
+ * unmapped once no lookup is using it.
+ *
+ * Lookups first search the last few pages of the index, which is where the lookups of consumers and replicas reading
+ * the tail of the log land, so that these pages stay in the page cache. A lookup before them first binary-searches the
+ * first entries of the pages of the index to find the page the entry is in, and then searches that page. The first
+ * entries read are kept in an in-heap directory, so the first lookup touches the pages of a binary search of the
+ * pages, and the following ones less and less of them until they only touch the page which holds the entry.
+ *
  * @param file The index file
  * @param baseOffset the base offset of the segment that this index is corresponding to.
  * @param maxIndexSize The maximum index size in bytes.
@@ -44,19 +56,73 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
 
   protected val lock = new ReentrantLock
 
+  /* held for reading by the lookups which use the mapping without the lock, and for writing to unmap it. It must be
+   * acquired before the lock */
+  private val mappingLock = new ReentrantReadWriteLock
+
+  /* the memory mapping of the index file, null until the index is first accessed or after it has been released */
+  @volatile
+  private[this] var _mmap: MappedByteBuffer = null
+
+  /* set whenever the mapping is accessed, and cleared by `clearAccessed()` to find indexes which are not in use */
+  @volatile
+  private[this] var accessed = false
+
   @volatile
-  protected var mmap: MappedByteBuffer = {
+  private[this] var deleted = false
+
+  /* the first entries of the pages before the warm section which lookups have read, created by the first such lookup */
+  @volatile
+  private[this] var pageDirectory: IndexPageDirectory = null
+
+  /**
+   * The maximum number of entries this index can hold
+   */
+  @volatile
+  private[this] var _maxEntries = 0
+
+  /** The number of entries in this index */
+  @volatile
+  protected var _entries = 0
+
+  locally {
     val newlyCreated = file.createNewFile()
+    /* pre-allocate the file if necessary */
+    if(newlyCreated) {
+      if(maxIndexSize < entrySize)
+        throw new IllegalArgumentException("Invalid max index size: " + maxIndexSize)
+      val raf = if (writable) new RandomAccessFile(file, "rw") else new RandomAccessFile(file, "r")
+      try raf.setLength(roundDownToExactMultiple(maxIndexSize, entrySize))
+      finally CoreUtils.swallow(raf.close())
+    }
+    val len = file.length.toInt
+    _maxEntries = len / entrySize
+    // if this is a pre-existing index, assume it is valid and set the position to the last entry
+    _entries = if (newlyCreated) 0 else len / entrySize
+  }
+
+  /**
+   * The memory mapping of the index file, which is created on first access. The position of the buffer is the
+   * position of the next entry.
+   */
+  protected def mmap: MappedByteBuffer = {
+    if (!accessed)
+      accessed = true
+    val m = _mmap
+    if (m != null)
+      m
+    else inLock(lock) {
+      if (_mmap == null)
+        _mmap = openMmap()
+      _mmap
+    }
+  }
+
+  private def openMmap(): MappedByteBuffer = {
+    if (deleted)
+      throw new IllegalStateException(s"Attempt to access deleted index ${file.getAbsolutePath}")
     val raf = if (writable) new RandomAccessFile(file, "rw") else new RandomAccessFile(file, "r")
     try {
-      /* pre-allocate the file if necessary */
-      if(newlyCreated) {
-        if(maxIndexSize < entrySize)
-          throw new IllegalArgumentException("Invalid max index size: " + maxIndexSize)
-        raf.setLength(roundDownToExactMultiple(maxIndexSize, entrySize))
-      }
-
-      /* memory-map the file */
       val len = raf.length()
       val idx = {
         if (writable)
@@ -65,26 +131,63 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
           raf.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, len)
       }
       /* set the position in the index for the next entry */
-      if(newlyCreated)
-        idx.position(0)
-      else
-        // if this is a pre-existing index, assume it is valid and set position to last entry
-        idx.position(roundDownToExactMultiple(idx.limit, entrySize))
+      idx.position(_entries * entrySize)
       idx
     } finally {
       CoreUtils.swallow(raf.close())
     }
   }
 
+  /** Whether the index file is currently memory-mapped */
+  def isMapped: Boolean = _mmap != null
+
   /**
-   * The maximum number of entries this index can hold
+   * Whether the index has been accessed since the last call to `clearAccessed()`
    */
-  @volatile
-  private[this] var _maxEntries = mmap.limit / entrySize
+  def wasAccessed: Boolean = accessed
 
-  /** The number of entries in this index */
-  @volatile
-  protected var _entries = mmap.position / entrySize
+  def clearAccessed(): Unit = accessed = false
+
+  /**
+   * Flush and unmap the memory mapping of this index, it is recreated on the next access. Nothing is released if a
+   * lookup is using the mapping, it is not worth waiting for since the index is in use. The page directory is kept, so
+   * lookups after the index is mapped again do not read the first entries of the pages it holds again.
+   *
+   * @return true if the mapping was released
+   */
+  def releaseMmap(): Boolean = {
+    val writeLock = mappingLock.writeLock
+    if (!writeLock.tryLock())
+      false
+    else {
+      try {
+        inLock(lock) {
+          val current = _mmap
+          if (current == null)
+            false
+          else {
+            if (writable)
+              current.force()
+            _mmap = null
+            forceUnmap(current)
+            true
+          }
+        }
+      } finally writeLock.unlock()
+    }
+  }
+
+  /**
+   * Drop the page directory after entries have been removed, it is rebuilt on the next lookup which needs it. This
+   * must be called while holding the lock.
+   */
+  protected def invalidatePageDirectory(): Unit = pageDirectory = null
+
+  /** The number of pages of the index which are in the page directory, for testing */
+  private[log] def pageDirectorySize: Int = {
+    val directory = pageDirectory
+    if (directory == null) 0 else directory.knownPages
+  }
 
   /**
    * True iff there are no more slots available in this index
@@ -105,16 +208,20 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
     inLock(lock) {
       val raf = new RandomAccessFile(file, "rw")
       val roundedNewSize = roundDownToExactMultiple(newSize, entrySize)
-      val position = mmap.position
+      val current = _mmap
 
       /* Windows won't let us modify the file length while the file is mmapped :-( */
-      if (OperatingSystem.IS_WINDOWS)
-        forceUnmap(mmap);
+      if (OperatingSystem.IS_WINDOWS && current != null)
+        forceUnmap(current);
       try {
         raf.setLength(roundedNewSize)
-        mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
-        _maxEntries = mmap.limit / entrySize
-        mmap.position(position)
+        // an index which is not mapped is mapped again with the new size on its next access
+        if (current != null) {
+          val resized = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
+          resized.position(current.position)
+          _mmap = resized
+        }
+        _maxEntries = roundedNewSize / entrySize
       } finally {
         CoreUtils.swallow(raf.close())
       }
@@ -136,7 +243,9 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
    */
   def flush() {
     inLock(lock) {
-      mmap.force()
+      // the mapping is flushed when it is released, so there is nothing to flush if the index is not mapped
+      if (_mmap != null)
+        _mmap.force()
     }
   }
 
@@ -145,15 +254,20 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
    */
   def delete(): Boolean = {
     info(s"Deleting index ${file.getAbsolutePath}")
-    inLock(lock) {
-      // On JVM, a memory mapping is typically unmapped by garbage collector.
-      // However, in some cases it can pause application threads(STW) for a long moment reading metadata from a physical disk.
-      // To prevent this, we forcefully cleanup memory mapping within proper execution which never affects API responsiveness.
-      // See https://issues.apache.org/jira/browse/KAFKA-4614 for the details.
-      CoreUtils.swallow(forceUnmap(mmap))
-      // Accessing unmapped mmap crashes JVM by SEGV.
-      // Accessing it after this method called sounds like a bug but for safety, assign null and do not allow later access.
-      mmap = null
+    // wait for the lookups using the mapping, it is unmapped below
+    inLock(mappingLock.writeLock) {
+      inLock(lock) {
+        // On JVM, a memory mapping is typically unmapped by garbage collector.
+        // However, in some cases it can pause application threads(STW) for a long moment reading metadata from a physical disk.
+        // To prevent this, we forcefully cleanup memory mapping within proper execution which never affects API responsiveness.
+        // See https://issues.apache.org/jira/browse/KAFKA-4614 for the details.
+        if (_mmap != null)
+          CoreUtils.swallow(forceUnmap(_mmap))
+        // Accessing unmapped mmap crashes JVM by SEGV.
+        // Accessing it after this method called sounds like a bug but for safety, assign null and do not allow later access.
+        _mmap = null
+        deleted = true
+      }
     }
     file.delete()
   }
@@ -215,17 +329,21 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
   }
 
   /**
-   * Execute the given function in a lock only if we are running on windows. We do this
-   * because Windows won't let us resize a file while it is mmapped. As a result we have to force unmap it
-   * and this requires synchronizing reads.
+   * Execute the given function holding the read lock of the mapping, so that the mapping is not unmapped by
+   * `releaseMmap()` or `delete()` while the function reads it, and in the given lock too if we are running on windows.
+   * We do this because Windows won't let us resize a file while it is mmapped. As a result we have to force unmap it
+   * and this requires synchronizing reads. The function must not be called while holding the lock, the mapping lock
+   * is acquired first.
    */
   protected def maybeLock[T](lock: Lock)(fun: => T): T = {
-    if (OperatingSystem.IS_WINDOWS)
-      lock.lock()
-    try fun
-    finally {
+    inLock(mappingLock.readLock) {
       if (OperatingSystem.IS_WINDOWS)
-        lock.unlock()
+        lock.lock()
+      try fun
+      finally {
+        if (OperatingSystem.IS_WINDOWS)
+          lock.unlock()
+      }
     }
   }
 
@@ -259,30 +377,89 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
    * Lookup lower and upper bounds for the given target.
    */
   private def indexSlotRangeFor(idx: ByteBuffer, target: Long, searchEntity: IndexSearchEntity): (Int, Int) = {
+    val entries = _entries
     // check if the index is empty
-    if(_entries == 0)
+    if(entries == 0)
       return (-1, -1)
 
+    def binarySearch(begin: Int, end: Int): (Int, Int) = {
+      // binary search for the entry
+      var lo = begin
+      var hi = end
+      while(lo < hi) {
+        val mid = ceil(hi/2.0 + lo/2.0).toInt
+        val found = parseEntry(idx, mid)
+        val compareResult = compareIndexEntry(found, target, searchEntity)
+        if(compareResult > 0)
+          hi = mid - 1
+        else if(compareResult < 0)
+          lo = mid
+        else
+          return (mid, mid)
+      }
+      (lo, if (lo == entries - 1) -1 else lo + 1)
+    }
+
+    // search the warm section first, it is where most lookups land
+    val firstHotEntry = Math.max(0, entries - 1 - warmEntries)
+    if(compareIndexEntry(parseEntry(idx, firstHotEntry), target, searchEntity) < 0)
+      return binarySearch(firstHotEntry, entries - 1)
+
     // check if the target offset is smaller than the least offset
     if(compareIndexEntry(parseEntry(idx, 0), target, searchEntity) > 0)
       return (-1, 0)
 
-    // binary search for the entry
-    var lo = 0
-    var hi = _entries - 1
-    while(lo < hi) {
-      val mid = ceil(hi/2.0 + lo/2.0).toInt
-      val found = parseEntry(idx, mid)
-      val compareResult = compareIndexEntry(found, target, searchEntity)
-      if(compareResult > 0)
-        hi = mid - 1
-      else if(compareResult < 0)
-        lo = mid
-      else
-        return (mid, mid)
+    if(firstHotEntry < entriesPerPage)
+      return binarySearch(0, firstHotEntry)
+
+    // only search the page which holds the target, the first entry of the next page is larger than the target
+    val pages = firstHotEntry / entriesPerPage + 1
+    val page = pageDirectoryFor(pages).largestLowerBoundPage(pages, target, searchEntity, firstEntryOfPage(idx, _))
+    val begin = page * entriesPerPage
+    val end = if (page == pages - 1) firstHotEntry else begin + entriesPerPage - 1
+    binarySearch(begin, Math.min(end, firstHotEntry))
+  }
+
+  /**
+   * The number of entries at the end of the index which are searched first: 8 KB, or two pages on most systems.
+   */
+  private def warmEntries: Int = AbstractIndex.WarmSectionBytes / entrySize
+
+  private def entriesPerPage: Int = AbstractIndex.PageBytes / entrySize
+
+  /**
+   * Get a page directory which can hold the first `pages` pages, extending the current one if the index has grown
+   * since it was created.
+   */
+  private def pageDirectoryFor(pages: Int): IndexPageDirectory = {
+    val current = pageDirectory
+    if (current != null && current.capacity >= pages)
+      current
+    else inLock(lock) {
+      val latest = pageDirectory
+      if (latest != null && latest.capacity >= pages)
+        latest
+      else {
+        val extended = IndexPageDirectory.extend(latest, pages)
+        pageDirectory = extended
+        extended
+      }
     }
+  }
 
-    (lo, if (lo == _entries - 1) -1 else lo + 1)
+  /**
+   * Read the first entry of a page which is not in the page directory yet and add it to the directory. The entry is
+   * read with the lock held, so that an entry removed by a concurrent truncation is not added to the directory.
+   */
+  private def firstEntryOfPage(idx: ByteBuffer, page: Int): IndexEntry = {
+    inLock(lock) {
+      val slot = page * entriesPerPage
+      val entry = parseEntry(idx, slot)
+      val directory = pageDirectory
+      if (directory != null && page < directory.capacity && slot < _entries)
+        directory.add(page, entry)
+      entry
+    }
   }
 
   private def compareIndexEntry(indexEntry: IndexEntry, target: Long, searchEntity: IndexSearchEntity): Int = {
@@ -300,6 +477,62 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
 
 }
 
+object AbstractIndex {
+  private val PageBytes = 4096
+  private val WarmSectionBytes = 8192
+}
+
+/**
+ * The first entries of the pages of an index which have been read by lookups, see `AbstractIndex`. Entries are added
+ * as lookups read them, a directory which can hold more pages is created as the index grows.
+ */
+private[log] class IndexPageDirectory private(private val firstEntries: AtomicReferenceArray[IndexEntry]) {
+
+  /** The number of pages this directory can hold */
+  def capacity: Int = firstEntries.length
+
+  /** The number of pages whose first entry is in this directory */
+  def knownPages: Int = (0 until capacity).count(firstEntries.get(_) != null)
+
+  def add(page: Int, entry: IndexEntry): Unit = firstEntries.set(page, entry)
+
+  /**
+   * Find the last of the first `pages` pages whose first entry is less than or equal to the target, reading the first
+   * entries which are not in the directory with `readFirstEntry`. The first entry of the first page must be less than
+   * or equal to the target.
+   */
+  def largestLowerBoundPage(pages: Int, target: Long, searchEntity: IndexSearchEntity,
+                            readFirstEntry: Int => IndexEntry): Int = {
+    var lo = 0
+    var hi = pages - 1
+    while (lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      val known = firstEntries.get(mid)
+      val entry = if (known != null) known else readFirstEntry(mid)
+      val firstEntry = searchEntity match {
+        case IndexSearchType.KEY => entry.indexKey
+        case IndexSearchType.VALUE => entry.indexValue
+      }
+      if (firstEntry > target)
+        hi = mid - 1
+      else
+        lo = mid
+    }
+    lo
+  }
+}
+
+private[log] object IndexPageDirectory {
+  def extend(directory: IndexPageDirectory, pages: Int): IndexPageDirectory = {
+    val firstEntries = new AtomicReferenceArray[IndexEntry](pages)
+    if (directory != null) {
+      for (page <- 0 until math.min(directory.capacity, pages))
+        firstEntries.set(page, directory.firstEntries.get(page))
+    }
+    new IndexPageDirectory(firstEntries)
+  }
+}
+
 object IndexSearchType extends Enumeration {
   type IndexSearchEntity = Value
   val KEY, VALUE = Value
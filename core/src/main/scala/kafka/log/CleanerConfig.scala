@@ -27,7 +27,10 @@ package kafka.log
  * @param maxIoBytesPerSecond The maximum read and write I/O that all cleaner threads are allowed to do
  * @param backOffMs The amount of time to wait before rechecking if no logs are eligible for cleaning
  * @param enableCleaner Allows completely disabling the log cleaner
- * @param hashAlgorithm The hash algorithm to use in key comparison.
+ * @param hashAlgorithm The hash algorithm to use in key comparison, see `OffsetMap.apply`
+ * @param copyThreads The number of threads copying the segments of a log for each cleaner thread, including the cleaner thread
+ * @param incrementalCleaning Skip the clean segments which have none of the keys of the dirty section, see `SegmentKeyFilter`
+ * @param selectionPolicy Chooses the log to clean next
  */
 case class CleanerConfig(numThreads: Int = 1,
                          dedupeBufferSize: Long = 4*1024*1024L,
@@ -37,5 +40,8 @@ case class CleanerConfig(numThreads: Int = 1,
                          maxIoBytesPerSecond: Double = Double.MaxValue,
                          backOffMs: Long = 15 * 1000,
                          enableCleaner: Boolean = true,
-                         hashAlgorithm: String = "MD5") {
+                         hashAlgorithm: String = "MD5",
+                         copyThreads: Int = 1,
+                         incrementalCleaning: Boolean = false,
+                         selectionPolicy: LogCleanerSelectionPolicy = new DirtyRatioSelectionPolicy) {
 }
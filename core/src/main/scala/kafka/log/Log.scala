@@ -18,13 +18,15 @@
 package kafka.log
 
 import java.io.{File, IOException}
-import java.nio.file.Files
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
 import java.text.NumberFormat
 import java.util.concurrent.atomic._
-import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap, TimeUnit}
+import java.util.concurrent.{Callable, ConcurrentNavigableMap, ConcurrentSkipListMap, ExecutionException, ExecutorService, Future, TimeUnit}
 
 import kafka.api.KAFKA_0_10_0_IV0
 import kafka.common._
+import kafka.log.remote.RemoteLogManager
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server.{BrokerTopicStats, FetchDataInfo, LogOffsetMetadata}
 import kafka.utils._
@@ -35,11 +37,13 @@ import org.apache.kafka.common.requests.{IsolationLevel, ListOffsetRequest}
 import scala.collection.JavaConverters._
 import scala.collection.mutable.ListBuffer
 import scala.collection.{Seq, mutable}
+import scala.util.{Failure, Success, Try}
+import scala.util.control.NonFatal
 import com.yammer.metrics.core.Gauge
 import org.apache.kafka.common.utils.{Time, Utils}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec, NoCompressionCodec}
-import kafka.server.checkpoints.{LeaderEpochCheckpointFile, LeaderEpochFile}
-import kafka.server.epoch.{LeaderEpochCache, LeaderEpochFileCache}
+import kafka.server.checkpoints.{LeaderEpochCheckpoint, LeaderEpochCheckpointFile, LeaderEpochFile}
+import kafka.server.epoch.{EpochEntry, LeaderEpochCache, LeaderEpochFileCache}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
 import java.util.Map.{Entry => JEntry}
@@ -99,6 +103,22 @@ case class CompletedTxn(producerId: Long, firstOffset: Long, lastOffset: Long, i
   }
 }
 
+/**
+ * A message set validated by `Log.validateAsLeader` without holding the lock of the log. If `offsetsAssigned` is set,
+ * the offsets of `records` were assigned from 0 and are moved past the log end offset when it is appended.
+ */
+case class ValidatedAppend(appendInfo: LogAppendInfo, records: MemoryRecords, offsetsAssigned: Boolean)
+
+/**
+ * A validated message set whose offsets are assigned, waiting to be written to the active segment of the log.
+ */
+private[log] case class PendingAppend(appendInfo: LogAppendInfo, records: MemoryRecords)
+
+/**
+ * A segment copied by `Log.moveTo`, with the number of bytes of its log file copied and whether its indexes were copied
+ */
+private[log] case class CopiedSegment(segment: LogSegment, bytes: Int, indexesCopied: Boolean)
+
 /**
  * An append-only log for storing messages.
  *
@@ -126,6 +146,15 @@ case class CompletedTxn(producerId: Long, firstOffset: Long, lastOffset: Long, i
  * @param time The time instance used for checking the clock
  * @param maxProducerIdExpirationMs The maximum amount of time to wait before a producer id is considered expired
  * @param producerIdExpirationCheckIntervalMs How often to check for producer ids which need to be expired
+ * @param segmentRecoveryPool If defined, the unflushed segments of the log are validated and their indexes rebuilt
+ *                            concurrently on this pool when the log is recovered after an unclean shutdown
+ * @param recoveryProgress Optionally tracks the progress of the recovery of this log
+ * @param flushService If defined, the flushes triggered by appends and rolls are handed to this service instead of
+ *                     being done by the appending thread and the scheduler
+ * @param readAhead If defined, the reads of the log are counted and sequential reads of inactive segments read ahead
+ * @param remoteLogManager If defined and remote storage is enabled for the log, the log start offset may be below the
+ *                         first local segment and the offsets below it are read from the remote tier
+ * @param segmentPreCreator If defined, the next segment of the log is prepared by this pre-creator before it is rolled
  */
 @threadsafe
 class Log(@volatile var dir: File,
@@ -136,7 +165,13 @@ class Log(@volatile var dir: File,
           brokerTopicStats: BrokerTopicStats,
           time: Time = Time.SYSTEM,
           val maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
-          val producerIdExpirationCheckIntervalMs: Int = 10 * 60 * 1000) extends Logging with KafkaMetricsGroup {
+          val producerIdExpirationCheckIntervalMs: Int = 10 * 60 * 1000,
+          segmentRecoveryPool: Option[ExecutorService] = None,
+          recoveryProgress: Option[LogRecoveryProgress] = None,
+          @volatile private var flushService: Option[LogFlushService] = None,
+          readAhead: Option[LogReadAhead] = None,
+          remoteLogManager: Option[RemoteLogManager] = None,
+          segmentPreCreator: Option[LogSegmentPreCreator] = None) extends Logging with KafkaMetricsGroup {
 
   import kafka.log.Log._
 
@@ -165,8 +200,20 @@ class Log(@volatile var dir: File,
   /* the actual segments of the log */
   private val segments: ConcurrentNavigableMap[java.lang.Long, LogSegment] = new ConcurrentSkipListMap[java.lang.Long, LogSegment]
 
+  /* the segments to search by timestamp, to be invalidated whenever a segment is added or removed */
+  private val segmentTimestamps = new SegmentTimestamps(() => logSegments)
+
+  /* the leader epoch checkpoint file of the log, replaced when the log is moved to another log directory */
+  @volatile private var leaderEpochCheckpointFile: LeaderEpochCheckpointFile = _
+
   val leaderEpochCache: LeaderEpochCache = initializeLeaderEpochCache()
 
+  /* the base offsets of the segments truncated while the log is being moved, if it is being moved */
+  private var segmentsTruncatedDuringMove: Option[mutable.Set[Long]] = None
+
+  /* the number of bytes appended to the log since it was opened */
+  private val appendedBytes = new AtomicLong(0L)
+
   locally {
     val startMs = time.milliseconds
 
@@ -177,7 +224,7 @@ class Log(@volatile var dir: File,
 
     leaderEpochCache.clearAndFlushLatest(nextOffsetMetadata.messageOffset)
 
-    logStartOffset = math.max(logStartOffset, segments.firstEntry().getValue.baseOffset)
+    logStartOffset = math.max(logStartOffset, firstRetainedOffset)
 
     // The earliest leader epoch may not be flushed during a hard failure. Recover it here.
     leaderEpochCache.clearAndFlushEarliest(logStartOffset)
@@ -226,8 +273,11 @@ class Log(@volatile var dir: File,
   private def initializeLeaderEpochCache(): LeaderEpochCache = {
     // create the log directory if it doesn't exist
     Files.createDirectories(dir.toPath)
-    new LeaderEpochFileCache(topicPartition, () => logEndOffsetMetadata,
-      new LeaderEpochCheckpointFile(LeaderEpochFile.newFile(dir)))
+    leaderEpochCheckpointFile = new LeaderEpochCheckpointFile(LeaderEpochFile.newFile(dir))
+    new LeaderEpochFileCache(topicPartition, () => logEndOffsetMetadata, new LeaderEpochCheckpoint {
+      def write(epochs: Seq[EpochEntry]): Unit = leaderEpochCheckpointFile.write(epochs)
+      def read(): Seq[EpochEntry] = leaderEpochCheckpointFile.read()
+    })
   }
 
   private def removeTempFilesAndCollectSwapFiles(): Set[File] = {
@@ -237,8 +287,8 @@ class Log(@volatile var dir: File,
       if(!file.canRead)
         throw new IOException("Could not read file " + file)
       val filename = file.getName
-      if(filename.endsWith(DeletedFileSuffix) || filename.endsWith(CleanedFileSuffix)) {
-        // if the file ends in .deleted or .cleaned, delete it
+      if(filename.endsWith(DeletedFileSuffix) || filename.endsWith(CleanedFileSuffix) || filename.endsWith(PreparedFileSuffix)) {
+        // if the file ends in .deleted, .cleaned or .prepared, delete it
         Files.deleteIfExists(file.toPath)
       } else if(filename.endsWith(SwapFileSuffix)) {
         // we crashed in the middle of a swap operation, to recover:
@@ -263,7 +313,14 @@ class Log(@volatile var dir: File,
   private def loadSegmentFiles(): Unit = {
     // load segments in ascending order because transactional data from one segment may depend on the
     // segments that come before it
-    for (file <- dir.listFiles.sortBy(_.getName) if file.isFile) {
+    val files = dir.listFiles.sortBy(_.getName).filter(_.isFile)
+    // After a clean shutdown, the offset and time indexes of the segments below the recovery point were trimmed and
+    // flushed when the log was closed. Their sanity checks are deferred until the indexes are first used, so that
+    // loading the log does not need to read every index. The last segment is always checked since it becomes the
+    // active segment.
+    val lastLogFile = files.filter(isLogFile).lastOption
+    val deferIndexSanityChecks = hasCleanShutdownFile
+    for (file <- files) {
       val filename = file.getName
       if (isIndexFile(file)) {
         // if it is an index file, make sure it has a corresponding .log file
@@ -285,6 +342,7 @@ class Log(@volatile var dir: File,
         val segment = new LogSegment(dir = dir,
           startOffset = startOffset,
           indexIntervalBytes = config.indexInterval,
+          timeIndexIntervalBytes = config.timeIndexInterval,
           maxIndexSize = config.maxIndexSize,
           rollJitterMs = config.randomSegmentJitter,
           time = time,
@@ -292,11 +350,15 @@ class Log(@volatile var dir: File,
 
         if (indexFileExists) {
           try {
-            segment.index.sanityCheck()
-            // Resize the time index file to 0 if it is newly created.
-            if (!timeIndexFileExists)
-              segment.timeIndex.resize(0)
-            segment.timeIndex.sanityCheck()
+            if (deferIndexSanityChecks && timeIndexFileExists && !lastLogFile.contains(file) && startOffset < recoveryPoint) {
+              segment.deferIndexSanityCheck()
+            } else {
+              segment.index.sanityCheck()
+              // Resize the time index file to 0 if it is newly created.
+              if (!timeIndexFileExists)
+                segment.timeIndex.resize(0)
+              segment.timeIndex.sanityCheck()
+            }
             segment.txnIndex.sanityCheck()
           } catch {
             case e: java.lang.IllegalArgumentException =>
@@ -316,7 +378,14 @@ class Log(@volatile var dir: File,
     }
   }
 
-  private def recoverSegment(segment: LogSegment, leaderEpochCache: Option[LeaderEpochCache] = None): Int = lock synchronized {
+  private def recoverSegment(segment: LogSegment, leaderEpochCache: Option[LeaderEpochCache] = None): Int =
+    withSegmentProducerState(segment)(segment.recover(_, leaderEpochCache))
+
+  /**
+   * Run `fun` with the producer state as of the base offset of the segment, then take a snapshot of the state once
+   * `fun` has updated it with the data of the segment.
+   */
+  private def withSegmentProducerState[T](segment: LogSegment)(fun: ProducerStateManager => T): T = lock synchronized {
     val stateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
     stateManager.truncateAndReload(logStartOffset, segment.baseOffset, time.milliseconds)
     logSegments(stateManager.mapEndOffset, segment.baseOffset).foreach { segment =>
@@ -326,12 +395,12 @@ class Log(@volatile var dir: File,
         loadProducersFromLog(stateManager, fetchDataInfo.records)
     }
     stateManager.updateMapEndOffset(segment.baseOffset)
-    val bytesTruncated = segment.recover(stateManager, leaderEpochCache)
+    val result = fun(stateManager)
 
     // once we have recovered the segment's data, take a snapshot to ensure that we won't
     // need to reload the same segment again while recovering another segment.
     stateManager.takeSnapshot()
-    bytesTruncated
+    result
   }
 
   private def completeSwapOperations(swapFiles: Set[File]): Unit = {
@@ -345,12 +414,10 @@ class Log(@volatile var dir: File,
       val timeIndex = new TimeIndex(timeIndexFile, baseOffset = startOffset, maxIndexSize = config.maxIndexSize)
       val txnIndexFile = new File(CoreUtils.replaceSuffix(logFile.getPath, LogFileSuffix, TxnIndexFileSuffix) + SwapFileSuffix)
       val txnIndex = new TransactionIndex(startOffset, txnIndexFile)
-      val swapSegment = new LogSegment(FileRecords.open(swapFile),
-        index = index,
-        timeIndex = timeIndex,
-        txnIndex = txnIndex,
+      val swapSegment = new LogSegment(FileRecords.open(swapFile), index, timeIndex, txnIndex,
         baseOffset = startOffset,
         indexIntervalBytes = config.indexInterval,
+        timeIndexIntervalBytes = config.timeIndexInterval,
         rollJitterMs = config.randomSegmentJitter,
         time = time)
       info("Found log file %s from interrupted swap operation, repairing.".format(swapFile.getPath))
@@ -379,6 +446,7 @@ class Log(@volatile var dir: File,
       segments.put(0L, new LogSegment(dir = dir,
                                      startOffset = 0,
                                      indexIntervalBytes = config.indexInterval,
+                                     timeIndexIntervalBytes = config.timeIndexInterval,
                                      maxIndexSize = config.maxIndexSize,
                                      rollJitterMs = config.randomSegmentJitter,
                                      time = time,
@@ -405,29 +473,99 @@ class Log(@volatile var dir: File,
     }
 
     // okay we need to actually recovery this log
-    val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).iterator
-    while(unflushed.hasNext) {
-      val segment = unflushed.next
+    val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).toBuffer
+    recoveryProgress.foreach(_.segmentsToRecover(unflushed))
+    val startMs = time.milliseconds
+    segmentRecoveryPool match {
+      case Some(pool) if unflushed.size > 1 => recoverSegmentsConcurrently(unflushed, pool)
+      case _ => recoverSegments(unflushed)
+    }
+    info(s"Recovered ${unflushed.size} unflushed segments of log $name in ${time.milliseconds - startMs} ms.")
+  }
+
+  private def recoverSegments(unflushed: Seq[LogSegment]): Unit = {
+    val unflushedIterator = unflushed.iterator
+    while(unflushedIterator.hasNext) {
+      val segment = unflushedIterator.next
       info("Recovering unflushed segment %d in log %s.".format(segment.baseOffset, name))
+      val size = segment.size
       val truncatedBytes =
         try {
           recoverSegment(segment, Some(leaderEpochCache))
         } catch {
-          case _: InvalidOffsetException =>
-            val startOffset = segment.baseOffset
-            warn("Found invalid offset during recovery for log " + dir.getName +". Deleting the corrupt segment and " +
-                 "creating an empty one with starting offset " + startOffset)
-            segment.truncateTo(startOffset)
+          case _: InvalidOffsetException => truncateCorruptSegment(segment)
         }
+      recoveryProgress.foreach(_.segmentRecovered(size))
       if(truncatedBytes > 0) {
         // we had an invalid message, delete all remaining log
-        warn("Corruption found in segment %d of log %s, truncating to offset %d.".format(segment.baseOffset, name,
-          segment.nextOffset()))
-        unflushed.foreach(deleteSegment)
+        val remaining = unflushedIterator.toBuffer
+        recoveryProgress.foreach(progress => remaining.foreach(segment => progress.segmentRecovered(segment.size)))
+        deleteSegmentsAfterCorruption(segment, remaining.iterator)
       }
     }
   }
 
+  /**
+   * Validate the batches and rebuild the offset and time indexes of the unflushed segments concurrently, then rebuild
+   * the producer state and transaction indexes of the segments in order. If a segment turns out to be corrupt, the
+   * segments after it are deleted once all of them have been recovered.
+   */
+  private def recoverSegmentsConcurrently(unflushed: Seq[LogSegment], pool: ExecutorService): Unit = {
+    info(s"Recovering ${unflushed.size} unflushed segments in log $name concurrently.")
+    val indexRecoveries: Seq[Future[Int]] = unflushed.map { segment =>
+      pool.submit(new Callable[Int] {
+        override def call(): Int = {
+          val size = segment.size
+          val truncatedBytes =
+            try {
+              segment.recoverIndexes()
+            } catch {
+              // the segment is truncated to its base offset below, once the segments before it are recovered
+              case _: InvalidOffsetException => -1
+            }
+          recoveryProgress.foreach(_.segmentRecovered(size))
+          truncatedBytes
+        }
+      })
+    }
+    val indexRecoveryResults = indexRecoveries.map { future =>
+      try future.get
+      catch {
+        case e: ExecutionException => throw e.getCause
+      }
+    }
+
+    val unflushedIterator = unflushed.iterator.zip(indexRecoveryResults.iterator)
+    var corrupt = false
+    while (!corrupt && unflushedIterator.hasNext) {
+      val (segment, indexRecoveryResult) = unflushedIterator.next()
+      val truncatedBytes =
+        if (indexRecoveryResult < 0)
+          truncateCorruptSegment(segment)
+        else {
+          withSegmentProducerState(segment)(segment.recoverTransactionalState(_, Some(leaderEpochCache)))
+          indexRecoveryResult
+        }
+      if (truncatedBytes > 0) {
+        deleteSegmentsAfterCorruption(segment, unflushedIterator.map(_._1))
+        corrupt = true
+      }
+    }
+  }
+
+  private def truncateCorruptSegment(segment: LogSegment): Int = {
+    val startOffset = segment.baseOffset
+    warn("Found invalid offset during recovery for log " + dir.getName +". Deleting the corrupt segment and " +
+         "creating an empty one with starting offset " + startOffset)
+    segment.truncateTo(startOffset)
+  }
+
+  private def deleteSegmentsAfterCorruption(segment: LogSegment, remaining: Iterator[LogSegment]): Unit = {
+    warn("Corruption found in segment %d of log %s, truncating to offset %d.".format(segment.baseOffset, name,
+      segment.nextOffset()))
+    remaining.foreach(deleteSegment)
+  }
+
   private def loadProducerState(lastOffset: Long): Unit = lock synchronized {
     info(s"Loading producer state from offset $lastOffset for partition $topicPartition")
 
@@ -498,12 +636,206 @@ class Log(@volatile var dir: File,
    */
   def close() {
     debug(s"Closing log $name")
+    segmentPreCreator.foreach(_.discard(this))
     lock synchronized {
       producerStateManager.takeSnapshot()
       logSegments.foreach(_.close())
     }
   }
 
+  /**
+   * The number of bytes appended to this log since it was opened
+   */
+  def bytesAppended: Long = appendedBytes.get
+
+  /**
+   * Move this log to a directory with the same name in `destParentDir` while it keeps being appended to and read.
+   *
+   * The segments are copied to a future directory in `destParentDir` without holding the lock of the log, and what
+   * is appended in the meantime is copied again until little is left. The rest is copied with the lock held, the copy
+   * is flushed, the current directory is renamed for deletion and the future directory is renamed to the name of the
+   * log, from which the segments are reopened. The previous segments are closed and deleted after
+   * `file.delete.delay.ms` so that the reads which started before the move complete.
+   *
+   * If the broker stops before the current directory is renamed, the future directory is deleted when the logs are
+   * loaded; after that, it replaces the current directory. The caller must make sure that the log is not cleaned while
+   * it is moved.
+   *
+   * @param destParentDir The log directory to move the log to
+   * @param destFlushService The flush service of the destination log directory, if flushes are asynchronous
+   * @param isAborted Checked between the copies of the segments, the move is abandoned once it returns true
+   * @throws KafkaStorageException If a directory cannot be renamed while switching to the future directory
+   * @return true if the log was moved, false if the move was abandoned
+   */
+  def moveTo(destParentDir: File, destFlushService: Option[LogFlushService], isAborted: () => Boolean): Boolean = {
+    val futureDir = new File(destParentDir, Log.logFutureDirName(name))
+    val copied = mutable.Map.empty[Long, CopiedSegment]
+    var moved = false
+    info(s"Moving log $name from ${dir.getParent} to $destParentDir")
+    Files.createDirectories(futureDir.toPath)
+    lock synchronized {
+      segmentsTruncatedDuringMove = Some(mutable.Set.empty)
+    }
+    try {
+      var passes = 0
+      var lastPassBytes = Long.MaxValue
+      while (passes < MaxMoveCopyPasses && lastPassBytes > MoveCopyLockedBytes && !isAborted()) {
+        lastPassBytes = 0L
+        for (segment <- logSegments if !isAborted()) {
+          try lastPassBytes += copySegment(segment, futureDir, copied, isActive = segment eq activeSegment, locked = false)
+          catch {
+            // the segment was deleted while it was copied
+            case e: IOException =>
+              debug(s"Failed to copy segment ${segment.baseOffset} of $name to $futureDir, it will be copied again", e)
+              copied.remove(segment.baseOffset)
+          }
+        }
+        passes += 1
+      }
+      // flush the bulk of the copy before taking the lock, only what the last pass writes is flushed with it held
+      if (!isAborted())
+        forceFiles(futureDir.listFiles.toSeq)
+
+      lock synchronized {
+        if (!isAborted()) {
+          segmentsTruncatedDuringMove.foreach(_.foreach(copied.remove))
+          val current = logSegments.toVector
+          val written = mutable.Set.empty[File]
+          current.foreach(segment => copySegment(segment, futureDir, copied, isActive = segment eq activeSegment,
+            locked = true, written))
+          val currentOffsets = current.map(_.baseOffset).toSet
+          for (baseOffset <- copied.keys if !currentOffsets.contains(baseOffset)) {
+            for (file <- List(Log.logFile(futureDir, baseOffset), Log.offsetIndexFile(futureDir, baseOffset),
+                              Log.timeIndexFile(futureDir, baseOffset), Log.transactionIndexFile(futureDir, baseOffset)))
+              Files.deleteIfExists(file.toPath)
+          }
+          for (file <- dir.listFiles if file.isFile && (file.getName.endsWith(PidSnapshotFileSuffix) || file.getName == LeaderEpochFile.newFile(dir).getName)) {
+            val destFile = new File(futureDir, file.getName)
+            Files.copy(file.toPath, destFile.toPath, StandardCopyOption.REPLACE_EXISTING)
+            written += destFile
+          }
+          forceFiles(written.filter(_.exists).toSeq)
+
+          segmentPreCreator.foreach(_.discard(this))
+          val deleteDir = new File(dir.getParent, Log.logDeleteDirName(name))
+          val newDir = new File(destParentDir, name)
+          if (!dir.renameTo(deleteDir))
+            throw new KafkaStorageException(s"Failed to rename log directory $dir to $deleteDir")
+          if (!futureDir.renameTo(newDir))
+            throw new KafkaStorageException(s"Failed to rename log directory $futureDir to $newDir")
+          moved = true
+
+          // the previous segments keep serving the reads which started before the move until they are deleted
+          for (segment <- current) {
+            segment.log.setFile(new File(deleteDir, segment.log.file.getName))
+            segment.uncheckedIndexes.foreach(index => index.file = new File(deleteDir, index.file.getName))
+            segment.txnIndex.file = new File(deleteDir, segment.txnIndex.file.getName)
+          }
+          dir = newDir
+          producerStateManager.logDir = newDir
+          leaderEpochCheckpointFile = new LeaderEpochCheckpointFile(LeaderEpochFile.newFile(newDir))
+          flushService = destFlushService
+          for (segment <- current) {
+            segments.put(segment.baseOffset, new LogSegment(newDir, segment.baseOffset,
+              indexIntervalBytes = config.indexInterval,
+              timeIndexIntervalBytes = config.timeIndexInterval,
+              maxIndexSize = config.maxIndexSize,
+              rollJitterMs = config.randomSegmentJitter,
+              time = time,
+              fileAlreadyExists = true))
+          }
+          segmentTimestamps.invalidate()
+          activeSegment.index.resize(config.maxIndexSize)
+          activeSegment.timeIndex.resize(config.maxIndexSize)
+          updateLogEndOffset(logEndOffset)
+
+          scheduler.schedule("delete-moved-log", () => {
+            current.foreach(segment => CoreUtils.swallow(segment.close()))
+            CoreUtils.swallow(Utils.delete(deleteDir))
+          }, delay = config.fileDeleteDelayMs)
+          info(s"Moved log $name to $destParentDir")
+        }
+      }
+      moved
+    } finally {
+      lock synchronized {
+        segmentsTruncatedDuringMove = None
+      }
+      if (!moved)
+        CoreUtils.swallow(Utils.delete(futureDir))
+    }
+  }
+
+  private def forceFiles(files: Seq[File]): Unit = {
+    for (file <- files) {
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.WRITE)
+      try channel.force(true)
+      finally channel.close()
+    }
+  }
+
+  /**
+   * Copy what was not copied yet of `segment` to `destDir`, or all of it if the segment was replaced or truncated since
+   * it was copied. The indexes of inactive segments are copied once, those of the active segment only with the lock
+   * held, up to their last entry. The files which are changed are added to `written`. Returns the number of bytes of
+   * the log file copied.
+   */
+  private def copySegment(segment: LogSegment, destDir: File, copied: mutable.Map[Long, CopiedSegment],
+                          isActive: Boolean, locked: Boolean, written: mutable.Set[File] = mutable.Set.empty): Long = {
+    val previous = copied.get(segment.baseOffset).filter(_.segment eq segment)
+    val size = segment.size
+    val from = previous.map(_.bytes).filter(_ <= size).getOrElse(0)
+    if (!previous.exists(_.bytes == size))
+      written += Log.logFile(destDir, segment.baseOffset)
+    val destChannel = FileChannel.open(Log.logFile(destDir, segment.baseOffset).toPath,
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+    try {
+      destChannel.truncate(from)
+      var position = from.toLong
+      while (position < size)
+        position += segment.log.channel.transferTo(position, size - position, destChannel.position(position))
+    } finally destChannel.close()
+
+    val indexesCopied =
+      if (isActive) {
+        if (locked) {
+          segment.onBecomeInactiveSegment()
+          copyFilePrefix(segment.index.file, Log.offsetIndexFile(destDir, segment.baseOffset), segment.index.sizeInBytes)
+          copyFilePrefix(segment.timeIndex.file, Log.timeIndexFile(destDir, segment.baseOffset), segment.timeIndex.sizeInBytes)
+          copyFilePrefix(segment.txnIndex.file, Log.transactionIndexFile(destDir, segment.baseOffset), Long.MaxValue)
+          written ++= List(Log.offsetIndexFile(destDir, segment.baseOffset), Log.timeIndexFile(destDir, segment.baseOffset),
+            Log.transactionIndexFile(destDir, segment.baseOffset))
+        }
+        false
+      } else if (!previous.exists(_.indexesCopied)) {
+        Files.copy(segment.index.file.toPath, Log.offsetIndexFile(destDir, segment.baseOffset).toPath, StandardCopyOption.REPLACE_EXISTING)
+        Files.copy(segment.timeIndex.file.toPath, Log.timeIndexFile(destDir, segment.baseOffset).toPath, StandardCopyOption.REPLACE_EXISTING)
+        copyFilePrefix(segment.txnIndex.file, Log.transactionIndexFile(destDir, segment.baseOffset), Long.MaxValue)
+        written ++= List(Log.offsetIndexFile(destDir, segment.baseOffset), Log.timeIndexFile(destDir, segment.baseOffset),
+          Log.transactionIndexFile(destDir, segment.baseOffset))
+        true
+      } else true
+    copied.put(segment.baseOffset, CopiedSegment(segment, size, indexesCopied))
+    size - from
+  }
+
+  /* copy the first `bytes` bytes of `src` to `dest`, if `src` exists */
+  private def copyFilePrefix(src: File, dest: File, bytes: Long): Unit = {
+    Files.deleteIfExists(dest.toPath)
+    if (src.exists) {
+      val srcChannel = FileChannel.open(src.toPath, StandardOpenOption.READ)
+      try {
+        val destChannel = FileChannel.open(dest.toPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        try {
+          val size = math.min(bytes, srcChannel.size)
+          var position = 0L
+          while (position < size)
+            position += srcChannel.transferTo(position, size - position, destChannel)
+        } finally destChannel.close()
+      } finally srcChannel.close()
+    }
+  }
+
   /**
    * Append this message set to the active segment of the log, assigning offsets and Partition Leader Epochs
    * @param records The records to append
@@ -525,6 +857,52 @@ class Log(@volatile var dir: File,
     append(records, isFromClient = false, assignOffsets = false, leaderEpoch = -1)
   }
 
+  /**
+   * Append the message sets of several produce requests to the log, assigning offsets and Partition Leader Epochs, as
+   * if each was appended with `appendAsLeader` in order. The message sets which go to the same segment are written with
+   * a single gathering write, and the log end offset is only advanced once they are written.
+   *
+   * @param records The message sets to append
+   * @param leaderEpoch The partition's leader epoch which will be applied to messages
+   * @param isFromClient Whether or not these appends are from producers
+   * @throws KafkaStorageException If the write fails due to an I/O error, in which case none of the appends which were
+   *                               not written yet is completed
+   * @return The result of each append, in the order of `records`: either information about its messages, or the
+   *         exception which `appendAsLeader` would have thrown for it
+   */
+  def appendAllAsLeader(records: Seq[MemoryRecords], leaderEpoch: Int, isFromClient: Boolean = true): Seq[Try[LogAppendInfo]] = {
+    appendValidatedAsLeader(records.map(validateAsLeader(_, isFromClient)), leaderEpoch, isFromClient)
+  }
+
+  /**
+   * Validate a message set to be appended with `appendValidatedAsLeader`, without taking the lock of the log. This
+   * does what `appendAsLeader` does before the offsets are assigned and, unless the messages are converted to the
+   * compressed 0.9.0 format whose inner offsets cannot be moved, it also validates the messages and assigns their
+   * offsets from 0, so that appending them only moves the offsets past the log end offset.
+   *
+   * @param records The message set to validate
+   * @param isFromClient Whether or not this append is from a producer
+   * @return The validated message set, or the exception which `appendAsLeader` would have thrown for it
+   */
+  def validateAsLeader(records: MemoryRecords, isFromClient: Boolean = true): Try[ValidatedAppend] = {
+    validate(records, isFromClient, assignOffsets = true)
+  }
+
+  /**
+   * Append message sets validated by `validateAsLeader`, see `appendAllAsLeader`.
+   *
+   * @param appends The validated message sets to append, or the exceptions of those whose validation failed
+   * @param leaderEpoch The partition's leader epoch which will be applied to messages
+   * @param isFromClient Whether or not these appends are from producers
+   * @throws KafkaStorageException If the write fails due to an I/O error, in which case none of the appends which were
+   *                               not written yet is completed
+   * @return The result of each append, in the order of `appends`
+   */
+  def appendValidatedAsLeader(appends: Seq[Try[ValidatedAppend]], leaderEpoch: Int,
+                              isFromClient: Boolean = true): Seq[Try[LogAppendInfo]] = {
+    appendAll(appends, isFromClient, assignOffsets = true, leaderEpoch)
+  }
+
   /**
    * Append this message set to the active segment of the log, rolling over to a fresh segment if necessary.
    *
@@ -539,137 +917,255 @@ class Log(@volatile var dir: File,
    * @return Information about the appended messages including the first and last offset.
    */
   private def append(records: MemoryRecords, isFromClient: Boolean, assignOffsets: Boolean, leaderEpoch: Int): LogAppendInfo = {
-    val appendInfo = analyzeAndValidateRecords(records, isFromClient = isFromClient)
-
-    // return if we have no valid messages or if this is a duplicate of the last appended entry
-    if (appendInfo.shallowCount == 0)
-      return appendInfo
+    appendAll(Seq(validate(records, isFromClient, assignOffsets)), isFromClient, assignOffsets, leaderEpoch).head.get
+  }
 
-    // trim any invalid bytes or partial messages before appending it to the on-disk log
-    var validRecords = trimInvalidBytes(records, appendInfo)
+  /**
+   * Do the checks of a message set which do not depend on the state of the log, see `validateAsLeader`.
+   */
+  private def validate(records: MemoryRecords, isFromClient: Boolean, assignOffsets: Boolean): Try[ValidatedAppend] = {
+    Try {
+      val appendInfo = analyzeAndValidateRecords(records, isFromClient = isFromClient)
+      // the inner offsets of compressed messages in the 0.9.0 format are absolute, so they can only be assigned once
+      // the log end offset is known
+      val innerOffsetsAbsolute = config.messageFormatVersion.messageFormatVersion == RecordBatch.MAGIC_VALUE_V0 &&
+        appendInfo.targetCodec != NoCompressionCodec
+      if (assignOffsets && appendInfo.shallowCount > 0 && !innerOffsetsAbsolute) {
+        // trim any invalid bytes or partial messages before appending it to the on-disk log
+        val validRecords = validateAndAssignOffsets(records, trimInvalidBytes(records, appendInfo), appendInfo,
+          firstOffset = 0L, RecordBatch.NO_PARTITION_LEADER_EPOCH, isFromClient)
+        ValidatedAppend(appendInfo, validRecords, offsetsAssigned = true)
+      } else
+        ValidatedAppend(appendInfo, records, offsetsAssigned = false)
+    }
+  }
 
+  /**
+   * Append validated message sets to the log in order, see `append`. The valid message sets are only written to the
+   * active segment once they have all been appended, or before the log is rolled, so that the message sets which go to
+   * the same segment are written with a single gathering write.
+   */
+  private def appendAll(validated: Seq[Try[ValidatedAppend]], isFromClient: Boolean, assignOffsets: Boolean,
+                        leaderEpoch: Int): Seq[Try[LogAppendInfo]] = {
     try {
-      // they are valid, insert them in the log
       lock synchronized {
-
-        if (assignOffsets) {
-          // assign offsets to the message set
-          val offset = new LongRef(nextOffsetMetadata.messageOffset)
-          appendInfo.firstOffset = offset.value
-          val now = time.milliseconds
-          val validateAndOffsetAssignResult = try {
-            LogValidator.validateMessagesAndAssignOffsets(validRecords,
-              offset,
-              now,
-              appendInfo.sourceCodec,
-              appendInfo.targetCodec,
-              config.compact,
-              config.messageFormatVersion.messageFormatVersion,
-              config.messageTimestampType,
-              config.messageTimestampDifferenceMaxMs,
-              leaderEpoch,
-              isFromClient)
-          } catch {
-            case e: IOException => throw new KafkaException("Error in validating messages while appending to log '%s'".format(name), e)
-          }
-          validRecords = validateAndOffsetAssignResult.validatedRecords
-          appendInfo.maxTimestamp = validateAndOffsetAssignResult.maxTimestamp
-          appendInfo.offsetOfMaxTimestamp = validateAndOffsetAssignResult.shallowOffsetOfMaxTimestamp
-          appendInfo.lastOffset = offset.value - 1
-          if (config.messageTimestampType == TimestampType.LOG_APPEND_TIME)
-            appendInfo.logAppendTime = now
-
-          // re-validate message sizes if there's a possibility that they have changed (due to re-compression or message
-          // format conversion)
-          if (validateAndOffsetAssignResult.messageSizeMaybeChanged) {
-            for (batch <- validRecords.batches.asScala) {
-              if (batch.sizeInBytes > config.maxMessageSize) {
-                // we record the original message set size instead of the trimmed size
-                // to be consistent with pre-compression bytesRejectedRate recording
-                brokerTopicStats.topicStats(topicPartition.topic).bytesRejectedRate.mark(records.sizeInBytes)
-                brokerTopicStats.allTopicsStats.bytesRejectedRate.mark(records.sizeInBytes)
-                throw new RecordTooLargeException("Message batch size is %d bytes which exceeds the maximum configured size of %d."
-                  .format(batch.sizeInBytes, config.maxMessageSize))
-              }
+        val pending = mutable.ArrayBuffer.empty[PendingAppend]
+        val results = validated.toVector.map(_.flatMap { validatedAppend =>
+          // return if we have no valid messages or if this is a duplicate of the last appended entry
+          if (validatedAppend.appendInfo.shallowCount == 0)
+            Success(validatedAppend.appendInfo)
+          else {
+            try Success(appendLocked(validatedAppend, isFromClient, assignOffsets, leaderEpoch, pending))
+            catch {
+              case e: IOException => throw e
+              case NonFatal(e) => Failure(e)
             }
           }
-        } else {
+        })
+        writePendingAppends(pending)
+        results
+      }
+    } catch {
+      case e: IOException => throw new KafkaStorageException("I/O exception in append to log '%s'".format(name), e)
+    }
+  }
+
+  /**
+   * Assign the offsets of a validated message set and update the producer state, and add it to the appends which are
+   * waiting to be written to the active segment. This must be called while holding the lock.
+   */
+  private def appendLocked(validated: ValidatedAppend,
+                           isFromClient: Boolean,
+                           assignOffsets: Boolean,
+                           leaderEpoch: Int,
+                           pending: mutable.ArrayBuffer[PendingAppend]): LogAppendInfo = {
+    val appendInfo = validated.appendInfo
+    val records = validated.records
+    // the log end offset only moves once the pending appends are written
+    val nextOffset = pending.lastOption.map(_.appendInfo.lastOffset + 1).getOrElse(nextOffsetMetadata.messageOffset)
+
+    val validRecords =
+      if (validated.offsetsAssigned) {
+        moveOffsets(records, appendInfo, nextOffset, leaderEpoch)
+        records
+      } else {
+        // trim any invalid bytes or partial messages before appending it to the on-disk log
+        val trimmedRecords = trimInvalidBytes(records, appendInfo)
+        if (assignOffsets)
+          validateAndAssignOffsets(records, trimmedRecords, appendInfo, nextOffset, leaderEpoch, isFromClient)
+        else {
           // we are taking the offsets we are given
-          if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffsetMetadata.messageOffset)
+          if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffset)
             throw new IllegalArgumentException("Out of order offsets found in " + records.records.asScala.map(_.offset))
+          trimmedRecords
         }
+      }
 
-        // update the epoch cache with the epoch stamped onto the message by the leader
-        validRecords.batches.asScala.foreach { batch =>
-          if (batch.magic >= RecordBatch.MAGIC_VALUE_V2)
-            leaderEpochCache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
-        }
+    // update the epoch cache with the epoch stamped onto the message by the leader
+    validRecords.batches.asScala.foreach { batch =>
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2)
+        leaderEpochCache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
+    }
 
-        // check messages set size may be exceed config.segmentSize
-        if (validRecords.sizeInBytes > config.segmentSize) {
-          throw new RecordBatchTooLargeException("Message batch size is %d bytes which exceeds the maximum configured segment size of %d."
-            .format(validRecords.sizeInBytes, config.segmentSize))
-        }
+    // check messages set size may be exceed config.segmentSize
+    if (validRecords.sizeInBytes > config.segmentSize) {
+      throw new RecordBatchTooLargeException("Message batch size is %d bytes which exceeds the maximum configured segment size of %d."
+        .format(validRecords.sizeInBytes, config.segmentSize))
+    }
 
-        // now that we have valid records, offsets assigned, and timestamps updated, we need to
-        // validate the idempotent/transactional state of the producers and collect some metadata
-        val (updatedProducers, completedTxns, maybeDuplicate) = analyzeAndValidateProducerState(validRecords, isFromClient)
-        maybeDuplicate.foreach { duplicate =>
-          appendInfo.firstOffset = duplicate.firstOffset
-          appendInfo.lastOffset = duplicate.lastOffset
-          appendInfo.logAppendTime = duplicate.timestamp
-          return appendInfo
-        }
+    // now that we have valid records, offsets assigned, and timestamps updated, we need to
+    // validate the idempotent/transactional state of the producers and collect some metadata
+    val (updatedProducers, completedTxns, maybeDuplicate) = analyzeAndValidateProducerState(validRecords, isFromClient)
+    maybeDuplicate.foreach { duplicate =>
+      appendInfo.firstOffset = duplicate.firstOffset
+      appendInfo.lastOffset = duplicate.lastOffset
+      appendInfo.logAppendTime = duplicate.timestamp
+      return appendInfo
+    }
 
-        // maybe roll the log if this segment is full
-        val segment = maybeRoll(messagesSize = validRecords.sizeInBytes,
-          maxTimestampInMessages = appendInfo.maxTimestamp,
-          maxOffsetInMessages = appendInfo.lastOffset)
+    // write the pending appends first if the log has to be rolled for this one
+    val pendingBytes = pending.map(_.records.sizeInBytes).sum
+    if (pending.nonEmpty && shouldRoll(activeSegment, pendingBytes, validRecords.sizeInBytes, appendInfo.maxTimestamp,
+        appendInfo.lastOffset)) {
+      writePendingAppends(pending)
+    }
 
-        val logOffsetMetadata = LogOffsetMetadata(
-          messageOffset = appendInfo.firstOffset,
-          segmentBaseOffset = segment.baseOffset,
-          relativePositionInSegment = segment.size)
+    // maybe roll the log if this segment is full
+    val segment = maybeRoll(messagesSize = validRecords.sizeInBytes,
+      maxTimestampInMessages = appendInfo.maxTimestamp,
+      maxOffsetInMessages = appendInfo.lastOffset)
 
-        segment.append(firstOffset = appendInfo.firstOffset,
-          largestOffset = appendInfo.lastOffset,
-          largestTimestamp = appendInfo.maxTimestamp,
-          shallowOffsetOfMaxTimestamp = appendInfo.offsetOfMaxTimestamp,
-          records = validRecords)
+    val logOffsetMetadata = LogOffsetMetadata(
+      messageOffset = appendInfo.firstOffset,
+      segmentBaseOffset = segment.baseOffset,
+      relativePositionInSegment = segment.size + pending.map(_.records.sizeInBytes).sum)
 
-        // update the producer state
-        for ((producerId, producerAppendInfo) <- updatedProducers) {
-          producerAppendInfo.maybeCacheTxnFirstOffsetMetadata(logOffsetMetadata)
-          producerStateManager.update(producerAppendInfo)
-        }
+    pending += PendingAppend(appendInfo, validRecords)
 
-        // update the transaction index with the true last stable offset. The last offset visible
-        // to consumers using READ_COMMITTED will be limited by this value and the high watermark.
-        for (completedTxn <- completedTxns) {
-          val lastStableOffset = producerStateManager.completeTxn(completedTxn)
-          segment.updateTxnIndex(completedTxn, lastStableOffset)
+    // update the producer state, the next appends are validated against it
+    for ((producerId, producerAppendInfo) <- updatedProducers) {
+      producerAppendInfo.maybeCacheTxnFirstOffsetMetadata(logOffsetMetadata)
+      producerStateManager.update(producerAppendInfo)
+    }
+
+    // update the transaction index with the true last stable offset. The last offset visible
+    // to consumers using READ_COMMITTED will be limited by this value and the high watermark.
+    for (completedTxn <- completedTxns) {
+      val lastStableOffset = producerStateManager.completeTxn(completedTxn)
+      segment.updateTxnIndex(completedTxn, lastStableOffset)
+    }
+
+    // always update the last producer id map offset so that the snapshot reflects the current offset
+    // even if there isn't any idempotent data being written
+    producerStateManager.updateMapEndOffset(appendInfo.lastOffset + 1)
+
+    appendInfo
+  }
+
+  /**
+   * Validate the messages of a message set and assign their offsets from `firstOffset`, updating `appendInfo`.
+   *
+   * @param records The message set as it was received
+   * @param validRecords The message set without its invalid bytes
+   * @return The message set with its offsets assigned, which may be `validRecords` or a converted copy of it
+   */
+  private def validateAndAssignOffsets(records: MemoryRecords,
+                                       validRecords: MemoryRecords,
+                                       appendInfo: LogAppendInfo,
+                                       firstOffset: Long,
+                                       leaderEpoch: Int,
+                                       isFromClient: Boolean): MemoryRecords = {
+    val offset = new LongRef(firstOffset)
+    appendInfo.firstOffset = offset.value
+    val now = time.milliseconds
+    val validateAndOffsetAssignResult = try {
+      LogValidator.validateMessagesAndAssignOffsets(validRecords,
+        offset,
+        now,
+        appendInfo.sourceCodec,
+        appendInfo.targetCodec,
+        config.compact,
+        config.messageFormatVersion.messageFormatVersion,
+        config.messageTimestampType,
+        config.messageTimestampDifferenceMaxMs,
+        leaderEpoch,
+        isFromClient)
+    } catch {
+      case e: IOException => throw new KafkaException("Error in validating messages while appending to log '%s'".format(name), e)
+    }
+    appendInfo.maxTimestamp = validateAndOffsetAssignResult.maxTimestamp
+    appendInfo.offsetOfMaxTimestamp = validateAndOffsetAssignResult.shallowOffsetOfMaxTimestamp
+    appendInfo.lastOffset = offset.value - 1
+    if (config.messageTimestampType == TimestampType.LOG_APPEND_TIME)
+      appendInfo.logAppendTime = now
+
+    // re-validate message sizes if there's a possibility that they have changed (due to re-compression or message
+    // format conversion)
+    if (validateAndOffsetAssignResult.messageSizeMaybeChanged) {
+      for (batch <- validateAndOffsetAssignResult.validatedRecords.batches.asScala) {
+        if (batch.sizeInBytes > config.maxMessageSize) {
+          // we record the original message set size instead of the trimmed size
+          // to be consistent with pre-compression bytesRejectedRate recording
+          brokerTopicStats.topicStats(topicPartition.topic).bytesRejectedRate.mark(records.sizeInBytes)
+          brokerTopicStats.allTopicsStats.bytesRejectedRate.mark(records.sizeInBytes)
+          throw new RecordTooLargeException("Message batch size is %d bytes which exceeds the maximum configured size of %d."
+            .format(batch.sizeInBytes, config.maxMessageSize))
         }
+      }
+    }
+    validateAndOffsetAssignResult.validatedRecords
+  }
 
-        // always update the last producer id map offset so that the snapshot reflects the current offset
-        // even if there isn't any idempotent data being written
-        producerStateManager.updateMapEndOffset(appendInfo.lastOffset + 1)
+  /**
+   * Move the offsets of a message set validated by `validate`, which were assigned from 0, so that they start at
+   * `firstOffset`, and stamp it with the leader epoch.
+   */
+  private def moveOffsets(records: MemoryRecords, appendInfo: LogAppendInfo, firstOffset: Long, leaderEpoch: Int): Unit = {
+    for (batch <- records.batches.asScala) {
+      batch.setLastOffset(firstOffset + batch.lastOffset)
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2)
+        batch.setPartitionLeaderEpoch(leaderEpoch)
+    }
+    appendInfo.firstOffset += firstOffset
+    appendInfo.lastOffset += firstOffset
+    if (appendInfo.offsetOfMaxTimestamp >= 0)
+      appendInfo.offsetOfMaxTimestamp += firstOffset
+  }
 
-        // increment the log end offset
-        updateLogEndOffset(appendInfo.lastOffset + 1)
+  /**
+   * Write the pending appends to the active segment and advance the log end offset past them. This must be called
+   * while holding the lock.
+   */
+  private def writePendingAppends(pending: mutable.ArrayBuffer[PendingAppend]): Unit = {
+    if (pending.nonEmpty) {
+      appendedBytes.addAndGet(pending.map(_.records.sizeInBytes.toLong).sum)
+      activeSegment.appendAll(pending.map { pendingAppend =>
+        val appendInfo = pendingAppend.appendInfo
+        LogSegmentAppend(firstOffset = appendInfo.firstOffset,
+          largestOffset = appendInfo.lastOffset,
+          largestTimestamp = appendInfo.maxTimestamp,
+          shallowOffsetOfMaxTimestamp = appendInfo.offsetOfMaxTimestamp,
+          records = pendingAppend.records)
+      })
 
-        // update the first unstable offset (which is used to compute LSO)
-        updateFirstUnstableOffset()
+      // increment the log end offset
+      updateLogEndOffset(pending.last.appendInfo.lastOffset + 1)
 
-        trace("Appended message set to log %s with first offset: %d, next offset: %d, and messages: %s"
-          .format(this.name, appendInfo.firstOffset, nextOffsetMetadata.messageOffset, validRecords))
+      // update the first unstable offset (which is used to compute LSO)
+      updateFirstUnstableOffset()
 
-        if (unflushedMessages >= config.flushInterval)
-          flush()
+      pending.foreach { pendingAppend =>
+        trace("Appended message set to log %s with first offset: %d, next offset: %d, and messages: %s"
+          .format(this.name, pendingAppend.appendInfo.firstOffset, pendingAppend.appendInfo.lastOffset + 1, pendingAppend.records))
+      }
+      pending.clear()
 
-        appendInfo
+      if (unflushedMessages >= config.flushInterval) {
+        flushService match {
+          case Some(service) => service.requestFlush(this, logEndOffset)
+          case None => flush()
+        }
       }
-    } catch {
-      case e: IOException => throw new KafkaStorageException("I/O exception in append to log '%s'".format(name), e)
     }
   }
 
@@ -878,6 +1374,16 @@ class Log(@volatile var dir: File,
 
     var segmentEntry = segments.floorEntry(startOffset)
 
+    // offsets between the log start offset and the first local segment are read from the remote tier
+    val remote = remoteLog
+    if (segmentEntry == null && remote.isDefined && startOffset >= logStartOffset && startOffset < next) {
+      readRemoteLog(remote.get, startOffset, maxLength, maxOffset, minOneMessage, isolationLevel) match {
+        case Some(fetchInfo) => return fetchInfo
+        // the remote tier has no records from this offset, read from the first local segment
+        case None => segmentEntry = segments.firstEntry
+      }
+    }
+
     // return error on attempt to read beyond the log end offset or read below log start offset
     if (startOffset > next || segmentEntry == null || startOffset < logStartOffset)
       throw new OffsetOutOfRangeException("Request for offset %d but we only have log segments in the range %d to %d.".format(startOffset, logStartOffset, next))
@@ -909,6 +1415,8 @@ class Log(@volatile var dir: File,
       if (fetchInfo == null) {
         segmentEntry = segments.higherEntry(segmentEntry.getKey)
       } else {
+        readAhead.foreach(_.onRead(segment, fetchInfo.fetchOffsetMetadata.relativePositionInSegment,
+          fetchInfo.records.sizeInBytes, activeSegment = segmentEntry == segments.lastEntry))
         return isolationLevel match {
           case IsolationLevel.READ_UNCOMMITTED => fetchInfo
           case IsolationLevel.READ_COMMITTED => addAbortedTransactions(startOffset, segmentEntry, fetchInfo)
@@ -922,6 +1430,27 @@ class Log(@volatile var dir: File,
     FetchDataInfo(nextOffsetMetadata, MemoryRecords.EMPTY)
   }
 
+  private def readRemoteLog(remote: RemoteLogManager, startOffset: Long, maxLength: Int, maxOffset: Option[Long],
+                            minOneMessage: Boolean, isolationLevel: IsolationLevel): Option[FetchDataInfo] = {
+    remote.read(topicPartition, startOffset, maxLength, maxOffset, minOneMessage).map { case (fetchInfo, upperBoundOffset) =>
+      isolationLevel match {
+        case IsolationLevel.READ_UNCOMMITTED => fetchInfo
+        case IsolationLevel.READ_COMMITTED =>
+          val abortedTransactions = ListBuffer.empty[AbortedTransaction]
+          def accumulator(abortedTxns: List[AbortedTxn]): Unit = abortedTransactions ++= abortedTxns.map(_.asAbortedTransaction)
+          remote.collectAbortedTransactions(topicPartition, startOffset, upperBoundOffset, accumulator) match {
+            case Some(true) => fetchInfo.copy(abortedTransactions = Some(abortedTransactions.toList))
+            case Some(false) =>
+              collectAbortedTransactions(startOffset, upperBoundOffset, segments.firstEntry, accumulator)
+              fetchInfo.copy(abortedTransactions = Some(abortedTransactions.toList))
+            // a segment holding aborted transactions is being fetched, the records are returned once it is cached
+            case None => FetchDataInfo(LogOffsetMetadata.UnknownOffsetMetadata, MemoryRecords.EMPTY,
+              abortedTransactions = Some(List.empty))
+          }
+      }
+    }
+  }
+
   private[log] def collectAbortedTransactions(startOffset: Long, upperBoundOffset: Long): List[AbortedTxn] = {
     val segmentEntry = segments.floorEntry(startOffset)
     val allAbortedTxns = ListBuffer.empty[AbortedTxn]
@@ -990,26 +1519,22 @@ class Log(@volatile var dir: File,
           s"for partition $topicPartition is ${config.messageFormatVersion} which is earlier than the minimum " +
           s"required version $KAFKA_0_10_0_IV0")
 
-    // Cache to avoid race conditions. `toBuffer` is faster than most alternatives and provides
-    // constant time access while being safe to use with concurrent collections unlike `toArray`.
-    val segmentsCopy = logSegments.toBuffer
     // For the earliest and latest, we do not need to return the timestamp.
     if (targetTimestamp == ListOffsetRequest.EARLIEST_TIMESTAMP)
         return Some(TimestampOffset(RecordBatch.NO_TIMESTAMP, logStartOffset))
     else if (targetTimestamp == ListOffsetRequest.LATEST_TIMESTAMP)
         return Some(TimestampOffset(RecordBatch.NO_TIMESTAMP, logEndOffset))
 
-    val targetSeg = {
-      // Get all the segments whose largest timestamp is smaller than target timestamp
-      val earlierSegs = segmentsCopy.takeWhile(_.largestTimestamp < targetTimestamp)
+    // the offsets below the first local segment are only in the remote tier, which is searched first
+    val remoteOffset = remoteLog.flatMap(_.findOffsetByTimestamp(topicPartition, targetTimestamp, logStartOffset,
+      localLogStartOffset))
+
+    remoteOffset.orElse {
       // We need to search the first segment whose largest timestamp is greater than the target timestamp if there is one.
-      if (earlierSegs.length < segmentsCopy.length)
-        Some(segmentsCopy(earlierSegs.length))
-      else
-        None
-    }
+      val targetSeg = segmentTimestamps.firstSegmentWithTimestamp(targetTimestamp)
 
-    targetSeg.flatMap(_.findOffsetByTimestamp(targetTimestamp, logStartOffset))
+      targetSeg.flatMap(_.findOffsetByTimestamp(targetTimestamp, logStartOffset))
+    }
   }
 
   /**
@@ -1048,7 +1573,7 @@ class Log(@volatile var dir: File,
       lock synchronized {
         // remove the segments for lookups
         deletable.foreach(deleteSegment)
-        logStartOffset = math.max(logStartOffset, segments.firstEntry().getValue.baseOffset)
+        logStartOffset = math.max(logStartOffset, firstRetainedOffset)
         leaderEpochCache.clearAndFlushEarliest(logStartOffset)
         producerStateManager.evictUnretainedProducers(logStartOffset)
         updateFirstUnstableOffset()
@@ -1075,7 +1600,8 @@ class Log(@volatile var dir: File,
     */
   def deleteOldSegments(): Int = {
     if (!config.delete) return 0
-    deleteRetentionMsBreachedSegments() + deleteRetentionSizeBreachedSegments() + deleteLogStartOffsetBreachedSegments()
+    deleteRetentionMsBreachedSegments() + deleteRetentionSizeBreachedSegments() + deleteLogStartOffsetBreachedSegments() +
+      deleteLocalRetentionBreachedSegments()
   }
 
   private def deleteRetentionMsBreachedSegments() : Int = {
@@ -1114,6 +1640,51 @@ class Log(@volatile var dir: File,
     }
   }
 
+  /**
+   * Delete the segments which have been copied to the remote tier and are beyond the local retention. The log start
+   * offset does not change, the remote tier still has them.
+   */
+  private def deleteLocalRetentionBreachedSegments(): Int = {
+    remoteLog match {
+      case None => 0
+      case Some(remote) =>
+        val copiedOffset = remote.copiedOffset(topicPartition)
+        val startMs = time.milliseconds
+        var diff = if (config.localRetentionBytes < 0) 0L else size - config.localRetentionBytes
+        def shouldDelete(segment: LogSegment) = {
+          val nextSegmentEntry = segments.higherEntry(segment.baseOffset)
+          if (nextSegmentEntry == null || nextSegmentEntry.getValue.baseOffset > copiedOffset) {
+            false
+          } else if ((config.localRetentionMs >= 0 && startMs - segment.largestTimestamp > config.localRetentionMs) ||
+              diff - segment.size >= 0) {
+            diff -= segment.size
+            true
+          } else {
+            false
+          }
+        }
+        deleteOldSegments(shouldDelete)
+    }
+  }
+
+  /**
+   * The remote log manager if remote storage is enabled for this log, which only applies to logs which are not compacted
+   */
+  private def remoteLog: Option[RemoteLogManager] =
+    if (config.remoteStorageEnable && !config.compact) remoteLogManager else None
+
+  /**
+   * The base offset of the first local segment, which is above the log start offset if the first segments of the log
+   * are only in the remote tier
+   */
+  def localLogStartOffset: Long = segments.firstEntry.getValue.baseOffset
+
+  /* The first offset which has not been deleted, locally or from the remote tier */
+  private def firstRetainedOffset: Long = {
+    val localStartOffset = localLogStartOffset
+    remoteLog.flatMap(_.logStartOffset(topicPartition)).fold(localStartOffset)(math.min(_, localStartOffset))
+  }
+
   /**
    * The size of the log in bytes
    */
@@ -1146,10 +1717,7 @@ class Log(@volatile var dir: File,
   private def maybeRoll(messagesSize: Int, maxTimestampInMessages: Long, maxOffsetInMessages: Long): LogSegment = {
     val segment = activeSegment
     val now = time.milliseconds
-    val reachedRollMs = segment.timeWaitedForRoll(now, maxTimestampInMessages) > config.segmentMs - segment.rollJitterMs
-    if (segment.size > config.segmentSize - messagesSize ||
-        (segment.size > 0 && reachedRollMs) ||
-        segment.index.isFull || segment.timeIndex.isFull || !segment.canConvertToRelativeOffset(maxOffsetInMessages)) {
+    if (shouldRoll(segment, pendingBytes = 0, messagesSize, maxTimestampInMessages, maxOffsetInMessages)) {
       debug(s"Rolling new log segment in $name (log_size = ${segment.size}/${config.segmentSize}}, " +
           s"index_size = ${segment.index.entries}/${segment.index.maxEntries}, " +
           s"time_index_size = ${segment.timeIndex.entries}/${segment.timeIndex.maxEntries}, " +
@@ -1166,17 +1734,33 @@ class Log(@volatile var dir: File,
        */
       roll(maxOffsetInMessages - Integer.MAX_VALUE)
     } else {
+      // prepare the next segment well before it is needed, the pre-creator ignores logs it is already preparing for
+      if (segment.size > config.segmentSize / 2)
+        segmentPreCreator.foreach(_.prepare(this))
       segment
     }
   }
 
+  /**
+   * Whether `segment` has to be rolled before appending messages to it, once `pendingBytes` which are not written yet
+   * are appended to it, see `maybeRoll`.
+   */
+  private def shouldRoll(segment: LogSegment, pendingBytes: Int, messagesSize: Int, maxTimestampInMessages: Long,
+                         maxOffsetInMessages: Long): Boolean = {
+    val size = segment.size + pendingBytes
+    val reachedRollMs = segment.timeWaitedForRoll(time.milliseconds, maxTimestampInMessages) > config.segmentMs - segment.rollJitterMs
+    size > config.segmentSize - messagesSize ||
+      (size > 0 && reachedRollMs) ||
+      segment.index.isFull || segment.timeIndex.isFull || !segment.canConvertToRelativeOffset(maxOffsetInMessages)
+  }
+
   /**
    * Roll the log over to a new active segment starting with the current logEndOffset.
    * This will trim the index to the exact size of the number of entries it currently contains.
    *
    * @return The newly rolled segment
    */
-  def roll(expectedNextOffset: Long = 0): LogSegment = {
+  def roll(expectedNextOffset: Long = 0): LogSegment = LogRollStats.logRollTimer.time {
     val start = time.nanoseconds
     lock synchronized {
       val newOffset = math.max(expectedNextOffset, logEndOffset)
@@ -1208,15 +1792,23 @@ class Log(@volatile var dir: File,
       producerStateManager.updateMapEndOffset(newOffset)
       producerStateManager.takeSnapshot()
 
-      val segment = new LogSegment(dir,
-                                   startOffset = newOffset,
-                                   indexIntervalBytes = config.indexInterval,
-                                   maxIndexSize = config.maxIndexSize,
-                                   rollJitterMs = config.randomSegmentJitter,
-                                   time = time,
-                                   fileAlreadyExists = false,
-                                   initFileSize = initFileSize,
-                                   preallocate = config.preallocate)
+      val preparedSegment = segmentPreCreator.flatMap(_.take(this, initFileSize, config.maxIndexSize))
+      val segment = preparedSegment match {
+        case Some(prepared) =>
+          prepared.toSegment(dir, newOffset, config.indexInterval, config.timeIndexInterval, config.randomSegmentJitter, time)
+        case None =>
+          new LogSegment(dir,
+                         startOffset = newOffset,
+                         indexIntervalBytes = config.indexInterval,
+                         timeIndexIntervalBytes = config.timeIndexInterval,
+                         maxIndexSize = config.maxIndexSize,
+                         rollJitterMs = config.randomSegmentJitter,
+                         time = time,
+                         fileAlreadyExists = false,
+                         initFileSize = initFileSize,
+                         preallocate = config.preallocate)
+      }
+      segmentPreCreator.foreach(_.prepare(this))
       val prev = addSegment(segment)
       if(prev != null)
         throw new KafkaException("Trying to roll a new log segment for topic partition %s with start offset %d while it already exists.".format(name, newOffset))
@@ -1224,7 +1816,10 @@ class Log(@volatile var dir: File,
       // The next offset should not change.
       updateLogEndOffset(nextOffsetMetadata.messageOffset)
       // schedule an asynchronous flush of the old segment
-      scheduler.schedule("flush-log", () => flush(newOffset), delay = 0L)
+      flushService match {
+        case Some(service) => service.requestFlush(this, newOffset)
+        case None => scheduler.schedule("flush-log", () => flush(newOffset), delay = 0L)
+      }
 
       info("Rolled new log segment for '" + name + "' in %.0f ms.".format((System.nanoTime - start) / (1000.0*1000.0)))
 
@@ -1283,9 +1878,11 @@ class Log(@volatile var dir: File,
    * Completely delete this log directory and all contents from the file system with no delay
    */
   private[log] def delete() {
+    segmentPreCreator.foreach(_.discard(this))
     lock synchronized {
       logSegments.foreach(_.delete())
       segments.clear()
+      segmentTimestamps.invalidate()
       leaderEpochCache.clear()
       Utils.delete(dir)
     }
@@ -1330,6 +1927,7 @@ class Log(@volatile var dir: File,
       } else {
         val deletable = logSegments.filter(segment => segment.baseOffset > targetOffset)
         deletable.foreach(deleteSegment)
+        segmentsTruncatedDuringMove.foreach(_ += activeSegment.baseOffset)
         activeSegment.truncateTo(targetOffset)
         updateLogEndOffset(targetOffset)
         this.recoveryPoint = math.min(targetOffset, this.recoveryPoint)
@@ -1353,6 +1951,7 @@ class Log(@volatile var dir: File,
       addSegment(new LogSegment(dir,
                                 newOffset,
                                 indexIntervalBytes = config.indexInterval,
+                                timeIndexIntervalBytes = config.timeIndexInterval,
                                 maxIndexSize = config.maxIndexSize,
                                 rollJitterMs = config.randomSegmentJitter,
                                 time = time,
@@ -1418,6 +2017,7 @@ class Log(@volatile var dir: File,
     info("Scheduling log segment %d for log %s for deletion.".format(segment.baseOffset, name))
     lock synchronized {
       segments.remove(segment.baseOffset)
+      segmentTimestamps.invalidate()
       asyncDeleteSegment(segment)
     }
   }
@@ -1471,8 +2071,10 @@ class Log(@volatile var dir: File,
       // delete the old files
       for(seg <- oldSegments) {
         // remove the index entry
-        if(seg.baseOffset != newSegment.baseOffset)
+        if(seg.baseOffset != newSegment.baseOffset) {
           segments.remove(seg.baseOffset)
+          segmentTimestamps.invalidate()
+        }
         // delete segment
         asyncDeleteSegment(seg)
       }
@@ -1495,7 +2097,11 @@ class Log(@volatile var dir: File,
    *
    * @param segment The segment to add
    */
-  def addSegment(segment: LogSegment) = this.segments.put(segment.baseOffset, segment)
+  def addSegment(segment: LogSegment): LogSegment = {
+    val previous = this.segments.put(segment.baseOffset, segment)
+    segmentTimestamps.invalidate()
+    previous
+  }
 
 }
 
@@ -1527,6 +2133,9 @@ object Log {
   /** A temporary file used when swapping files into the log */
   val SwapFileSuffix = ".swap"
 
+  /** A file of the next segment of the log which is prepared before it is rolled, see `LogSegmentPreCreator` */
+  val PreparedFileSuffix = ".prepared"
+
   /** Clean shutdown file that indicates the broker was cleanly shutdown in 0.8. This is required to maintain backwards compatibility
    * with 0.8 and avoid unnecessary log recovery when upgrading from 0.8 to 0.8.1 */
   /** TODO: Get rid of CleanShutdownFile in 0.8.2 */
@@ -1535,6 +2144,15 @@ object Log {
   /** a directory that is scheduled to be deleted */
   val DeleteDirSuffix = "-delete"
 
+  /** a directory to which a log is being moved */
+  val FutureDirSuffix = "-future"
+
+  /* the maximum number of passes copying a log being moved before the rest is copied with the lock of the log held */
+  private val MaxMoveCopyPasses = 5
+
+  /* the number of bytes left to copy below which the rest of a log being moved is copied with the lock held */
+  private val MoveCopyLockedBytes = 1024 * 1024L
+
   private val DeleteDirPattern = Pattern.compile(s"^(\\S+)-(\\S+)\\.(\\S+)$DeleteDirSuffix")
 
   val UnknownLogStartOffset = -1L
@@ -1572,6 +2190,14 @@ object Log {
     s"$logName.$uniqueId$DeleteDirSuffix"
   }
 
+  /**
+    * Return the name of the directory to which a log is being moved, in the format topic-partition.uniqueId-future.
+    */
+  def logFutureDirName(logName: String): String = {
+    val uniqueId = java.util.UUID.randomUUID.toString.replaceAll("-", "")
+    s"$logName.$uniqueId$FutureDirSuffix"
+  }
+
   /**
    * Construct an index file name in the given dir using the given base offset
    *
@@ -20,14 +20,15 @@ package kafka.log
 import java.io.File
 import java.nio._
 import java.util.Date
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicLong
 
 import com.yammer.metrics.core.Gauge
 import kafka.common._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils._
 import org.apache.kafka.common.record._
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{Time, Utils}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.record.MemoryRecords.RecordFilter
 
@@ -47,7 +48,12 @@ import scala.collection.JavaConverters._
  * and cleans that. The dirtiness of the log is guessed by taking the ratio of bytes in the dirty section of the log to the total bytes in the log. 
  * 
  * To clean a log the cleaner first builds a mapping of key=>last_offset for the dirty section of the log. See kafka.log.OffsetMap for details of
- * the implementation of the mapping. 
+ * the implementation of the mapping. The segments are then copied in groups without the obsolete records, each group into a single new
+ * segment. The groups are independent of each other, so the groups of a large log can be copied by several copy threads at once, which all
+ * look keys up in the offset map of the cleaner thread and share its I/O throttle.
+ *
+ * With incremental cleaning, the cleaner keeps a filter of the keys of each segment it writes, and does not copy a clean segment again
+ * while the dirty section has none of its keys and it has no tombstones or transaction markers to remove, see kafka.log.SegmentKeyFilter.
  * 
  * Once the key=>offset map is built, the log is cleaned by recopying each log segment but omitting any key that appears in the offset map with a 
  * higher offset than what is found in the segment (i.e. messages with a key that appears in the dirty section of the log).
@@ -74,8 +80,11 @@ class LogCleaner(val config: CleanerConfig,
                  val logs: Pool[TopicPartition, Log],
                  time: Time = Time.SYSTEM) extends Logging with KafkaMetricsGroup {
   
+  /* the size of the offset map of each cleaner thread */
+  private val offsetMapBytes = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt
+
   /* for managing the state of partitions being cleaned. package-private to allow access in tests */
-  private[log] val cleanerManager = new LogCleanerManager(logDirs, logs)
+  private[log] val cleanerManager = new LogCleanerManager(logDirs, logs, config.selectionPolicy, offsetMapBytes, time)
 
   /* a throttle used to limit the I/O of all the cleaner threads to a user-specified maximum rate */
   private val throttler = new Throttler(desiredRatePerSec = config.maxIoBytesPerSecond, 
@@ -102,6 +111,25 @@ class LogCleaner(val config: CleanerConfig,
                (100 * recopyRate).toInt
              }
            })
+  /* a metric to track the maximum rate of additional probes per offset map lookup in the last cleaning of each thread */
+  newGauge("max-offset-map-collision-percent",
+           new Gauge[Int] {
+             def value: Int = cleaners.map(_.lastStats).map(100 * _.offsetMapCollisionRate).max.toInt
+           })
+  /* a metric to track the share of the clean section which the last cleaning of each thread did not have to copy */
+  newGauge("cleaner-skipped-percent",
+           new Gauge[Int] {
+             def value: Int = {
+               val stats = cleaners.map(_.lastStats)
+               val skipped = stats.map(_.bytesSkipped).sum
+               (100 * skipped.toDouble / math.max(skipped + stats.map(_.bytesRead).sum, 1)).toInt
+             }
+           })
+  /* a metric to track the memory used by the key filters of the segments written by the cleaner */
+  newGauge("segment-key-filter-bytes",
+           new Gauge[Long] {
+             def value: Long = logs.values.flatMap(_.logSegments).flatMap(_.keyFilter).map(_.sizeInBytes.toLong).sum
+           })
   /* a metric to track the maximum cleaning time for the last cleaning from each thread */
   newGauge("max-clean-time-secs",
            new Gauge[Int] {
@@ -139,6 +167,13 @@ class LogCleaner(val config: CleanerConfig,
     cleanerManager.updateCheckpoints(dataDir, update=None)
   }
 
+  /**
+   * Move the cleaner offset checkpoint of the given partition from the directory its log is moved from to its new one
+   */
+  def moveCheckpoint(topicPartition: TopicPartition, sourceDir: File, destDir: File) {
+    cleanerManager.moveCheckpoint(topicPartition, sourceDir, destDir)
+  }
+
   /**
    * Truncate cleaner offset checkpoint for the given partition if its checkpointed offset is larger than the given offset
    */
@@ -195,14 +230,15 @@ class LogCleaner(val config: CleanerConfig,
       warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
 
     val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt, 
-                                                              hashAlgorithm = config.hashAlgorithm),
+                              offsetMap = OffsetMap(memory = offsetMapBytes, hashAlgorithm = config.hashAlgorithm),
                               ioBufferSize = config.ioBufferSize / config.numThreads / 2,
                               maxIoBufferSize = config.maxMessageSize,
                               dupBufferLoadFactor = config.dedupeBufferLoadFactor,
                               throttler = throttler,
                               time = time,
-                              checkDone = checkDone)
+                              checkDone = checkDone,
+                              copyThreads = config.copyThreads,
+                              incremental = config.incrementalCleaning)
     
     @volatile var lastStats: CleanerStats = new CleanerStats()
     private val backOffWaitLatch = new CountDownLatch(1)
@@ -224,6 +260,7 @@ class LogCleaner(val config: CleanerConfig,
     	 initiateShutdown()
     	 backOffWaitLatch.countDown()
     	 awaitShutdown()
+    	 cleaner.shutdown()
      }
      
     /**
@@ -236,13 +273,26 @@ class LogCleaner(val config: CleanerConfig,
         case Some(cleanable) =>
           // there's a log, clean it
           var endOffset = cleanable.firstDirtyOffset
+          val tags = Map("topic" -> cleanable.topicPartition.topic, "partition" -> cleanable.topicPartition.partition.toString)
+          newGauge("cleaning-progress-percent",
+                   new Gauge[Int] {
+                     def value: Int = cleaner.progress.percent
+                   }, tags)
+          newGauge("cleaning-bytes-remaining",
+                   new Gauge[Long] {
+                     def value: Long = cleaner.progress.bytesRemaining
+                   }, tags)
           try {
             val (nextDirtyOffset, cleanerStats) = cleaner.clean(cleanable)
             recordStats(cleaner.id, cleanable.log.name, cleanable.firstDirtyOffset, endOffset, cleanerStats)
+            cleanerManager.recordCleaning(cleanable.topicPartition, cleanerStats.mapBytesRead,
+              cleanerStats.bytesRead - cleanerStats.bytesWritten)
             endOffset = nextDirtyOffset
           } catch {
             case _: LogCleaningAbortedException => // task can be aborted, let it go.
           } finally {
+            removeMetric("cleaning-progress-percent", tags)
+            removeMetric("cleaning-bytes-remaining", tags)
             cleanerManager.doneCleaning(cleanable.topicPartition, cleanable.log.dir.getParentFile, endOffset)
           }
           true
@@ -276,6 +326,7 @@ class LogCleaner(val config: CleanerConfig,
                                                                                            mb(stats.mapBytesRead)/stats.elapsedIndexSecs, 
                                                                                            100 * stats.elapsedIndexSecs/stats.elapsedSecs) +
         "\tBuffer utilization: %.1f%%%n".format(100 * stats.bufferUtilization) +
+        "\tSkipped %d clean segments (%,.1f MB)%n".format(stats.segmentsSkipped, mb(stats.bytesSkipped)) +
         "\tCleaned %,.1f MB in %.1f seconds (%,.1f Mb/sec, %.1f%% of total time)%n".format(mb(stats.bytesRead), 
                                                                                            stats.elapsedSecs - stats.elapsedIndexSecs, 
                                                                                            mb(stats.bytesRead)/(stats.elapsedSecs - stats.elapsedIndexSecs), 100 * (stats.elapsedSecs - stats.elapsedIndexSecs).toDouble/stats.elapsedSecs) + 
@@ -302,6 +353,9 @@ class LogCleaner(val config: CleanerConfig,
  * @param throttler The throttler instance to use for limiting I/O rate.
  * @param time The time instance
  * @param checkDone Check if the cleaning for a partition is finished or aborted.
+ * @param copyThreads The number of threads copying the groups of segments of a log, including the calling thread. Each thread
+ *                    has its own read and write buffers.
+ * @param incremental Keep a filter of the keys of the segments written, and skip the clean segments without any key of the dirty section
  */
 private[log] class Cleaner(val id: Int,
                            val offsetMap: OffsetMap,
@@ -310,7 +364,9 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: (TopicPartition) => Unit) extends Logging {
+                           checkDone: (TopicPartition) => Unit,
+                           copyThreads: Int = 1,
+                           incremental: Boolean = false) extends Logging {
   
   override val loggerName = classOf[LogCleaner].getName
 
@@ -324,6 +380,24 @@ private[log] class Cleaner(val id: Int,
 
   private val decompressionBufferSupplier = BufferSupplier.create();
 
+  /* the cleaners copying groups of segments besides this one, with their own buffers */
+  private val copiers = (1 until copyThreads).map { _ =>
+    new Cleaner(id, offsetMap, ioBufferSize, maxIoBufferSize, dupBufferLoadFactor, throttler, time, checkDone,
+      incremental = incremental)
+  }
+
+  private val copyExecutor: Option[ExecutorService] =
+    if (copiers.nonEmpty) {
+      val threadCount = new AtomicLong(0)
+      Some(Executors.newFixedThreadPool(copiers.size, new ThreadFactory {
+        def newThread(runnable: Runnable): Thread =
+          Utils.newThread("kafka-log-cleaner-copier-" + id + "-" + threadCount.getAndIncrement(), runnable, true)
+      }))
+    } else None
+
+  /* the progress of the current cleaning, read by the metrics of the cleaner */
+  private[log] val progress = new CleaningProgress
+
   require(offsetMap.slots * dupBufferLoadFactor > 1, "offset map is too small to fit in even a single message, so log cleaning will never make progress. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads")
 
   /**
@@ -350,11 +424,22 @@ private[log] class Cleaner(val id: Int,
 
     val log = cleanable.log
     val stats = new CleanerStats()
+    // until the offset map is built, assume that the whole cleanable section will be indexed and then copied
+    progress.start(cleanable.cleanableBytes + cleanable.totalBytes)
+
+    // the clean segments which are not copied again if the dirty section has none of their keys
+    val skippable =
+      if (incremental)
+        new SkippableSegments(log.logSegments(0, cleanable.firstDirtyOffset).filter { segment =>
+          segment.keyFilter.exists(filter => !filter.hasDeletes || segment.lastModified > deleteHorizonMs)
+        }.toSeq)
+      else
+        SkippableSegments.Empty
 
     // build the offset map
     info("Building offset map for %s...".format(cleanable.log.name))
     val upperBoundOffset = cleanable.firstUncleanableOffset
-    buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap, stats)
+    buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap, stats, skippable)
     val endOffset = offsetMap.latestOffset + 1
     stats.indexDone()
 
@@ -364,17 +449,122 @@ private[log] class Cleaner(val id: Int,
 
     // group the segments and clean the groups
     info("Cleaning log %s (cleaning prior to %s, discarding tombstones prior to %s)...".format(log.name, new Date(cleanableHorizonMs), new Date(deleteHorizonMs)))
-    for (group <- groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize))
-      cleanSegments(log, group, offsetMap, deleteHorizonMs, stats)
+    val skipped = skippable.untouched
+    stats.segmentsSkipped = skipped.size
+    stats.bytesSkipped = groupSize(skipped.toSeq)
+    val groups = adjacentSegments(log.logSegments(0, endOffset), skipped).flatMap { segments =>
+      groupSegmentsBySize(segments, log.config.segmentSize, log.config.maxIndexSize)
+    }
+    progress.start(stats.mapBytesRead + groups.map(groupSize).sum, stats.mapBytesRead)
+    copyExecutor match {
+      case Some(executor) if groups.size > 1 =>
+        cleanGroupsInParallel(log, groups, deleteHorizonMs, stats, executor)
+      case _ =>
+        for (group <- groups) {
+          cleanSegments(log, group, offsetMap, deleteHorizonMs, stats)
+          progress.done(groupSize(group))
+        }
+    }
 
     // record buffer utilization
     stats.bufferUtilization = offsetMap.utilization
+    stats.offsetMapCollisionRate = offsetMap.collisionRate
 
     stats.allDone()
 
     (endOffset, stats)
   }
 
+  /**
+   * Clean the groups of segments of a log with this cleaner and its copiers. Each cleaner takes the next group from a
+   * shared queue until the queue is empty, looking keys up in its own view of the offset map, which is not modified
+   * until all the groups have been cleaned. Once a cleaner fails, the others stop after their current group, and the
+   * first failure is rethrown when all of them have stopped.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments to clean
+   * @param deleteHorizonMs The time to retain delete tombstones
+   * @param stats Collector for cleaning statistics, the statistics of the copiers are added to it
+   * @param executor The executor running the copiers
+   */
+  private def cleanGroupsInParallel(log: Log,
+                                    groups: Seq[Seq[LogSegment]],
+                                    deleteHorizonMs: Long,
+                                    stats: CleanerStats,
+                                    executor: ExecutorService) {
+    val pending = new ConcurrentLinkedQueue[Seq[LogSegment]](groups.asJava)
+
+    def cleanPendingGroups(cleaner: Cleaner, map: OffsetMap, groupStats: CleanerStats): Unit = {
+      try {
+        var group = pending.poll()
+        while (group != null) {
+          val size = groupSize(group)
+          cleaner.cleanSegments(log, group, map, deleteHorizonMs, groupStats)
+          progress.done(size)
+          group = pending.poll()
+        }
+      } catch {
+        case e: Throwable =>
+          pending.clear()
+          throw e
+      }
+    }
+
+    val copierStats = copiers.map(_ => new CleanerStats(time))
+    val futures = copiers.zip(copierStats).map { case (copier, copyStats) =>
+      val map = offsetMap.concurrentView()
+      executor.submit(new Callable[Unit] {
+        def call(): Unit = cleanPendingGroups(copier, map, copyStats)
+      })
+    }
+
+    var failure: Throwable = null
+    try cleanPendingGroups(this, offsetMap, stats)
+    catch {
+      case e: Throwable => failure = e
+    }
+    for (future <- futures) {
+      try future.get()
+      catch {
+        case e: ExecutionException => if (failure == null) failure = e.getCause
+      }
+    }
+    copierStats.foreach(stats.add)
+    if (failure != null)
+      throw failure
+  }
+
+  private def groupSize(segments: Seq[LogSegment]): Long = segments.map(_.size.toLong).sum
+
+  /**
+   * Split segments into the runs of adjacent segments which are not skipped.
+   */
+  private def adjacentSegments(segments: Iterable[LogSegment], skipped: Set[LogSegment]): List[Seq[LogSegment]] = {
+    val runs = mutable.ListBuffer[Seq[LogSegment]]()
+    var run = mutable.ArrayBuffer[LogSegment]()
+    for (segment <- segments) {
+      if (skipped.contains(segment)) {
+        if (run.nonEmpty)
+          runs += run
+        run = mutable.ArrayBuffer[LogSegment]()
+      } else
+        run += segment
+    }
+    if (run.nonEmpty)
+      runs += run
+    runs.toList
+  }
+
+  /**
+   * Stop the copiers of this cleaner.
+   */
+  def shutdown() {
+    copyExecutor.foreach { executor =>
+      executor.shutdown()
+      executor.awaitTermination(30, TimeUnit.SECONDS)
+    }
+  }
+
   /**
    * Clean a group of segments into a single replacement segment
    *
@@ -405,7 +595,8 @@ private[log] class Cleaner(val id: Int,
     val timeIndex = new TimeIndex(timeIndexFile, startOffset, segments.head.timeIndex.maxIndexSize)
     val txnIndex = new TransactionIndex(startOffset, txnIndexFile)
     val cleaned = new LogSegment(records, index, timeIndex, txnIndex, startOffset,
-      segments.head.indexIntervalBytes, log.config.randomSegmentJitter, time)
+      segments.head.indexIntervalBytes, segments.head.timeIndexIntervalBytes, log.config.randomSegmentJitter, time)
+    val keys = if (incremental) Some(new SegmentKeyFilter.Builder) else None
 
     try {
       // clean segments into the new destination segment
@@ -424,7 +615,7 @@ private[log] class Cleaner(val id: Int,
         info("Cleaning segment %s in log %s (largest timestamp %s) into %s, %s deletes."
           .format(startOffset, log.name, new Date(oldSegmentOpt.largestTimestamp), cleaned.baseOffset, if(retainDeletes) "retaining" else "discarding"))
         cleanInto(log.topicPartition, oldSegmentOpt, cleaned, map, retainDeletes, log.config.maxMessageSize, transactionMetadata,
-          log.activePids, stats)
+          log.activePids, stats, keys)
 
         currentSegmentOpt = nextSegmentOpt
       }
@@ -444,6 +635,7 @@ private[log] class Cleaner(val id: Int,
       // update the modification date to retain the last modified date of the original files
       val modified = segments.last.lastModified
       cleaned.lastModified = modified
+      cleaned.keyFilter = keys.map(_.build())
 
       // swap in new segment
       info("Swapping in cleaned segment %d for segment(s) %s in log %s.".format(cleaned.baseOffset, segments.map(_.baseOffset).mkString(","), log.name))
@@ -466,6 +658,7 @@ private[log] class Cleaner(val id: Int,
    * @param retainDeletes Should delete tombstones be retained while cleaning this segment
    * @param maxLogMessageSize The maximum message size of the corresponding topic
    * @param stats Collector for cleaning statistics
+   * @param keys Collector for the keys of the cleaned log segment, if incremental cleaning is enabled
    */
   private[log] def cleanInto(topicPartition: TopicPartition,
                              source: LogSegment,
@@ -475,7 +668,8 @@ private[log] class Cleaner(val id: Int,
                              maxLogMessageSize: Int,
                              transactionMetadata: CleanedTransactionMetadata,
                              activeProducers: Map[Long, ProducerIdEntry],
-                             stats: CleanerStats) {
+                             stats: CleanerStats,
+                             keys: Option[SegmentKeyFilter.Builder] = None) {
     val logCleanerFilter = new RecordFilter {
       var retainLastBatchSequence: Boolean = false
       var discardBatchRecords: Boolean = false
@@ -487,24 +681,38 @@ private[log] class Cleaner(val id: Int,
 
         // check if the batch contains the last sequence number for the producer. if so, we cannot
         // remove the batch just yet or the producer may see an out of sequence error.
-        if (batch.hasProducerId && activeProducers.get(batch.producerId).exists(_.lastSeq == batch.lastSequence)) {
-          retainLastBatchSequence = true
-          false
-        } else {
-          retainLastBatchSequence = false
-          discardBatchRecords
-        }
+        val discard =
+          if (batch.hasProducerId && activeProducers.get(batch.producerId).exists(_.lastSeq == batch.lastSequence)) {
+            retainLastBatchSequence = true
+            false
+          } else {
+            retainLastBatchSequence = false
+            discardBatchRecords
+          }
+        // a retained marker is removed by a later cleaning, like a tombstone
+        if (!discard && batch.isControlBatch)
+          keys.foreach(_.markDeletes())
+        discard
       }
 
       override def shouldRetain(batch: RecordBatch, record: Record): Boolean = {
-        if (retainLastBatchSequence && batch.lastSequence == record.sequence)
-          // always retain the record with the last sequence number
-          true
-        else if (discardBatchRecords)
-          // remove the record if the batch would have otherwise been discarded
-          false
-        else
-          shouldRetainRecord(source, map, retainDeletes, batch, record, stats)
+        val retain =
+          if (retainLastBatchSequence && batch.lastSequence == record.sequence)
+            // always retain the record with the last sequence number
+            true
+          else if (discardBatchRecords)
+            // remove the record if the batch would have otherwise been discarded
+            false
+          else
+            shouldRetainRecord(source, map, retainDeletes, batch, record, stats)
+        if (retain && record.hasKey) {
+          keys.foreach { keys =>
+            keys.add(record.key)
+            if (!record.hasValue)
+              keys.markDeletes()
+          }
+        }
+        retain
       }
     }
 
@@ -648,12 +856,14 @@ private[log] class Cleaner(val id: Int,
    * @param end The ending offset for the map that is being built
    * @param map The map in which to store the mappings
    * @param stats Collector for cleaning statistics
+   * @param skippable The clean segments to touch with the keys put into the map
    */
   private[log] def buildOffsetMap(log: Log,
                                   start: Long,
                                   end: Long,
                                   map: OffsetMap,
-                                  stats: CleanerStats) {
+                                  stats: CleanerStats,
+                                  skippable: SkippableSegments = SkippableSegments.Empty) {
     map.clear()
     val dirty = log.logSegments(start, end).toBuffer
     info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
@@ -668,7 +878,7 @@ private[log] class Cleaner(val id: Int,
       checkDone(log.topicPartition)
 
       full = buildOffsetMapForSegment(log.topicPartition, segment, map, start, log.config.maxMessageSize,
-        transactionMetadata, stats)
+        transactionMetadata, stats, skippable)
       if (full)
         debug("Offset map is full, %d segments fully mapped, segment with base offset %d is partially mapped".format(dirty.indexOf(segment), segment.baseOffset))
     }
@@ -681,6 +891,7 @@ private[log] class Cleaner(val id: Int,
    * @param segment The segment to index
    * @param map The map in which to store the key=>offset mapping
    * @param stats Collector for cleaning statistics
+   * @param skippable The clean segments to touch with the keys put into the map
    *
    * @return If the map was filled whilst loading from this segment
    */
@@ -690,7 +901,8 @@ private[log] class Cleaner(val id: Int,
                                        startOffset: Long,
                                        maxLogMessageSize: Int,
                                        transactionMetadata: CleanedTransactionMetadata,
-                                       stats: CleanerStats): Boolean = {
+                                       stats: CleanerStats,
+                                       skippable: SkippableSegments): Boolean = {
     var position = segment.index.lookup(startOffset).position
     val maxDesiredMapSize = (map.slots * this.dupBufferLoadFactor).toInt
     while (position < segment.log.sizeInBytes) {
@@ -713,9 +925,10 @@ private[log] class Cleaner(val id: Int,
           } else {
             for (record <- batch.asScala) {
               if (record.hasKey && record.offset >= startOffset) {
-                if (map.size < maxDesiredMapSize)
+                if (map.size < maxDesiredMapSize && map.canPut(record.offset)) {
                   map.put(record.key, record.offset)
-                else
+                  skippable.onDirtyKey(record.key)
+                } else
                   return true
               }
               stats.indexMessagesRead(1)
@@ -729,6 +942,7 @@ private[log] class Cleaner(val id: Int,
       val bytesRead = records.validBytes
       position += bytesRead
       stats.indexBytesRead(bytesRead)
+      progress.done(bytesRead)
 
       // if we didn't read even one complete message, our read buffer may be too small
       if(position == startPosition)
@@ -754,6 +968,9 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
   var invalidMessagesRead = 0L
   var messagesWritten = 0L
   var bufferUtilization = 0.0d
+  var offsetMapCollisionRate = 0.0d
+  var segmentsSkipped = 0
+  var bytesSkipped = 0L
 
   def readMessages(messagesRead: Int, bytesRead: Int) {
     this.messagesRead += messagesRead
@@ -789,6 +1006,40 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
 
   def elapsedIndexSecs = (mapCompleteTime - startTime)/1000.0
 
+  /**
+   * Add the bytes and messages copied by another cleaner for the same cleaning.
+   */
+  def add(other: CleanerStats) {
+    bytesRead += other.bytesRead
+    bytesWritten += other.bytesWritten
+    messagesRead += other.messagesRead
+    invalidMessagesRead += other.invalidMessagesRead
+    messagesWritten += other.messagesWritten
+  }
+
+}
+
+/**
+ * The progress of the cleaning of a log: the bytes indexed into the offset map and copied so far out of the bytes to
+ * index and copy. The bytes to copy are only known once the offset map has been built.
+ */
+@threadsafe
+private[log] class CleaningProgress {
+  @volatile private var totalBytes = 0L
+  private val doneBytes = new AtomicLong
+
+  def start(totalBytes: Long, doneBytes: Long = 0L) {
+    this.doneBytes.set(doneBytes)
+    this.totalBytes = totalBytes
+  }
+
+  def done(bytes: Long) {
+    doneBytes.addAndGet(bytes)
+  }
+
+  def bytesRemaining: Long = math.max(0L, totalBytes - doneBytes.get)
+
+  def percent: Int = if (totalBytes <= 0) 0 else math.min(100L, 100 * doneBytes.get / totalBytes).toInt
 }
 
 /**
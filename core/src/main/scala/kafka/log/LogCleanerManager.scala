@@ -30,6 +30,7 @@ import kafka.utils.{Logging, Pool}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.utils.Time
 
+import scala.collection.JavaConverters._
 import scala.collection.{immutable, mutable}
 
 private[log] sealed trait LogCleaningState
@@ -44,8 +45,21 @@ private[log] case object LogCleaningPaused extends LogCleaningState
  *  the LogCleaningAborted state. Once the cleaning task is aborted, the partition enters the LogCleaningPaused state.
  *  While a partition is in the LogCleaningPaused state, it won't be scheduled for cleaning again, until cleaning is
  *  requested to be resumed.
+ *
+ *  The log to clean next is chosen by the selection policy among the logs above their minimum cleanable ratio or past
+ *  their maximum compaction lag. The share of the cleanable bytes removed by the last cleaning of each log is kept to
+ *  estimate the bytes the next cleaning of the log will reclaim. The estimate moves back towards all of the cleanable
+ *  bytes as bytes are appended to the log after the cleaning, and never falls below `MinReclaimedRatio`, so that a
+ *  cleaning which reclaimed nothing does not keep a log from being cleaned again.
+ *
+ *  @param selectionPolicy Chooses the log to clean next
+ *  @param offsetMapBytes The size of the offset map of a cleaner thread, which each cleaning clears
  */
-private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[TopicPartition, Log]) extends Logging with KafkaMetricsGroup {
+private[log] class LogCleanerManager(val logDirs: Array[File],
+                                     val logs: Pool[TopicPartition, Log],
+                                     selectionPolicy: LogCleanerSelectionPolicy = new DirtyRatioSelectionPolicy,
+                                     offsetMapBytes: Long = 0L,
+                                     time: Time = Time.SYSTEM) extends Logging with KafkaMetricsGroup {
 
   import LogCleanerManager._
 
@@ -74,6 +88,15 @@ private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[To
   @volatile private var timeOfLastRun : Long = Time.SYSTEM.milliseconds
   newGauge("time-since-last-run-ms", new Gauge[Long] { def value = Time.SYSTEM.milliseconds - timeOfLastRun })
 
+  /* the last cleaning of each compacted log, updated while holding lock */
+  private val history = new Pool[TopicPartition, CleaningHistory]()
+
+  /* the candidates of the last selection, for the metrics of each log */
+  private val candidates = new Pool[TopicPartition, CleanerCandidate]()
+
+  /* the timestamp of the first dirty batch of each compacted log, updated while holding lock */
+  private val firstDirtyTimestamps = new Pool[TopicPartition, FirstDirtyTimestamp]()
+
   /**
    * @return the position processed for all logs.
    */
@@ -90,9 +113,11 @@ private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[To
       val now = time.milliseconds
       this.timeOfLastRun = now
       val lastClean = allCleanerCheckpoints
-      val dirtyLogs = logs.filter {
+      val compactedLogs = logs.filter {
         case (_, log) => log.config.compact  // match logs that are marked as compacted
-      }.filterNot {
+      }
+      updateLogMetrics(compactedLogs.map(_._1).toSet, now)
+      val dirtyLogs = compactedLogs.filterNot {
         case (topicPartition, _) => inProgress.contains(topicPartition) // skip any logs already in-progress
       }.map {
         case (topicPartition, log) => // create a LogToClean instance for each
@@ -102,14 +127,121 @@ private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[To
       }.filter(ltc => ltc.totalBytes > 0) // skip any empty logs
 
       this.dirtiestLogCleanableRatio = if (dirtyLogs.nonEmpty) dirtyLogs.max.cleanableRatio else 0
-      // and must meet the minimum threshold for dirty byte ratio
-      val cleanableLogs = dirtyLogs.filter(ltc => ltc.cleanableRatio > ltc.log.config.minCleanableRatio)
-      if(cleanableLogs.isEmpty) {
-        None
-      } else {
-        val filthiest = cleanableLogs.max
+      val logsToClean = dirtyLogs.map(ltc => ltc.topicPartition -> ltc).toMap
+      val dirtyCandidates = dirtyLogs.map(candidate(_, now)).toSeq
+      dirtyCandidates.foreach(c => candidates.put(c.topicPartition, c))
+      // and must meet the minimum threshold for dirty byte ratio, or be overdue
+      val cleanableCandidates = dirtyCandidates.filter { c =>
+        c.cleanableRatio > logsToClean(c.topicPartition).log.config.minCleanableRatio || (c.overdue && c.cleanableBytes > 0)
+      }
+      selectionPolicy.select(cleanableCandidates).map { selected =>
+        val filthiest = logsToClean(selected.topicPartition)
         inProgress.put(filthiest.topicPartition, LogCleaningInProgress)
-        Some(filthiest)
+        filthiest
+      }
+    }
+  }
+
+  /**
+   * The candidate for cleaning of a dirty log. The caller is expected to hold lock while making the call.
+   */
+  private def candidate(ltc: LogToClean, now: Long): CleanerCandidate = {
+    val reclaimedRatio = Option(history.get(ltc.topicPartition))
+      .map(_.estimatedReclaimedRatio(ltc.log.bytesAppended))
+      .getOrElse(1.0)
+    val reclaimableBytes = (ltc.cleanableBytes * reclaimedRatio).toLong
+    // the cleanable section is read to build the offset map, then the log is read and the retained bytes are written
+    val ioBytes = offsetMapBytes + ltc.cleanableBytes + ltc.totalBytes + (ltc.totalBytes - reclaimableBytes)
+    CleanerCandidate(ltc.topicPartition, ltc.cleanBytes, ltc.cleanableBytes, reclaimableBytes, ioBytes,
+      overdueMs(ltc, now))
+  }
+
+  /**
+   * How long the first dirty batch of a log has been past the maximum compaction lag of the log, -1 if it is not or if
+   * its timestamp is unknown. The caller is expected to hold lock while making the call.
+   */
+  private def overdueMs(ltc: LogToClean, now: Long): Long = {
+    val maxCompactionLagMs = ltc.log.config.maxCompactionLagMs
+    if (maxCompactionLagMs == Long.MaxValue)
+      -1L
+    else {
+      firstDirtyBatchTimestamp(ltc)
+        .filter(_ >= 0)
+        .map(timestamp => now - timestamp - maxCompactionLagMs)
+        .getOrElse(-1L)
+    }
+  }
+
+  /**
+   * The timestamp of the first batch of a log at or after its first dirty offset, the batches before it in the same
+   * segment were cleaned already. It is read from the log once and kept until the first dirty offset or the segment it
+   * is in changes, the segments below the active segment are not appended to.
+   */
+  private def firstDirtyBatchTimestamp(ltc: LogToClean): Option[Long] = {
+    val segments = ltc.log.logSegments(ltc.firstDirtyOffset, ltc.firstUncleanableOffset)
+    segments.headOption.flatMap { firstSegment =>
+      Option(firstDirtyTimestamps.get(ltc.topicPartition)) match {
+        case Some(FirstDirtyTimestamp(segment, offset, timestamp)) if (segment eq firstSegment) && offset == ltc.firstDirtyOffset =>
+          Some(timestamp)
+        case _ =>
+          // the dirty offset may be past the last batch of its segment, whose following batches were removed
+          val timestamp = segments.iterator.map { segment =>
+            Option(segment.translateOffset(ltc.firstDirtyOffset)).flatMap { position =>
+              segment.log.read(position.position, position.size).batches.asScala.headOption.map(_.maxTimestamp)
+            }
+          }.collectFirst { case Some(t) => t }
+          timestamp match {
+            case Some(t) => firstDirtyTimestamps.put(ltc.topicPartition, FirstDirtyTimestamp(firstSegment, ltc.firstDirtyOffset, t))
+            case None => firstDirtyTimestamps.remove(ltc.topicPartition)
+          }
+          timestamp
+      }
+    }
+  }
+
+  /**
+   * Register the metrics of the compacted logs which have none and remove those of the logs which are gone. The caller
+   * is expected to hold lock while making the call.
+   */
+  private def updateLogMetrics(compactedLogs: Set[TopicPartition], now: Long) {
+    for (topicPartition <- compactedLogs if !history.contains(topicPartition)) {
+      // the logs which have not been cleaned since they were loaded count from the time they were first seen
+      history.put(topicPartition, CleaningHistory(now, reclaimedRatio = 1.0, cleanedBytes = 0L, bytesAppended = 0L))
+      val tags = logMetricTags(topicPartition)
+      newGauge("estimated-cleaning-benefit", new Gauge[Double] {
+        def value = Option(candidates.get(topicPartition)).map(_.benefit).getOrElse(0.0)
+      }, tags)
+      newGauge("estimated-reclaimable-bytes", new Gauge[Long] {
+        def value = Option(candidates.get(topicPartition)).map(_.estimatedReclaimableBytes).getOrElse(0L)
+      }, tags)
+      newGauge("time-since-last-clean-ms", new Gauge[Long] {
+        def value = Option(history.get(topicPartition)).map(time.milliseconds - _.lastCleanMs).getOrElse(0L)
+      }, tags)
+    }
+    for (topicPartition <- history.keys.toList if !compactedLogs.contains(topicPartition)) {
+      history.remove(topicPartition)
+      candidates.remove(topicPartition)
+      firstDirtyTimestamps.remove(topicPartition)
+      val tags = logMetricTags(topicPartition)
+      removeMetric("estimated-cleaning-benefit", tags)
+      removeMetric("estimated-reclaimable-bytes", tags)
+      removeMetric("time-since-last-clean-ms", tags)
+    }
+  }
+
+  private def logMetricTags(topicPartition: TopicPartition): Map[String, String] =
+    Map("topic" -> topicPartition.topic, "partition" -> topicPartition.partition.toString)
+
+  /**
+   * Record the bytes removed by a completed cleaning of a log out of the cleanable bytes it indexed.
+   */
+  def recordCleaning(topicPartition: TopicPartition, cleanedBytes: Long, reclaimedBytes: Long) {
+    inLock(lock) {
+      // the metrics of a log which is gone have been removed
+      if (history.contains(topicPartition)) {
+        val reclaimedRatio = math.min(1.0, math.max(0.0, reclaimedBytes.toDouble / math.max(cleanedBytes, 1L)))
+        val bytesAppended = Option(logs.get(topicPartition)).map(_.bytesAppended).getOrElse(0L)
+        history.put(topicPartition, CleaningHistory(time.milliseconds, reclaimedRatio, cleanedBytes, bytesAppended))
       }
     }
   }
@@ -222,6 +354,21 @@ private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[To
     }
   }
 
+  /**
+   * Move the checkpointed offset of a partition whose log is moved from `sourceDir` to `destDir`. The offset is written to
+   * the checkpoint of `destDir` before it is removed from the one of `sourceDir`, so that it is not lost on a crash.
+   */
+  def moveCheckpoint(topicPartition: TopicPartition, sourceDir: File, destDir: File) {
+    inLock(lock) {
+      val sourceCheckpoint = checkpoints(sourceDir)
+      val existing = sourceCheckpoint.read()
+      existing.get(topicPartition).foreach { offset =>
+        updateCheckpoints(destDir, Some(topicPartition -> offset))
+        sourceCheckpoint.write(existing - topicPartition)
+      }
+    }
+  }
+
   def maybeTruncateCheckpoint(dataDir: File, topicPartition: TopicPartition, offset: Long) {
     inLock(lock) {
       if (logs.get(topicPartition).config.compact) {
@@ -259,8 +406,36 @@ private[log] class LogCleanerManager(val logDirs: Array[File], val logs: Pool[To
   }
 }
 
+/**
+ * The time of the last cleaning of a log, the share of the cleanable bytes it removed out of the `cleanedBytes` it
+ * indexed, and the bytes appended to the log when it completed.
+ */
+private case class CleaningHistory(lastCleanMs: Long, reclaimedRatio: Double, cleanedBytes: Long, bytesAppended: Long) {
+
+  /**
+   * The share of the cleanable bytes the next cleaning is expected to remove: the share removed by the last cleaning,
+   * weighted by the bytes it indexed, blended with all of the bytes appended since, which are assumed to be reclaimable
+   * until a cleaning shows otherwise.
+   */
+  def estimatedReclaimedRatio(logBytesAppended: Long): Double = {
+    // the count of appended bytes restarts when the log is reopened
+    val appendedSince = math.max(logBytesAppended - bytesAppended, 0L)
+    val weight = cleanedBytes + appendedSince
+    val ratio = if (weight == 0) reclaimedRatio else (reclaimedRatio * cleanedBytes + appendedSince) / weight
+    math.max(ratio, LogCleanerManager.MinReclaimedRatio)
+  }
+}
+
+/**
+ * The timestamp of the first batch at or after the first dirty offset of a log, which is in `segment`.
+ */
+private case class FirstDirtyTimestamp(segment: LogSegment, firstDirtyOffset: Long, timestamp: Long)
+
 private[log] object LogCleanerManager extends Logging {
 
+  /* the lowest share of the cleanable bytes of a log which its next cleaning is expected to remove */
+  val MinReclaimedRatio = 0.1
+
   def isCompactAndDelete(log: Log): Boolean = {
     log.config.compact && log.config.delete
   }
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util
+
+import org.apache.kafka.common.{Configurable, TopicPartition}
+
+/**
+ * A compacted log which may be cleaned, with the estimates of the cost and benefit of cleaning it.
+ *
+ * @param topicPartition The partition of the log
+ * @param cleanBytes The size of the clean section of the log
+ * @param cleanableBytes The size of the cleanable part of the dirty section of the log
+ * @param estimatedReclaimableBytes The bytes expected to be removed from the log by cleaning it, the share of its cleanable
+ *                                  bytes which its last cleaning removed
+ * @param estimatedIoBytes The bytes expected to be read and written by cleaning the log, including the offset map which
+ *                         each cleaning clears
+ * @param overdueMs How long the oldest cleanable messages of the log have been past its maximum compaction lag, negative
+ *                  if they are not
+ */
+case class CleanerCandidate(topicPartition: TopicPartition,
+                            cleanBytes: Long,
+                            cleanableBytes: Long,
+                            estimatedReclaimableBytes: Long,
+                            estimatedIoBytes: Long,
+                            overdueMs: Long) {
+  def totalBytes: Long = cleanBytes + cleanableBytes
+
+  def cleanableRatio: Double = cleanableBytes / totalBytes.toDouble
+
+  /* the bytes expected to be reclaimed per byte read and written */
+  def benefit: Double = estimatedReclaimableBytes / math.max(estimatedIoBytes, 1L).toDouble
+
+  def overdue: Boolean = overdueMs > 0
+}
+
+/**
+ * Chooses the log to clean next, see `log.cleaner.selection.policy.class`. Policies are called by the cleaner threads
+ * one at a time.
+ */
+trait LogCleanerSelectionPolicy extends Configurable {
+
+  /**
+   * Choose the log to clean next among `candidates`, the compacted logs whose cleanable ratio is above their minimum
+   * cleanable ratio or which are overdue.
+   */
+  def select(candidates: Seq[CleanerCandidate]): Option[CleanerCandidate]
+}
+
+object LogCleanerSelectionPolicy {
+
+  /**
+   * The log which has been overdue for the longest time, if any.
+   */
+  def mostOverdue(candidates: Seq[CleanerCandidate]): Option[CleanerCandidate] = {
+    val overdue = candidates.filter(_.overdue)
+    if (overdue.isEmpty) None else Some(overdue.maxBy(_.overdueMs))
+  }
+}
+
+/**
+ * Cleans the overdue logs first and then the log with the highest cleanable ratio, regardless of its size.
+ */
+class DirtyRatioSelectionPolicy extends LogCleanerSelectionPolicy {
+
+  override def configure(configs: util.Map[String, _]): Unit = {}
+
+  override def select(candidates: Seq[CleanerCandidate]): Option[CleanerCandidate] =
+    LogCleanerSelectionPolicy.mostOverdue(candidates).orElse {
+      if (candidates.isEmpty) None else Some(candidates.maxBy(_.cleanableRatio))
+    }
+}
+
+/**
+ * Cleans the overdue logs first and then the log with the most bytes expected to be reclaimed per byte read and
+ * written. As each cleaning clears the whole offset map, a small log costs almost as much to clean as a log the size of
+ * the map, and a large log which reclaims many bytes is not starved by small logs with a higher cleanable ratio.
+ */
+class CostBenefitSelectionPolicy extends LogCleanerSelectionPolicy {
+
+  override def configure(configs: util.Map[String, _]): Unit = {}
+
+  override def select(candidates: Seq[CleanerCandidate]): Option[CleanerCandidate] =
+    LogCleanerSelectionPolicy.mostOverdue(candidates).orElse {
+      if (candidates.isEmpty) None else Some(candidates.maxBy(_.benefit))
+    }
+}
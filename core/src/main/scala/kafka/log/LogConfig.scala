@@ -39,12 +39,17 @@ object Defaults {
   val FlushMs = kafka.server.Defaults.LogFlushSchedulerIntervalMs
   val RetentionSize = kafka.server.Defaults.LogRetentionBytes
   val RetentionMs = kafka.server.Defaults.LogRetentionHours * 60 * 60 * 1000L
+  val LocalRetentionMs = kafka.server.Defaults.LogLocalRetentionMs
+  val LocalRetentionBytes = kafka.server.Defaults.LogLocalRetentionBytes
+  val RemoteStorageEnable = kafka.server.Defaults.LogRemoteStorageEnable
   val MaxMessageSize = kafka.server.Defaults.MessageMaxBytes
   val MaxIndexSize = kafka.server.Defaults.LogIndexSizeMaxBytes
   val IndexInterval = kafka.server.Defaults.LogIndexIntervalBytes
+  val TimeIndexInterval = kafka.server.Defaults.LogTimeIndexIntervalBytes
   val FileDeleteDelayMs = kafka.server.Defaults.LogDeleteDelayMs
   val DeleteRetentionMs = kafka.server.Defaults.LogCleanerDeleteRetentionMs
   val MinCompactionLagMs = kafka.server.Defaults.LogCleanerMinCompactionLagMs
+  val MaxCompactionLagMs = kafka.server.Defaults.LogCleanerMaxCompactionLagMs
   val MinCleanableDirtyRatio = kafka.server.Defaults.LogCleanerMinCleanRatio
   val Compact = kafka.server.Defaults.LogCleanupPolicy
   val UncleanLeaderElectionEnable = kafka.server.Defaults.UncleanLeaderElectionEnable
@@ -72,11 +77,25 @@ case class LogConfig(props: java.util.Map[_, _]) extends AbstractConfig(LogConfi
   val flushMs = getLong(LogConfig.FlushMsProp)
   val retentionSize = getLong(LogConfig.RetentionBytesProp)
   val retentionMs = getLong(LogConfig.RetentionMsProp)
+  val remoteStorageEnable = getBoolean(LogConfig.RemoteStorageEnableProp)
+  val localRetentionMs = {
+    val localRetentionMs = getLong(LogConfig.LocalRetentionMsProp)
+    if (localRetentionMs == -2) retentionMs else localRetentionMs
+  }
+  val localRetentionBytes = {
+    val localRetentionBytes = getLong(LogConfig.LocalRetentionBytesProp)
+    if (localRetentionBytes == -2) retentionSize else localRetentionBytes
+  }
   val maxMessageSize = getInt(LogConfig.MaxMessageBytesProp)
   val indexInterval = getInt(LogConfig.IndexIntervalBytesProp)
+  val timeIndexInterval = {
+    val timeIndexInterval = getInt(LogConfig.TimeIndexIntervalBytesProp)
+    if (timeIndexInterval == -1) indexInterval else timeIndexInterval
+  }
   val fileDeleteDelayMs = getLong(LogConfig.FileDeleteDelayMsProp)
   val deleteRetentionMs = getLong(LogConfig.DeleteRetentionMsProp)
   val compactionLagMs = getLong(LogConfig.MinCompactionLagMsProp)
+  val maxCompactionLagMs = getLong(LogConfig.MaxCompactionLagMsProp)
   val minCleanableRatio = getDouble(LogConfig.MinCleanableDirtyRatioProp)
   val compact = getList(LogConfig.CleanupPolicyProp).asScala.map(_.toLowerCase(Locale.ROOT)).contains(LogConfig.Compact)
   val delete = getList(LogConfig.CleanupPolicyProp).asScala.map(_.toLowerCase(Locale.ROOT)).contains(LogConfig.Delete)
@@ -125,6 +144,17 @@ object LogConfig {
   val MessageTimestampTypeProp = TopicConfig.MESSAGE_TIMESTAMP_TYPE_CONFIG
   val MessageTimestampDifferenceMaxMsProp = TopicConfig.MESSAGE_TIMESTAMP_DIFFERENCE_MAX_MS_CONFIG
 
+  // Leave these out of TopicConfig for now as the remote tier is specific to this broker
+  val LocalRetentionMsProp = "local.retention.ms"
+  val LocalRetentionBytesProp = "local.retention.bytes"
+  val RemoteStorageEnableProp = "remote.storage.enable"
+
+  // Leave this out of TopicConfig for now as the separate time index interval is specific to this broker
+  val TimeIndexIntervalBytesProp = "time.index.interval.bytes"
+
+  // Leave this out of TopicConfig for now as the cleaner selection policies are specific to this broker
+  val MaxCompactionLagMsProp = "max.compaction.lag.ms"
+
   // Leave these out of TopicConfig for now as they are replication quota configs
   val LeaderReplicationThrottledReplicasProp = "leader.replication.throttled.replicas"
   val FollowerReplicationThrottledReplicasProp = "follower.replication.throttled.replicas"
@@ -152,6 +182,22 @@ object LogConfig {
   val MessageTimestampTypeDoc = TopicConfig.MESSAGE_TIMESTAMP_TYPE_DOC
   val MessageTimestampDifferenceMaxMsDoc = TopicConfig.MESSAGE_TIMESTAMP_DIFFERENCE_MAX_MS_DOC
 
+  val LocalRetentionMsDoc = "The number of milliseconds to keep a log segment on the local disk once it has been copied " +
+    "to the remote tier, if remote storage is enabled. -2 means the value of retention.ms is used."
+  val LocalRetentionBytesDoc = "The maximum size of the local part of the log, segments which have been copied to the " +
+    "remote tier are deleted from the local disk above this size, if remote storage is enabled. -2 means the value of " +
+    "retention.bytes is used."
+  val RemoteStorageEnableDoc = "Whether the closed segments of the log are copied to the remote tier, which then retains them " +
+    "according to retention.ms and retention.bytes while the local disk only keeps them according to local.retention.ms and " +
+    "local.retention.bytes. Fetches for offsets which are no longer on the local disk are served from the remote tier. Only " +
+    "applies to logs with the delete cleanup policy and requires the broker to have a remote storage manager."
+  val TimeIndexIntervalDoc = "This setting controls how frequently Kafka adds an entry to the time index, -1 means the " +
+    "value of index.interval.bytes. A smaller interval also adds offset index entries as often, so that timestamp " +
+    "lookups scan less of the log, but fills both indexes sooner, and a segment is rolled when an index is full."
+  val MaxCompactionLagMsDoc = "The maximum time a message will remain uncompacted in the log. A log whose oldest uncompacted " +
+    "segment has messages older than this is cleaned before the logs which are not overdue, even if its dirty ratio is below " +
+    "min.cleanable.dirty.ratio. Only applicable for logs that are being compacted."
+
   val LeaderReplicationThrottledReplicasDoc = "A list of replicas for which log replication should be throttled on " +
     "the leader side. The list should describe a set of replicas in the form " +
     "[PartitionId]:[BrokerId],[PartitionId]:[BrokerId]:... or alternatively the wildcard '*' can be used to throttle " +
@@ -223,14 +269,24 @@ object LogConfig {
       // can be negative. See kafka.log.LogManager.cleanupExpiredSegments
       .define(RetentionMsProp, LONG, Defaults.RetentionMs, MEDIUM, RetentionMsDoc,
         KafkaConfig.LogRetentionTimeMillisProp)
+      .define(LocalRetentionMsProp, LONG, Defaults.LocalRetentionMs, atLeast(-2), MEDIUM, LocalRetentionMsDoc,
+        KafkaConfig.LogLocalRetentionMsProp)
+      .define(LocalRetentionBytesProp, LONG, Defaults.LocalRetentionBytes, atLeast(-2), MEDIUM, LocalRetentionBytesDoc,
+        KafkaConfig.LogLocalRetentionBytesProp)
+      .define(RemoteStorageEnableProp, BOOLEAN, Defaults.RemoteStorageEnable, MEDIUM, RemoteStorageEnableDoc,
+        KafkaConfig.LogRemoteStorageEnableProp)
       .define(MaxMessageBytesProp, INT, Defaults.MaxMessageSize, atLeast(0), MEDIUM, MaxMessageSizeDoc,
         KafkaConfig.MessageMaxBytesProp)
       .define(IndexIntervalBytesProp, INT, Defaults.IndexInterval, atLeast(0), MEDIUM, IndexIntervalDoc,
         KafkaConfig.LogIndexIntervalBytesProp)
+      .define(TimeIndexIntervalBytesProp, INT, Defaults.TimeIndexInterval, atLeast(-1), LOW, TimeIndexIntervalDoc,
+        KafkaConfig.LogTimeIndexIntervalBytesProp)
       .define(DeleteRetentionMsProp, LONG, Defaults.DeleteRetentionMs, atLeast(0), MEDIUM,
         DeleteRetentionMsDoc, KafkaConfig.LogCleanerDeleteRetentionMsProp)
       .define(MinCompactionLagMsProp, LONG, Defaults.MinCompactionLagMs, atLeast(0), MEDIUM, MinCompactionLagMsDoc,
         KafkaConfig.LogCleanerMinCompactionLagMsProp)
+      .define(MaxCompactionLagMsProp, LONG, Defaults.MaxCompactionLagMs, atLeast(1), MEDIUM, MaxCompactionLagMsDoc,
+        KafkaConfig.LogCleanerMaxCompactionLagMsProp)
       .define(FileDeleteDelayMsProp, LONG, Defaults.FileDeleteDelayMs, atLeast(0), MEDIUM, FileDeleteDelayMsDoc,
         KafkaConfig.LogDeleteDelayMsProp)
       .define(MinCleanableDirtyRatioProp, DOUBLE, Defaults.MinCleanableDirtyRatio, between(0, 1), MEDIUM,
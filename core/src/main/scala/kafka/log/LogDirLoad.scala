@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+
+import kafka.utils.threadsafe
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.mutable
+
+object LogDirLoad {
+  /* place new logs in the log directory with the fewest logs */
+  val CountPolicy = "count"
+  /* place new logs in the log directory with the lowest load, see `LogDirLoad.dirScores` */
+  val LoadPolicy = "load"
+
+  /* the weight of the last sample in the write rate of a log */
+  private val WriteRateAlpha = 0.5
+}
+
+/**
+ * Tracks the size, the recent write throughput and the number of logs of each log directory.
+ *
+ * The load of a log directory is the sum of its shares of the bytes, of the write throughput and of the logs of all
+ * the log directories, so that a directory is not chosen for every new log while its size and throughput do not
+ * reflect the logs it just got. The write throughput of a log is sampled by `sample` and follows the log when it is
+ * moved to another directory.
+ */
+@threadsafe
+private[log] class LogDirLoad(logDirs: Seq[File], time: Time) {
+  import LogDirLoad._
+
+  private val lock = new Object
+  /* the following are guarded by lock */
+  private var lastSampleMs = time.milliseconds
+  private val lastBytesAppended = mutable.Map.empty[Log, Long]
+  private val writeRates = mutable.Map.empty[Log, Double]
+  private val dirSizes = mutable.Map.empty[File, Long] ++ logDirs.map(_ -> 0L)
+  private val dirWriteRates = mutable.Map.empty[File, Double] ++ logDirs.map(_ -> 0.0)
+
+  /**
+   * Sample the bytes appended to `logs` since the last sample and the size of the log directories.
+   */
+  def sample(logs: Iterable[Log]): Unit = lock synchronized {
+    val now = time.milliseconds
+    val elapsedSecs = (now - lastSampleMs) / 1000.0
+    lastSampleMs = now
+    val sampled = logs.toSet
+    lastBytesAppended.retain((log, _) => sampled.contains(log))
+    writeRates.retain((log, _) => sampled.contains(log))
+
+    val sizes = mutable.Map.empty[File, Long] ++ logDirs.map(_ -> 0L)
+    for (log <- logs) {
+      val bytesAppended = log.bytesAppended
+      val previous = lastBytesAppended.getOrElse(log, bytesAppended)
+      lastBytesAppended.put(log, bytesAppended)
+      if (elapsedSecs > 0) {
+        val rate = (bytesAppended - previous) / elapsedSecs
+        writeRates.put(log, writeRates.get(log).map(WriteRateAlpha * rate + (1 - WriteRateAlpha) * _).getOrElse(rate))
+      }
+      val dir = log.dir.getParentFile
+      sizes.put(dir, sizes.getOrElse(dir, 0L) + log.size)
+    }
+    dirSizes.clear()
+    dirSizes ++= sizes
+    dirWriteRates.clear()
+    dirWriteRates ++= logDirs.map(_ -> 0.0)
+    for ((log, rate) <- writeRates) {
+      val dir = log.dir.getParentFile
+      dirWriteRates.put(dir, dirWriteRates.getOrElse(dir, 0.0) + rate)
+    }
+  }
+
+  /** The size in bytes of the logs of `dir` at the last sample */
+  def size(dir: File): Long = lock synchronized dirSizes.getOrElse(dir, 0L)
+
+  /** The bytes appended per second to the logs of `dir` at the last sample */
+  def writeRate(dir: File): Double = lock synchronized dirWriteRates.getOrElse(dir, 0.0)
+
+  /** The bytes appended per second to `log` at the last sample */
+  def writeRate(log: Log): Double = lock synchronized writeRates.getOrElse(log, 0.0)
+
+  /**
+   * The load of each log directory, given the logs which are currently in them.
+   */
+  def dirScores(logs: Iterable[Log]): Map[File, Double] = lock synchronized {
+    val counts = logs.groupBy(_.dir.getParentFile).mapValues(_.size)
+    val totalSize = dirSizes.values.sum.toDouble
+    val totalWriteRate = dirWriteRates.values.sum
+    val totalCount = logs.size.toDouble
+    logDirs.map { dir =>
+      val size = dirSizes.getOrElse(dir, 0L).toDouble
+      val writeRate = dirWriteRates.getOrElse(dir, 0.0)
+      val count = counts.getOrElse(dir, 0).toDouble
+      dir -> (share(size, totalSize) + share(writeRate, totalWriteRate) + share(count, totalCount))
+    }.toMap
+  }
+
+  /**
+   * The part of the load of its log directory which is due to `log`, as of the last sample.
+   */
+  def logScore(log: Log, logs: Iterable[Log]): Double = lock synchronized {
+    share(log.size, dirSizes.values.sum) + share(writeRates.getOrElse(log, 0.0), dirWriteRates.values.sum) +
+      share(1, logs.size)
+  }
+
+  private def share(value: Double, total: Double): Double = if (total <= 0) 0.0 else value / total
+}
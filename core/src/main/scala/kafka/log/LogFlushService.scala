@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{ShutdownableThread, threadsafe}
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+object LogFlushService {
+  private val PollIntervalMs = 100L
+
+  private class PendingFlush(var offset: Long, val requestTimeNs: Long)
+}
+
+/**
+ * Flushes the logs of a log directory on a dedicated thread, so that the threads which trigger flushes (the request
+ * handlers appending to a log, the log flusher task and log rolls) do not wait for the fsyncs.
+ *
+ * Requests to flush the same log are coalesced: if a log is flushed up to several offsets before the thread gets to
+ * it, it is flushed once up to the highest of them. The thread flushes all the logs with pending requests in one pass,
+ * in the order in which they were first requested.
+ */
+@threadsafe
+class LogFlushService(name: String, val logDir: File, time: Time)
+  extends ShutdownableThread(name, isInterruptible = false) with KafkaMetricsGroup {
+  import LogFlushService._
+
+  private val pendingLock = new Object
+  /* pending flushes by log, in the order in which they were requested, guarded by pendingLock */
+  private val pending = new java.util.LinkedHashMap[Log, PendingFlush]
+
+  private val tags = Map("logDirectory" -> logDir.getAbsolutePath)
+
+  newGauge("FlushQueueSize",
+    new Gauge[Int] {
+      def value = pendingLock synchronized pending.size
+    },
+    tags)
+
+  private val flushLatencyHist = newHistogram("FlushLatencyMs", biased = true, tags)
+  private val flushBatchSizeHist = newHistogram("FlushBatchSize", biased = true, tags)
+
+  /**
+   * Request `log` to be flushed up to `offset` (exclusive), without waiting for the flush.
+   */
+  def requestFlush(log: Log, offset: Long): Unit = {
+    pendingLock synchronized {
+      val existing = pending.get(log)
+      if (existing == null) {
+        pending.put(log, new PendingFlush(offset, time.nanoseconds))
+        pendingLock.notify()
+      } else if (offset > existing.offset)
+        existing.offset = offset
+    }
+  }
+
+  /**
+   * Drop the pending flush of a log which is being deleted.
+   */
+  def cancel(log: Log): Unit = pendingLock synchronized pending.remove(log)
+
+  def pendingFlushes: Int = pendingLock synchronized pending.size
+
+  override def doWork(): Unit = {
+    val batch = pendingLock synchronized {
+      if (pending.isEmpty)
+        pendingLock.wait(PollIntervalMs)
+      val requested = mutable.ArrayBuffer.empty[(Log, PendingFlush)]
+      pending.asScala.foreach(requested += _)
+      pending.clear()
+      requested
+    }
+
+    if (batch.nonEmpty) {
+      flushBatchSizeHist.update(batch.size)
+      for ((log, request) <- batch) {
+        try {
+          log.flush(request.offset)
+        } catch {
+          case e: Throwable => error(s"Error flushing log ${log.name} up to offset ${request.offset}", e)
+        }
+        flushLatencyHist.update(TimeUnit.NANOSECONDS.toMillis(time.nanoseconds - request.requestTimeNs))
+      }
+    }
+  }
+
+  override def initiateShutdown(): Boolean = {
+    val justShutdown = super.initiateShutdown()
+    pendingLock synchronized pendingLock.notify()
+    justShutdown
+  }
+
+  override def shutdown(): Unit = {
+    // a thread which was never started would never count down the shutdown latch
+    if (getState == Thread.State.NEW)
+      initiateShutdown()
+    else
+      super.shutdown()
+    removeMetric("FlushQueueSize", tags)
+    removeMetric("FlushLatencyMs", tags)
+    removeMetric("FlushBatchSize", tags)
+  }
+}
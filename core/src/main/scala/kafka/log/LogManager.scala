@@ -21,13 +21,16 @@ import java.io._
 import java.nio.file.Files
 import java.util.concurrent._
 
+import com.yammer.metrics.core.Gauge
 import kafka.admin.AdminUtils
 import kafka.common.{KafkaException, KafkaStorageException}
+import kafka.log.remote.{RemoteLogManager, RemoteStorageManager}
+import kafka.metrics.KafkaMetricsGroup
 import kafka.server.checkpoints.OffsetCheckpointFile
 import kafka.server.{BrokerState, RecoveringFromUncleanShutdown, _}
 import kafka.utils._
 import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{KafkaThread, Time, Utils}
 
 import scala.collection.JavaConverters._
 import scala.collection._
@@ -37,8 +40,10 @@ import scala.collection._
  * All read and write operations are delegated to the individual log instances.
  * 
  * The log manager maintains logs in one or more directories. New logs are created in the data directory
- * with the fewest logs. No attempt is made to move partitions after the fact or balance based on
- * size or I/O rate.
+ * with the fewest logs, or with `logDirPlacementPolicy = load` in the data directory with the lowest load given its
+ * size, recent write throughput and number of logs. A log can be moved to another data directory in the background
+ * while it is in use with `moveLog`, and with `logDirBalanceEnable` a log of the most loaded directory is moved to the
+ * least loaded one when their loads differ by more than `logDirBalanceThreshold`.
  * 
  * A background thread handles log retention by periodically truncating excess log segments.
  */
@@ -48,19 +53,31 @@ class LogManager(val logDirs: Array[File],
                  val defaultConfig: LogConfig,
                  val cleanerConfig: CleanerConfig,
                  ioThreads: Int,
+                 segmentRecoveryThreads: Int,
                  val flushCheckMs: Long,
+                 val asyncFlushEnable: Boolean,
                  val flushRecoveryOffsetCheckpointMs: Long,
                  val flushStartOffsetCheckpointMs: Long,
                  val retentionCheckMs: Long,
                  val maxPidExpirationMs: Int,
+                 val maxIndexMmaps: Int,
+                 val logDirPlacementPolicy: String,
+                 val logDirBalanceEnable: Boolean,
+                 val logDirBalanceThreshold: Double,
+                 readAhead: LogReadAhead,
+                 val remoteLogManager: Option[RemoteLogManager],
+                 segmentPreCreator: Option[LogSegmentPreCreator],
                  scheduler: Scheduler,
                  val brokerState: BrokerState,
                  brokerTopicStats: BrokerTopicStats,
-                 time: Time) extends Logging {
+                 time: Time) extends Logging with KafkaMetricsGroup {
   val RecoveryPointCheckpointFile = "recovery-point-offset-checkpoint"
   val LogStartOffsetCheckpointFile = "log-start-offset-checkpoint"
   val LockFile = ".lock"
   val InitialTaskDelayMs = 30*1000
+  val IndexMmapCheckIntervalMs = 30*1000
+  val LogDirLoadSampleIntervalMs = 30*1000
+  val LogDirBalanceIntervalMs = 5*60*1000
 
   private val logCreationOrDeletionLock = new Object
   private val logs = new Pool[TopicPartition, Log]()
@@ -70,8 +87,74 @@ class LogManager(val logDirs: Array[File],
   private val dirLocks = lockLogDirs(logDirs)
   private val recoveryPointCheckpoints = logDirs.map(dir => (dir, new OffsetCheckpointFile(new File(dir, RecoveryPointCheckpointFile)))).toMap
   private val logStartOffsetCheckpoints = logDirs.map(dir => (dir, new OffsetCheckpointFile(new File(dir, LogStartOffsetCheckpointFile)))).toMap
+  private val flushServices: Map[File, LogFlushService] =
+    if (asyncFlushEnable) {
+      logDirs.zipWithIndex.map { case (dir, i) =>
+        val flushService = new LogFlushService(s"kafka-log-flush-thread-$i", dir, time)
+        flushService.start()
+        dir -> flushService
+      }.toMap
+    } else Map.empty
+  segmentPreCreator.foreach(_.start())
+  private val logDirLoad = new LogDirLoad(logDirs, time)
+  /* the logs being moved to another log directory, by partition */
+  private val logMoves = new ConcurrentHashMap[TopicPartition, LogMove]
+  private val logMover = Executors.newSingleThreadExecutor(new ThreadFactory {
+    def newThread(runnable: Runnable): Thread = new KafkaThread("kafka-log-mover", runnable, true)
+  })
+  @volatile private var logsLoadTimeMs = 0L
+  private val recoveryProgress = new LogRecoveryProgress(time)
+
+  newGauge("RemainingLogsToLoad",
+    new Gauge[Int] {
+      def value = recoveryProgress.remainingLogs
+    })
+
+  newGauge("RemainingSegmentsToRecover",
+    new Gauge[Int] {
+      def value = recoveryProgress.remainingSegments
+    })
+
   loadLogs()
 
+  newGauge("LogsLoadTimeMs",
+    new Gauge[Long] {
+      def value = logsLoadTimeMs
+    })
+
+  newGauge("MappedIndexCount",
+    new Gauge[Int] {
+      def value = allIndexes.count(_.isMapped)
+    })
+
+  private val indexMmapReleaseRate = newMeter("IndexMmapReleasesPerSec", "releases", TimeUnit.SECONDS)
+
+  newGauge("LogMovesInProgress",
+    new Gauge[Int] {
+      def value = logMoves.size
+    })
+
+  private val logMoveRate = newMeter("LogMovesPerSec", "moves", TimeUnit.SECONDS)
+
+  for (dir <- logDirs) {
+    val tags = Map("logDirectory" -> dir.getAbsolutePath)
+    newGauge("LogDirSizeBytes",
+      new Gauge[Long] {
+        def value = logDirLoad.size(dir)
+      },
+      tags)
+    newGauge("LogDirWriteBytesPerSec",
+      new Gauge[Long] {
+        def value = logDirLoad.writeRate(dir).toLong
+      },
+      tags)
+    newGauge("LogDirPartitionCount",
+      new Gauge[Int] {
+        def value = allLogs.count(_.dir.getParentFile == dir)
+      },
+      tags)
+  }
+
   // public, so we can access this from kafka.admin.DeleteTopicTest
   val cleaner: LogCleaner =
     if(cleanerConfig.enableCleaner)
@@ -121,6 +204,7 @@ class LogManager(val logDirs: Array[File],
   private def loadLogs(): Unit = {
     info("Loading logs.")
     val startMs = time.milliseconds
+    completeOrAbandonLogMoves()
     val threadPools = mutable.ArrayBuffer.empty[ExecutorService]
     val jobs = mutable.Map.empty[File, Seq[Future[_]]]
 
@@ -139,6 +223,13 @@ class LogManager(val logDirs: Array[File],
         // log recovery itself is being performed by `Log` class during initialization
         brokerState.newState(RecoveringFromUncleanShutdown)
       }
+      val recovering = !cleanShutdownFile.exists
+      val segmentRecoveryPool =
+        if (recovering && segmentRecoveryThreads > 1) {
+          val pool = Executors.newFixedThreadPool(segmentRecoveryThreads)
+          threadPools.append(pool)
+          Some(pool)
+        } else None
 
       var recoveryPoints = Map[TopicPartition, Long]()
       try {
@@ -177,7 +268,18 @@ class LogManager(val logDirs: Array[File],
             maxProducerIdExpirationMs = maxPidExpirationMs,
             scheduler = scheduler,
             time = time,
-            brokerTopicStats = brokerTopicStats)
+            brokerTopicStats = brokerTopicStats,
+            segmentRecoveryPool = segmentRecoveryPool,
+            flushService = flushServices.get(dir),
+            readAhead = Some(readAhead),
+            remoteLogManager = remoteLogManager,
+            segmentPreCreator = segmentPreCreator,
+            recoveryProgress = Some(recoveryProgress))
+          recoveryProgress.logLoaded()
+          if (recovering)
+            info(s"Loaded log $topicPartition, ${recoveryProgress.remainingLogs} logs remain to be loaded and " +
+              s"${recoveryProgress.remainingSegments} segments to be recovered" +
+              recoveryProgress.estimatedRemainingMs.map(ms => s" (estimated time remaining: $ms ms)").getOrElse("") + ".")
           if (logDir.getName.endsWith(Log.DeleteDirSuffix)) {
             this.logsToBeDeleted.add(current)
           } else {
@@ -191,6 +293,7 @@ class LogManager(val logDirs: Array[File],
         }
       }
 
+      recoveryProgress.logsToLoad(jobsForDir.size)
       jobs(cleanShutdownFile) = jobsForDir.map(pool.submit)
     }
 
@@ -209,7 +312,29 @@ class LogManager(val logDirs: Array[File],
       threadPools.foreach(_.shutdown())
     }
 
-    info(s"Logs loading complete in ${time.milliseconds - startMs} ms.")
+    logsLoadTimeMs = time.milliseconds - startMs
+    info(s"Logs loading complete in $logsLoadTimeMs ms.")
+  }
+
+  /**
+   * Delete the future directories of the logs which were being moved when the broker stopped, unless the current
+   * directory of the log was already renamed for deletion, in which case the move is completed.
+   */
+  private def completeOrAbandonLogMoves(): Unit = {
+    val dirs = logDirs.flatMap(dir => Option(dir.listFiles).toSeq.flatten).filter(_.isDirectory)
+    val logNames = dirs.map(_.getName).toSet
+    for (futureDir <- dirs if futureDir.getName.endsWith(Log.FutureDirSuffix)) {
+      val logName = futureDir.getName.substring(0, futureDir.getName.lastIndexOf('.'))
+      if (logNames.contains(logName)) {
+        info(s"Deleting ${futureDir.getAbsolutePath} of an incomplete move of log $logName")
+        Utils.delete(futureDir)
+      } else {
+        val logDir = new File(futureDir.getParentFile, logName)
+        info(s"Completing the move of log $logName to ${futureDir.getParent}")
+        if (!futureDir.renameTo(logDir))
+          throw new KafkaStorageException(s"Failed to rename log directory $futureDir to $logDir")
+      }
+    }
   }
 
   /**
@@ -245,6 +370,27 @@ class LogManager(val logDirs: Array[File],
                          delay = InitialTaskDelayMs,
                          period = defaultConfig.fileDeleteDelayMs,
                          TimeUnit.MILLISECONDS)
+      scheduler.schedule("kafka-log-dir-load",
+                         sampleLogDirLoad _,
+                         delay = LogDirLoadSampleIntervalMs,
+                         period = LogDirLoadSampleIntervalMs,
+                         TimeUnit.MILLISECONDS)
+      if (logDirBalanceEnable && logDirs.size > 1) {
+        info(s"Starting log directory balancing with a threshold of $logDirBalanceThreshold.")
+        scheduler.schedule("kafka-log-dir-balance",
+                           balanceLogDirs _,
+                           delay = LogDirBalanceIntervalMs,
+                           period = LogDirBalanceIntervalMs,
+                           TimeUnit.MILLISECONDS)
+      }
+      if (maxIndexMmaps > 0) {
+        info(s"Starting index mmap release with at most $maxIndexMmaps mapped indexes.")
+        scheduler.schedule("kafka-index-mmap-release",
+                           releaseIndexMmaps _,
+                           delay = InitialTaskDelayMs,
+                           period = IndexMmapCheckIntervalMs,
+                           TimeUnit.MILLISECONDS)
+      }
     }
     if(cleanerConfig.enableCleaner)
       cleaner.startup()
@@ -256,6 +402,25 @@ class LogManager(val logDirs: Array[File],
   def shutdown() {
     info("Shutting down.")
 
+    removeMetric("LogsLoadTimeMs")
+    removeMetric("RemainingLogsToLoad")
+    removeMetric("RemainingSegmentsToRecover")
+    removeMetric("MappedIndexCount")
+    removeMetric("IndexMmapReleasesPerSec")
+    removeMetric("LogMovesInProgress")
+    removeMetric("LogMovesPerSec")
+    for (dir <- logDirs) {
+      val tags = Map("logDirectory" -> dir.getAbsolutePath)
+      removeMetric("LogDirSizeBytes", tags)
+      removeMetric("LogDirWriteBytesPerSec", tags)
+      removeMetric("LogDirPartitionCount", tags)
+    }
+
+    // abandon the moves in progress before the logs are closed
+    logMoves.values.asScala.foreach(_.aborted = true)
+    logMover.shutdown()
+    logMover.awaitTermination(30, TimeUnit.SECONDS)
+
     val threadPools = mutable.ArrayBuffer.empty[ExecutorService]
     val jobs = mutable.Map.empty[File, Seq[Future[_]]]
 
@@ -264,6 +429,12 @@ class LogManager(val logDirs: Array[File],
       CoreUtils.swallow(cleaner.shutdown())
     }
 
+    // pending flushes are dropped, all the logs are flushed below
+    flushServices.values.foreach(flushService => CoreUtils.swallow(flushService.shutdown()))
+    segmentPreCreator.foreach(preCreator => CoreUtils.swallow(preCreator.shutdown()))
+    CoreUtils.swallow(readAhead.close())
+    remoteLogManager.foreach(remote => CoreUtils.swallow(remote.close()))
+
     // close logs in each dir
     for (dir <- this.logDirs) {
       debug("Flushing and closing logs at " + dir)
@@ -313,6 +484,30 @@ class LogManager(val logDirs: Array[File],
     info("Shutdown complete.")
   }
 
+  private def allIndexes: Iterable[AbstractIndex[_, _]] =
+    allLogs.flatMap(_.logSegments.flatMap(_.uncheckedIndexes))
+
+  /**
+   * Release the memory mappings of the indexes of inactive segments if more than `maxIndexMmaps` indexes are
+   * mapped. This approximates an LRU: indexes which have not been accessed since the previous run are released
+   * first, followed by the indexes of the oldest segments. The mapping of an index which a lookup is using is not
+   * released, it is released by a later run if it is still in excess then.
+   */
+  private[log] def releaseIndexMmaps(): Unit = {
+    val mapped = allLogs.flatMap { log =>
+      val activeSegment = log.activeSegment
+      log.logSegments.filterNot(_ eq activeSegment).flatMap(_.uncheckedIndexes)
+    }.filter(_.isMapped).toBuffer
+    val excess = mapped.size - maxIndexMmaps
+    if (excess > 0) {
+      val (idle, recentlyUsed) = mapped.partition(!_.wasAccessed)
+      val released = (idle ++ recentlyUsed).take(excess).count(_.releaseMmap())
+      indexMmapReleaseRate.mark(released)
+      debug(s"Released the memory mappings of $released indexes out of $excess in excess, ${idle.size} indexes were idle")
+    }
+    mapped.foreach(_.clearAccessed())
+  }
+
   /**
    * Truncate the partition logs to the specified offsets and checkpoint the recovery point to this offset
    *
@@ -419,7 +614,11 @@ class LogManager(val logDirs: Array[File],
           maxProducerIdExpirationMs = maxPidExpirationMs,
           scheduler = scheduler,
           time = time,
-          brokerTopicStats = brokerTopicStats)
+          brokerTopicStats = brokerTopicStats,
+          flushService = flushServices.get(dataDir),
+          readAhead = Some(readAhead),
+          remoteLogManager = remoteLogManager,
+          segmentPreCreator = segmentPreCreator)
         logs.put(topicPartition, log)
         info("Created log for partition [%s,%d] in %s with properties {%s}."
           .format(topicPartition.topic,
@@ -467,12 +666,15 @@ class LogManager(val logDirs: Array[File],
       logs.remove(topicPartition)
     }
     if (removedLog != null) {
+      abortLogMove(topicPartition)
       //We need to wait until there is no more cleaning task on the log to be deleted before actually deleting it.
       if (cleaner != null) {
         cleaner.abortCleaning(topicPartition)
         cleaner.updateCheckpoints(removedLog.dir.getParentFile)
       }
       val dirName = Log.logDeleteDirName(removedLog.name)
+      flushServices.get(removedLog.dir.getParentFile).foreach(_.cancel(removedLog))
+      remoteLogManager.foreach(_.removePartition(topicPartition))
       removedLog.close()
       val renamedDir = new File(removedLog.dir.getParent, dirName)
       val renameSuccessful = removedLog.dir.renameTo(renamedDir)
@@ -482,7 +684,7 @@ class LogManager(val logDirs: Array[File],
         // change the file pointers for log and index file
         for (logSegment <- removedLog.logSegments) {
           logSegment.log.setFile(new File(renamedDir, logSegment.log.file.getName))
-          logSegment.index.file = new File(renamedDir, logSegment.index.file.getName)
+          logSegment.uncheckedIndexes.foreach(index => index.file = new File(renamedDir, index.file.getName))
         }
 
         logsToBeDeleted.add(removedLog)
@@ -495,13 +697,111 @@ class LogManager(val logDirs: Array[File],
   }
 
   /**
-   * Choose the next directory in which to create a log. Currently this is done
+   * Move the log of a partition to another log directory in the background, see `Log.moveTo`. The log keeps being
+   * appended to and read while it is moved, but it is not cleaned. Returns false if the partition has no log, if its
+   * log is already in `destDir` or already being moved, or if `destDir` is not a log directory of this broker.
+   */
+  def moveLog(topicPartition: TopicPartition, destDir: File): Boolean = {
+    getLog(topicPartition) match {
+      case Some(log) if logDirs.contains(destDir) && log.dir.getParentFile != destDir =>
+        val move = new LogMove(destDir)
+        if (logMoves.putIfAbsent(topicPartition, move) == null) {
+          logMover.submit(CoreUtils.runnable(runLogMove(topicPartition, log, move)))
+          true
+        } else false
+      case _ => false
+    }
+  }
+
+  /**
+   * Whether the log of the partition is being moved to another log directory
+   */
+  def isLogMoving(topicPartition: TopicPartition): Boolean = logMoves.containsKey(topicPartition)
+
+  private def runLogMove(topicPartition: TopicPartition, log: Log, move: LogMove): Unit = move synchronized {
+    try {
+      if (!move.aborted) {
+        if (cleaner != null)
+          cleaner.abortAndPauseCleaning(topicPartition)
+        try {
+          val sourceDir = log.dir.getParentFile
+          if (log.moveTo(move.destDir, flushServices.get(move.destDir), () => move.aborted)) {
+            for (dir <- Seq(sourceDir, move.destDir)) {
+              checkpointLogRecoveryOffsetsInDir(dir)
+              checkpointLogStartOffsetsInDir(dir)
+            }
+            // the cleaning is paused, so the checkpointed offset does not change while it is moved
+            if (cleaner != null)
+              cleaner.moveCheckpoint(topicPartition, sourceDir, move.destDir)
+            logMoveRate.mark()
+          }
+        } finally {
+          if (cleaner != null)
+            cleaner.resumeCleaning(topicPartition)
+        }
+      }
+    } catch {
+      case e: KafkaStorageException =>
+        fatal(s"Halting due to unrecoverable I/O error while moving log ${log.name} to ${move.destDir}", e)
+        Exit.halt(1)
+      case e: Throwable =>
+        error(s"Failed to move log ${log.name} to ${move.destDir}", e)
+    } finally {
+      logMoves.remove(topicPartition)
+    }
+  }
+
+  /* abandon the move of the log of a partition if it is being moved, and wait for the move to stop */
+  private def abortLogMove(topicPartition: TopicPartition): Unit = {
+    val move = logMoves.get(topicPartition)
+    if (move != null) {
+      move.aborted = true
+      move synchronized {}
+    }
+  }
+
+  /**
+   * Sample the size and write throughput of the log directories
+   */
+  private[log] def sampleLogDirLoad(): Unit = logDirLoad.sample(allLogs)
+
+  /**
+   * Move a log from the most loaded log directory to the least loaded one if their loads differ by more than
+   * `logDirBalanceThreshold`, choosing the log whose move brings their loads closest. Only one log is moved at a time.
+   */
+  private[log] def balanceLogDirs(): Unit = {
+    if (logDirs.size > 1 && logMoves.isEmpty) {
+      val logs = allLogs.toSeq
+      val scores = logDirLoad.dirScores(logs)
+      val (hottest, hottestScore) = scores.maxBy(_._2)
+      val (coolest, coolestScore) = scores.minBy(_._2)
+      val difference = hottestScore - coolestScore
+      if (difference > logDirBalanceThreshold) {
+        val candidates = logs.filter(_.dir.getParentFile == hottest).map { log =>
+          log -> math.abs(difference - 2 * logDirLoad.logScore(log, logs))
+        }
+        if (candidates.nonEmpty) {
+          val (log, differenceAfterMove) = candidates.minBy(_._2)
+          if (differenceAfterMove < difference) {
+            info(s"Moving log ${log.name} from $hottest with load $hottestScore to $coolest with load $coolestScore")
+            moveLog(log.topicPartition, coolest)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Choose the next directory in which to create a log. With the count policy this is done
    * by calculating the number of partitions in each directory and then choosing the
-   * data directory with the fewest partitions.
+   * data directory with the fewest partitions. With the load policy the directory with the
+   * lowest load is chosen, see `LogDirLoad`.
    */
   private def nextLogDir(): File = {
     if(logDirs.size == 1) {
       logDirs(0)
+    } else if (logDirPlacementPolicy == LogDirLoad.LoadPolicy) {
+      logDirLoad.dirScores(allLogs).minBy(_._2)._1
     } else {
       // count the number of logs in each parent directory (including 0 for empty directories
       val logCounts = allLogs.groupBy(_.dir.getParent).mapValues(_.size)
@@ -560,8 +860,12 @@ class LogManager(val logDirs: Array[File],
         val timeSinceLastFlush = time.milliseconds - log.lastFlushTime
         debug("Checking if flush is needed on " + topicPartition.topic + " flush interval  " + log.config.flushMs +
               " last flushed " + log.lastFlushTime + " time since last flush: " + timeSinceLastFlush)
-        if(timeSinceLastFlush >= log.config.flushMs)
-          log.flush
+        if(timeSinceLastFlush >= log.config.flushMs) {
+          flushServices.get(log.dir.getParentFile) match {
+            case Some(flushService) => flushService.requestFlush(log, log.logEndOffset)
+            case None => log.flush
+          }
+        }
       } catch {
         case e: Throwable =>
           error("Error flushing topic " + topicPartition.topic, e)
@@ -570,6 +874,13 @@ class LogManager(val logDirs: Array[File],
   }
 }
 
+/**
+ * A move of a log to `destDir`, abandoned once `aborted` is set
+ */
+private class LogMove(val destDir: File) {
+  @volatile var aborted = false
+}
+
 object LogManager {
   def apply(config: KafkaConfig,
             zkUtils: ZkUtils,
@@ -578,13 +889,27 @@ object LogManager {
             time: Time,
             brokerTopicStats: BrokerTopicStats): LogManager = {
     val defaultProps = KafkaServer.copyKafkaConfigToLog(config)
-    val defaultLogConfig = LogConfig(defaultProps)
-
+    // read the log configurations from zookeeper
     val topicConfigs = AdminUtils.fetchAllTopicConfigs(zkUtils).map { case (topic, configs) =>
       topic -> LogConfig.fromProps(defaultProps, configs)
     }
+    apply(config, topicConfigs, brokerState, kafkaScheduler, time, brokerTopicStats)
+  }
+
+  /**
+   * A log manager with the given topic configs rather than the ones stored in ZooKeeper.
+   */
+  def apply(config: KafkaConfig,
+            topicConfigs: Map[String, LogConfig],
+            brokerState: BrokerState,
+            kafkaScheduler: KafkaScheduler,
+            time: Time,
+            brokerTopicStats: BrokerTopicStats): LogManager = {
+    val defaultLogConfig = LogConfig(KafkaServer.copyKafkaConfigToLog(config))
+
+    val selectionPolicy = CoreUtils.createObject[LogCleanerSelectionPolicy](config.logCleanerSelectionPolicyClass)
+    selectionPolicy.configure(config.originals)
 
-    // read the log configurations from zookeeper
     val cleanerConfig = CleanerConfig(numThreads = config.logCleanerThreads,
       dedupeBufferSize = config.logCleanerDedupeBufferSize,
       dedupeBufferLoadFactor = config.logCleanerDedupeBufferLoadFactor,
@@ -592,18 +917,43 @@ object LogManager {
       maxMessageSize = config.messageMaxBytes,
       maxIoBytesPerSecond = config.logCleanerIoMaxBytesPerSecond,
       backOffMs = config.logCleanerBackoffMs,
-      enableCleaner = config.logCleanerEnable)
+      enableCleaner = config.logCleanerEnable,
+      hashAlgorithm = config.logCleanerHashAlgorithm,
+      copyThreads = config.logCleanerCopyThreads,
+      incrementalCleaning = config.logCleanerIncrementalEnable,
+      selectionPolicy = selectionPolicy)
+
+    val pageCacheAdvisor = CoreUtils.createObject[PageCacheAdvisor](config.logPageCacheAdvisorClass)
+    pageCacheAdvisor.configure(config.originals)
+
+    val remoteLogManager = config.remoteLogStorageManagerClass.map { storageManagerClass =>
+      val storageManager = CoreUtils.createObject[RemoteStorageManager](storageManagerClass)
+      storageManager.configure(config.originals)
+      val cacheDir = config.remoteLogCacheDir.map(new File(_))
+        .getOrElse(Files.createTempDirectory("kafka-remote-log-cache").toFile)
+      new RemoteLogManager(storageManager, cacheDir, config.remoteLogCacheBytes, time, config.remoteLogFetchThreads)
+    }
 
     new LogManager(logDirs = config.logDirs.map(new File(_)).toArray,
       topicConfigs = topicConfigs,
       defaultConfig = defaultLogConfig,
       cleanerConfig = cleanerConfig,
       ioThreads = config.numRecoveryThreadsPerDataDir,
+      segmentRecoveryThreads = config.numSegmentRecoveryThreadsPerDataDir,
       flushCheckMs = config.logFlushSchedulerIntervalMs,
+      asyncFlushEnable = config.logFlushAsyncEnable,
       flushRecoveryOffsetCheckpointMs = config.logFlushOffsetCheckpointIntervalMs,
       flushStartOffsetCheckpointMs = config.logFlushStartOffsetCheckpointIntervalMs,
       retentionCheckMs = config.logCleanupIntervalMs,
       maxPidExpirationMs = config.transactionIdExpirationMs,
+      maxIndexMmaps = config.logIndexMaxMmaps,
+      logDirPlacementPolicy = config.logDirPlacementPolicy,
+      logDirBalanceEnable = config.logDirBalanceEnable,
+      logDirBalanceThreshold = config.logDirBalanceThreshold,
+      readAhead = new LogReadAhead(config.logReadAheadBytes, pageCacheAdvisor),
+      remoteLogManager = remoteLogManager,
+      segmentPreCreator =
+        if (config.logSegmentPreCreateEnable) Some(new LogSegmentPreCreator(time)) else None,
       scheduler = kafkaScheduler,
       brokerState = brokerState,
       time = time,
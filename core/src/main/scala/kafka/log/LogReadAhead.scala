@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.{ArrayBlockingQueue, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{CoreUtils, Logging, threadsafe}
+import org.apache.kafka.common.utils.KafkaThread
+
+import scala.collection.mutable
+
+object LogReadAhead {
+  /* the number of sequential readers of a segment which are tracked, the least recently used is forgotten first */
+  private[log] val MaxStreamsPerSegment = 8
+  /* hints given while this many are waiting for the advisor thread are discarded */
+  private val MaxPendingHints = 256
+}
+
+/**
+ * A hint to read ahead (`willNeed`) or drop from the page cache (`willNeed = false`) a range of a segment.
+ */
+private[log] case class PageCacheHint(willNeed: Boolean, position: Int, length: Int)
+
+/**
+ * The sequential reads of a segment. Fetch requests do not identify the reader at this level, so a read is taken to be
+ * the continuation of an earlier read if it starts within the range returned by that read: the next fetch of a reader
+ * starts after the last complete batch it received, which is at or before the end of the range it was sent.
+ */
+@threadsafe
+private[log] class SegmentReadStreams {
+  import LogReadAhead._
+
+  private class Stream(var lastReadStart: Int,
+                       var nextPosition: Int,
+                       var readAheadEnd: Int,
+                       var droppedUpTo: Int,
+                       var lastRead: Long)
+
+  private val streams = mutable.ArrayBuffer.empty[Stream]
+  private var reads = 0L
+
+  /**
+   * Record a read of `size` bytes at `position` of a segment of `segmentSize` bytes and return the hints it triggers.
+   * Once a read continues a stream, the `readAheadBytes` following it are read ahead, again whenever less than half of
+   * them remain ahead of the reader, and the range which the stream has moved past is dropped in chunks of the same size.
+   */
+  def onRead(position: Int, size: Int, segmentSize: Int, readAheadBytes: Int): Seq[PageCacheHint] = synchronized {
+    reads += 1
+    val end = position + size
+    streams.find(stream => position >= stream.lastReadStart && position <= stream.nextPosition) match {
+      case Some(stream) =>
+        stream.lastRead = reads
+        stream.lastReadStart = position
+        stream.nextPosition = math.max(stream.nextPosition, end)
+        val hints = mutable.ArrayBuffer.empty[PageCacheHint]
+        // everything before the start of this read was returned by earlier reads of the stream
+        if (position - stream.droppedUpTo >= readAheadBytes) {
+          hints += PageCacheHint(willNeed = false, stream.droppedUpTo, position - stream.droppedUpTo)
+          stream.droppedUpTo = position
+        }
+        if (stream.readAheadEnd < segmentSize && stream.readAheadEnd - stream.nextPosition < readAheadBytes / 2) {
+          val readAheadStart = math.max(stream.readAheadEnd, stream.nextPosition)
+          val readAheadEnd = math.min(segmentSize.toLong, stream.nextPosition.toLong + readAheadBytes).toInt
+          if (readAheadEnd > readAheadStart) {
+            hints += PageCacheHint(willNeed = true, readAheadStart, readAheadEnd - readAheadStart)
+            stream.readAheadEnd = readAheadEnd
+          }
+        }
+        hints
+      case None =>
+        val stream = new Stream(lastReadStart = position, nextPosition = end, readAheadEnd = end, droppedUpTo = position,
+          lastRead = reads)
+        if (streams.size < MaxStreamsPerSegment)
+          streams += stream
+        else
+          streams(streams.indexOf(streams.minBy(_.lastRead))) = stream
+        Seq.empty
+    }
+  }
+
+  def size: Int = synchronized(streams.size)
+}
+
+/**
+ * Tells catch-up reads, the reads of inactive segments, from tail reads, the reads of the active segment, and gives
+ * the page cache advisor hints for sequential catch-up reads: lagging consumers and followers reading old segments
+ * would otherwise wait for the disk on every fetch and evict the pages of the active segments which caught-up
+ * consumers read.
+ *
+ * Hints are given from a single background thread, so that fetches never wait for the disk because of them. Hints are
+ * discarded if the thread falls behind. If `readAheadBytes` is 0, reads are only counted.
+ */
+@threadsafe
+class LogReadAhead(val readAheadBytes: Int, advisor: PageCacheAdvisor) extends Logging with KafkaMetricsGroup {
+  import LogReadAhead._
+
+  private val catchUpBytesRate = newMeter("CatchUpBytesReadPerSec", "bytes", TimeUnit.SECONDS)
+  private val tailBytesRate = newMeter("TailBytesReadPerSec", "bytes", TimeUnit.SECONDS)
+  private val readAheadBytesRate = newMeter("ReadAheadBytesPerSec", "bytes", TimeUnit.SECONDS)
+  private val dropBehindBytesRate = newMeter("DropBehindBytesPerSec", "bytes", TimeUnit.SECONDS)
+
+  private val executor =
+    if (readAheadBytes > 0) {
+      Some(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](MaxPendingHints),
+        new ThreadFactory {
+          override def newThread(runnable: Runnable): Thread = new KafkaThread("kafka-log-read-ahead", runnable, true)
+        },
+        new ThreadPoolExecutor.DiscardPolicy))
+    } else None
+
+  /**
+   * Record a read of `size` bytes at `position` of `segment`, which is the active segment of its log if
+   * `activeSegment` is true.
+   */
+  def onRead(segment: LogSegment, position: Int, size: Int, activeSegment: Boolean): Unit = {
+    if (size > 0) {
+      if (activeSegment)
+        tailBytesRate.mark(size)
+      else {
+        catchUpBytesRate.mark(size)
+        executor.foreach { executor =>
+          val hints = segment.readStreams.onRead(position, size, segment.size, readAheadBytes)
+          hints.foreach { hint =>
+            executor.execute(new Runnable {
+              override def run(): Unit = advise(segment, hint)
+            })
+          }
+        }
+      }
+    }
+  }
+
+  private def advise(segment: LogSegment, hint: PageCacheHint): Unit = {
+    val records = segment.log
+    try {
+      if (hint.willNeed) {
+        advisor.willNeed(records.file, records.channel, hint.position, hint.length)
+        readAheadBytesRate.mark(hint.length)
+      } else {
+        advisor.dontNeed(records.file, records.channel, hint.position, hint.length)
+        dropBehindBytesRate.mark(hint.length)
+      }
+    } catch {
+      // the segment may have been deleted since it was read
+      case e: Exception => debug(s"Failed to give hint $hint for ${records.file}", e)
+    }
+  }
+
+  def close(): Unit = {
+    executor.foreach { executor =>
+      executor.shutdownNow()
+      executor.awaitTermination(30, TimeUnit.SECONDS)
+    }
+    CoreUtils.swallow(advisor.close())
+    removeMetric("CatchUpBytesReadPerSec")
+    removeMetric("TailBytesReadPerSec")
+    removeMetric("ReadAheadBytesPerSec")
+    removeMetric("DropBehindBytesPerSec")
+  }
+}
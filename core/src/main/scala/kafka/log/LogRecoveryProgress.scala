@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import kafka.utils.threadsafe
+import org.apache.kafka.common.utils.Time
+
+/**
+ * Tracks the progress of loading the logs of a broker, so that the remaining time of a recovery after an unclean
+ * shutdown can be estimated. `LogManager` counts the logs to load, each `Log` counts the segments it has to recover
+ * as it starts recovering them.
+ */
+@threadsafe
+class LogRecoveryProgress(time: Time) {
+  private val startMs = time.milliseconds
+  private val logsRemaining = new AtomicInteger(0)
+  private val segmentsRemaining = new AtomicInteger(0)
+  private val bytesRemaining = new AtomicLong(0L)
+  private val bytesRecovered = new AtomicLong(0L)
+
+  def logsToLoad(count: Int): Unit = logsRemaining.addAndGet(count)
+
+  def logLoaded(): Unit = logsRemaining.decrementAndGet()
+
+  def segmentsToRecover(segments: Iterable[LogSegment]): Unit = {
+    segmentsRemaining.addAndGet(segments.size)
+    bytesRemaining.addAndGet(segments.map(_.size.toLong).sum)
+  }
+
+  /**
+   * @param bytes The size of the segment when its recovery started
+   */
+  def segmentRecovered(bytes: Long): Unit = {
+    segmentsRemaining.decrementAndGet()
+    bytesRemaining.addAndGet(-bytes)
+    bytesRecovered.addAndGet(bytes)
+  }
+
+  def remainingLogs: Int = logsRemaining.get
+
+  def remainingSegments: Int = segmentsRemaining.get
+
+  /**
+   * The time left to recover the segments of the logs which have started recovering, extrapolated from the rate at
+   * which segments have been recovered so far. None until the first segment has been recovered.
+   */
+  def estimatedRemainingMs: Option[Long] = {
+    val recovered = bytesRecovered.get
+    if (recovered == 0)
+      None
+    else
+      Some(((time.milliseconds - startMs) * (bytesRemaining.get.toDouble / recovered)).toLong)
+  }
+}
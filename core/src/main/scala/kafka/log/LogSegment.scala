@@ -43,42 +43,102 @@ import scala.math._
  * A segment with a base offset of [base_offset] would be stored in two files, a [base_offset].index and a [base_offset].log file.
  *
  * @param log The message set containing log entries
- * @param index The offset index
- * @param timeIndex The timestamp index
+ * @param _index The offset index
+ * @param _timeIndex The timestamp index
  * @param baseOffset A lower bound on the offsets in this segment
  * @param indexIntervalBytes The approximate number of bytes between entries in the index
+ * @param timeIndexIntervalBytes The approximate number of bytes between entries in the time index, `indexIntervalBytes`
+ *                               if negative. The offset index gets an entry at least as often, so that the offset of a
+ *                               time index entry resolves to a position as close as the time index entry itself
  * @param time The time instance
  */
 @nonthreadsafe
 class LogSegment(val log: FileRecords,
-                 val index: OffsetIndex,
-                 val timeIndex: TimeIndex,
+                 _index: OffsetIndex,
+                 _timeIndex: TimeIndex,
                  val txnIndex: TransactionIndex,
                  val baseOffset: Long,
                  val indexIntervalBytes: Int,
+                 val timeIndexIntervalBytes: Int,
                  val rollJitterMs: Long,
                  time: Time) extends Logging {
 
   private var created = time.milliseconds
 
+  private val timeIndexInterval = if (timeIndexIntervalBytes < 0) indexIntervalBytes else timeIndexIntervalBytes
+
+  /* a timestamp lookup scans the log from the offset index entry of the time index entry, keep them as dense */
+  private val offsetIndexInterval = math.min(indexIntervalBytes, timeIndexInterval)
+
   /* the number of bytes since we last added an entry in the offset index */
   private var bytesSinceLastIndexEntry = 0
 
+  /* the number of bytes since we last added an entry in the time index */
+  private var bytesSinceLastTimeIndexEntry = 0
+
   /* The timestamp we used for time based log rolling */
   private var rollingBasedTimestamp: Option[Long] = None
 
-  /* The maximum timestamp we see so far */
-  @volatile private var maxTimestampSoFar: Long = timeIndex.lastEntry.timestamp
-  @volatile private var offsetOfMaxTimestamp: Long = timeIndex.lastEntry.offset
+  /* The maximum timestamp we see so far and the offset of the message with it. They are only read from the time
+   * index when they are first needed, so that the time index of a segment is not loaded when the log is opened. */
+  @volatile private var _maxTimestampSoFar: Option[Long] = None
+  @volatile private var _offsetOfMaxTimestamp: Option[Long] = None
+
+  private def maxTimestampSoFar_=(timestamp: Long): Unit = _maxTimestampSoFar = Some(timestamp)
+  private def maxTimestampSoFar: Long = {
+    if (_maxTimestampSoFar.isEmpty)
+      _maxTimestampSoFar = Some(timeIndex.lastEntry.timestamp)
+    _maxTimestampSoFar.get
+  }
+
+  private def offsetOfMaxTimestamp_=(offset: Long): Unit = _offsetOfMaxTimestamp = Some(offset)
+  private def offsetOfMaxTimestamp: Long = {
+    if (_offsetOfMaxTimestamp.isEmpty)
+      _offsetOfMaxTimestamp = Some(timeIndex.lastEntry.offset)
+    _offsetOfMaxTimestamp.get
+  }
+
+  /* Whether the sanity checks of the offset and time indexes still have to be run, see `deferIndexSanityCheck` */
+  @volatile private var indexSanityCheckPending = false
+
+  /**
+   * The offset index, the deferred sanity checks of the indexes are run on the first access
+   */
+  def index: OffsetIndex = {
+    maybeSanityCheckIndexes()
+    _index
+  }
+
+  /**
+   * The time index, the deferred sanity checks of the indexes are run on the first access
+   */
+  def timeIndex: TimeIndex = {
+    maybeSanityCheckIndexes()
+    _timeIndex
+  }
+
+  /**
+   * The offset and time indexes without running their deferred sanity checks, for the operations which do not read
+   * them: tracking and releasing their memory mappings, flushing, renaming and deleting their files.
+   */
+  private[log] def uncheckedIndexes: Seq[AbstractIndex[_, _]] = Seq(_index, _timeIndex)
+
+  /* The keys of this segment if it was written by the log cleaner, see `SegmentKeyFilter` */
+  @volatile private[log] var keyFilter: Option[SegmentKeyFilter] = None
+
+  /* The sequential reads of this segment once it is inactive, see `LogReadAhead` */
+  private[log] val readStreams = new SegmentReadStreams
 
   def this(dir: File, startOffset: Long, indexIntervalBytes: Int, maxIndexSize: Int, rollJitterMs: Long, time: Time,
-           fileAlreadyExists: Boolean = false, initFileSize: Int = 0, preallocate: Boolean = false) =
+           fileAlreadyExists: Boolean = false, initFileSize: Int = 0, preallocate: Boolean = false,
+           timeIndexIntervalBytes: Int = -1) =
     this(FileRecords.open(Log.logFile(dir, startOffset), fileAlreadyExists, initFileSize, preallocate),
          new OffsetIndex(Log.offsetIndexFile(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize),
          new TimeIndex(Log.timeIndexFile(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize),
          new TransactionIndex(startOffset, Log.transactionIndexFile(dir, startOffset)),
          startOffset,
          indexIntervalBytes,
+         timeIndexIntervalBytes,
          rollJitterMs,
          time)
 
@@ -126,13 +186,61 @@ class LogSegment(val log: FileRecords,
         maxTimestampSoFar = largestTimestamp
         offsetOfMaxTimestamp = shallowOffsetOfMaxTimestamp
       }
-      // append an entry to the index (if needed)
-      if(bytesSinceLastIndexEntry > indexIntervalBytes) {
+      // append an entry to the indexes (if needed)
+      if(bytesSinceLastIndexEntry > offsetIndexInterval) {
         index.append(firstOffset, physicalPosition)
-        timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
         bytesSinceLastIndexEntry = 0
       }
+      if (bytesSinceLastTimeIndexEntry > timeIndexInterval) {
+        timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+        bytesSinceLastTimeIndexEntry = 0
+      }
       bytesSinceLastIndexEntry += records.sizeInBytes
+      bytesSinceLastTimeIndexEntry += records.sizeInBytes
+    }
+  }
+
+  /**
+   * Append several message sets with a single gathering write, updating the indexes as `append` would for each of
+   * them. An index entry is skipped if an index fills up while they are appended, the log rolls before appending to
+   * the segment again in that case.
+   *
+   * It is assumed this method is being called from within a lock.
+   *
+   * @param appends The message sets to append, in offset order
+   */
+  @nonthreadsafe
+  def appendAll(appends: Seq[LogSegmentAppend]): Unit = {
+    val nonEmpty = appends.filter(_.records.sizeInBytes > 0)
+    if (nonEmpty.size == 1) {
+      val single = nonEmpty.head
+      append(single.firstOffset, single.largestOffset, single.largestTimestamp, single.shallowOffsetOfMaxTimestamp, single.records)
+    } else if (nonEmpty.nonEmpty) {
+      var physicalPosition = log.sizeInBytes()
+      if (physicalPosition == 0)
+        rollingBasedTimestamp = Some(nonEmpty.head.largestTimestamp)
+      require(canConvertToRelativeOffset(nonEmpty.last.largestOffset), "largest offset in message set can not be safely converted to relative offset.")
+      val appendedBytes = log.append(nonEmpty.map(_.records).asJava)
+      trace(s"Appended $appendedBytes bytes of ${nonEmpty.size} message sets to ${log.file()} at offset ${nonEmpty.head.firstOffset}")
+      for (appended <- nonEmpty) {
+        // Update the in memory max timestamp and corresponding offset.
+        if (appended.largestTimestamp > maxTimestampSoFar) {
+          maxTimestampSoFar = appended.largestTimestamp
+          offsetOfMaxTimestamp = appended.shallowOffsetOfMaxTimestamp
+        }
+        // append an entry to the indexes (if needed)
+        if (bytesSinceLastIndexEntry > offsetIndexInterval && !index.isFull) {
+          index.append(appended.firstOffset, physicalPosition)
+          bytesSinceLastIndexEntry = 0
+        }
+        if (bytesSinceLastTimeIndexEntry > timeIndexInterval && !timeIndex.isFull) {
+          timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+          bytesSinceLastTimeIndexEntry = 0
+        }
+        bytesSinceLastIndexEntry += appended.records.sizeInBytes
+        bytesSinceLastTimeIndexEntry += appended.records.sizeInBytes
+        physicalPosition += appended.records.sizeInBytes
+      }
     }
   }
 
@@ -252,13 +360,55 @@ class LogSegment(val log: FileRecords,
    */
   @nonthreadsafe
   def recover(producerStateManager: ProducerStateManager, leaderEpochCache: Option[LeaderEpochCache] = None): Int = {
+    txnIndex.truncate()
+    recoverBatches(batch => updateTransactionalState(producerStateManager, leaderEpochCache, batch))
+  }
+
+  /**
+   * The first half of `recover`: rebuild the offset and time indexes from the log file and lop off any invalid bytes
+   * from the end of the log and index. This does not depend on the state of earlier segments, so the segments of a
+   * log can be recovered concurrently. `recoverTransactionalState` must be called afterwards, in offset order.
+   *
+   * @return The number of bytes truncated from the log
+   */
+  @nonthreadsafe
+  def recoverIndexes(): Int = recoverBatches(_ => ())
+
+  /**
+   * The second half of `recover`: rebuild the transaction index and update the producer state and leader epoch cache
+   * from a segment whose batches have been validated by `recoverIndexes`.
+   *
+   * @param producerStateManager Producer state corresponding to the segment's base offset.
+   * @param leaderEpochCache Optionally a cache for updating the leader epoch during recovery.
+   */
+  @nonthreadsafe
+  def recoverTransactionalState(producerStateManager: ProducerStateManager,
+                                leaderEpochCache: Option[LeaderEpochCache] = None): Unit = {
+    txnIndex.truncate()
+    for (batch <- log.batches.asScala)
+      updateTransactionalState(producerStateManager, leaderEpochCache, batch)
+  }
+
+  private def updateTransactionalState(producerStateManager: ProducerStateManager,
+                                       leaderEpochCache: Option[LeaderEpochCache],
+                                       batch: RecordBatch): Unit = {
+    if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+      leaderEpochCache.foreach { cache =>
+        if (batch.partitionLeaderEpoch > cache.latestEpoch()) // this is to avoid unnecessary warning in cache.assign()
+          cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
+      }
+      updateProducerState(producerStateManager, batch)
+    }
+  }
+
+  private def recoverBatches(onValidBatch: RecordBatch => Unit): Int = {
     index.truncate()
     index.resize(index.maxIndexSize)
     timeIndex.truncate()
     timeIndex.resize(timeIndex.maxIndexSize)
-    txnIndex.truncate()
     var validBytes = 0
     var lastIndexEntry = 0
+    var lastTimeIndexEntry = 0
     maxTimestampSoFar = RecordBatch.NO_TIMESTAMP
     try {
       for (batch <- log.batches.asScala) {
@@ -271,21 +421,17 @@ class LogSegment(val log: FileRecords,
         }
 
         // Build offset index
-        if(validBytes - lastIndexEntry > indexIntervalBytes) {
+        if(validBytes - lastIndexEntry > offsetIndexInterval) {
           val startOffset = batch.baseOffset
           index.append(startOffset, validBytes)
-          timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
           lastIndexEntry = validBytes
         }
-        validBytes += batch.sizeInBytes()
-
-        if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
-          leaderEpochCache.foreach { cache =>
-            if (batch.partitionLeaderEpoch > cache.latestEpoch()) // this is to avoid unnecessary warning in cache.assign()
-              cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
-          }
-          updateProducerState(producerStateManager, batch)
+        if (validBytes - lastTimeIndexEntry > timeIndexInterval) {
+          timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+          lastTimeIndexEntry = validBytes
         }
+        validBytes += batch.sizeInBytes()
+        onValidBatch(batch)
       }
     } catch {
       case e: CorruptRecordException =>
@@ -304,6 +450,65 @@ class LogSegment(val log: FileRecords,
     truncated
   }
 
+  /**
+   * Defer the sanity checks of the offset and time indexes until they are first used, so that loading the segment
+   * does not need to read its indexes. If the checks fail, both indexes are rebuilt from the log.
+   */
+  def deferIndexSanityCheck(): Unit = indexSanityCheckPending = true
+
+  private def maybeSanityCheckIndexes(): Unit = {
+    if (indexSanityCheckPending) {
+      synchronized {
+        if (indexSanityCheckPending) {
+          try {
+            _index.sanityCheck()
+            _timeIndex.sanityCheck()
+          } catch {
+            case e: IllegalArgumentException =>
+              warn(s"Found a corrupted index of segment ${log.file.getAbsolutePath} due to ${e.getMessage}, " +
+                "rebuilding the offset and time indexes")
+              rebuildIndexes()
+          }
+          indexSanityCheckPending = false
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuild the offset and time indexes from the batches of the log. Unlike `recover`, this neither validates the
+   * batches nor rebuilds the transaction index.
+   */
+  private def rebuildIndexes(): Unit = {
+    _index.truncate()
+    _index.resize(_index.maxIndexSize)
+    _timeIndex.truncate()
+    _timeIndex.resize(_timeIndex.maxIndexSize)
+    var position = 0
+    var lastIndexEntry = 0
+    var lastTimeIndexEntry = 0
+    maxTimestampSoFar = RecordBatch.NO_TIMESTAMP
+    offsetOfMaxTimestamp = baseOffset
+    for (batch <- log.batches.asScala) {
+      if (batch.maxTimestamp > maxTimestampSoFar) {
+        maxTimestampSoFar = batch.maxTimestamp
+        offsetOfMaxTimestamp = batch.lastOffset
+      }
+      if (position - lastIndexEntry > offsetIndexInterval) {
+        _index.append(batch.baseOffset, position)
+        lastIndexEntry = position
+      }
+      if (position - lastTimeIndexEntry > timeIndexInterval) {
+        _timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+        lastTimeIndexEntry = position
+      }
+      position += batch.sizeInBytes()
+    }
+    _index.trimToValidSize()
+    _timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true)
+    _timeIndex.trimToValidSize()
+  }
+
   private def loadLargestTimestamp() {
     // Get the last time index entry. If the time index is empty, it will return (-1, baseOffset)
     val lastTimeIndexEntry = timeIndex.lastEntry
@@ -348,6 +553,7 @@ class LogSegment(val log: FileRecords,
       rollingBasedTimestamp = None
     }
     bytesSinceLastIndexEntry = 0
+    bytesSinceLastTimeIndexEntry = 0
     if (maxTimestampSoFar >= 0)
       loadLargestTimestamp()
     bytesTruncated
@@ -375,8 +581,8 @@ class LogSegment(val log: FileRecords,
   def flush() {
     LogFlushStats.logFlushTimer.time {
       log.flush()
-      index.flush()
-      timeIndex.flush()
+      _index.flush()
+      _timeIndex.flush()
       txnIndex.flush()
     }
   }
@@ -393,11 +599,11 @@ class LogSegment(val log: FileRecords,
     catch {
       case e: IOException => throw kafkaStorageException("log", e)
     }
-    try index.renameTo(new File(CoreUtils.replaceSuffix(index.file.getPath, oldSuffix, newSuffix)))
+    try _index.renameTo(new File(CoreUtils.replaceSuffix(_index.file.getPath, oldSuffix, newSuffix)))
     catch {
       case e: IOException => throw kafkaStorageException("index", e)
     }
-    try timeIndex.renameTo(new File(CoreUtils.replaceSuffix(timeIndex.file.getPath, oldSuffix, newSuffix)))
+    try _timeIndex.renameTo(new File(CoreUtils.replaceSuffix(_timeIndex.file.getPath, oldSuffix, newSuffix)))
     catch {
       case e: IOException => throw kafkaStorageException("timeindex", e)
     }
@@ -473,9 +679,11 @@ class LogSegment(val log: FileRecords,
    * Close this log segment
    */
   def close() {
-    CoreUtils.swallow(timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true))
-    CoreUtils.swallow(index.close())
-    CoreUtils.swallow(timeIndex.close())
+    // the time index of a segment whose maximum timestamp was never read already ends with it
+    if (_maxTimestampSoFar.isDefined)
+      CoreUtils.swallow(timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true))
+    CoreUtils.swallow(_index.close())
+    CoreUtils.swallow(_timeIndex.close())
     CoreUtils.swallow(log.close())
     CoreUtils.swallow(txnIndex.close())
   }
@@ -487,15 +695,15 @@ class LogSegment(val log: FileRecords,
    */
   def delete() {
     val deletedLog = log.delete()
-    val deletedIndex = index.delete()
-    val deletedTimeIndex = timeIndex.delete()
+    val deletedIndex = _index.delete()
+    val deletedTimeIndex = _timeIndex.delete()
     val deletedTxnIndex = txnIndex.delete()
     if (!deletedLog && log.file.exists)
       throw new KafkaStorageException("Delete of log " + log.file.getName + " failed.")
-    if (!deletedIndex && index.file.exists)
-      throw new KafkaStorageException("Delete of index " + index.file.getName + " failed.")
-    if (!deletedTimeIndex && timeIndex.file.exists)
-      throw new KafkaStorageException("Delete of time index " + timeIndex.file.getName + " failed.")
+    if (!deletedIndex && _index.file.exists)
+      throw new KafkaStorageException("Delete of index " + _index.file.getName + " failed.")
+    if (!deletedTimeIndex && _timeIndex.file.exists)
+      throw new KafkaStorageException("Delete of time index " + _timeIndex.file.getName + " failed.")
     if (!deletedTxnIndex && txnIndex.file.exists)
       throw new KafkaStorageException("Delete of transaction index " + txnIndex.file.getName + " failed.")
   }
@@ -516,11 +724,25 @@ class LogSegment(val log: FileRecords,
   def lastModified_=(ms: Long) = {
     val fileTime = FileTime.fromMillis(ms)
     Files.setLastModifiedTime(log.file.toPath, fileTime)
-    Files.setLastModifiedTime(index.file.toPath, fileTime)
-    Files.setLastModifiedTime(timeIndex.file.toPath, fileTime)
+    Files.setLastModifiedTime(_index.file.toPath, fileTime)
+    Files.setLastModifiedTime(_timeIndex.file.toPath, fileTime)
   }
 }
 
+/**
+ * A message set to append to a segment with `LogSegment.appendAll`, with the offsets and timestamps `LogSegment.append`
+ * takes.
+ */
+case class LogSegmentAppend(firstOffset: Long,
+                            largestOffset: Long,
+                            largestTimestamp: Long,
+                            shallowOffsetOfMaxTimestamp: Long,
+                            records: MemoryRecords)
+
 object LogFlushStats extends KafkaMetricsGroup {
   val logFlushTimer = new KafkaTimer(newTimer("LogFlushRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS))
 }
+
+object LogRollStats extends KafkaMetricsGroup {
+  val logRollTimer = new KafkaTimer(newTimer("LogRollRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS))
+}
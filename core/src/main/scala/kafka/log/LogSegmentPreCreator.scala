@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{File, IOException}
+import java.nio.file.Files
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{CoreUtils, ShutdownableThread, threadsafe}
+import org.apache.kafka.common.record.FileRecords
+import org.apache.kafka.common.utils.{Time, Utils}
+
+object LogSegmentPreCreator {
+  private val PollIntervalMs = 100L
+
+  /* the files of the prepared segment of a log, in the log directory */
+  private[log] def preparedLogFile(dir: File) = new File(dir, "next" + Log.LogFileSuffix + Log.PreparedFileSuffix)
+  private[log] def preparedOffsetIndexFile(dir: File) = new File(dir, "next" + Log.IndexFileSuffix + Log.PreparedFileSuffix)
+  private[log] def preparedTimeIndexFile(dir: File) = new File(dir, "next" + Log.TimeIndexFileSuffix + Log.PreparedFileSuffix)
+}
+
+/**
+ * The files of the next segment of a log, created before they are needed.
+ *
+ * @param records The log file, opened and preallocated if the log preallocates its segments
+ * @param offsetIndexFile The offset index file, created with its maximum size
+ * @param timeIndexFile The time index file, created with its maximum size
+ * @param initFileSize The size the log file was preallocated to
+ * @param maxIndexSize The size the index files were created with
+ */
+private[log] case class PreparedSegment(records: FileRecords,
+                                        offsetIndexFile: File,
+                                        timeIndexFile: File,
+                                        initFileSize: Int,
+                                        maxIndexSize: Int) {
+
+  /**
+   * Rename the files to those of the segment starting at `baseOffset` in `dir` and open the segment.
+   */
+  def toSegment(dir: File, baseOffset: Long, indexIntervalBytes: Int, timeIndexIntervalBytes: Int, rollJitterMs: Long,
+                time: Time): LogSegment = {
+    records.renameTo(Log.logFile(dir, baseOffset))
+    val indexFile = Log.offsetIndexFile(dir, baseOffset)
+    val timeIdxFile = Log.timeIndexFile(dir, baseOffset)
+    Utils.atomicMoveWithFallback(offsetIndexFile.toPath, indexFile.toPath)
+    Utils.atomicMoveWithFallback(timeIndexFile.toPath, timeIdxFile.toPath)
+    // the index files already exist, so the indexes take them to be full until they are truncated
+    val index = new OffsetIndex(indexFile, baseOffset = baseOffset, maxIndexSize = maxIndexSize)
+    index.truncate()
+    val timeIndex = new TimeIndex(timeIdxFile, baseOffset = baseOffset, maxIndexSize = maxIndexSize)
+    timeIndex.truncate()
+    new LogSegment(records, index, timeIndex, new TransactionIndex(baseOffset, Log.transactionIndexFile(dir, baseOffset)),
+      baseOffset, indexIntervalBytes, timeIndexIntervalBytes, rollJitterMs, time)
+  }
+
+  def delete(): Unit = {
+    CoreUtils.swallow(records.close())
+    Files.deleteIfExists(records.file.toPath)
+    Files.deleteIfExists(offsetIndexFile.toPath)
+    Files.deleteIfExists(timeIndexFile.toPath)
+  }
+}
+
+/**
+ * Prepares the next segment of the active logs on a background thread, so that rolling a segment only renames files
+ * which already exist rather than creating and preallocating them on the thread appending to the log. The segment of
+ * a log is prepared once its active segment is half full and again after each roll.
+ *
+ * A log with a prepared segment has the files of its prepared segment in its directory, with the suffix
+ * `Log.PreparedFileSuffix`. They are deleted when the log is closed, and when it is loaded after an unclean shutdown.
+ */
+@threadsafe
+class LogSegmentPreCreator(time: Time)
+  extends ShutdownableThread("kafka-log-segment-pre-creator", isInterruptible = false) with KafkaMetricsGroup {
+  import LogSegmentPreCreator._
+
+  private val lock = new Object
+  /* the logs with a pending or prepared segment, checked without the lock on every append */
+  private val tracked = new ConcurrentHashMap[Log, java.lang.Boolean]
+  /* the logs waiting for their segment to be prepared, in the order in which they were requested, guarded by lock */
+  private val pending = new java.util.LinkedHashSet[Log]
+  /* the prepared segments by log, guarded by lock */
+  private val prepared = new java.util.HashMap[Log, PreparedSegment]
+
+  newGauge("PreparedSegmentCount",
+    new Gauge[Int] {
+      def value = lock synchronized prepared.size
+    })
+
+  private val missRate = newMeter("PreparedSegmentMissesPerSec", "misses", TimeUnit.SECONDS)
+
+  /**
+   * Request the next segment of `log` to be prepared, unless it is already prepared or pending.
+   */
+  def prepare(log: Log): Unit = {
+    if (!tracked.containsKey(log)) {
+      lock synchronized {
+        if (tracked.putIfAbsent(log, true) == null) {
+          pending.add(log)
+          lock.notify()
+        }
+      }
+    }
+  }
+
+  /** Whether the next segment of `log` is prepared, for testing */
+  private[log] def isPrepared(log: Log): Boolean = lock synchronized prepared.containsKey(log)
+
+  /**
+   * Take the prepared segment of `log` to roll it. Returns None if the segment is not prepared yet, or if it was
+   * prepared for another configuration of the log, in which case it is deleted.
+   */
+  def take(log: Log, initFileSize: Int, maxIndexSize: Int): Option[PreparedSegment] = {
+    val segment = lock synchronized {
+      val segment = prepared.remove(log)
+      if (segment != null)
+        tracked.remove(log)
+      segment
+    }
+    if (segment == null) {
+      missRate.mark()
+      None
+    } else if (segment.initFileSize != initFileSize || segment.maxIndexSize != maxIndexSize) {
+      missRate.mark()
+      CoreUtils.swallow(segment.delete())
+      None
+    } else
+      Some(segment)
+  }
+
+  /**
+   * Delete the prepared segment of a log which is closed.
+   */
+  def discard(log: Log): Unit = {
+    val segment = lock synchronized {
+      tracked.remove(log)
+      pending.remove(log)
+      prepared.remove(log)
+    }
+    if (segment != null)
+      CoreUtils.swallow(segment.delete())
+  }
+
+  override def doWork(): Unit = {
+    val log = lock synchronized {
+      if (pending.isEmpty)
+        lock.wait(PollIntervalMs)
+      val iterator = pending.iterator
+      if (iterator.hasNext) {
+        val log = iterator.next()
+        iterator.remove()
+        log
+      } else null
+    }
+    if (log != null)
+      prepareSegment(log)
+  }
+
+  private def prepareSegment(log: Log): Unit = {
+    val dir = log.dir
+    val initFileSize = log.initFileSize()
+    val preallocate = log.config.preallocate
+    val maxIndexSize = log.config.maxIndexSize
+    var segment: PreparedSegment = null
+    try {
+      val logFile = preparedLogFile(dir)
+      Files.deleteIfExists(logFile.toPath)
+      val records = FileRecords.open(logFile, false, initFileSize, preallocate)
+      val offsetIndexFile = preparedOffsetIndexFile(dir)
+      val timeIndexFile = preparedTimeIndexFile(dir)
+      segment = PreparedSegment(records, offsetIndexFile, timeIndexFile, initFileSize, maxIndexSize)
+      // the indexes are not mapped until they are used, creating them only creates their files with their maximum size
+      Files.deleteIfExists(offsetIndexFile.toPath)
+      Files.deleteIfExists(timeIndexFile.toPath)
+      new OffsetIndex(offsetIndexFile, baseOffset = 0L, maxIndexSize = maxIndexSize)
+      new TimeIndex(timeIndexFile, baseOffset = 0L, maxIndexSize = maxIndexSize)
+    } catch {
+      // the log may have been deleted
+      case e: IOException =>
+        debug(s"Failed to prepare the next segment of ${log.name}", e)
+        if (segment != null)
+          CoreUtils.swallow(segment.delete())
+        tracked.remove(log)
+        return
+    }
+
+    val discarded = lock synchronized {
+      if (tracked.containsKey(log)) {
+        prepared.put(log, segment)
+        false
+      } else true
+    }
+    if (discarded)
+      CoreUtils.swallow(segment.delete())
+  }
+
+  override def initiateShutdown(): Boolean = {
+    val justShutdown = super.initiateShutdown()
+    lock synchronized lock.notify()
+    justShutdown
+  }
+
+  override def shutdown(): Unit = {
+    super.shutdown()
+    val remaining = lock synchronized {
+      val segments = prepared.values.toArray(new Array[PreparedSegment](0))
+      prepared.clear()
+      pending.clear()
+      tracked.clear()
+      segments
+    }
+    remaining.foreach(segment => CoreUtils.swallow(segment.delete()))
+    removeMetric("PreparedSegmentCount")
+    removeMetric("PreparedSegmentMissesPerSec")
+  }
+}
@@ -32,6 +32,28 @@ trait OffsetMap {
   def size: Int
   def utilization: Double = size.toDouble / slots
   def latestOffset: Long
+  /* whether `offset` can be put into the map, in addition to it having free slots */
+  def canPut(offset: Long): Boolean = true
+  /* the number of additional probes per lookup since the map was last cleared */
+  def collisionRate: Double = 0.0
+  /* a map of the same entries to look keys up from another thread while this map is not modified */
+  def concurrentView(): OffsetMap = this
+}
+
+object OffsetMap {
+  /* the hash algorithm of `CompactOffsetMap`, any other algorithm is a message digest used by `SkimpyOffsetMap` */
+  val Murmur3 = "murmur3"
+  val HashAlgorithms = Seq("MD5", "SHA-1", "SHA-256", Murmur3)
+
+  /**
+   * Create an offset map of `memory` bytes hashing keys with `hashAlgorithm`.
+   */
+  def apply(memory: Int, hashAlgorithm: String): OffsetMap = {
+    if (hashAlgorithm == Murmur3)
+      new CompactOffsetMap(memory)
+    else
+      new SkimpyOffsetMap(memory, hashAlgorithm)
+  }
 }
 
 /**
@@ -41,8 +63,9 @@ trait OffsetMap {
  * @param hashAlgorithm The hash algorithm instance to use: MD2, MD5, SHA-1, SHA-256, SHA-384, SHA-512
  */
 @nonthreadsafe
-class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extends OffsetMap {
-  private val bytes = ByteBuffer.allocate(memory)
+class SkimpyOffsetMap private (val memory: Int, val hashAlgorithm: String, bytes: ByteBuffer) extends OffsetMap {
+
+  def this(memory: Int, hashAlgorithm: String = "MD5") = this(memory, hashAlgorithm, ByteBuffer.allocate(memory))
   
   /* the hash algorithm instance to use, default is MD5 */
   private val digest = MessageDigest.getInstance(hashAlgorithm)
@@ -160,7 +183,7 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   /**
    * The rate of collisions in the lookups
    */
-  def collisionRate: Double = 
+  override def collisionRate: Double =
     (this.probes - this.lookups) / this.lookups.toDouble
 
   /**
@@ -172,6 +195,17 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
     lastOffset = offset
   }
 
+  /**
+   * A map sharing the table of this map, with its own digest and read position. Its lookups are not counted in the
+   * collision rate of this map.
+   */
+  override def concurrentView(): OffsetMap = {
+    val view = new SkimpyOffsetMap(memory, hashAlgorithm, bytes.duplicate())
+    view.entries = entries
+    view.lastOffset = lastOffset
+    view
+  }
+
   /**
    * Calculate the ith probe position. We first try reading successive integers from the hash itself
    * then if all of those fail we degrade to linear probing.
@@ -199,3 +233,243 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   }
   
 }
+
+/**
+ * A denser and cheaper hash table for deduplicating the log. Keys are hashed with the 128 bit MurmurHash3, which is
+ * much cheaper to compute than a message digest: 64 bits of the hash select the first slot to probe and the other 64
+ * bits are stored in the slot as the fingerprint of the key, with the offset relative to the first offset put into the
+ * map since it was cleared. Each entry thus takes 12 bytes instead of the 24 bytes of `SkimpyOffsetMap` with MD5, and
+ * the table is allocated outside of the heap. Collisions are resolved by linear probing, and two keys are taken to be
+ * the same if their fingerprints are, which is very unlikely with 64 bit fingerprints and short probe sequences. An
+ * offset more than `Int.MaxValue` after the first offset cannot be put into the map, the cleaner stops filling the map
+ * before that offset as if it were full. This hash table does not support deletes.
+ * @param memory The amount of memory this map can use
+ */
+@nonthreadsafe
+class CompactOffsetMap private (val memory: Int, bytes: ByteBuffer) extends OffsetMap {
+  import CompactOffsetMap._
+
+  def this(memory: Int) = this(memory, ByteBuffer.allocateDirect(memory))
+
+  /* the hash of the last key, to avoid reallocating each time */
+  private val hash = new Array[Long](2)
+
+  /* number of entries put into the map */
+  private var entries = 0
+
+  /* number of lookups on the map */
+  private var lookups = 0L
+
+  /* the number of probes for all lookups */
+  private var probes = 0L
+
+  /* the offset the offsets of the entries are relative to, the first offset put into the map */
+  private var baseOffset = -1L
+
+  /* the latest offset written into the map */
+  private var lastOffset = -1L
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = memory / BytesPerEntry
+
+  override def canPut(offset: Long): Boolean = baseOffset < 0 || offset - baseOffset <= Int.MaxValue
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long) {
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    if (baseOffset < 0)
+      baseOffset = offset
+    require(canPut(offset), s"Attempt to add offset $offset to an offset map of base offset $baseOffset.")
+    lookups += 1
+    Murmur3.hash128(key, hash)
+    val fingerprint = fingerprintOf(hash)
+    // probe until we find the slot of the key or the first empty slot
+    var slot = firstSlot(hash)
+    probes += 1
+    var slotFingerprint = bytes.getLong(slot * BytesPerEntry)
+    while (slotFingerprint != 0 && slotFingerprint != fingerprint) {
+      slot = nextSlot(slot)
+      probes += 1
+      slotFingerprint = bytes.getLong(slot * BytesPerEntry)
+    }
+    if (slotFingerprint == 0) {
+      // found an empty slot, size grows by 1
+      bytes.putLong(slot * BytesPerEntry, fingerprint)
+      entries += 1
+    }
+    bytes.putInt(slot * BytesPerEntry + 8, (offset - baseOffset).toInt)
+    lastOffset = offset
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    lookups += 1
+    Murmur3.hash128(key, hash)
+    val fingerprint = fingerprintOf(hash)
+    var slot = firstSlot(hash)
+    var attempts = 0
+    // the map may be full, in which case an absent key is only found to be absent by probing every slot
+    while (attempts < slots) {
+      probes += 1
+      val slotFingerprint = bytes.getLong(slot * BytesPerEntry)
+      if (slotFingerprint == 0)
+        return -1L
+      if (slotFingerprint == fingerprint)
+        return baseOffset + bytes.getInt(slot * BytesPerEntry + 8)
+      slot = nextSlot(slot)
+      attempts += 1
+    }
+    -1L
+  }
+
+  /**
+   * Remove all the entries of the map.
+   */
+  override def clear() {
+    this.entries = 0
+    this.lookups = 0L
+    this.probes = 0L
+    this.baseOffset = -1L
+    this.lastOffset = -1L
+    var position = 0
+    while (position + 8 <= bytes.capacity) {
+      bytes.putLong(position, 0L)
+      position += 8
+    }
+    while (position < bytes.capacity) {
+      bytes.put(position, 0.toByte)
+      position += 1
+    }
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  override def collisionRate: Double =
+    (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * The latest offset put into the map
+   */
+  override def latestOffset: Long = lastOffset
+
+  override def updateLatestOffset(offset: Long): Unit = {
+    lastOffset = offset
+  }
+
+  /**
+   * A map sharing the table of this map, with its own hash buffer. Its lookups are not counted in the collision rate
+   * of this map.
+   */
+  override def concurrentView(): OffsetMap = {
+    val view = new CompactOffsetMap(memory, bytes)
+    view.entries = entries
+    view.baseOffset = baseOffset
+    view.lastOffset = lastOffset
+    view
+  }
+
+  private def firstSlot(hash: Array[Long]): Int = ((hash(1) >>> 1) % slots).toInt
+
+  private def nextSlot(slot: Int): Int = if (slot + 1 == slots) 0 else slot + 1
+
+  /* a fingerprint of 0 marks an empty slot */
+  private def fingerprintOf(hash: Array[Long]): Long = if (hash(0) == 0) 1L else hash(0)
+}
+
+object CompactOffsetMap {
+  /* an 8 byte fingerprint and a 4 byte relative offset */
+  val BytesPerEntry = 12
+}
+
+/**
+ * The x64 128 bit variant of MurmurHash3, with a seed of 0.
+ */
+private[log] object Murmur3 {
+  private val C1 = 0x87c37b91114253d5L
+  private val C2 = 0x4cf5ad432745937fL
+
+  /**
+   * Hash the remaining bytes of `buffer` into the two longs of `hash`, without changing the position of `buffer`.
+   */
+  def hash128(buffer: ByteBuffer, hash: Array[Long]): Unit = {
+    val start = buffer.position
+    val length = buffer.remaining
+    val blocksEnd = start + (length & ~15)
+    var h1 = 0L
+    var h2 = 0L
+
+    var position = start
+    while (position < blocksEnd) {
+      val k1 = java.lang.Long.reverseBytes(buffer.getLong(position))
+      val k2 = java.lang.Long.reverseBytes(buffer.getLong(position + 8))
+      h1 ^= mixK1(k1)
+      h1 = java.lang.Long.rotateLeft(h1, 27) + h2
+      h1 = h1 * 5 + 0x52dce729
+      h2 ^= mixK2(k2)
+      h2 = java.lang.Long.rotateLeft(h2, 31) + h1
+      h2 = h2 * 5 + 0x38495ab5
+      position += 16
+    }
+
+    val tail = length & 15
+    if (tail > 8) {
+      var k2 = 0L
+      var i = tail - 1
+      while (i >= 8) {
+        k2 ^= (buffer.get(blocksEnd + i) & 0xffL) << ((i - 8) * 8)
+        i -= 1
+      }
+      h2 ^= mixK2(k2)
+    }
+    if (tail > 0) {
+      var k1 = 0L
+      var i = math.min(tail, 8) - 1
+      while (i >= 0) {
+        k1 ^= (buffer.get(blocksEnd + i) & 0xffL) << (i * 8)
+        i -= 1
+      }
+      h1 ^= mixK1(k1)
+    }
+
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix64(h1)
+    h2 = fmix64(h2)
+    h1 += h2
+    h2 += h1
+    hash(0) = h1
+    hash(1) = h2
+  }
+
+  private def mixK1(k: Long): Long = java.lang.Long.rotateLeft(k * C1, 31) * C2
+
+  private def mixK2(k: Long): Long = java.lang.Long.rotateLeft(k * C2, 33) * C1
+
+  private def fmix64(k: Long): Long = {
+    var h = k
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h
+  }
+}
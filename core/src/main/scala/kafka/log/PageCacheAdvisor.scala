@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.channels.FileChannel
+import java.util
+
+import org.apache.kafka.common.Configurable
+import sun.nio.ch.DirectBuffer
+
+/**
+ * Gives the operating system hints about how ranges of log segment files are going to be read, so that the page cache
+ * holds the data which is about to be read rather than data which a lagging consumer read once.
+ *
+ * The JDK has no equivalent of `posix_fadvise`. Implementations calling `posix_fadvise` with `POSIX_FADV_WILLNEED` and
+ * `POSIX_FADV_DONTNEED` through native code can be configured with `log.page.cache.advisor.class`. Hints are given from
+ * a background thread, possibly for segments which have been closed or deleted in the meantime: implementations must be
+ * thread safe and may fail in that case.
+ */
+trait PageCacheAdvisor extends Configurable {
+
+  /**
+   * Hint that `length` bytes of `file` starting at `position` are going to be read soon.
+   */
+  def willNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit
+
+  /**
+   * Hint that `length` bytes of `file` starting at `position` are not going to be read again soon.
+   */
+  def dontNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit
+
+  def close(): Unit
+}
+
+/**
+ * Reads ahead by mapping the range and loading its pages, which does not copy the data. Pages cannot be dropped from the
+ * page cache without native code, `dontNeed` does nothing.
+ */
+class DefaultPageCacheAdvisor extends PageCacheAdvisor {
+
+  override def configure(configs: util.Map[String, _]): Unit = {}
+
+  override def willNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit = {
+    val mmap = channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+    try mmap.load()
+    finally {
+      mmap match {
+        case buffer: DirectBuffer =>
+          /* cleaner can be null if the mapped region has size 0 */
+          val cleaner = buffer.cleaner()
+          if (cleaner != null)
+            cleaner.clean()
+        case _ =>
+      }
+    }
+  }
+
+  override def dontNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit = {}
+
+  override def close(): Unit = {}
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+
+import kafka.utils.{nonthreadsafe, threadsafe}
+
+private[log] object SegmentKeyFilter {
+  /* 10 bits and 7 hashes per key give a false positive rate of about 1% */
+  private val BitsPerKey = 10
+  private val NumHashes = 7
+
+  /**
+   * The 128 bit hash of a key used by the filters, written to the two longs of `buffer` which is returned.
+   */
+  def hash(key: ByteBuffer, buffer: Array[Long]): Array[Long] = {
+    Murmur3.hash128(key, buffer)
+    buffer
+  }
+
+  /**
+   * Collects the keys of a segment written by the cleaner, the filter is sized to the number of keys once they have
+   * all been added.
+   */
+  @nonthreadsafe
+  class Builder {
+    private val buffer = new Array[Long](2)
+    // the two halves of the hash of each key
+    private var hashes = new Array[Long](128)
+    private var count = 0
+    private var deletes = false
+
+    def add(key: ByteBuffer): Unit = {
+      if (2 * count == hashes.length)
+        hashes = java.util.Arrays.copyOf(hashes, hashes.length * 2)
+      hash(key, buffer)
+      hashes(2 * count) = buffer(0)
+      hashes(2 * count + 1) = buffer(1)
+      count += 1
+    }
+
+    /* the segment has records which a later cleaning removes once they are past the delete horizon */
+    def markDeletes(): Unit = deletes = true
+
+    def build(): SegmentKeyFilter = {
+      val numBits = math.max(64L, count.toLong * BitsPerKey)
+      val filter = new SegmentKeyFilter(new Array[Long](((numBits + 63) / 64).toInt), deletes)
+      for (i <- 0 until count)
+        filter.add(hashes(2 * i), hashes(2 * i + 1))
+      filter
+    }
+  }
+}
+
+/**
+ * A Bloom filter of the keys of a segment written by the log cleaner. The clean segments of a log only have keys which
+ * are not in any later segment, so a clean segment need not be cleaned again until the dirty section of the log has
+ * one of its keys, or until the tombstones and transaction markers it has may be removed if `hasDeletes` is set.
+ *
+ * The filter is not persisted, the segments of a log loaded at startup have no filter and are cleaned once by the
+ * first cleaning of the log.
+ */
+@threadsafe
+private[log] class SegmentKeyFilter private (bits: Array[Long], val hasDeletes: Boolean) {
+  import SegmentKeyFilter._
+
+  private val numBits = bits.length * 64L
+
+  private def add(hash1: Long, hash2: Long): Unit = {
+    var combined = hash1
+    var i = 0
+    while (i < NumHashes) {
+      val bit = index(combined)
+      bits((bit >>> 6).toInt) |= 1L << bit
+      combined += hash2
+      i += 1
+    }
+  }
+
+  /**
+   * Whether the segment may have a key of hash `hash`, see `SegmentKeyFilter.hash`.
+   */
+  def mightContain(hash: Array[Long]): Boolean = {
+    var combined = hash(0)
+    var i = 0
+    while (i < NumHashes) {
+      val bit = index(combined)
+      if ((bits((bit >>> 6).toInt) & (1L << bit)) == 0)
+        return false
+      combined += hash(1)
+      i += 1
+    }
+    true
+  }
+
+  /* the memory used by the filter */
+  def sizeInBytes: Int = bits.length * 8
+
+  /*
+   * The bit of a hash combined by double hashing of the two 64 bit halves of the hash of a key. Its sign bit is cleared
+   * rather than using an unsigned remainder, which is not available in Java 7, the 63 bits left cover any filter size.
+   */
+  private def index(combined: Long): Long = (combined & Long.MaxValue) % numBits
+}
+
+/**
+ * The clean segments of a log which may be skipped by a cleaning: those which have a key filter and whose tombstones
+ * and transaction markers are retained. A segment is touched, and has to be cleaned, once a key of the dirty section
+ * may be in it.
+ */
+@nonthreadsafe
+private[log] class SkippableSegments(segments: Seq[LogSegment]) {
+  private val filters = segments.map(_.keyFilter.get).toArray
+  private val touched = new Array[Boolean](filters.length)
+  private var remaining = filters.length
+  private val buffer = new Array[Long](2)
+
+  /**
+   * Touch the segments which may have `key`.
+   */
+  def onDirtyKey(key: ByteBuffer): Unit = {
+    if (remaining > 0) {
+      val hash = SegmentKeyFilter.hash(key, buffer)
+      var i = 0
+      while (i < filters.length) {
+        if (!touched(i) && filters(i).mightContain(hash)) {
+          touched(i) = true
+          remaining -= 1
+        }
+        i += 1
+      }
+    }
+  }
+
+  /**
+   * The segments which were not touched.
+   */
+  def untouched: Set[LogSegment] = segments.indices.filterNot(touched).map(segments).toSet
+}
+
+private[log] object SkippableSegments {
+  val Empty = new SkippableSegments(Seq.empty)
+}
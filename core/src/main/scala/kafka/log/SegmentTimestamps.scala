@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.atomic.AtomicLong
+
+import kafka.utils.threadsafe
+
+/**
+ * The first segment of a log whose largest timestamp is at least a given timestamp, found with a binary search.
+ *
+ * The largest timestamps of the segments are not ordered, as records can have any timestamp, but the running maximum
+ * of the largest timestamps of the segments in offset order is, and the first segment whose largest timestamp is at
+ * least the target is also the first one whose running maximum is. The running maximums of the inactive segments are
+ * computed again on the first lookup after the segments of the log changed, the largest timestamp of the active
+ * segment is read on each lookup as it still grows.
+ */
+@threadsafe
+private[log] class SegmentTimestamps(segments: () => Iterable[LogSegment]) {
+
+  private class Snapshot(val generation: Long,
+                         val inactiveSegments: Array[LogSegment],
+                         val maxTimestamps: Array[Long],
+                         val activeSegment: Option[LogSegment])
+
+  /* incremented when the segments of the log change, a snapshot of an older generation is stale */
+  private val generation = new AtomicLong
+  @volatile private var snapshot: Snapshot = null
+
+  /**
+   * Mark the snapshot as stale. Must be called after the segments of the log changed.
+   */
+  def invalidate(): Unit = generation.incrementAndGet()
+
+  /**
+   * The first segment whose largest timestamp is at least `timestamp`, if any.
+   */
+  def firstSegmentWithTimestamp(timestamp: Long): Option[LogSegment] = {
+    val current = currentSnapshot()
+    val maxTimestamps = current.maxTimestamps
+    var low = 0
+    var high = maxTimestamps.length
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (maxTimestamps(mid) < timestamp)
+        low = mid + 1
+      else
+        high = mid
+    }
+    if (low < maxTimestamps.length)
+      Some(current.inactiveSegments(low))
+    else
+      current.activeSegment.filter(_.largestTimestamp >= timestamp)
+  }
+
+  private def currentSnapshot(): Snapshot = {
+    val current = snapshot
+    val currentGeneration = generation.get
+    if (current != null && current.generation == currentGeneration)
+      current
+    else {
+      val all = segments().toArray
+      val inactiveSegments = all.dropRight(1)
+      val maxTimestamps = new Array[Long](inactiveSegments.length)
+      var max = Long.MinValue
+      for (i <- inactiveSegments.indices) {
+        max = math.max(max, inactiveSegments(i).largestTimestamp)
+        maxTimestamps(i) = max
+      }
+      val built = new Snapshot(currentGeneration, inactiveSegments, maxTimestamps, all.lastOption)
+      // a snapshot built while the segments changed is used for this lookup only
+      if (generation.get == currentGeneration)
+        snapshot = built
+      built
+    }
+  }
+}
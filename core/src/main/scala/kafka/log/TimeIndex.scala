@@ -188,6 +188,7 @@ class TimeIndex(file: File,
     inLock(lock) {
       _entries = entries
       mmap.position(_entries * entrySize)
+      invalidatePageDirectory()
     }
   }
 
@@ -195,9 +196,12 @@ class TimeIndex(file: File,
     val entry = lastEntry
     val lastTimestamp = entry.timestamp
     val lastOffset = entry.offset
-    require(_entries == 0 || (lastTimestamp >= timestamp(mmap, 0)),
+    val firstTimestamp = maybeLock(lock) {
+      if (_entries == 0) RecordBatch.NO_TIMESTAMP else timestamp(mmap, 0)
+    }
+    require(_entries == 0 || (lastTimestamp >= firstTimestamp),
       s"Corrupt time index found, time index file (${file.getAbsolutePath}) has non-zero size but the last timestamp " +
-          s"is $lastTimestamp which is no larger than the first timestamp ${timestamp(mmap, 0)}")
+          s"is $lastTimestamp which is no larger than the first timestamp $firstTimestamp")
     require(_entries == 0 || lastOffset >= baseOffset,
       s"Corrupt time index found, time index file (${file.getAbsolutePath}) has non-zero size but the last offset " +
           s"is $lastOffset which is smaller than the first offset $baseOffset")
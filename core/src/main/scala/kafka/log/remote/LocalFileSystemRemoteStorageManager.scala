@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.{File, FileOutputStream}
+import java.nio.file.{Files, StandardCopyOption}
+import java.util
+import java.util.Properties
+
+import kafka.log.{Log, LogSegment}
+import kafka.utils.Logging
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.utils.Utils
+
+object LocalFileSystemRemoteStorageManager {
+  val StorageDirProp = "remote.log.storage.local.dir"
+
+  private val MetadataFileName = "segment.properties"
+  private val TmpDirSuffix = ".tmp"
+}
+
+/**
+ * Stores remote segments in a local directory, typically a mount of a shared or network file system, or a plain
+ * directory for testing. Each segment is stored in the directory `<topic>-<partition>/<base offset>` with its indexes
+ * and a file holding its description. Segments are written to a temporary directory which is renamed once complete.
+ */
+class LocalFileSystemRemoteStorageManager extends RemoteStorageManager with Logging {
+  import LocalFileSystemRemoteStorageManager._
+
+  @volatile private var storageDir: File = _
+
+  override def configure(configs: util.Map[String, _]): Unit = {
+    val dir = configs.get(StorageDirProp)
+    if (dir == null)
+      throw new ConfigException(s"$StorageDirProp must be set to use ${getClass.getName}")
+    storageDir = new File(dir.toString)
+    Files.createDirectories(storageDir.toPath)
+  }
+
+  private def partitionDir(topicPartition: TopicPartition): File =
+    new File(storageDir, topicPartition.topic + "-" + topicPartition.partition)
+
+  private def segmentDir(topicPartition: TopicPartition, baseOffset: Long): File =
+    new File(partitionDir(topicPartition), Log.filenamePrefixFromOffset(baseOffset))
+
+  override def copyLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment, segment: LogSegment): Unit = {
+    val dir = segmentDir(topicPartition, remoteSegment.baseOffset)
+    if (dir.exists) {
+      debug(s"Segment ${remoteSegment.baseOffset} of $topicPartition is already stored in $dir")
+    } else {
+      val tmpDir = new File(dir.getPath + TmpDirSuffix)
+      Utils.delete(tmpDir)
+      Files.createDirectories(tmpDir.toPath)
+      val baseOffset = remoteSegment.baseOffset
+      copyFile(segment.log.file, Log.logFile(tmpDir, baseOffset))
+      copyFile(segment.index.file, Log.offsetIndexFile(tmpDir, baseOffset))
+      copyFile(segment.timeIndex.file, Log.timeIndexFile(tmpDir, baseOffset))
+      copyFile(segment.txnIndex.file, Log.transactionIndexFile(tmpDir, baseOffset))
+      writeMetadata(tmpDir, remoteSegment)
+      Utils.atomicMoveWithFallback(tmpDir.toPath, dir.toPath)
+    }
+  }
+
+  override def listLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegment] = {
+    val dirs = Option(partitionDir(topicPartition).listFiles).getOrElse(Array.empty[File])
+    dirs.filter(dir => dir.isDirectory && !dir.getName.endsWith(TmpDirSuffix))
+      .map(readMetadata)
+      .sortBy(_.baseOffset)
+  }
+
+  override def fetchLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment, dir: File): Unit = {
+    val baseOffset = remoteSegment.baseOffset
+    val sourceDir = segmentDir(topicPartition, baseOffset)
+    copyFile(Log.logFile(sourceDir, baseOffset), Log.logFile(dir, baseOffset))
+    copyFile(Log.offsetIndexFile(sourceDir, baseOffset), Log.offsetIndexFile(dir, baseOffset))
+    copyFile(Log.timeIndexFile(sourceDir, baseOffset), Log.timeIndexFile(dir, baseOffset))
+    copyFile(Log.transactionIndexFile(sourceDir, baseOffset), Log.transactionIndexFile(dir, baseOffset))
+  }
+
+  override def deleteLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment): Unit =
+    Utils.delete(segmentDir(topicPartition, remoteSegment.baseOffset))
+
+  override def close(): Unit = {}
+
+  /* the transaction index of a segment only exists if the segment has aborted transactions */
+  private def copyFile(source: File, target: File): Unit = {
+    if (source.exists)
+      Files.copy(source.toPath, target.toPath, StandardCopyOption.REPLACE_EXISTING)
+  }
+
+  private def writeMetadata(dir: File, remoteSegment: RemoteLogSegment): Unit = {
+    val props = new Properties()
+    props.put("baseOffset", remoteSegment.baseOffset.toString)
+    props.put("nextOffset", remoteSegment.nextOffset.toString)
+    props.put("sizeInBytes", remoteSegment.sizeInBytes.toString)
+    props.put("maxTimestamp", remoteSegment.maxTimestamp.toString)
+    props.put("hasAbortedTransactions", remoteSegment.hasAbortedTransactions.toString)
+    val out = new FileOutputStream(new File(dir, MetadataFileName))
+    try {
+      props.store(out, null)
+      out.getFD.sync()
+    } finally out.close()
+  }
+
+  private def readMetadata(dir: File): RemoteLogSegment = {
+    val props = Utils.loadProps(new File(dir, MetadataFileName).getPath)
+    RemoteLogSegment(baseOffset = props.getProperty("baseOffset").toLong,
+      nextOffset = props.getProperty("nextOffset").toLong,
+      sizeInBytes = props.getProperty("sizeInBytes").toInt,
+      maxTimestamp = props.getProperty("maxTimestamp").toLong,
+      hasAbortedTransactions = props.getProperty("hasAbortedTransactions").toBoolean)
+  }
+}
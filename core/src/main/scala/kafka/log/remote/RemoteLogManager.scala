@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.File
+import java.lang.{Long => JLong}
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent._
+
+import com.yammer.metrics.core.Gauge
+import kafka.log.{AbortedTxn, Defaults, Log, LogSegment, OffsetPosition, TimestampOffset}
+import kafka.metrics.KafkaMetricsGroup
+import kafka.server.{FetchDataInfo, LogOffsetMetadata}
+import kafka.utils.{CoreUtils, Logging, Pool, threadsafe}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.record.{FileRecords, MemoryRecords, RecordBatch}
+import org.apache.kafka.common.utils.{Time, Utils}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Manages the remote tier of the logs with remote storage enabled: copies their closed segments to the remote storage
+ * manager, applies the retention of the logs to the remote segments and serves reads of offsets which are only in the
+ * remote tier.
+ *
+ * Remote segments are fetched whole into a subdirectory of `cacheDir` to be read, the least recently read are deleted
+ * once they take more than `maxCacheBytes`. Segments are fetched by `fetchThreads` background threads: a read of a
+ * segment which is not cached starts its fetch and returns no records rather than waiting for the download on the
+ * request handler thread, the client fetching the offset again later. A fetched segment is not deleted before it is
+ * first read, or for `UnreadSegmentRetentionMs` if no read comes back for it, so that the read which started its fetch
+ * finds it even if the segment alone is larger than `maxCacheBytes`.
+ */
+@threadsafe
+class RemoteLogManager(storageManager: RemoteStorageManager,
+                       cacheDir: File,
+                       maxCacheBytes: Long,
+                       time: Time,
+                       fetchThreads: Int = 1) extends Logging with KafkaMetricsGroup {
+
+  private class CachedSegment(val dir: File, val segment: LogSegment, val fetchedMs: Long) {
+    val sizeInBytes: Long = dir.listFiles.map(_.length).sum
+    /* the number of reads in progress, whether the segment was removed from the cache and whether it has not been read
+     * since it was fetched, guarded by cacheLock */
+    var readers = 0
+    var removed = false
+    var awaitingRead = true
+
+    def close(): Unit = {
+      CoreUtils.swallow(segment.close())
+      CoreUtils.swallow(Utils.delete(dir))
+    }
+  }
+
+  /* the remote segments of each partition by base offset, listed from the storage manager on first use */
+  private val remoteSegments = new Pool[TopicPartition, ConcurrentSkipListMap[JLong, RemoteLogSegment]](
+    Some(listRemoteSegments _))
+
+  private val cacheLock = new Object
+  /* the cached segments in access order, guarded by cacheLock */
+  private val cache = new java.util.LinkedHashMap[(TopicPartition, Long), CachedSegment](16, 0.75f, true)
+  private var cachedBytes = 0L
+
+  /* the fetches in progress, a fetch is removed once its segment is cached or once a read found it failed */
+  private val fetches = new ConcurrentHashMap[(TopicPartition, Long), Future[Unit]]
+  private val fetchExecutor = {
+    val threadCount = new AtomicLong(0)
+    Executors.newFixedThreadPool(fetchThreads, new ThreadFactory {
+      def newThread(runnable: Runnable): Thread =
+        Utils.newThread("kafka-remote-log-fetcher-" + threadCount.getAndIncrement(), runnable, true)
+    })
+  }
+  /* each fetch writes to its own directory, a segment may be fetched again while a reader of an evicted copy reads it */
+  private val fetchCount = new AtomicLong(0)
+
+  /* the directory of the fetched segments, only it is deleted as `cacheDir` may be shared with other files */
+  private val segmentsDir = new File(cacheDir, RemoteLogManager.SegmentsDirName)
+  Utils.delete(segmentsDir)
+  Files.createDirectories(segmentsDir.toPath)
+
+  newGauge("RemoteLogCacheSizeBytes",
+    new Gauge[Long] {
+      def value = cacheLock synchronized cachedBytes
+    })
+
+  private val copyBytesRate = newMeter("RemoteCopyBytesPerSec", "bytes", TimeUnit.SECONDS)
+  private val readBytesRate = newMeter("RemoteReadBytesPerSec", "bytes", TimeUnit.SECONDS)
+  private val segmentFetchRate = newMeter("RemoteSegmentFetchesPerSec", "fetches", TimeUnit.SECONDS)
+
+  private def listRemoteSegments(topicPartition: TopicPartition): ConcurrentSkipListMap[JLong, RemoteLogSegment] = {
+    val segments = new ConcurrentSkipListMap[JLong, RemoteLogSegment]
+    storageManager.listLogSegments(topicPartition).foreach(segment => segments.put(segment.baseOffset, segment))
+    segments
+  }
+
+  private def segmentsOf(topicPartition: TopicPartition) = remoteSegments.getAndMaybePut(topicPartition)
+
+  /**
+   * The base offset of the first remote segment of the partition, if any.
+   */
+  def logStartOffset(topicPartition: TopicPartition): Option[Long] =
+    Option(segmentsOf(topicPartition).firstEntry).map(_.getValue.baseOffset)
+
+  /**
+   * The offset up to which the partition has been copied to the remote tier, or -1 if nothing has been copied.
+   */
+  def copiedOffset(topicPartition: TopicPartition): Long =
+    Option(segmentsOf(topicPartition).lastEntry).map(_.getValue.nextOffset).getOrElse(-1L)
+
+  /**
+   * Copy the closed segments of `log` which are flushed and below `highWatermark`, and have not been copied yet, to the
+   * remote tier. Only the leader of a partition copies its segments.
+   */
+  def copyLogSegments(log: Log, highWatermark: Long): Unit = {
+    val topicPartition = log.topicPartition
+    val upperBoundOffset = math.min(log.recoveryPoint, highWatermark)
+    val segments = log.logSegments.toSeq
+    // the base offset of the following segment is the next offset of a closed segment
+    for ((segment, nextSegment) <- segments.zip(segments.drop(1))) {
+      if (nextSegment.baseOffset <= upperBoundOffset && segment.baseOffset >= copiedOffset(topicPartition)) {
+        val remoteSegment = RemoteLogSegment(segment.baseOffset, nextSegment.baseOffset, segment.size,
+          segment.largestTimestamp, hasAbortedTransactions = segment.txnIndex.file.length > 0)
+        storageManager.copyLogSegment(topicPartition, remoteSegment, segment)
+        segmentsOf(topicPartition).put(segment.baseOffset, remoteSegment)
+        copyBytesRate.mark(segment.size)
+        debug(s"Copied segment ${segment.baseOffset} of $topicPartition to the remote tier")
+      }
+    }
+  }
+
+  /**
+   * Delete the remote segments of `log` which are beyond its retention, the size of the log being the size of its
+   * local segments and of its remote segments which are no longer local, and advance its log start offset.
+   *
+   * @return The number of remote segments deleted
+   */
+  def deleteExpiredSegments(log: Log): Int = {
+    val topicPartition = log.topicPartition
+    val segments = segmentsOf(topicPartition)
+    val localLogStartOffset = log.localLogStartOffset
+    val config = log.config
+    val now = time.milliseconds
+    var sizeAboveRetention =
+      if (config.retentionSize < 0) 0L
+      else log.size + segments.values.asScala.filter(_.nextOffset <= localLogStartOffset).map(_.sizeInBytes.toLong).sum -
+        config.retentionSize
+
+    def expired(segment: RemoteLogSegment): Boolean = {
+      segment.nextOffset <= log.logStartOffset ||
+        (config.retentionMs >= 0 && now - segment.maxTimestamp > config.retentionMs) ||
+        (segment.nextOffset <= localLogStartOffset && sizeAboveRetention >= segment.sizeInBytes)
+    }
+
+    var deleted = 0
+    var entry = segments.firstEntry
+    while (entry != null && expired(entry.getValue)) {
+      val segment = entry.getValue
+      storageManager.deleteLogSegment(topicPartition, segment)
+      segments.remove(segment.baseOffset)
+      if (segment.nextOffset <= localLogStartOffset)
+        sizeAboveRetention -= segment.sizeInBytes
+      removeFromCache((topicPartition, segment.baseOffset))
+      deleted += 1
+      entry = segments.firstEntry
+    }
+    if (deleted > 0) {
+      info(s"Deleted $deleted remote segments of $topicPartition")
+      log.maybeIncrementLogStartOffset(logStartOffset(topicPartition).fold(localLogStartOffset)(math.min(_, localLogStartOffset)))
+    }
+    deleted
+  }
+
+  /**
+   * List the remote segments of a partition again, as the leader of the partition copies and deletes them.
+   */
+  def refreshLogSegments(topicPartition: TopicPartition): Unit =
+    remoteSegments.put(topicPartition, listRemoteSegments(topicPartition))
+
+  /**
+   * Forget the remote segments of a partition whose log is deleted from this broker. They are left in the remote tier.
+   */
+  def removePartition(topicPartition: TopicPartition): Unit = {
+    remoteSegments.remove(topicPartition)
+    cacheLock synchronized {
+      cache.keySet.asScala.filter(_._1 == topicPartition).toList.foreach(removeFromCache)
+    }
+  }
+
+  /**
+   * Read up to `maxLength` bytes from `startOffset` in the remote tier. The records are read into memory, so that the
+   * cached segment can be deleted while they are sent. If a segment to read is not cached, its fetch is started and no
+   * records are returned, with an unknown offset metadata so that a delayed fetch waits for its timeout.
+   *
+   * @return The records and the offset up to which the aborted transactions of the read must be collected, or None if
+   *         the remote tier has no records from `startOffset`
+   */
+  def read(topicPartition: TopicPartition, startOffset: Long, maxLength: Int, maxOffset: Option[Long],
+           minOneMessage: Boolean): Option[(FetchDataInfo, Long)] = {
+    val segments = segmentsOf(topicPartition)
+    var entry = segments.floorEntry(startOffset)
+    while (entry != null) {
+      val remoteSegment = entry.getValue
+      val result = withCachedSegment(topicPartition, remoteSegment) { segment =>
+        Option(segment.read(startOffset, maxOffset, maxLength, segment.size, minOneMessage)).map { fetchInfo =>
+          val records = fetchInfo.records.asInstanceOf[FileRecords]
+          val buffer = records.readInto(ByteBuffer.allocate(records.sizeInBytes), 0)
+          readBytesRate.mark(records.sizeInBytes)
+          val offsetMetadata = fetchInfo.fetchOffsetMetadata
+          val upperBoundOffset = segment.fetchUpperBoundOffset(
+            OffsetPosition(offsetMetadata.messageOffset, offsetMetadata.relativePositionInSegment), records.sizeInBytes)
+            .getOrElse(remoteSegment.nextOffset)
+          (fetchInfo.copy(records = MemoryRecords.readableRecords(buffer)), upperBoundOffset)
+        }
+      }
+      result match {
+        case None => return Some((FetchDataInfo(LogOffsetMetadata.UnknownOffsetMetadata, MemoryRecords.EMPTY), startOffset))
+        case Some(None) => entry = segments.higherEntry(entry.getKey)
+        case Some(fetched) => return fetched
+      }
+    }
+    None
+  }
+
+  /**
+   * Find the first offset at or after `startingOffset` whose timestamp is at least `targetTimestamp` in the remote
+   * segments below `upperBoundOffset`. The segment is chosen by the largest timestamps of the remote segments and is
+   * searched with its time index if it is cached. If it is not, its fetch is started and the base offset of the segment
+   * is returned without a timestamp. It is no later than the offset searched for, so a consumer seeking to it does not
+   * skip any of the records from the target timestamp.
+   *
+   * @return None if no remote segment below `upperBoundOffset` has records from the target timestamp
+   */
+  def findOffsetByTimestamp(topicPartition: TopicPartition, targetTimestamp: Long, startingOffset: Long,
+                            upperBoundOffset: Long): Option[TimestampOffset] = {
+    segmentsOf(topicPartition).values.asScala.iterator
+      .filter(segment => segment.nextOffset > startingOffset && segment.baseOffset < upperBoundOffset)
+      .find(_.maxTimestamp >= targetTimestamp)
+      .flatMap { remoteSegment =>
+        withCachedSegment(topicPartition, remoteSegment)(_.findOffsetByTimestamp(targetTimestamp, startingOffset))
+          .getOrElse(Some(TimestampOffset(RecordBatch.NO_TIMESTAMP, math.max(remoteSegment.baseOffset, startingOffset))))
+      }
+  }
+
+  /**
+   * Collect the aborted transactions of the remote segments from the one containing `startOffset` until one has a
+   * transaction ending at or after `upperBoundOffset`. Only the segments with aborted transactions are fetched.
+   *
+   * @return Whether all the aborted transactions were found in the remote tier, or None if a segment to search is not
+   *         cached, its fetch being started
+   */
+  def collectAbortedTransactions(topicPartition: TopicPartition, startOffset: Long, upperBoundOffset: Long,
+                                 accumulator: List[AbortedTxn] => Unit): Option[Boolean] = {
+    val segments = segmentsOf(topicPartition)
+    var entry = segments.floorEntry(startOffset)
+    while (entry != null) {
+      if (entry.getValue.hasAbortedTransactions) {
+        withCachedSegment(topicPartition, entry.getValue)(_.collectAbortedTxns(startOffset, upperBoundOffset)) match {
+          case None => return None
+          case Some(searchResult) =>
+            accumulator(searchResult.abortedTransactions)
+            if (searchResult.isComplete)
+              return Some(true)
+        }
+      }
+      entry = segments.higherEntry(entry.getKey)
+    }
+    Some(false)
+  }
+
+  /* apply `fun` to the cached segment, or start fetching the segment and return None if it is not cached */
+  private def withCachedSegment[T](topicPartition: TopicPartition, remoteSegment: RemoteLogSegment)(fun: LogSegment => T): Option[T] = {
+    acquire(topicPartition, remoteSegment).map { cached =>
+      try fun(cached.segment)
+      finally release(cached)
+    }
+  }
+
+  private def acquire(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment): Option[CachedSegment] = {
+    val key = (topicPartition, remoteSegment.baseOffset)
+    acquireCached(key).orElse {
+      val fetch = fetches.get(key)
+      if (fetch == null) {
+        val task = new FutureTask[Unit](new Callable[Unit] {
+          def call(): Unit = fetchIntoCache(key, remoteSegment)
+        })
+        if (fetches.putIfAbsent(key, task) == null)
+          fetchExecutor.execute(task)
+      } else if (fetch.isDone && fetches.remove(key, fetch)) {
+        // a failed fetch is reported to one read, the next read fetches the segment again
+        try fetch.get
+        catch {
+          case e: ExecutionException => throw e.getCause
+        }
+      }
+      // the fetch may have completed since the cache was checked
+      acquireCached(key)
+    }
+  }
+
+  private def acquireCached(key: (TopicPartition, Long)): Option[CachedSegment] = cacheLock synchronized {
+    Option(cache.get(key)).map { cached =>
+      cached.readers += 1
+      cached.awaitingRead = false
+      cached
+    }
+  }
+
+  private def fetchIntoCache(key: (TopicPartition, Long), remoteSegment: RemoteLogSegment): Unit = {
+    // a read may have started this fetch after a previous one cached the segment
+    if (!(cacheLock synchronized cache.containsKey(key))) {
+      val cached = fetch(key, remoteSegment)
+      cacheLock synchronized {
+        cache.put(key, cached)
+        cachedBytes += cached.sizeInBytes
+        evict()
+      }
+    }
+    fetches.remove(key)
+  }
+
+  private def release(cached: CachedSegment): Unit = cacheLock synchronized {
+    cached.readers -= 1
+    if (cached.removed && cached.readers == 0)
+      cached.close()
+  }
+
+  private def fetch(key: (TopicPartition, Long), remoteSegment: RemoteLogSegment): CachedSegment = {
+    val (topicPartition, baseOffset) = key
+    val dir = new File(new File(segmentsDir, topicPartition.topic + "-" + topicPartition.partition),
+      Log.filenamePrefixFromOffset(baseOffset) + "-" + fetchCount.getAndIncrement())
+    Files.createDirectories(dir.toPath)
+    try storageManager.fetchLogSegment(topicPartition, remoteSegment, dir)
+    catch {
+      case e: Throwable =>
+        CoreUtils.swallow(Utils.delete(dir))
+        throw e
+    }
+    segmentFetchRate.mark()
+    val segment = new LogSegment(dir, baseOffset, Defaults.IndexInterval, Defaults.MaxIndexSize, rollJitterMs = 0L,
+      time, fileAlreadyExists = true)
+    new CachedSegment(dir, segment, time.milliseconds)
+  }
+
+  /* remove the least recently read segments until the cache fits, segments being read are closed by their last reader.
+   * The segments which were not read since they were fetched are kept until their read comes back for them. */
+  private def evict(): Unit = {
+    val now = time.milliseconds
+    val iterator = cache.values.iterator
+    while (cachedBytes > maxCacheBytes && iterator.hasNext) {
+      val cached = iterator.next()
+      if (!cached.awaitingRead || now - cached.fetchedMs > RemoteLogManager.UnreadSegmentRetentionMs) {
+        iterator.remove()
+        markRemoved(cached)
+      }
+    }
+  }
+
+  private def removeFromCache(key: (TopicPartition, Long)): Unit = cacheLock synchronized {
+    Option(cache.remove(key)).foreach(markRemoved)
+  }
+
+  private def markRemoved(cached: CachedSegment): Unit = {
+    cachedBytes -= cached.sizeInBytes
+    cached.removed = true
+    if (cached.readers == 0)
+      cached.close()
+  }
+
+  def close(): Unit = {
+    fetchExecutor.shutdownNow()
+    fetchExecutor.awaitTermination(30, TimeUnit.SECONDS)
+    cacheLock synchronized {
+      cache.values.asScala.toList.foreach(_.close())
+      cache.clear()
+      cachedBytes = 0L
+    }
+    CoreUtils.swallow(storageManager.close())
+    removeMetric("RemoteLogCacheSizeBytes")
+    removeMetric("RemoteCopyBytesPerSec")
+    removeMetric("RemoteReadBytesPerSec")
+    removeMetric("RemoteSegmentFetchesPerSec")
+    CoreUtils.swallow(Utils.delete(segmentsDir))
+  }
+}
+
+object RemoteLogManager {
+  val SegmentsDirName = "remote-log-segments"
+
+  /* how long a fetched segment is kept over the size of the cache for the read which started its fetch */
+  val UnreadSegmentRetentionMs = 60 * 1000L
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.File
+
+import kafka.log.LogSegment
+import org.apache.kafka.common.{Configurable, TopicPartition}
+
+/**
+ * A log segment stored in the remote tier.
+ *
+ * @param baseOffset The offset of the first record of the segment
+ * @param nextOffset The base offset of the segment which followed it in the log
+ * @param sizeInBytes The size of the segment in bytes, without its indexes
+ * @param maxTimestamp The largest timestamp of the records of the segment, which is used for time based retention
+ * @param hasAbortedTransactions Whether the transaction index of the segment has entries, so that the segment only has
+ *                               to be fetched for its aborted transactions if it does
+ */
+case class RemoteLogSegment(baseOffset: Long, nextOffset: Long, sizeInBytes: Int, maxTimestamp: Long,
+                            hasAbortedTransactions: Boolean)
+
+/**
+ * Stores the closed segments of logs, with their offset, time and transaction indexes, in a remote tier. The broker
+ * copies segments once they are flushed, fetches them back into a local cache to serve fetches for offsets which are
+ * no longer on the local disk, and deletes them according to the retention of the log.
+ *
+ * The segments of a partition are copied in offset order and the replicas of a partition may copy the same segment:
+ * copying a segment which is already stored must succeed without changing it. Implementations are configured with
+ * the broker configurations and must be thread safe.
+ */
+trait RemoteStorageManager extends Configurable {
+
+  /**
+   * Copy `segment`, whose offsets and timestamps are described by `remoteSegment`, and its indexes to the remote tier.
+   */
+  def copyLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment, segment: LogSegment): Unit
+
+  /**
+   * The segments of the partition which are stored in the remote tier, in offset order.
+   */
+  def listLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegment]
+
+  /**
+   * Write the segment and its indexes to `dir`, with the names given by `Log.logFile`, `Log.offsetIndexFile`,
+   * `Log.timeIndexFile` and `Log.transactionIndexFile`.
+   */
+  def fetchLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment, dir: File): Unit
+
+  def deleteLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment): Unit
+
+  def close(): Unit
+}
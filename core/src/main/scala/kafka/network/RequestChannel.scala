@@ -128,7 +128,7 @@ object RequestChannel extends Logging {
       math.max(apiLocalCompleteTimeNanos - requestDequeueTimeNanos, 0L)
     }
 
-    def updateRequestMetrics(networkThreadTimeNanos: Long) {
+    def updateRequestMetrics(networkThreadTimeNanos: Long, latencyPercentiles: Option[RequestLatencyPercentiles]) {
       val endTimeNanos = Time.SYSTEM.nanoseconds
       // In some corner cases, apiLocalCompleteTimeNanos may not be set when the request completes if the remote
       // processing time is really small. This value is set in KafkaApis from a request handling thread.
@@ -143,13 +143,21 @@ object RequestChannel extends Logging {
 
       def nanosToMs(nanos: Long) = math.max(TimeUnit.NANOSECONDS.toMillis(nanos), 0)
 
-      val requestQueueTime = nanosToMs(requestDequeueTimeNanos - startTimeNanos)
-      val apiLocalTime = nanosToMs(apiLocalCompleteTimeNanos - requestDequeueTimeNanos)
-      val apiRemoteTime = nanosToMs(apiRemoteCompleteTimeNanos - apiLocalCompleteTimeNanos)
-      val apiThrottleTime = nanosToMs(responseCompleteTimeNanos - apiRemoteCompleteTimeNanos)
-      val responseQueueTime = nanosToMs(responseDequeueTimeNanos - responseCompleteTimeNanos)
-      val responseSendTime = nanosToMs(endTimeNanos - responseDequeueTimeNanos)
-      val totalTime = nanosToMs(endTimeNanos - startTimeNanos)
+      val requestQueueTimeNanos = requestDequeueTimeNanos - startTimeNanos
+      val apiLocalTimeNanos = apiLocalCompleteTimeNanos - requestDequeueTimeNanos
+      val apiRemoteTimeNanos = apiRemoteCompleteTimeNanos - apiLocalCompleteTimeNanos
+      val apiThrottleTimeNanos = responseCompleteTimeNanos - apiRemoteCompleteTimeNanos
+      val responseQueueTimeNanos = responseDequeueTimeNanos - responseCompleteTimeNanos
+      val responseSendTimeNanos = endTimeNanos - responseDequeueTimeNanos
+      val totalTimeNanos = endTimeNanos - startTimeNanos
+
+      val requestQueueTime = nanosToMs(requestQueueTimeNanos)
+      val apiLocalTime = nanosToMs(apiLocalTimeNanos)
+      val apiRemoteTime = nanosToMs(apiRemoteTimeNanos)
+      val apiThrottleTime = nanosToMs(apiThrottleTimeNanos)
+      val responseQueueTime = nanosToMs(responseQueueTimeNanos)
+      val responseSendTime = nanosToMs(responseSendTimeNanos)
+      val totalTime = nanosToMs(totalTimeNanos)
       val fetchMetricNames =
         if (requestId == ApiKeys.FETCH.id) {
           val isFromFollower = body[FetchRequest].isFromFollower
@@ -172,6 +180,14 @@ object RequestChannel extends Logging {
         m.totalTimeHist.update(totalTime)
       }
 
+      // The percentile histograms keep sub-millisecond precision, the order matches `RequestLatencyPercentiles.TimeNames`
+      latencyPercentiles.foreach { percentiles =>
+        def nanosToFractionalMs(nanos: Long) = math.max(nanos, 0L).toDouble / TimeUnit.MILLISECONDS.toNanos(1)
+        val timesMs = Array(requestQueueTimeNanos, apiLocalTimeNanos, apiRemoteTimeNanos, apiThrottleTimeNanos,
+          responseQueueTimeNanos, responseSendTimeNanos, totalTimeNanos).map(nanosToFractionalMs)
+        metricNames.foreach(metricName => percentiles.record(metricName, listenerName, timesMs))
+      }
+
       // Records network handler thread usage. This is included towards the request quota for the
       // user/client. Throttling is only performed when request handler thread usage
       // is recorded, just before responses are queued for delivery.
@@ -224,7 +240,8 @@ object RequestChannel extends Logging {
   case object CloseConnectionAction extends ResponseAction
 }
 
-class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMetricsGroup {
+class RequestChannel(val numProcessors: Int, val queueSize: Int,
+                     val latencyPercentiles: Option[RequestLatencyPercentiles] = None) extends KafkaMetricsGroup {
   private var responseListeners: List[(Int) => Unit] = Nil
   private val requestQueue = new ArrayBlockingQueue[RequestChannel.Request](queueSize)
   private val responseQueues = new Array[BlockingQueue[RequestChannel.Response]](numProcessors)
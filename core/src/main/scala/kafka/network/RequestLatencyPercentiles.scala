@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.kafka.common.metrics.stats.{Max, Percentile, Percentiles}
+import org.apache.kafka.common.metrics.stats.Percentiles.BucketSizing
+import org.apache.kafka.common.metrics.{Metrics, Sensor}
+import org.apache.kafka.common.network.ListenerName
+
+object RequestLatencyPercentiles {
+  val MetricGroup = "request-latency-metrics"
+
+  // Each histogram uses 4 bytes per bin, so this gives 1000 bins per sample window
+  val HistogramSizeInBytes = 4000
+
+  val RequestQueueTime = "request-queue-time-ms"
+  val LocalTime = "local-time-ms"
+  val RemoteTime = "remote-time-ms"
+  val ThrottleTime = "throttle-time-ms"
+  val ResponseQueueTime = "response-queue-time-ms"
+  val ResponseSendTime = "response-send-time-ms"
+  val TotalTime = "total-time-ms"
+
+  val TimeNames = Seq(RequestQueueTime, LocalTime, RemoteTime, ThrottleTime, ResponseQueueTime, ResponseSendTime, TotalTime)
+
+  private val PercentileSuffixes = Seq("p50" -> 50.0, "p99" -> 99.0, "p999" -> 99.9)
+}
+
+/**
+ * Records the request processing time breakdown of each API into interval-based histograms registered with
+ * `Metrics`. Unlike the Yammer histograms in `RequestMetrics`, which sample from an exponentially decaying
+ * reservoir, every request is counted in the histogram of the current sample window, so the reported tail
+ * percentiles reflect all requests completed in the last `metrics.num.samples` windows.
+ *
+ * Sensors are created lazily the first time an API is seen on a listener and are tagged with both the request
+ * name and the listener name.
+ */
+class RequestLatencyPercentiles(metrics: Metrics, maxTimeMs: Long) {
+  import RequestLatencyPercentiles._
+
+  private val sensors = new ConcurrentHashMap[(String, String), Array[Sensor]]
+
+  def record(requestName: String, listenerName: ListenerName, timesMs: Array[Double]) {
+    val requestSensors = sensorsFor(requestName, listenerName)
+    var i = 0
+    while (i < requestSensors.length) {
+      requestSensors(i).record(timesMs(i))
+      i += 1
+    }
+  }
+
+  private def sensorsFor(requestName: String, listenerName: ListenerName): Array[Sensor] = {
+    val key = (requestName, listenerName.value)
+    val existing = sensors.get(key)
+    if (existing != null)
+      existing
+    else synchronized {
+      val current = sensors.get(key)
+      if (current != null)
+        current
+      else {
+        val created = createSensors(requestName, listenerName)
+        sensors.put(key, created)
+        created
+      }
+    }
+  }
+
+  private def createSensors(requestName: String, listenerName: ListenerName): Array[Sensor] = {
+    val tags = new java.util.LinkedHashMap[String, String]
+    tags.put("request", requestName)
+    tags.put("listener", listenerName.value)
+    TimeNames.map { timeName =>
+      val sensor = metrics.sensor(s"$timeName:$requestName:${listenerName.value}")
+      val percentiles = PercentileSuffixes.map { case (suffix, percentile) =>
+        new Percentile(metrics.metricName(s"$timeName-$suffix", MetricGroup,
+          s"The $percentile percentile of $timeName", tags), percentile)
+      }
+      sensor.add(new Percentiles(HistogramSizeInBytes, maxTimeMs, BucketSizing.LINEAR, percentiles: _*))
+      sensor.add(metrics.metricName(s"$timeName-max", MetricGroup, s"The maximum of $timeName", tags), new Max)
+      sensor
+    }.toArray
+  }
+
+}
@@ -61,7 +61,10 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
 
   this.logIdent = "[Socket Server on Broker " + config.brokerId + "], "
 
-  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests)
+  private val requestLatencyPercentiles =
+    if (config.requestLatencyPercentilesEnable) Some(new RequestLatencyPercentiles(metrics, config.requestLatencyPercentilesMaxMs))
+    else None
+  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests, requestLatencyPercentiles)
   private val processors = new Array[Processor](totalProcessorThreads)
 
   private[network] val acceptors = mutable.Map[EndPoint, Acceptor]()
@@ -487,7 +490,7 @@ private[kafka] class Processor(val id: Int,
     // `channel` can be null if the selector closed the connection because it was idle for too long
     if (channel == null) {
       warn(s"Attempting to send response via channel for which there is no open connection, connection id $id")
-      response.request.updateRequestMetrics(0L)
+      response.request.updateRequestMetrics(0L, requestChannel.latencyPercentiles)
     }
     else {
       selector.send(responseSend)
@@ -542,7 +545,7 @@ private[kafka] class Processor(val id: Int,
     val channel = selector.channel(request.connectionId)
     val openOrClosingChannel = if (channel != null) channel else selector.closingChannel(request.connectionId)
     val networkThreadTimeNanos = if (openOrClosingChannel != null) openOrClosingChannel.getAndResetNetworkThreadTimeNanos() else 0L
-    request.updateRequestMetrics(networkThreadTimeNanos)
+    request.updateRequestMetrics(networkThreadTimeNanos, requestChannel.latencyPercentiles)
   }
 
   private def processDisconnected() {
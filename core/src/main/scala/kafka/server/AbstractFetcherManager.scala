@@ -17,6 +17,8 @@
 
 package kafka.server
 
+import java.util.concurrent.TimeUnit
+
 import scala.collection.mutable
 import scala.collection.Set
 import scala.collection.Map
@@ -27,13 +29,29 @@ import com.yammer.metrics.core.Gauge
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.utils.Utils
 
-abstract class AbstractFetcherManager(protected val name: String, clientId: String, numFetchers: Int = 1)
+/**
+ * Assigns the partitions fetched from each source broker to `numFetchers` fetcher threads by hash. If `rebalance` is
+ * called periodically, partitions are moved from the fetcher thread which appended the most bytes since the last call
+ * to the one which appended the least, and up to `maxFetchers` fetcher threads may be started for a source broker so
+ * that a partition with a high throughput does not hold back the others of its thread.
+ */
+abstract class AbstractFetcherManager(protected val name: String, clientId: String, numFetchers: Int = 1,
+                                      maxFetchers: Int = 1)
   extends Logging with KafkaMetricsGroup {
+  import AbstractFetcherManager._
+
   // map of (source broker_id, fetcher_id per source broker) => fetcher
   private val fetcherThreadMap = new mutable.HashMap[BrokerIdAndFetcherId, AbstractFetcherThread]
+  // the fetcher ids of the partitions moved by `rebalance`, which override the ones given by their hash
+  private val movedPartitionFetcherIds = new mutable.HashMap[TopicPartition, Int]
   private val mapLock = new Object
   this.logIdent = "[" + name + "] "
 
+  private val maxFetchersPerBroker = math.max(numFetchers, maxFetchers)
+
+  private val movedPartitionsRate = newMeter("RebalancedPartitionsPerSec", "partitions", TimeUnit.SECONDS,
+    Map("clientId" -> clientId))
+
   newGauge(
     "MaxLag",
     new Gauge[Long] {
@@ -65,23 +83,24 @@ abstract class AbstractFetcherManager(protected val name: String, clientId: Stri
   )
 
   private def getFetcherId(topic: String, partitionId: Int) : Int = {
-    Utils.abs(31 * topic.hashCode() + partitionId) % numFetchers
+    movedPartitionFetcherIds.getOrElse(new TopicPartition(topic, partitionId),
+      Utils.abs(31 * topic.hashCode() + partitionId) % numFetchers)
   }
 
   // to be defined in subclass to create a specific fetcher
   def createFetcherThread(fetcherId: Int, sourceBroker: BrokerEndPoint): AbstractFetcherThread
 
+  private def addAndStartFetcherThread(brokerAndFetcherId: BrokerAndFetcherId, brokerIdAndFetcherId: BrokerIdAndFetcherId) {
+    val fetcherThread = createFetcherThread(brokerAndFetcherId.fetcherId, brokerAndFetcherId.broker)
+    fetcherThreadMap.put(brokerIdAndFetcherId, fetcherThread)
+    fetcherThread.start
+  }
+
   def addFetcherForPartitions(partitionAndOffsets: Map[TopicPartition, BrokerAndInitialOffset]) {
     mapLock synchronized {
       val partitionsPerFetcher = partitionAndOffsets.groupBy { case(topicPartition, brokerAndInitialOffset) =>
         BrokerAndFetcherId(brokerAndInitialOffset.broker, getFetcherId(topicPartition.topic, topicPartition.partition))}
 
-      def addAndStartFetcherThread(brokerAndFetcherId: BrokerAndFetcherId, brokerIdAndFetcherId: BrokerIdAndFetcherId) {
-        val fetcherThread = createFetcherThread(brokerAndFetcherId.fetcherId, brokerAndFetcherId.broker)
-        fetcherThreadMap.put(brokerIdAndFetcherId, fetcherThread)
-        fetcherThread.start
-      }
-
       for ((brokerAndFetcherId, partitionAndOffsets) <- partitionsPerFetcher) {
         val brokerIdAndFetcherId = BrokerIdAndFetcherId(brokerAndFetcherId.broker.id, brokerAndFetcherId.fetcherId)
         fetcherThreadMap.get(brokerIdAndFetcherId) match {
@@ -108,6 +127,7 @@ abstract class AbstractFetcherManager(protected val name: String, clientId: Stri
     mapLock synchronized {
       for (fetcher <- fetcherThreadMap.values)
         fetcher.removePartitions(partitions)
+      movedPartitionFetcherIds --= partitions
     }
     info("Removed fetcher for partitions %s".format(partitions.mkString(",")))
   }
@@ -125,6 +145,56 @@ abstract class AbstractFetcherManager(protected val name: String, clientId: Stri
     }
   }
 
+  /**
+   * Move partitions between the fetcher threads of each source broker to even out the bytes they appended since the
+   * last call. Partitions are moved from the busiest thread, keeping its busiest partition, to the least busy thread, or
+   * to a new thread while the source broker has fewer than `maxFetchers` threads, as long as each move narrows the gap
+   * between the two threads. Nothing is moved unless the gap is at least a fifth of the load of the busiest thread.
+   */
+  def rebalance() {
+    mapLock synchronized {
+      val partitionBytesPerFetcher = fetcherThreadMap.map { case (id, fetcher) => id -> fetcher.drainPartitionBytes() }
+      for ((brokerId, fetcherBytes) <- partitionBytesPerFetcher.groupBy(_._1.brokerId)) {
+        val (busiestId, busiestBytes) = fetcherBytes.maxBy(_._2.values.sum)
+        val busiestLoad = busiestBytes.values.sum
+        val unusedFetcherId = (0 until maxFetchersPerBroker).find(id => !fetcherBytes.contains(BrokerIdAndFetcherId(brokerId, id)))
+        val (targetId, targetLoad) = unusedFetcherId match {
+          case Some(fetcherId) => (BrokerIdAndFetcherId(brokerId, fetcherId), 0L)
+          case None =>
+            val (leastBusyId, leastBusyBytes) = fetcherBytes.minBy(_._2.values.sum)
+            (leastBusyId, leastBusyBytes.values.sum)
+        }
+
+        if (targetId != busiestId && busiestLoad - targetLoad >= busiestLoad * MinRebalanceGap) {
+          var sourceLoad = busiestLoad
+          var destinationLoad = targetLoad
+          val toMove = mutable.Set[TopicPartition]()
+          busiestBytes.toSeq.sortBy(-_._2).drop(1).foreach { case (topicPartition, bytes) =>
+            if (bytes > 0 && destinationLoad + bytes < sourceLoad - bytes) {
+              toMove += topicPartition
+              sourceLoad -= bytes
+              destinationLoad += bytes
+            }
+          }
+          if (toMove.nonEmpty)
+            movePartitions(toMove, busiestId, targetId)
+        }
+      }
+    }
+  }
+
+  private def movePartitions(partitions: Set[TopicPartition], sourceId: BrokerIdAndFetcherId, targetId: BrokerIdAndFetcherId) {
+    val source = fetcherThreadMap(sourceId)
+    if (!fetcherThreadMap.contains(targetId))
+      addAndStartFetcherThread(BrokerAndFetcherId(source.sourceBroker, targetId.fetcherId), targetId)
+    val states = source.removePartitionsForMove(partitions)
+    fetcherThreadMap(targetId).addPartitionStates(states)
+    states.keys.foreach(movedPartitionFetcherIds.put(_, targetId.fetcherId))
+    movedPartitionsRate.mark(states.size)
+    info(s"Moved partitions ${states.keys.mkString(",")} of broker ${sourceId.brokerId} from fetcher ${sourceId.fetcherId} " +
+      s"to fetcher ${targetId.fetcherId}")
+  }
+
   def closeAllFetchers() {
     mapLock synchronized {
       for ( (_, fetcher) <- fetcherThreadMap) {
@@ -139,6 +209,11 @@ abstract class AbstractFetcherManager(protected val name: String, clientId: Stri
   }
 }
 
+object AbstractFetcherManager {
+  // the smallest gap between the loads of two fetcher threads, relative to the load of the busiest one, worth a rebalance
+  private val MinRebalanceGap = 0.2
+}
+
 case class BrokerAndFetcherId(broker: BrokerEndPoint, fetcherId: Int)
 
 case class BrokerAndInitialOffset(broker: BrokerEndPoint, initOffset: Long)
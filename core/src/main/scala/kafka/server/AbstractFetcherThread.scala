@@ -31,7 +31,7 @@ import AbstractFetcherThread._
 
 import scala.collection.{Map, Set, mutable}
 import scala.collection.JavaConverters._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService, Future, TimeUnit}
 import java.util.concurrent.atomic.AtomicLong
 
 import com.yammer.metrics.core.Gauge
@@ -42,13 +42,17 @@ import org.apache.kafka.common.requests.EpochEndOffset
 
 /**
  *  Abstract class for fetching data from multiple partitions from the same broker.
+ *
+ *  If an `appendExecutor` is given, the data of the partitions of a fetch response is processed on it in parallel, the
+ *  fetcher thread still holds the partition map lock until every partition is processed.
  */
 abstract class AbstractFetcherThread(name: String,
                                      clientId: String,
                                      val sourceBroker: BrokerEndPoint,
                                      fetchBackOffMs: Int = 0,
                                      isInterruptible: Boolean = true,
-                                     includeLogTruncation: Boolean
+                                     includeLogTruncation: Boolean,
+                                     appendExecutor: Option[ExecutorService] = None
                                     )
   extends ShutdownableThread(name, isInterruptible) {
 
@@ -59,9 +63,13 @@ abstract class AbstractFetcherThread(name: String,
   private val partitionMapLock = new ReentrantLock
   private val partitionMapCond = partitionMapLock.newCondition()
 
+  // the bytes appended to each partition since the last call to `drainPartitionBytes`
+  private val partitionBytes = new mutable.HashMap[TopicPartition, Long]
+
   private val metricId = new ClientIdAndBroker(clientId, sourceBroker.host, sourceBroker.port)
   val fetcherStats = new FetcherStats(metricId)
   val fetcherLagStats = new FetcherLagStats(metricId)
+  fetcherStats.registerThreadGauges(fetcherLagStats, partitionStates.size)
 
   /* callbacks to be defined in subclass */
 
@@ -168,61 +176,81 @@ abstract class AbstractFetcherThread(name: String,
       // process fetched data
       inLock(partitionMapLock) {
 
-        responseData.foreach { case (topicPartition, partitionData) =>
-          val topic = topicPartition.topic
-          val partitionId = topicPartition.partition
-          Option(partitionStates.stateValue(topicPartition)).foreach(currentPartitionFetchState =>
-            // we append to the log if the current offset is defined and it is the same as the offset requested during fetch
-            if (fetchRequest.offset(topicPartition) == currentPartitionFetchState.fetchOffset) {
-              partitionData.error match {
-                case Errors.NONE =>
-                  try {
-                    val records = partitionData.toRecords
-                    val newOffset = records.batches.asScala.lastOption.map(_.nextOffset).getOrElse(
-                      currentPartitionFetchState.fetchOffset)
-
-                    fetcherLagStats.getAndMaybePut(topic, partitionId).lag = Math.max(0L, partitionData.highWatermark - newOffset)
-                    // Once we hand off the partition data to the subclass, we can't mess with it any more in this thread
-                    processPartitionData(topicPartition, currentPartitionFetchState.fetchOffset, partitionData)
-
-                    val validBytes = records.validBytes
-                    if (validBytes > 0) {
-                      // Update partitionStates only if there is no exception during processPartitionData
+        val appends = maybeProcessInParallel(fetchRequest, responseData)
+        try {
+          responseData.foreach { case (topicPartition, partitionData) =>
+            val topic = topicPartition.topic
+            val partitionId = topicPartition.partition
+            Option(partitionStates.stateValue(topicPartition)).foreach(currentPartitionFetchState =>
+              // we append to the log if the current offset is defined and it is the same as the offset requested during fetch
+              if (fetchRequest.offset(topicPartition) == currentPartitionFetchState.fetchOffset) {
+                partitionData.error match {
+                  case Errors.NONE =>
+                    try {
+                      val records = partitionData.toRecords
+                      val newOffset = records.batches.asScala.lastOption.map(_.nextOffset).getOrElse(
+                        currentPartitionFetchState.fetchOffset)
+
+                      fetcherLagStats.getAndMaybePut(topic, partitionId).lag = Math.max(0L, partitionData.highWatermark - newOffset)
+                      // Once we hand off the partition data to the subclass, we can't mess with it any more in this thread
+                      appends.get(topicPartition) match {
+                        case Some(future) =>
+                          try future.get
+                          catch {
+                            case e: ExecutionException => throw e.getCause
+                          }
+                        case None =>
+                          processPartitionData(topicPartition, currentPartitionFetchState.fetchOffset, partitionData)
+                      }
+
+                      val validBytes = records.validBytes
+                      if (validBytes > 0) {
+                        // Update partitionStates only if there is no exception during processPartitionData
+                        partitionStates.updateAndMoveToEnd(topicPartition, new PartitionFetchState(newOffset))
+                        fetcherStats.byteRate.mark(validBytes)
+                        partitionBytes(topicPartition) = partitionBytes.getOrElse(topicPartition, 0L) + validBytes
+                      }
+                    } catch {
+                      case ime: CorruptRecordException =>
+                        // we log the error and continue. This ensures two things
+                        // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread down and cause other topic partition to also lag
+                        // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes can cause this), we simply continue and
+                        // should get fixed in the subsequent fetches
+                        logger.error("Found invalid messages during fetch for partition [" + topic + "," + partitionId + "] offset " + currentPartitionFetchState.fetchOffset  + " error " + ime.getMessage)
+                        updatePartitionsWithError(topicPartition);
+                      case e: Throwable =>
+                        throw new KafkaException("error processing data for partition [%s,%d] offset %d"
+                          .format(topic, partitionId, currentPartitionFetchState.fetchOffset), e)
+                    }
+                  case Errors.OFFSET_OUT_OF_RANGE =>
+                    try {
+                      val newOffset = handleOffsetOutOfRange(topicPartition)
                       partitionStates.updateAndMoveToEnd(topicPartition, new PartitionFetchState(newOffset))
-                      fetcherStats.byteRate.mark(validBytes)
+                      error("Current offset %d for partition [%s,%d] out of range; reset offset to %d"
+                        .format(currentPartitionFetchState.fetchOffset, topic, partitionId, newOffset))
+                    } catch {
+                      case e: FatalExitError => throw e
+                      case e: Throwable =>
+                        error("Error getting offset for partition [%s,%d] to broker %d".format(topic, partitionId, sourceBroker.id), e)
+                        updatePartitionsWithError(topicPartition)
                     }
-                  } catch {
-                    case ime: CorruptRecordException =>
-                      // we log the error and continue. This ensures two things
-                      // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread down and cause other topic partition to also lag
-                      // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes can cause this), we simply continue and
-                      // should get fixed in the subsequent fetches
-                      logger.error("Found invalid messages during fetch for partition [" + topic + "," + partitionId + "] offset " + currentPartitionFetchState.fetchOffset  + " error " + ime.getMessage)
-                      updatePartitionsWithError(topicPartition);
-                    case e: Throwable =>
-                      throw new KafkaException("error processing data for partition [%s,%d] offset %d"
-                        .format(topic, partitionId, currentPartitionFetchState.fetchOffset), e)
-                  }
-                case Errors.OFFSET_OUT_OF_RANGE =>
-                  try {
-                    val newOffset = handleOffsetOutOfRange(topicPartition)
-                    partitionStates.updateAndMoveToEnd(topicPartition, new PartitionFetchState(newOffset))
-                    error("Current offset %d for partition [%s,%d] out of range; reset offset to %d"
-                      .format(currentPartitionFetchState.fetchOffset, topic, partitionId, newOffset))
-                  } catch {
-                    case e: FatalExitError => throw e
-                    case e: Throwable =>
-                      error("Error getting offset for partition [%s,%d] to broker %d".format(topic, partitionId, sourceBroker.id), e)
+                  case _ =>
+                    if (isRunning.get) {
+                      error("Error for partition [%s,%d] to broker %d:%s".format(topic, partitionId, sourceBroker.id,
+                        partitionData.exception.get))
                       updatePartitionsWithError(topicPartition)
-                  }
-                case _ =>
-                  if (isRunning.get) {
-                    error("Error for partition [%s,%d] to broker %d:%s".format(topic, partitionId, sourceBroker.id,
-                      partitionData.exception.get))
-                    updatePartitionsWithError(topicPartition)
-                  }
-              }
-            })
+                    }
+                }
+              })
+          }
+        } finally {
+          // never release the lock while a partition is still being processed, it may be removed once it is released
+          appends.values.foreach { future =>
+            try future.get
+            catch {
+              case _: ExecutionException =>
+            }
+          }
         }
       }
     }
@@ -233,6 +261,30 @@ abstract class AbstractFetcherThread(name: String,
     }
   }
 
+  /**
+   * Hand the data of the partitions which will be appended to the append executor, if there is one and more than one
+   * partition has data. The fetcher thread must hold the partition map lock.
+   */
+  private def maybeProcessInParallel(fetchRequest: REQ, responseData: Seq[(TopicPartition, PD)]): Map[TopicPartition, Future[Unit]] = {
+    appendExecutor match {
+      case Some(executor) =>
+        val toProcess = responseData.filter { case (topicPartition, partitionData) =>
+          partitionData.error == Errors.NONE && partitionData.toRecords.sizeInBytes > 0 &&
+            Option(partitionStates.stateValue(topicPartition)).exists(_.fetchOffset == fetchRequest.offset(topicPartition))
+        }
+        if (toProcess.size <= 1)
+          Map.empty
+        else
+          toProcess.map { case (topicPartition, partitionData) =>
+            val fetchOffset = partitionStates.stateValue(topicPartition).fetchOffset
+            topicPartition -> executor.submit(new Callable[Unit] {
+              def call(): Unit = processPartitionData(topicPartition, fetchOffset, partitionData)
+            })
+          }.toMap
+      case None => Map.empty
+    }
+  }
+
   def addPartitions(partitionAndOffsets: Map[TopicPartition, Long]) {
     partitionMapLock.lockInterruptibly()
     try {
@@ -287,11 +339,52 @@ abstract class AbstractFetcherThread(name: String,
     try {
       topicPartitions.foreach { topicPartition =>
         partitionStates.remove(topicPartition)
+        partitionBytes.remove(topicPartition)
         fetcherLagStats.unregister(topicPartition.topic, topicPartition.partition)
       }
     } finally partitionMapLock.unlock()
   }
 
+  /**
+   * Remove the given partitions to move them to another fetcher thread, and return the fetch states of those which
+   * were fetched by this thread, see `addPartitionStates`.
+   */
+  private[server] def removePartitionsForMove(topicPartitions: Set[TopicPartition]): Map[TopicPartition, PartitionFetchState] = {
+    partitionMapLock.lockInterruptibly()
+    try {
+      val removed = topicPartitions.flatMap { topicPartition =>
+        Option(partitionStates.stateValue(topicPartition)).map(topicPartition -> _)
+      }.toMap
+      removePartitions(removed.keySet)
+      removed
+    } finally partitionMapLock.unlock()
+  }
+
+  /**
+   * Add partitions moved from another fetcher thread with the fetch states they had in it, unlike `addPartitions` a
+   * partition whose log was truncated is not truncated again.
+   */
+  private[server] def addPartitionStates(partitionFetchStates: Map[TopicPartition, PartitionFetchState]) {
+    partitionMapLock.lockInterruptibly()
+    try {
+      val newPartitionToState = partitionFetchStates.filter { case (tp, _) => !partitionStates.contains(tp) }
+      partitionStates.set((states().toMap ++ newPartitionToState).asJava)
+      partitionMapCond.signalAll()
+    } finally partitionMapLock.unlock()
+  }
+
+  /**
+   * Return the bytes appended to each partition of this thread since the last call, and start counting again.
+   */
+  private[server] def drainPartitionBytes(): Map[TopicPartition, Long] = {
+    partitionMapLock.lockInterruptibly()
+    try {
+      val bytes = partitionStates.partitionSet.asScala.map(tp => tp -> partitionBytes.getOrElse(tp, 0L)).toMap
+      partitionBytes.clear()
+      bytes
+    } finally partitionMapLock.unlock()
+  }
+
   def partitionCount() = {
     partitionMapLock.lockInterruptibly()
     try partitionStates.size
@@ -320,6 +413,8 @@ object FetcherMetrics {
   val ConsumerLag = "ConsumerLag"
   val RequestsPerSec = "RequestsPerSec"
   val BytesPerSec = "BytesPerSec"
+  val FetcherMaxLag = "FetcherMaxLag"
+  val FetcherPartitionCount = "FetcherPartitionCount"
 }
 
 class FetcherLagMetrics(metricId: ClientIdTopicPartition) extends KafkaMetricsGroup {
@@ -385,9 +480,27 @@ class FetcherStats(metricId: ClientIdAndBroker) extends KafkaMetricsGroup {
 
   val byteRate = newMeter(FetcherMetrics.BytesPerSec, "bytes", TimeUnit.SECONDS, tags)
 
+  // the lag and the number of partitions of a single fetcher thread
+  private[server] def registerThreadGauges(lagStats: FetcherLagStats, partitionCount: => Int) {
+    newGauge(FetcherMetrics.FetcherMaxLag,
+      new Gauge[Long] {
+        def value = lagStats.stats.values.foldLeft(0L)((maxLag, lagMetrics) => maxLag.max(lagMetrics.lag))
+      },
+      tags
+    )
+    newGauge(FetcherMetrics.FetcherPartitionCount,
+      new Gauge[Int] {
+        def value = partitionCount
+      },
+      tags
+    )
+  }
+
   def unregister() {
     removeMetric(FetcherMetrics.RequestsPerSec, tags)
     removeMetric(FetcherMetrics.BytesPerSec, tags)
+    removeMetric(FetcherMetrics.FetcherMaxLag, tags)
+    removeMetric(FetcherMetrics.FetcherPartitionCount, tags)
   }
 
 }
@@ -405,13 +405,13 @@ class ClientQuotaManager(private val config: ClientQuotaManagerConfig,
             .quota(quota)
   }
 
-  protected def createSensor(sensorName: String, metricName: MetricName): Sensor = {
+  protected def createSensor(sensorName: String, metricName: MetricName, metricConfig: MetricConfig = null): Sensor = {
     sensorAccessor.getOrCreate(
         sensorName,
         ClientQuotaManagerConfig.InactiveSensorExpirationTimeSeconds,
         lock, metrics,
         () => metricName,
-        () => null,
+        () => metricConfig,
         () => measurableStat
       )
   }
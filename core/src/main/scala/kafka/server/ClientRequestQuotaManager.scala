@@ -28,11 +28,52 @@ class ClientRequestQuotaManager(private val config: ClientQuotaManagerConfig,
                          private val time: Time) extends ClientQuotaManager(config, metrics, QuotaType.Request, time) {
   val maxThrottleTimeMs = TimeUnit.SECONDS.toMillis(this.config.quotaWindowSizeSeconds)
   val exemptSensor = createSensor(exemptSensorName, exemptMetricName)
+  // Resource usage is measured over the same windows as the request quota, but is never enforced
+  private val resourceUsageMetricConfig = new MetricConfig()
+    .timeWindow(this.config.quotaWindowSizeSeconds, TimeUnit.SECONDS)
+    .samples(this.config.numQuotaSamples)
 
   def recordExempt(value: Double) {
     exemptSensor.record(value)
   }
 
+  /**
+   * Records the network thread time spent on the requests of a user/client-id. Unlike the request time tracked
+   * for the quota, the usage is recorded for the actual user and client-id and regardless of quota exemption.
+   * Like the other resource usage metrics, it is recorded as a percentage of one thread.
+   */
+  def recordNetworkThreadUsage(sanitizedUser: String, clientId: String, timeNanos: Long) {
+    recordResourceUsage("network-thread-time", "Tracking network thread time utilization percentage per user/client-id",
+      sanitizedUser, clientId, timeNanos * ClientQuotaManagerConfig.NanosToPercentagePerSecond)
+  }
+
+  /**
+   * Records the CPU time (not wall-clock time) consumed by request handler threads on behalf of a user/client-id.
+   */
+  def recordRequestHandlerCpuUsage(sanitizedUser: String, clientId: String, cpuTimeNanos: Long) {
+    recordResourceUsage("request-handler-cpu-time", "Tracking request handler thread CPU utilization percentage per user/client-id",
+      sanitizedUser, clientId, cpuTimeNanos * ClientQuotaManagerConfig.NanosToPercentagePerSecond)
+  }
+
+  def recordAllocatedBytes(sanitizedUser: String, clientId: String, bytes: Long) {
+    recordResourceUsage("allocated-bytes", "Tracking bytes allocated per second by request handler threads per user/client-id",
+      sanitizedUser, clientId, bytes)
+  }
+
+  def recordDownConversionUsage(sanitizedUser: String, clientId: String, timeNanos: Long) {
+    recordResourceUsage("down-conversion-time", "Tracking fetch down-conversion time utilization percentage per user/client-id",
+      sanitizedUser, clientId, timeNanos * ClientQuotaManagerConfig.NanosToPercentagePerSecond)
+  }
+
+  private def recordResourceUsage(name: String, description: String, sanitizedUser: String, clientId: String, value: Double) {
+    val sensorName = s"$name-$sanitizedUser:$clientId"
+    val sensor = Option(metrics.getSensor(sensorName)).getOrElse {
+      createSensor(sensorName, metrics.metricName(name, QuotaType.Request.toString, description,
+        "user", sanitizedUser, "client-id", clientId), resourceUsageMetricConfig)
+    }
+    sensor.record(value)
+  }
+
   override protected def throttleTime(clientMetric: KafkaMetric, config: MetricConfig): Long = {
     math.min(super.throttleTime(clientMetric, config), maxThrottleTimeMs)
   }
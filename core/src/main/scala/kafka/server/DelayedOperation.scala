@@ -17,17 +17,20 @@
 
 package kafka.server
 
+import java.util
 import java.util.concurrent._
 import java.util.concurrent.atomic._
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.locks.ReentrantLock
 
 import com.yammer.metrics.core.Gauge
 import kafka.metrics.KafkaMetricsGroup
-import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
+import kafka.utils.CoreUtils.inLock
 import kafka.utils._
 import kafka.utils.timer._
+import org.apache.kafka.common.utils.Utils
 
 import scala.collection._
+import scala.collection.JavaConverters._
 import scala.collection.mutable.ListBuffer
 
 /**
@@ -47,6 +50,9 @@ abstract class DelayedOperation(override val delayMs: Long) extends TimerTask wi
 
   private val completed = new AtomicBoolean(false)
 
+  /* called once the operation is completed by the purgatory watching it, see `DelayedOperationPurgatory.tryCompleteElseWatch` */
+  @volatile private[server] var completionListener: () => Unit = null
+
   /*
    * Force completing the delayed operation, if not already completed.
    * This function can be triggered when
@@ -64,6 +70,9 @@ abstract class DelayedOperation(override val delayMs: Long) extends TimerTask wi
       // cancel the timeout timer
       cancel()
       onComplete()
+      val listener = completionListener
+      if (listener != null)
+        listener()
       true
     } else {
       false
@@ -116,6 +125,9 @@ abstract class DelayedOperation(override val delayMs: Long) extends TimerTask wi
 
 object DelayedOperationPurgatory {
 
+  /* the number of shards of the watch lists, each with its own lock */
+  val Shards = 512
+
   def apply[T <: DelayedOperation](purgatoryName: String,
                                    brokerId: Int = 0,
                                    purgeInterval: Int = 1000,
@@ -129,19 +141,22 @@ object DelayedOperationPurgatory {
 
 /**
  * A helper purgatory class for bookkeeping delayed operations with a timeout, and expiring timed out operations.
+ *
+ * The watch lists are sharded by key into `shards` maps, each with its own lock, so that watching and checking the
+ * operations of different keys seldom contend. An operation watched by the purgatory records its keys for purging when
+ * it is completed, and a purge only visits the watch lists of those keys rather than all of them.
  */
 final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
                                                              timeoutTimer: Timer,
                                                              brokerId: Int = 0,
                                                              purgeInterval: Int = 1000,
                                                              reaperEnabled: Boolean = true,
-                                                             timerEnabled: Boolean = true)
+                                                             timerEnabled: Boolean = true,
+                                                             shards: Int = DelayedOperationPurgatory.Shards)
         extends Logging with KafkaMetricsGroup {
 
-  /* a list of operation watching keys */
-  private val watchersForKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key)))
-
-  private val removeWatchersLock = new ReentrantReadWriteLock()
+  /* the shards of the operation watching keys */
+  private val watcherLists = Array.fill(shards)(new WatcherList)
 
   // the number of estimated total operations in the purgatory
   private[this] val estimatedTotalOperations = new AtomicInteger(0)
@@ -200,6 +215,9 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     if (isCompletedByMe)
       return true
 
+    // record the keys for purging once the operation is completed, before it is watched on any of them
+    operation.completionListener = () => markForPurge(watchKeys)
+
     var watchCreated = false
     for(key <- watchKeys) {
       // If the operation is already completed, stop adding it to the rest of the watcher list.
@@ -237,7 +255,8 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * @return the number of completed operations during this process
    */
   def checkAndComplete(key: Any): Int = {
-    val watchers = inReadLock(removeWatchersLock) { watchersForKey.get(key) }
+    val watcherList = watcherListForKey(key)
+    val watchers = inLock(watcherList.lock) { watcherList.watchersByKey.get(key) }
     if(watchers == null)
       0
     else
@@ -260,8 +279,9 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     * Cancel watching on any delayed operations for the given key. Note the operation will not be completed
     */
   def cancelForKey(key: Any): List[T] = {
-    inWriteLock(removeWatchersLock) {
-      val watchers = watchersForKey.remove(key)
+    val watcherList = watcherListForKey(key)
+    inLock(watcherList.lock) {
+      val watchers = watcherList.watchersByKey.remove(key)
       if (watchers != null)
         watchers.cancel()
       else
@@ -272,16 +292,23 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * Return all the current watcher lists,
    * note that the returned watchers may be removed from the list by other threads
    */
-  private def allWatchers = inReadLock(removeWatchersLock) { watchersForKey.values }
+  private def allWatchers: Iterable[Watchers] = watcherLists.flatMap(_.allWatchers)
+
+  private def watcherListForKey(key: Any): WatcherList = watcherLists(Utils.toPositive(key.hashCode) % watcherLists.length)
 
   /*
-   * Return the watch list of the given key, note that we need to
-   * grab the removeWatchersLock to avoid the operation being added to a removed watcher list
+   * Return the watch list of the given key, note that we need to grab the lock
+   * of its shard to avoid the operation being added to a removed watcher list
    */
   private def watchForOperation(key: Any, operation: T) {
-    inReadLock(removeWatchersLock) {
-      val watcher = watchersForKey.getAndMaybePut(key)
-      watcher.watch(operation)
+    val watcherList = watcherListForKey(key)
+    inLock(watcherList.lock) {
+      var watchers = watcherList.watchersByKey.get(key)
+      if (watchers == null) {
+        watchers = new Watchers(key)
+        watcherList.watchersByKey.put(key, watchers)
+      }
+      watchers.watch(operation)
     }
   }
 
@@ -289,17 +316,25 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * Remove the key from watcher lists if its list is empty
    */
   private def removeKeyIfEmpty(key: Any, watchers: Watchers) {
-    inWriteLock(removeWatchersLock) {
+    val watcherList = watcherListForKey(key)
+    inLock(watcherList.lock) {
       // if the current key is no longer correlated to the watchers to remove, skip
-      if (watchersForKey.get(key) != watchers)
+      if (watcherList.watchersByKey.get(key) != watchers)
         return
 
       if (watchers != null && watchers.isEmpty) {
-        watchersForKey.remove(key)
+        watcherList.watchersByKey.remove(key)
       }
     }
   }
 
+  /*
+   * Record the keys of a completed operation, their watch lists may still have it
+   */
+  private def markForPurge(keys: Seq[Any]) {
+    keys.foreach(key => watcherListForKey(key).keysToPurge.add(key))
+  }
+
   /**
    * Shutdown the expire reaper thread
    */
@@ -309,6 +344,33 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     timeoutTimer.shutdown()
   }
 
+  /**
+   * A shard of the watch lists, the map of keys to watchers is guarded by `lock`
+   */
+  private class WatcherList {
+    val watchersByKey = new util.HashMap[Any, Watchers]
+    val lock = new ReentrantLock
+
+    /* the keys whose watch lists may have completed operations */
+    val keysToPurge: util.Set[Any] = util.Collections.newSetFromMap(new ConcurrentHashMap[Any, java.lang.Boolean])
+
+    def allWatchers: List[Watchers] = inLock(lock) { watchersByKey.values.asScala.toList }
+
+    // purge the completed operations from the watch lists of the keys recorded since the last purge
+    def purgeCompleted(): Int = {
+      var purged = 0
+      val iter = keysToPurge.iterator()
+      while (iter.hasNext) {
+        val key = iter.next()
+        iter.remove()
+        val watchers = inLock(lock) { watchersByKey.get(key) }
+        if (watchers != null)
+          purged += watchers.purgeCompleted()
+      }
+      purged
+    }
+  }
+
   /**
    * A linked list of watched delayed operations based on some key
    */
@@ -391,7 +453,7 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
       // a little overestimated total number of operations.
       estimatedTotalOperations.getAndSet(delayed)
       debug("Begin purging watch lists")
-      val purged = allWatchers.map(_.purgeCompleted()).sum
+      val purged = watcherLists.map(_.purgeCompleted()).sum
       debug("Purged %d elements from watch lists.".format(purged))
     }
   }
@@ -35,7 +35,7 @@ import kafka.coordinator.transaction.{InitProducerIdResult, TransactionCoordinat
 import kafka.log.{Log, LogManager, TimestampOffset}
 import kafka.network.{RequestChannel, RequestOrResponseSend}
 import kafka.security.auth._
-import kafka.utils.{CoreUtils, Exit, Logging, ZKGroupTopicDirs, ZkUtils}
+import kafka.utils.{CoreUtils, Exit, Logging, ThreadResourceUsage, ZKGroupTopicDirs, ZkUtils}
 import org.apache.kafka.common.errors._
 import org.apache.kafka.common.internals.FatalExitError
 import org.apache.kafka.common.internals.Topic.{GROUP_METADATA_TOPIC_NAME, TRANSACTION_STATE_TOPIC_NAME, isInternal}
@@ -90,6 +90,8 @@ class KafkaApis(val requestChannel: RequestChannel,
    * Top-level method that handles all requests and multiplexes to the right api
    */
   def handle(request: RequestChannel.Request) {
+    val startCpuTimeNanos = if (config.clientResourceAccountingEnable) ThreadResourceUsage.currentThreadCpuTimeNanos else 0L
+    val startAllocatedBytes = if (config.clientResourceAccountingEnable) ThreadResourceUsage.currentThreadAllocatedBytes else 0L
     try {
       trace("Handling request:%s from connection %s;securityProtocol:%s,principal:%s".
         format(request.requestDesc(true), request.connectionId, request.securityProtocol, request.session.principal))
@@ -134,6 +136,13 @@ class KafkaApis(val requestChannel: RequestChannel,
       case e: Throwable => handleError(request, e)
     } finally {
       request.apiLocalCompleteTimeNanos = time.nanoseconds
+      if (config.clientResourceAccountingEnable) {
+        val clientId = Option(request.header).fold("")(_.clientId)
+        quotas.request.recordRequestHandlerCpuUsage(request.session.sanitizedUser, clientId,
+          ThreadResourceUsage.currentThreadCpuTimeNanos - startCpuTimeNanos)
+        quotas.request.recordAllocatedBytes(request.session.sanitizedUser, clientId,
+          ThreadResourceUsage.currentThreadAllocatedBytes - startAllocatedBytes)
+      }
     }
   }
 
@@ -520,7 +529,10 @@ class KafkaApis(val requestChannel: RequestChannel,
 
         downConvertMagic.map { magic =>
           trace(s"Down converting records from partition $tp to message format version $magic for fetch request from $clientId")
+          val startNanos = time.nanoseconds
           val converted = data.records.downConvert(magic, fetchRequest.fetchData.get(tp).fetchOffset)
+          if (config.clientResourceAccountingEnable)
+            quotas.request.recordDownConversionUsage(request.session.sanitizedUser, clientId, time.nanoseconds - startNanos)
           new FetchResponse.PartitionData(data.error, data.highWatermark, FetchResponse.INVALID_LAST_STABLE_OFFSET,
             data.logStartOffset, data.abortedTransactions, converted)
         }
@@ -925,19 +937,22 @@ class KafkaApis(val requestChannel: RequestChannel,
     val metadataRequest = request.body[MetadataRequest]
     val requestVersion = request.header.apiVersion()
 
+    // Handle old metadata request logic. Version 0 has no way to specify "no topics".
+    val isAllTopicsRequest =
+      if (requestVersion == 0)
+        metadataRequest.topics() == null || metadataRequest.topics().isEmpty
+      else
+        metadataRequest.isAllTopics
+
+    // Read the generation of the response cache before any metadata, so that a response which is built while the
+    // metadata cache is updated is not cached for the new generation
+    val responseCacheGeneration = metadataCache.responseCache.map(_.generation)
+
     val topics =
-      // Handle old metadata request logic. Version 0 has no way to specify "no topics".
-      if (requestVersion == 0) {
-        if (metadataRequest.topics() == null || metadataRequest.topics().isEmpty)
-          metadataCache.getAllTopics()
-        else
-          metadataRequest.topics.asScala.toSet
-      } else {
-        if (metadataRequest.isAllTopics)
-          metadataCache.getAllTopics()
-        else
-          metadataRequest.topics.asScala.toSet
-      }
+      if (isAllTopicsRequest)
+        metadataCache.getAllTopics()
+      else
+        metadataRequest.topics.asScala.toSet
 
     var (authorizedTopics, unauthorizedForDescribeTopics) =
       topics.partition(topic => authorize(request.session, Describe, new Resource(Topic, topic)))
@@ -961,37 +976,77 @@ class KafkaApis(val requestChannel: RequestChannel,
     // do not disclose the existence of topics unauthorized for Describe, so we've not even checked if they exist or not
     val unauthorizedForDescribeTopicMetadata =
       // In case of all topics, don't include topics unauthorized for Describe
-      if ((requestVersion == 0 && (metadataRequest.topics == null || metadataRequest.topics.isEmpty)) || metadataRequest.isAllTopics)
+      if (isAllTopicsRequest)
         Set.empty[MetadataResponse.TopicMetadata]
       else
         unauthorizedForDescribeTopics.map(topic =>
           new MetadataResponse.TopicMetadata(Errors.UNKNOWN_TOPIC_OR_PARTITION, topic, false, java.util.Collections.emptyList()))
 
-    // In version 0, we returned an error when brokers with replicas were unavailable,
-    // while in higher versions we simply don't include the broker in the returned broker list
-    val errorUnavailableEndpoints = requestVersion == 0
-    val topicMetadata =
-      if (authorizedTopics.isEmpty)
-        Seq.empty[MetadataResponse.TopicMetadata]
+    // The response only depends on the metadata cache if every requested topic is authorized, so it can be shared
+    // with other clients requesting the same topics on the same listener
+    val responseCacheKey =
+      if (unauthorizedForDescribeTopics.isEmpty && unauthorizedForCreateTopics.isEmpty)
+        metadataCache.responseCache.map(_ => MetadataResponseCache.Key(request.listenerName, requestVersion,
+          if (isAllTopicsRequest) None else Some(authorizedTopics)))
       else
-        getTopicMetadata(metadataRequest.allowAutoTopicCreation, authorizedTopics, request.listenerName,
-          errorUnavailableEndpoints)
+        None
 
-    val completeTopicMetadata = topicMetadata ++ unauthorizedForCreateTopicMetadata ++ unauthorizedForDescribeTopicMetadata
+    def sendCachedResponse(body: ByteBuffer) {
+      sendResponseMaybeThrottle(request, request.header.clientId, { requestThrottleMs =>
+        requestChannel.sendResponse(RequestChannel.Response(request,
+          MetadataResponseCache.toSend(request.connectionId, request.header, requestThrottleMs, body)))
+      })
+    }
 
-    val brokers = metadataCache.getAliveBrokers
+    val cachedBody = for {
+      cache <- metadataCache.responseCache
+      key <- responseCacheKey
+      body <- cache.get(key)
+    } yield body
 
-    trace("Sending topic metadata %s and brokers %s for correlation id %d to client %s".format(completeTopicMetadata.mkString(","),
-      brokers.mkString(","), request.header.correlationId, request.header.clientId))
+    cachedBody match {
+      case Some(body) =>
+        trace("Sending cached topic metadata for correlation id %d to client %s".format(request.header.correlationId,
+          request.header.clientId))
+        sendCachedResponse(body)
 
-    sendResponseMaybeThrottle(request, requestThrottleMs =>
-      new MetadataResponse(
-        requestThrottleMs,
-        brokers.map(_.getNode(request.listenerName)).asJava,
-        clusterId,
-        metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
-        completeTopicMetadata.asJava
-      ))
+      case None =>
+        // In version 0, we returned an error when brokers with replicas were unavailable,
+        // while in higher versions we simply don't include the broker in the returned broker list
+        val errorUnavailableEndpoints = requestVersion == 0
+        val topicMetadata =
+          if (authorizedTopics.isEmpty)
+            Seq.empty[MetadataResponse.TopicMetadata]
+          else
+            getTopicMetadata(metadataRequest.allowAutoTopicCreation, authorizedTopics, request.listenerName,
+              errorUnavailableEndpoints)
+
+        val completeTopicMetadata = topicMetadata ++ unauthorizedForCreateTopicMetadata ++ unauthorizedForDescribeTopicMetadata
+
+        val brokers = metadataCache.getAliveBrokers
+
+        trace("Sending topic metadata %s and brokers %s for correlation id %d to client %s".format(completeTopicMetadata.mkString(","),
+          brokers.mkString(","), request.header.correlationId, request.header.clientId))
+
+        def createResponse(requestThrottleMs: Int) = new MetadataResponse(
+          requestThrottleMs,
+          brokers.map(_.getNode(request.listenerName)).asJava,
+          clusterId,
+          metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
+          completeTopicMetadata.asJava
+        )
+
+        // Responses with topic errors are not cached since they may trigger the creation of the topics
+        val cacheable = topicMetadata.forall(_.error == Errors.NONE)
+        (metadataCache.responseCache, responseCacheKey, responseCacheGeneration) match {
+          case (Some(cache), Some(key), Some(generation)) if cacheable =>
+            val body = createResponse(AbstractResponse.DEFAULT_THROTTLE_TIME).serializeBody(requestVersion)
+            cache.put(key, generation, body)
+            sendCachedResponse(body)
+          case _ =>
+            sendResponseMaybeThrottle(request, createResponse)
+        }
+    }
   }
 
   /**
@@ -2079,6 +2134,8 @@ class KafkaApis(val requestChannel: RequestChannel,
     val quotaSensors = quotas.request.getOrCreateQuotaSensors(request.session.sanitizedUser, clientId)
     def recordNetworkThreadTimeNanos(timeNanos: Long) {
       quotas.request.recordNoThrottle(quotaSensors, nanosToPercentage(timeNanos))
+      if (config.clientResourceAccountingEnable)
+        quotas.request.recordNetworkThreadUsage(request.session.sanitizedUser, clientId, timeNanos)
     }
     request.recordNetworkThreadTimeCallback = Some(recordNetworkThreadTimeNanos)
 
@@ -2095,6 +2152,9 @@ class KafkaApis(val requestChannel: RequestChannel,
   private def sendResponseExemptThrottle(request: RequestChannel.Request, sendResponseCallback: () => Unit) {
     def recordNetworkThreadTimeNanos(timeNanos: Long) {
       quotas.request.recordExempt(nanosToPercentage(timeNanos))
+      if (config.clientResourceAccountingEnable)
+        quotas.request.recordNetworkThreadUsage(request.session.sanitizedUser,
+          Option(request.header).fold("")(_.clientId), timeNanos)
     }
     request.recordNetworkThreadTimeCallback = Some(recordNetworkThreadTimeNanos)
 
@@ -24,6 +24,7 @@ import kafka.cluster.EndPoint
 import kafka.consumer.ConsumerConfig
 import kafka.coordinator.group.OffsetConfig
 import kafka.coordinator.transaction.{TransactionLog, TransactionStateManager}
+import kafka.log.{LogDirLoad, OffsetMap}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec, Message, MessageSet}
 import kafka.utils.CoreUtils
 import org.apache.kafka.clients.CommonClientConfigs
@@ -50,8 +51,10 @@ object Defaults {
   val MessageMaxBytes = 1000000 + MessageSet.LogOverhead
   val NumNetworkThreads = 3
   val NumIoThreads = 8
+  val NumProduceAppendThreads = 0
   val BackgroundThreads = 10
   val QueuedMaxRequests = 500
+  val MetadataResponseCacheMaxEntries = 1000
 
   /************* Authorizer Configuration ***********/
   val AuthorizerClassName = ""
@@ -81,6 +84,11 @@ object Defaults {
   val LogRetentionHours = 24 * 7
 
   val LogRetentionBytes = -1L
+  val LogLocalRetentionMs = -2L
+  val LogLocalRetentionBytes = -2L
+  val LogRemoteStorageEnable = false
+  val RemoteLogCacheBytes = 1024 * 1024 * 1024L
+  val RemoteLogFetchThreads = 2
   val LogCleanupIntervalMs = 5 * 60 * 1000L
   val Delete = "delete"
   val Compact = "compact"
@@ -93,13 +101,29 @@ object Defaults {
   val LogCleanerBackoffMs = 15 * 1000
   val LogCleanerMinCleanRatio = 0.5d
   val LogCleanerEnable = true
+  val LogCleanerHashAlgorithm = "MD5"
+  val LogCleanerCopyThreads = 1
+  val LogCleanerIncrementalEnable = false
   val LogCleanerDeleteRetentionMs = 24 * 60 * 60 * 1000L
   val LogCleanerMinCompactionLagMs = 0L
+  val LogCleanerMaxCompactionLagMs = Long.MaxValue
+  val LogCleanerSelectionPolicyClass = classOf[kafka.log.DirtyRatioSelectionPolicy].getName
   val LogIndexSizeMaxBytes = 10 * 1024 * 1024
   val LogIndexIntervalBytes = 4096
+  val LogTimeIndexIntervalBytes = -1
+  val LogIndexMaxMmaps = 0
+  val LogDirPlacementPolicy = LogDirLoad.CountPolicy
+  val LogDirBalanceEnable = false
+  val LogDirBalanceThreshold = 0.3
+  val LogReadAheadBytes = 0
+  val LogPageCacheAdvisorClass = classOf[kafka.log.DefaultPageCacheAdvisor].getName
   val LogFlushIntervalMessages = Long.MaxValue
   val LogDeleteDelayMs = 60000
   val LogFlushSchedulerIntervalMs = Long.MaxValue
+  val LogFlushAsyncEnable = false
+  val LogSegmentPreCreateEnable = false
+  val LogAppendPipelineEnable = false
+  val LogAppendPipelineQueueSize = 500
   val LogFlushOffsetCheckpointIntervalMs = 60000
   val LogFlushStartOffsetCheckpointIntervalMs = 60000
   val LogPreAllocateEnable = false
@@ -108,6 +132,7 @@ object Defaults {
   val LogMessageTimestampType = "CreateTime"
   val LogMessageTimestampDifferenceMaxMs = Long.MaxValue
   val NumRecoveryThreadsPerDataDir = 1
+  val NumSegmentRecoveryThreadsPerDataDir = 1
   val AutoCreateTopicsEnable = true
   val MinInSyncReplicas = 1
 
@@ -123,6 +148,9 @@ object Defaults {
   val ReplicaFetchMinBytes = 1
   val ReplicaFetchResponseMaxBytes = 10 * 1024 * 1024
   val NumReplicaFetchers = 1
+  val MaxReplicaFetchers = 1
+  val NumReplicaFetcherAppendThreads = 0
+  val ReplicaFetcherRebalanceIntervalMs = 0L
   val ReplicaFetchBackoffMs = 1000
   val ReplicaHighWatermarkCheckpointIntervalMs = 5000L
   val FetchPurgatoryPurgeIntervalRequests = 1000
@@ -175,6 +203,7 @@ object Defaults {
   val QuotaWindowSizeSeconds: Int = ClientQuotaManagerConfig.DefaultQuotaWindowSizeSeconds
   val NumReplicationQuotaSamples: Int = ReplicationQuotaManagerConfig.DefaultNumQuotaSamples
   val ReplicationQuotaWindowSizeSeconds: Int = ReplicationQuotaManagerConfig.DefaultQuotaWindowSizeSeconds
+  val ClientResourceAccountingEnable = false
 
   /** ********* Transaction Configuration ***********/
   val TransactionalIdExpirationMsDefault = 604800000
@@ -189,6 +218,8 @@ object Defaults {
   val MetricSampleWindowMs = 30000
   val MetricReporterClasses = ""
   val MetricRecordingLevel = Sensor.RecordingLevel.INFO.toString()
+  val RequestLatencyPercentilesEnable = false
+  val RequestLatencyPercentilesMaxMs = 30000L
 
   /** ********* SSL configuration ***********/
   val PrincipalBuilderClass = SslConfigs.DEFAULT_PRINCIPAL_BUILDER_CLASS
@@ -234,8 +265,10 @@ object KafkaConfig {
   val MessageMaxBytesProp = "message.max.bytes"
   val NumNetworkThreadsProp = "num.network.threads"
   val NumIoThreadsProp = "num.io.threads"
+  val NumProduceAppendThreadsProp = "num.produce.append.threads"
   val BackgroundThreadsProp = "background.threads"
   val QueuedMaxRequestsProp = "queued.max.requests"
+  val MetadataResponseCacheMaxEntriesProp = "metadata.response.cache.max.entries"
   val RequestTimeoutMsProp = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameProp = "authorizer.class.name"
@@ -272,6 +305,13 @@ object KafkaConfig {
   val LogRetentionTimeHoursProp = "log.retention.hours"
 
   val LogRetentionBytesProp = "log.retention.bytes"
+  val LogLocalRetentionMsProp = "log.local.retention.ms"
+  val LogLocalRetentionBytesProp = "log.local.retention.bytes"
+  val LogRemoteStorageEnableProp = "log.remote.storage.enable"
+  val RemoteLogStorageManagerClassProp = "remote.log.storage.manager.class"
+  val RemoteLogCacheDirProp = "remote.log.cache.dir"
+  val RemoteLogCacheBytesProp = "remote.log.cache.bytes"
+  val RemoteLogFetchThreadsProp = "remote.log.fetch.threads"
   val LogCleanupIntervalMsProp = "log.retention.check.interval.ms"
   val LogCleanupPolicyProp = "log.cleanup.policy"
   val LogCleanerThreadsProp = "log.cleaner.threads"
@@ -282,13 +322,29 @@ object KafkaConfig {
   val LogCleanerBackoffMsProp = "log.cleaner.backoff.ms"
   val LogCleanerMinCleanRatioProp = "log.cleaner.min.cleanable.ratio"
   val LogCleanerEnableProp = "log.cleaner.enable"
+  val LogCleanerHashAlgorithmProp = "log.cleaner.hash.algorithm"
+  val LogCleanerCopyThreadsProp = "log.cleaner.copy.threads"
+  val LogCleanerIncrementalEnableProp = "log.cleaner.incremental.enable"
   val LogCleanerDeleteRetentionMsProp = "log.cleaner.delete.retention.ms"
   val LogCleanerMinCompactionLagMsProp = "log.cleaner.min.compaction.lag.ms"
+  val LogCleanerMaxCompactionLagMsProp = "log.cleaner.max.compaction.lag.ms"
+  val LogCleanerSelectionPolicyClassProp = "log.cleaner.selection.policy.class"
   val LogIndexSizeMaxBytesProp = "log.index.size.max.bytes"
   val LogIndexIntervalBytesProp = "log.index.interval.bytes"
+  val LogTimeIndexIntervalBytesProp = "log.time.index.interval.bytes"
+  val LogIndexMaxMmapsProp = "log.index.max.mmaps"
+  val LogDirPlacementPolicyProp = "log.dir.placement.policy"
+  val LogDirBalanceEnableProp = "log.dir.balance.enable"
+  val LogDirBalanceThresholdProp = "log.dir.balance.threshold"
+  val LogReadAheadBytesProp = "log.read.ahead.bytes"
+  val LogPageCacheAdvisorClassProp = "log.page.cache.advisor.class"
   val LogFlushIntervalMessagesProp = "log.flush.interval.messages"
   val LogDeleteDelayMsProp = "log.segment.delete.delay.ms"
   val LogFlushSchedulerIntervalMsProp = "log.flush.scheduler.interval.ms"
+  val LogFlushAsyncEnableProp = "log.flush.async.enable"
+  val LogSegmentPreCreateEnableProp = "log.segment.precreate.enable"
+  val LogAppendPipelineEnableProp = "log.append.pipeline.enable"
+  val LogAppendPipelineQueueSizeProp = "log.append.pipeline.queue.size"
   val LogFlushIntervalMsProp = "log.flush.interval.ms"
   val LogFlushOffsetCheckpointIntervalMsProp = "log.flush.offset.checkpoint.interval.ms"
   val LogFlushStartOffsetCheckpointIntervalMsProp = "log.flush.start.offset.checkpoint.interval.ms"
@@ -298,6 +354,7 @@ object KafkaConfig {
   val LogMessageTimestampDifferenceMaxMsProp = LogConfigPrefix + "message.timestamp.difference.max.ms"
   val LogMaxIdMapSnapshotsProp = LogConfigPrefix + "max.id.map.snapshots"
   val NumRecoveryThreadsPerDataDirProp = "num.recovery.threads.per.data.dir"
+  val NumSegmentRecoveryThreadsPerDataDirProp = "num.segment.recovery.threads.per.data.dir"
   val AutoCreateTopicsEnableProp = "auto.create.topics.enable"
   val MinInSyncReplicasProp = "min.insync.replicas"
   val CreateTopicPolicyClassNameProp = "create.topic.policy.class.name"
@@ -314,6 +371,9 @@ object KafkaConfig {
   val ReplicaFetchResponseMaxBytesProp = "replica.fetch.response.max.bytes"
   val ReplicaFetchBackoffMsProp = "replica.fetch.backoff.ms"
   val NumReplicaFetchersProp = "num.replica.fetchers"
+  val MaxReplicaFetchersProp = "max.replica.fetchers"
+  val NumReplicaFetcherAppendThreadsProp = "num.replica.fetcher.append.threads"
+  val ReplicaFetcherRebalanceIntervalMsProp = "replica.fetcher.rebalance.interval.ms"
   val ReplicaHighWatermarkCheckpointIntervalMsProp = "replica.high.watermark.checkpoint.interval.ms"
   val FetchPurgatoryPurgeIntervalRequestsProp = "fetch.purgatory.purge.interval.requests"
   val ProducerPurgatoryPurgeIntervalRequestsProp = "producer.purgatory.purge.interval.requests"
@@ -362,6 +422,7 @@ object KafkaConfig {
   val NumReplicationQuotaSamplesProp = "replication.quota.window.num"
   val QuotaWindowSizeSecondsProp = "quota.window.size.seconds"
   val ReplicationQuotaWindowSizeSecondsProp = "replication.quota.window.size.seconds"
+  val ClientResourceAccountingEnableProp = "client.resource.accounting.enable"
 
   val DeleteTopicEnableProp = "delete.topic.enable"
   val CompressionTypeProp = "compression.type"
@@ -371,6 +432,8 @@ object KafkaConfig {
   val MetricNumSamplesProp: String = CommonClientConfigs.METRICS_NUM_SAMPLES_CONFIG
   val MetricReporterClassesProp: String = CommonClientConfigs.METRIC_REPORTER_CLASSES_CONFIG
   val MetricRecordingLevelProp: String = CommonClientConfigs.METRICS_RECORDING_LEVEL_CONFIG
+  val RequestLatencyPercentilesEnableProp = "request.latency.percentiles.enable"
+  val RequestLatencyPercentilesMaxMsProp = "request.latency.percentiles.max.ms"
 
   /** ********* SSL Configuration ****************/
   val PrincipalBuilderClassProp = SslConfigs.PRINCIPAL_BUILDER_CLASS_CONFIG
@@ -419,8 +482,15 @@ object KafkaConfig {
     "0.11 and later, all messages are written as batches and this setting applies to the total size of the batch."
   val NumNetworkThreadsDoc = "The number of threads that the server uses for receiving requests from the network and sending responses to the network"
   val NumIoThreadsDoc = "The number of threads that the server uses for processing requests, which may include disk I/O"
+  val NumProduceAppendThreadsDoc = "The number of threads shared by all request handler threads to append the partitions " +
+    "of a single produce request to their logs in parallel. The request handler thread appends one of the partitions itself " +
+    "and waits for the others before the produce request is completed or added to the purgatory. If set to 0, the partitions " +
+    "of a produce request are appended sequentially by the request handler thread."
   val BackgroundThreadsDoc = "The number of threads to use for various background processing tasks"
   val QueuedMaxRequestsDoc = "The number of queued requests allowed before blocking the network threads"
+  val MetadataResponseCacheMaxEntriesDoc = "The maximum number of serialized metadata responses, per listener, request " +
+    "version and set of requested topics, that are cached between metadata updates from the controller. Only responses " +
+    "to requests for which every topic exists and is authorized are cached. If set to 0, metadata responses are not cached."
   val RequestTimeoutMsDoc = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameDoc = "The authorizer class that should be used for authorization"
@@ -482,6 +552,26 @@ object KafkaConfig {
   val LogRetentionTimeHoursDoc = "The number of hours to keep a log file before deleting it (in hours), tertiary to " + LogRetentionTimeMillisProp + " property"
 
   val LogRetentionBytesDoc = "The maximum size of the log before deleting it"
+  val LogLocalRetentionMsDoc = "The number of milliseconds to keep a log segment on the local disk once it has been copied " +
+    "to the remote tier, for topics with remote storage enabled. -2 means the value of " + LogRetentionTimeMillisProp + " is used"
+  val LogLocalRetentionBytesDoc = "The maximum size of the local part of the log, segments which have been copied to the remote " +
+    "tier are deleted from the local disk above this size, for topics with remote storage enabled. -2 means the value of " +
+    LogRetentionBytesProp + " is used"
+  val LogRemoteStorageEnableDoc = "Whether the closed segments of the logs of topics with the delete cleanup policy are copied " +
+    "to the remote tier, from which fetches for offsets which are no longer on the local disk are served. Requires " +
+    RemoteLogStorageManagerClassProp + " to be set"
+  val RemoteLogStorageManagerClassDoc = "The class implementing kafka.log.remote.RemoteStorageManager which stores the log " +
+    "segments copied to the remote tier. If not set, there is no remote tier. All the broker configurations are passed to " +
+    "the storage manager, kafka.log.remote.LocalFileSystemRemoteStorageManager stores the segments in the directory set by " +
+    "remote.log.storage.local.dir"
+  val RemoteLogCacheDirDoc = "The directory in which the segments fetched from the remote tier to serve fetches are cached, " +
+    "in a subdirectory which is deleted on startup and shutdown. It must not be one of the log directories. If not set, a " +
+    "temporary directory is used"
+  val RemoteLogCacheBytesDoc = "The maximum size of the segments fetched from the remote tier which are kept in the cache. " +
+    "A fetched segment is kept until it is first read even if the cache is then larger, so that a segment larger than the " +
+    "cache can still be read"
+  val RemoteLogFetchThreadsDoc = "The number of threads fetching segments from the remote tier into the cache. A fetch " +
+    "request for a segment which is not cached does not wait for it and is answered without records from the segment"
   val LogCleanupIntervalMsDoc = "The frequency in milliseconds that the log cleaner checks whether any log is eligible for deletion"
   val LogCleanupPolicyDoc = "The default cleanup policy for segments beyond the retention window. A comma separated list of valid policies. Valid policies are: \"delete\" and \"compact\""
   val LogCleanerThreadsDoc = "The number of background threads to use for log cleaning"
@@ -491,15 +581,70 @@ object KafkaConfig {
   val LogCleanerDedupeBufferLoadFactorDoc = "Log cleaner dedupe buffer load factor. The percentage full the dedupe buffer can become. A higher value " +
   "will allow more log to be cleaned at once but will lead to more hash collisions"
   val LogCleanerBackoffMsDoc = "The amount of time to sleep when there are no logs to clean"
+  val LogCleanerHashAlgorithmDoc = "The hash of the keys in the offset map of the log cleaner. With <code>murmur3</code> an entry of " +
+    "the map takes 12 bytes instead of 24 bytes with <code>MD5</code>, so that the dedupe buffer holds twice as many keys, the keys " +
+    "are hashed faster and the buffer is allocated outside of the heap."
+  val LogCleanerCopyThreadsDoc = "The number of threads copying the segments of the log being cleaned by each log cleaner thread, " +
+    "including the cleaner thread itself. The segments of a log are copied in groups of up to a segment in size, which are copied " +
+    "in parallel if this is more than 1. Each copy thread uses as much I/O buffer memory as its cleaner thread, and all of them are " +
+    "limited by log.cleaner.io.max.bytes.per.second."
+  val LogCleanerIncrementalEnableDoc = "Keep a Bloom filter of the keys of each segment written by the log cleaner, and do not copy a " +
+    "clean segment again until the dirty section of its log has one of its keys or its tombstones and transaction markers are past " +
+    "the delete retention time. The filters take about 1.25 bytes per key of the compacted logs and are not persisted, so the first " +
+    "cleaning of a log after a restart copies all of its segments."
   val LogCleanerMinCleanRatioDoc = "The minimum ratio of dirty log to total log for a log to eligible for cleaning"
   val LogCleanerEnableDoc = "Enable the log cleaner process to run on the server. Should be enabled if using any topics with a cleanup.policy=compact including the internal offsets topic. If disabled those topics will not be compacted and continually grow in size."
   val LogCleanerDeleteRetentionMsDoc = "How long are delete records retained?"
   val LogCleanerMinCompactionLagMsDoc = "The minimum time a message will remain uncompacted in the log. Only applicable for logs that are being compacted."
+  val LogCleanerMaxCompactionLagMsDoc = "The maximum time a message will remain uncompacted in the log. A log whose oldest uncompacted " +
+    "segment has messages older than this is cleaned before the logs which are not overdue, even if its dirty ratio is below " +
+    "log.cleaner.min.cleanable.ratio. Only applicable for logs that are being compacted."
+  val LogCleanerSelectionPolicyClassDoc = "The class implementing kafka.log.LogCleanerSelectionPolicy which chooses the log to " +
+    "clean next among the logs above their minimum dirty ratio or past their maximum compaction lag. " +
+    "kafka.log.DirtyRatioSelectionPolicy chooses the log with the highest dirty ratio, kafka.log.CostBenefitSelectionPolicy the " +
+    "log with the most bytes expected to be reclaimed per byte read and written by the cleaning."
   val LogIndexSizeMaxBytesDoc = "The maximum size in bytes of the offset index"
   val LogIndexIntervalBytesDoc = "The interval with which we add an entry to the offset index"
+  val LogTimeIndexIntervalBytesDoc = "The interval with which we add an entry to the time index, -1 means the value of " +
+    LogIndexIntervalBytesProp + ". A smaller interval also adds offset index entries as often, so that timestamp lookups scan " +
+    "less of the log, but fills both indexes sooner, and a segment is rolled when an index is full."
+  val LogIndexMaxMmapsDoc = "The maximum number of offset and time indexes which are kept memory-mapped. Indexes are " +
+    "only mapped when they are first used. If more indexes are mapped, the mappings of indexes of inactive segments which " +
+    "have not been used recently are periodically unmapped. If set to 0, index mappings are never released."
+  val LogDirPlacementPolicyDoc = "How the log directory of a new log is chosen when there are several log directories. With " +
+    s"<code>${LogDirLoad.CountPolicy}</code> the directory with the fewest logs is chosen. With <code>${LogDirLoad.LoadPolicy}</code> " +
+    "the directory with the lowest load is chosen, the load of a directory being the sum of its shares of the bytes, of the recent " +
+    "write throughput and of the logs of all the log directories."
+  val LogDirBalanceEnableDoc = "Enable the balancing of the log directories: periodically, if the loads of the most and least " +
+    "loaded log directories differ by more than " + LogDirBalanceThresholdProp + ", a log is moved in the background from the " +
+    "former to the latter while it keeps being read and written. The load of a directory is computed as for the load placement policy."
+  val LogDirBalanceThresholdDoc = "The difference between the loads of the most and least loaded log directories above which a log " +
+    "is moved when " + LogDirBalanceEnableProp + " is set. The load of a directory is between 0 and 3."
+  val LogReadAheadBytesDoc = "The number of bytes read ahead of sequential reads of inactive log segments, such as the reads of " +
+    "lagging consumers and of followers catching up, so that they do not wait for the disk. Ranges of inactive segments which " +
+    "have been read sequentially are also dropped from the page cache in chunks of this size, if the page cache advisor supports it. " +
+    "If set to 0, there is no read-ahead."
+  val LogPageCacheAdvisorClassDoc = "The class implementing kafka.log.PageCacheAdvisor which gives the operating system the " +
+    "read-ahead and drop-behind hints for sequential reads of inactive log segments. The default implementation reads ahead by " +
+    "touching the pages of the range and cannot drop pages from the page cache, an implementation calling posix_fadvise " +
+    "through native code can do both."
   val LogFlushIntervalMessagesDoc = "The number of messages accumulated on a log partition before messages are flushed to disk "
   val LogDeleteDelayMsDoc = "The amount of time to wait before deleting a file from the filesystem"
   val LogFlushSchedulerIntervalMsDoc = "The frequency in ms that the log flusher checks whether any log needs to be flushed to disk"
+  val LogFlushAsyncEnableDoc = "Hand the flushes triggered by " + LogFlushIntervalMessagesProp + ", " + LogFlushIntervalMsProp + " and by " +
+    "rolling a segment to a flush thread per log directory instead of flushing on the thread which triggered them. Requests to " +
+    "flush the same log are coalesced until the flush thread gets to them. Appends do not wait for the flushes they trigger."
+  val LogSegmentPreCreateEnableDoc = "Prepare the files of the next segment of the active logs on a background thread, so that " +
+    "rolling a segment renames files which already exist instead of creating, and with " + LogPreAllocateProp + " preallocating, " +
+    "them on the thread appending to the log. The next segment of a log is prepared once its active segment is half full."
+  val LogAppendPipelineEnableDoc = "Hand the appends of produce requests to an append thread per log directory instead of appending " +
+    "them on the request handler threads. The records are validated by the request handler threads before they are queued. " +
+    "The append thread appends all the records queued for a partition together, writing " +
+    "those which go to the same segment with a single gathering write, and completes the produce requests once their records " +
+    "are appended. Appends of the group and transaction coordinators are not handed to the append threads. Takes precedence " +
+    "over " + NumProduceAppendThreadsProp + " for produce requests."
+  val LogAppendPipelineQueueSizeDoc = "The number of produce requests which can be queued for the append thread of a log directory " +
+    "when " + LogAppendPipelineEnableProp + " is enabled, before the request handler threads wait to queue more"
   val LogFlushIntervalMsDoc = "The maximum time in ms that a message in any topic is kept in memory before flushed to disk. If not set, the value in " + LogFlushSchedulerIntervalMsProp + " is used"
   val LogFlushOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of the last flush which acts as the log recovery point"
   val LogFlushStartOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of log start offset"
@@ -517,6 +662,10 @@ object KafkaConfig {
     "if the difference in timestamp exceeds this threshold. This configuration is ignored if log.message.timestamp.type=LogAppendTime." +
     "The maximum timestamp difference allowed should be no greater than log.retention.ms to avoid unnecessarily frequent log rolling."
   val NumRecoveryThreadsPerDataDirDoc = "The number of threads per data directory to be used for log recovery at startup and flushing at shutdown"
+  val NumSegmentRecoveryThreadsPerDataDirDoc = "The number of threads per data directory used to validate the unflushed segments " +
+    "and rebuild their indexes when recovering from an unclean shutdown. The segments of a single log are recovered concurrently " +
+    "on these threads, while the producer state is still rebuilt in order by the thread recovering the log. With 1, each log is " +
+    "recovered by a single thread."
   val AutoCreateTopicsEnableDoc = "Enable auto creation of topic on the server"
   val MinInSyncReplicasDoc = "When a producer sets acks to \"all\" (or \"-1\"), " +
     "min.insync.replicas specifies the minimum number of replicas that must acknowledge " +
@@ -554,6 +703,14 @@ object KafkaConfig {
     "<code>message.max.bytes</code> (broker config) or <code>max.message.bytes</code> (topic config)."
   val NumReplicaFetchersDoc = "Number of fetcher threads used to replicate messages from a source broker. " +
   "Increasing this value can increase the degree of I/O parallelism in the follower broker."
+  val MaxReplicaFetchersDoc = "The maximum number of fetcher threads used to replicate messages from a source broker when the " +
+    "partitions are rebalanced across fetcher threads, see <code>" + ReplicaFetcherRebalanceIntervalMsProp + "</code>. The value " +
+    "of <code>" + NumReplicaFetchersProp + "</code> is used if it is larger."
+  val NumReplicaFetcherAppendThreadsDoc = "The number of threads shared by all replica fetcher threads to append the partitions " +
+    "of a fetch response in parallel. If 0, each fetcher thread appends the partitions of its fetch responses one after the other."
+  val ReplicaFetcherRebalanceIntervalMsDoc = "The frequency with which the partitions fetched from a source broker are moved from the " +
+    "fetcher thread which appended the most bytes to the one which appended the least over the interval, starting more fetcher " +
+    "threads up to <code>" + MaxReplicaFetchersProp + "</code>. If 0, the partitions stay on the fetcher thread given by their hash."
   val ReplicaFetchBackoffMsDoc = "The amount of time to sleep when fetch partition error occurs."
   val ReplicaHighWatermarkCheckpointIntervalMsDoc = "The frequency with which the high watermark is saved out to disk"
   val FetchPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the fetch request purgatory"
@@ -614,6 +771,11 @@ object KafkaConfig {
   val NumReplicationQuotaSamplesDoc = "The number of samples to retain in memory for replication quotas"
   val QuotaWindowSizeSecondsDoc = "The time span of each sample for client quotas"
   val ReplicationQuotaWindowSizeSecondsDoc = "The time span of each sample for replication quotas"
+  val ClientResourceAccountingEnableDoc = "Enables per user/client-id accounting of network thread time, request handler " +
+    "thread CPU time, bytes allocated by request handler threads and fetch down-conversion time. The usage is exposed " +
+    "as metrics with the same user and client-id tags as the request quota metrics. CPU time and allocated bytes are " +
+    "measured with the JVM's ThreadMXBean and are not recorded if the JVM does not support them. The usage is only " +
+    "reported, clients are not throttled on it."
   /** ********* Transaction Configuration ***********/
   val TransactionIdExpirationMsDoc = "The maximum time of inactivity before a transactional id is expired by the " +
     "transaction coordinator. Note that this also influences producer id expiration: Producer ids are guaranteed to expire " +
@@ -630,6 +792,13 @@ object KafkaConfig {
   val MetricNumSamplesDoc = CommonClientConfigs.METRICS_NUM_SAMPLES_DOC
   val MetricReporterClassesDoc = CommonClientConfigs.METRIC_REPORTER_CLASSES_DOC
   val MetricRecordingLevelDoc = CommonClientConfigs.METRICS_RECORDING_LEVEL_DOC
+  val RequestLatencyPercentilesEnableDoc = "Enables interval-based percentile histograms of the request queue, local, remote, " +
+    "throttle, response queue, response send and total time of each request type and listener. Every request completed in " +
+    s"the last <code>$MetricNumSamplesProp</code> windows of <code>$MetricSampleWindowMsProp</code> is counted, so tail " +
+    "percentiles such as p99.9 are not biased by sampling."
+  val RequestLatencyPercentilesMaxMsDoc = "The largest request time in milliseconds that is tracked accurately by the " +
+    s"histograms enabled with <code>$RequestLatencyPercentilesEnableProp</code>. Histogram buckets grow linearly in width " +
+    "up to this value and larger times are counted in a single overflow bucket."
 
   /** ********* SSL Configuration ****************/
   val PrincipalBuilderClassDoc = SslConfigs.PRINCIPAL_BUILDER_CLASS_DOC
@@ -682,8 +851,10 @@ object KafkaConfig {
       .define(MessageMaxBytesProp, INT, Defaults.MessageMaxBytes, atLeast(0), HIGH, MessageMaxBytesDoc)
       .define(NumNetworkThreadsProp, INT, Defaults.NumNetworkThreads, atLeast(1), HIGH, NumNetworkThreadsDoc)
       .define(NumIoThreadsProp, INT, Defaults.NumIoThreads, atLeast(1), HIGH, NumIoThreadsDoc)
+      .define(NumProduceAppendThreadsProp, INT, Defaults.NumProduceAppendThreads, atLeast(0), MEDIUM, NumProduceAppendThreadsDoc)
       .define(BackgroundThreadsProp, INT, Defaults.BackgroundThreads, atLeast(1), HIGH, BackgroundThreadsDoc)
       .define(QueuedMaxRequestsProp, INT, Defaults.QueuedMaxRequests, atLeast(1), HIGH, QueuedMaxRequestsDoc)
+      .define(MetadataResponseCacheMaxEntriesProp, INT, Defaults.MetadataResponseCacheMaxEntries, atLeast(0), LOW, MetadataResponseCacheMaxEntriesDoc)
       .define(RequestTimeoutMsProp, INT, Defaults.RequestTimeoutMs, HIGH, RequestTimeoutMsDoc)
 
       /************* Authorizer Configuration ***********/
@@ -724,6 +895,13 @@ object KafkaConfig {
       .define(LogRetentionTimeHoursProp, INT, Defaults.LogRetentionHours, HIGH, LogRetentionTimeHoursDoc)
 
       .define(LogRetentionBytesProp, LONG, Defaults.LogRetentionBytes, HIGH, LogRetentionBytesDoc)
+      .define(LogLocalRetentionMsProp, LONG, Defaults.LogLocalRetentionMs, atLeast(-2), MEDIUM, LogLocalRetentionMsDoc)
+      .define(LogLocalRetentionBytesProp, LONG, Defaults.LogLocalRetentionBytes, atLeast(-2), MEDIUM, LogLocalRetentionBytesDoc)
+      .define(LogRemoteStorageEnableProp, BOOLEAN, Defaults.LogRemoteStorageEnable, MEDIUM, LogRemoteStorageEnableDoc)
+      .define(RemoteLogStorageManagerClassProp, STRING, null, LOW, RemoteLogStorageManagerClassDoc)
+      .define(RemoteLogCacheDirProp, STRING, null, LOW, RemoteLogCacheDirDoc)
+      .define(RemoteLogCacheBytesProp, LONG, Defaults.RemoteLogCacheBytes, atLeast(1), LOW, RemoteLogCacheBytesDoc)
+      .define(RemoteLogFetchThreadsProp, INT, Defaults.RemoteLogFetchThreads, atLeast(1), LOW, RemoteLogFetchThreadsDoc)
       .define(LogCleanupIntervalMsProp, LONG, Defaults.LogCleanupIntervalMs, atLeast(1), MEDIUM, LogCleanupIntervalMsDoc)
       .define(LogCleanupPolicyProp, LIST, Defaults.LogCleanupPolicy, ValidList.in(Defaults.Compact, Defaults.Delete), MEDIUM, LogCleanupPolicyDoc)
       .define(LogCleanerThreadsProp, INT, Defaults.LogCleanerThreads, atLeast(0), MEDIUM, LogCleanerThreadsDoc)
@@ -734,18 +912,35 @@ object KafkaConfig {
       .define(LogCleanerBackoffMsProp, LONG, Defaults.LogCleanerBackoffMs, atLeast(0), MEDIUM, LogCleanerBackoffMsDoc)
       .define(LogCleanerMinCleanRatioProp, DOUBLE, Defaults.LogCleanerMinCleanRatio, MEDIUM, LogCleanerMinCleanRatioDoc)
       .define(LogCleanerEnableProp, BOOLEAN, Defaults.LogCleanerEnable, MEDIUM, LogCleanerEnableDoc)
+      .define(LogCleanerHashAlgorithmProp, STRING, Defaults.LogCleanerHashAlgorithm, ConfigDef.ValidString.in(OffsetMap.HashAlgorithms: _*), LOW, LogCleanerHashAlgorithmDoc)
+      .define(LogCleanerCopyThreadsProp, INT, Defaults.LogCleanerCopyThreads, atLeast(1), LOW, LogCleanerCopyThreadsDoc)
+      .define(LogCleanerIncrementalEnableProp, BOOLEAN, Defaults.LogCleanerIncrementalEnable, LOW, LogCleanerIncrementalEnableDoc)
       .define(LogCleanerDeleteRetentionMsProp, LONG, Defaults.LogCleanerDeleteRetentionMs, MEDIUM, LogCleanerDeleteRetentionMsDoc)
       .define(LogCleanerMinCompactionLagMsProp, LONG, Defaults.LogCleanerMinCompactionLagMs, MEDIUM, LogCleanerMinCompactionLagMsDoc)
+      .define(LogCleanerMaxCompactionLagMsProp, LONG, Defaults.LogCleanerMaxCompactionLagMs, atLeast(1), MEDIUM, LogCleanerMaxCompactionLagMsDoc)
+      .define(LogCleanerSelectionPolicyClassProp, STRING, Defaults.LogCleanerSelectionPolicyClass, LOW, LogCleanerSelectionPolicyClassDoc)
       .define(LogIndexSizeMaxBytesProp, INT, Defaults.LogIndexSizeMaxBytes, atLeast(4), MEDIUM, LogIndexSizeMaxBytesDoc)
       .define(LogIndexIntervalBytesProp, INT, Defaults.LogIndexIntervalBytes, atLeast(0), MEDIUM, LogIndexIntervalBytesDoc)
+      .define(LogTimeIndexIntervalBytesProp, INT, Defaults.LogTimeIndexIntervalBytes, atLeast(-1), LOW, LogTimeIndexIntervalBytesDoc)
+      .define(LogIndexMaxMmapsProp, INT, Defaults.LogIndexMaxMmaps, atLeast(0), LOW, LogIndexMaxMmapsDoc)
+      .define(LogDirPlacementPolicyProp, STRING, Defaults.LogDirPlacementPolicy, ConfigDef.ValidString.in(LogDirLoad.CountPolicy, LogDirLoad.LoadPolicy), MEDIUM, LogDirPlacementPolicyDoc)
+      .define(LogDirBalanceEnableProp, BOOLEAN, Defaults.LogDirBalanceEnable, LOW, LogDirBalanceEnableDoc)
+      .define(LogDirBalanceThresholdProp, DOUBLE, Defaults.LogDirBalanceThreshold, atLeast(0.0), LOW, LogDirBalanceThresholdDoc)
+      .define(LogReadAheadBytesProp, INT, Defaults.LogReadAheadBytes, atLeast(0), LOW, LogReadAheadBytesDoc)
+      .define(LogPageCacheAdvisorClassProp, STRING, Defaults.LogPageCacheAdvisorClass, LOW, LogPageCacheAdvisorClassDoc)
       .define(LogFlushIntervalMessagesProp, LONG, Defaults.LogFlushIntervalMessages, atLeast(1), HIGH, LogFlushIntervalMessagesDoc)
       .define(LogDeleteDelayMsProp, LONG, Defaults.LogDeleteDelayMs, atLeast(0), HIGH, LogDeleteDelayMsDoc)
       .define(LogFlushSchedulerIntervalMsProp, LONG, Defaults.LogFlushSchedulerIntervalMs, HIGH, LogFlushSchedulerIntervalMsDoc)
+      .define(LogFlushAsyncEnableProp, BOOLEAN, Defaults.LogFlushAsyncEnable, LOW, LogFlushAsyncEnableDoc)
+      .define(LogSegmentPreCreateEnableProp, BOOLEAN, Defaults.LogSegmentPreCreateEnable, LOW, LogSegmentPreCreateEnableDoc)
+      .define(LogAppendPipelineEnableProp, BOOLEAN, Defaults.LogAppendPipelineEnable, LOW, LogAppendPipelineEnableDoc)
+      .define(LogAppendPipelineQueueSizeProp, INT, Defaults.LogAppendPipelineQueueSize, atLeast(1), LOW, LogAppendPipelineQueueSizeDoc)
       .define(LogFlushIntervalMsProp, LONG, null, HIGH, LogFlushIntervalMsDoc)
       .define(LogFlushOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushOffsetCheckpointIntervalMsDoc)
       .define(LogFlushStartOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushStartOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushStartOffsetCheckpointIntervalMsDoc)
       .define(LogPreAllocateProp, BOOLEAN, Defaults.LogPreAllocateEnable, MEDIUM, LogPreAllocateEnableDoc)
       .define(NumRecoveryThreadsPerDataDirProp, INT, Defaults.NumRecoveryThreadsPerDataDir, atLeast(1), HIGH, NumRecoveryThreadsPerDataDirDoc)
+      .define(NumSegmentRecoveryThreadsPerDataDirProp, INT, Defaults.NumSegmentRecoveryThreadsPerDataDir, atLeast(1), LOW, NumSegmentRecoveryThreadsPerDataDirDoc)
       .define(AutoCreateTopicsEnableProp, BOOLEAN, Defaults.AutoCreateTopicsEnable, HIGH, AutoCreateTopicsEnableDoc)
       .define(MinInSyncReplicasProp, INT, Defaults.MinInSyncReplicas, atLeast(1), HIGH, MinInSyncReplicasDoc)
       .define(LogMessageFormatVersionProp, STRING, Defaults.LogMessageFormatVersion, MEDIUM, LogMessageFormatVersionDoc)
@@ -766,6 +961,9 @@ object KafkaConfig {
       .define(ReplicaFetchMinBytesProp, INT, Defaults.ReplicaFetchMinBytes, HIGH, ReplicaFetchMinBytesDoc)
       .define(ReplicaFetchResponseMaxBytesProp, INT, Defaults.ReplicaFetchResponseMaxBytes, atLeast(0), MEDIUM, ReplicaFetchResponseMaxBytesDoc)
       .define(NumReplicaFetchersProp, INT, Defaults.NumReplicaFetchers, HIGH, NumReplicaFetchersDoc)
+      .define(MaxReplicaFetchersProp, INT, Defaults.MaxReplicaFetchers, atLeast(1), MEDIUM, MaxReplicaFetchersDoc)
+      .define(NumReplicaFetcherAppendThreadsProp, INT, Defaults.NumReplicaFetcherAppendThreads, atLeast(0), MEDIUM, NumReplicaFetcherAppendThreadsDoc)
+      .define(ReplicaFetcherRebalanceIntervalMsProp, LONG, Defaults.ReplicaFetcherRebalanceIntervalMs, atLeast(0), MEDIUM, ReplicaFetcherRebalanceIntervalMsDoc)
       .define(ReplicaHighWatermarkCheckpointIntervalMsProp, LONG, Defaults.ReplicaHighWatermarkCheckpointIntervalMs, HIGH, ReplicaHighWatermarkCheckpointIntervalMsDoc)
       .define(FetchPurgatoryPurgeIntervalRequestsProp, INT, Defaults.FetchPurgatoryPurgeIntervalRequests, MEDIUM, FetchPurgatoryPurgeIntervalRequestsDoc)
       .define(ProducerPurgatoryPurgeIntervalRequestsProp, INT, Defaults.ProducerPurgatoryPurgeIntervalRequests, MEDIUM, ProducerPurgatoryPurgeIntervalRequestsDoc)
@@ -818,6 +1016,8 @@ object KafkaConfig {
       .define(MetricSampleWindowMsProp, LONG, Defaults.MetricSampleWindowMs, atLeast(1), LOW, MetricSampleWindowMsDoc)
       .define(MetricReporterClassesProp, LIST, Defaults.MetricReporterClasses, LOW, MetricReporterClassesDoc)
       .define(MetricRecordingLevelProp, STRING, Defaults.MetricRecordingLevel, LOW, MetricRecordingLevelDoc)
+      .define(RequestLatencyPercentilesEnableProp, BOOLEAN, Defaults.RequestLatencyPercentilesEnable, LOW, RequestLatencyPercentilesEnableDoc)
+      .define(RequestLatencyPercentilesMaxMsProp, LONG, Defaults.RequestLatencyPercentilesMaxMs, atLeast(1), LOW, RequestLatencyPercentilesMaxMsDoc)
 
       /** ********* Quota configuration ***********/
       .define(ProducerQuotaBytesPerSecondDefaultProp, LONG, Defaults.ProducerQuotaBytesPerSecondDefault, atLeast(1), HIGH, ProducerQuotaBytesPerSecondDefaultDoc)
@@ -826,6 +1026,7 @@ object KafkaConfig {
       .define(NumReplicationQuotaSamplesProp, INT, Defaults.NumReplicationQuotaSamples, atLeast(1), LOW, NumReplicationQuotaSamplesDoc)
       .define(QuotaWindowSizeSecondsProp, INT, Defaults.QuotaWindowSizeSeconds, atLeast(1), LOW, QuotaWindowSizeSecondsDoc)
       .define(ReplicationQuotaWindowSizeSecondsProp, INT, Defaults.ReplicationQuotaWindowSizeSeconds, atLeast(1), LOW, ReplicationQuotaWindowSizeSecondsDoc)
+      .define(ClientResourceAccountingEnableProp, BOOLEAN, Defaults.ClientResourceAccountingEnable, LOW, ClientResourceAccountingEnableDoc)
 
       /** ********* SSL Configuration ****************/
       .define(PrincipalBuilderClassProp, CLASS, Defaults.PrincipalBuilderClass, MEDIUM, PrincipalBuilderClassDoc)
@@ -900,7 +1101,9 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val numNetworkThreads = getInt(KafkaConfig.NumNetworkThreadsProp)
   val backgroundThreads = getInt(KafkaConfig.BackgroundThreadsProp)
   val queuedMaxRequests = getInt(KafkaConfig.QueuedMaxRequestsProp)
+  val metadataResponseCacheMaxEntries = getInt(KafkaConfig.MetadataResponseCacheMaxEntriesProp)
   val numIoThreads = getInt(KafkaConfig.NumIoThreadsProp)
+  val numProduceAppendThreads = getInt(KafkaConfig.NumProduceAppendThreadsProp)
   val messageMaxBytes = getInt(KafkaConfig.MessageMaxBytesProp)
   val requestTimeoutMs = getInt(KafkaConfig.RequestTimeoutMsProp)
 
@@ -932,7 +1135,12 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val logFlushIntervalMessages = getLong(KafkaConfig.LogFlushIntervalMessagesProp)
   val logCleanerThreads = getInt(KafkaConfig.LogCleanerThreadsProp)
   val numRecoveryThreadsPerDataDir = getInt(KafkaConfig.NumRecoveryThreadsPerDataDirProp)
+  val numSegmentRecoveryThreadsPerDataDir = getInt(KafkaConfig.NumSegmentRecoveryThreadsPerDataDirProp)
   val logFlushSchedulerIntervalMs = getLong(KafkaConfig.LogFlushSchedulerIntervalMsProp)
+  val logFlushAsyncEnable = getBoolean(KafkaConfig.LogFlushAsyncEnableProp)
+  val logSegmentPreCreateEnable = getBoolean(KafkaConfig.LogSegmentPreCreateEnableProp)
+  val logAppendPipelineEnable = getBoolean(KafkaConfig.LogAppendPipelineEnableProp)
+  val logAppendPipelineQueueSize = getInt(KafkaConfig.LogAppendPipelineQueueSizeProp)
   val logFlushOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushOffsetCheckpointIntervalMsProp).toLong
   val logFlushStartOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushStartOffsetCheckpointIntervalMsProp).toLong
   val logCleanupIntervalMs = getLong(KafkaConfig.LogCleanupIntervalMsProp)
@@ -940,17 +1148,36 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val offsetsRetentionMinutes = getInt(KafkaConfig.OffsetsRetentionMinutesProp)
   val offsetsRetentionCheckIntervalMs = getLong(KafkaConfig.OffsetsRetentionCheckIntervalMsProp)
   val logRetentionBytes = getLong(KafkaConfig.LogRetentionBytesProp)
+  val logLocalRetentionMs = getLong(KafkaConfig.LogLocalRetentionMsProp)
+  val logLocalRetentionBytes = getLong(KafkaConfig.LogLocalRetentionBytesProp)
+  val logRemoteStorageEnable = getBoolean(KafkaConfig.LogRemoteStorageEnableProp)
+  val remoteLogStorageManagerClass = Option(getString(KafkaConfig.RemoteLogStorageManagerClassProp))
+  val remoteLogCacheDir = Option(getString(KafkaConfig.RemoteLogCacheDirProp))
+  val remoteLogCacheBytes = getLong(KafkaConfig.RemoteLogCacheBytesProp)
+  val remoteLogFetchThreads = getInt(KafkaConfig.RemoteLogFetchThreadsProp)
   val logCleanerDedupeBufferSize = getLong(KafkaConfig.LogCleanerDedupeBufferSizeProp)
   val logCleanerDedupeBufferLoadFactor = getDouble(KafkaConfig.LogCleanerDedupeBufferLoadFactorProp)
   val logCleanerIoBufferSize = getInt(KafkaConfig.LogCleanerIoBufferSizeProp)
   val logCleanerIoMaxBytesPerSecond = getDouble(KafkaConfig.LogCleanerIoMaxBytesPerSecondProp)
   val logCleanerDeleteRetentionMs = getLong(KafkaConfig.LogCleanerDeleteRetentionMsProp)
   val logCleanerMinCompactionLagMs = getLong(KafkaConfig.LogCleanerMinCompactionLagMsProp)
+  val logCleanerMaxCompactionLagMs = getLong(KafkaConfig.LogCleanerMaxCompactionLagMsProp)
+  val logCleanerSelectionPolicyClass = getString(KafkaConfig.LogCleanerSelectionPolicyClassProp)
   val logCleanerBackoffMs = getLong(KafkaConfig.LogCleanerBackoffMsProp)
   val logCleanerMinCleanRatio = getDouble(KafkaConfig.LogCleanerMinCleanRatioProp)
   val logCleanerEnable = getBoolean(KafkaConfig.LogCleanerEnableProp)
+  val logCleanerHashAlgorithm = getString(KafkaConfig.LogCleanerHashAlgorithmProp)
+  val logCleanerCopyThreads = getInt(KafkaConfig.LogCleanerCopyThreadsProp)
+  val logCleanerIncrementalEnable = getBoolean(KafkaConfig.LogCleanerIncrementalEnableProp)
   val logIndexSizeMaxBytes = getInt(KafkaConfig.LogIndexSizeMaxBytesProp)
   val logIndexIntervalBytes = getInt(KafkaConfig.LogIndexIntervalBytesProp)
+  val logTimeIndexIntervalBytes = getInt(KafkaConfig.LogTimeIndexIntervalBytesProp)
+  val logIndexMaxMmaps = getInt(KafkaConfig.LogIndexMaxMmapsProp)
+  val logDirPlacementPolicy = getString(KafkaConfig.LogDirPlacementPolicyProp)
+  val logDirBalanceEnable = getBoolean(KafkaConfig.LogDirBalanceEnableProp)
+  val logDirBalanceThreshold = getDouble(KafkaConfig.LogDirBalanceThresholdProp)
+  val logReadAheadBytes = getInt(KafkaConfig.LogReadAheadBytesProp)
+  val logPageCacheAdvisorClass = getString(KafkaConfig.LogPageCacheAdvisorClassProp)
   val logDeleteDelayMs = getLong(KafkaConfig.LogDeleteDelayMsProp)
   val logRollTimeMillis: java.lang.Long = Option(getLong(KafkaConfig.LogRollTimeMillisProp)).getOrElse(60 * 60 * 1000L * getInt(KafkaConfig.LogRollTimeHoursProp))
   val logRollTimeJitterMillis: java.lang.Long = Option(getLong(KafkaConfig.LogRollTimeJitterMillisProp)).getOrElse(60 * 60 * 1000L * getInt(KafkaConfig.LogRollTimeJitterHoursProp))
@@ -977,6 +1204,9 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val replicaFetchResponseMaxBytes = getInt(KafkaConfig.ReplicaFetchResponseMaxBytesProp)
   val replicaFetchBackoffMs = getInt(KafkaConfig.ReplicaFetchBackoffMsProp)
   val numReplicaFetchers = getInt(KafkaConfig.NumReplicaFetchersProp)
+  val maxReplicaFetchers = getInt(KafkaConfig.MaxReplicaFetchersProp)
+  val numReplicaFetcherAppendThreads = getInt(KafkaConfig.NumReplicaFetcherAppendThreadsProp)
+  val replicaFetcherRebalanceIntervalMs = getLong(KafkaConfig.ReplicaFetcherRebalanceIntervalMsProp)
   val replicaHighWatermarkCheckpointIntervalMs = getLong(KafkaConfig.ReplicaHighWatermarkCheckpointIntervalMsProp)
   val fetchPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.FetchPurgatoryPurgeIntervalRequestsProp)
   val producerPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.ProducerPurgatoryPurgeIntervalRequestsProp)
@@ -1029,6 +1259,8 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val metricNumSamples = getInt(KafkaConfig.MetricNumSamplesProp)
   val metricSampleWindowMs = getLong(KafkaConfig.MetricSampleWindowMsProp)
   val metricRecordingLevel = getString(KafkaConfig.MetricRecordingLevelProp)
+  val requestLatencyPercentilesEnable = getBoolean(KafkaConfig.RequestLatencyPercentilesEnableProp)
+  val requestLatencyPercentilesMaxMs = getLong(KafkaConfig.RequestLatencyPercentilesMaxMsProp)
 
   /** ********* SSL Configuration **************/
   val principalBuilderClass = getClass(KafkaConfig.PrincipalBuilderClassProp)
@@ -1065,6 +1297,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean) extends Abstra
   val quotaWindowSizeSeconds = getInt(KafkaConfig.QuotaWindowSizeSecondsProp)
   val numReplicationQuotaSamples = getInt(KafkaConfig.NumReplicationQuotaSamplesProp)
   val replicationQuotaWindowSizeSeconds = getInt(KafkaConfig.ReplicationQuotaWindowSizeSecondsProp)
+  val clientResourceAccountingEnable = getBoolean(KafkaConfig.ClientResourceAccountingEnableProp)
 
   /** ********* Transaction Configuration **************/
   val transactionIdExpirationMs = getInt(KafkaConfig.TransactionalIdExpirationMsProp)
@@ -62,10 +62,15 @@ object KafkaServer {
     logProps.put(LogConfig.FlushMsProp, kafkaConfig.logFlushIntervalMs)
     logProps.put(LogConfig.RetentionBytesProp, kafkaConfig.logRetentionBytes)
     logProps.put(LogConfig.RetentionMsProp, kafkaConfig.logRetentionTimeMillis: java.lang.Long)
+    logProps.put(LogConfig.LocalRetentionMsProp, kafkaConfig.logLocalRetentionMs: java.lang.Long)
+    logProps.put(LogConfig.LocalRetentionBytesProp, kafkaConfig.logLocalRetentionBytes: java.lang.Long)
+    logProps.put(LogConfig.RemoteStorageEnableProp, kafkaConfig.logRemoteStorageEnable: java.lang.Boolean)
     logProps.put(LogConfig.MaxMessageBytesProp, kafkaConfig.messageMaxBytes)
     logProps.put(LogConfig.IndexIntervalBytesProp, kafkaConfig.logIndexIntervalBytes)
+    logProps.put(LogConfig.TimeIndexIntervalBytesProp, kafkaConfig.logTimeIndexIntervalBytes)
     logProps.put(LogConfig.DeleteRetentionMsProp, kafkaConfig.logCleanerDeleteRetentionMs)
     logProps.put(LogConfig.MinCompactionLagMsProp, kafkaConfig.logCleanerMinCompactionLagMs)
+    logProps.put(LogConfig.MaxCompactionLagMsProp, kafkaConfig.logCleanerMaxCompactionLagMs: java.lang.Long)
     logProps.put(LogConfig.FileDeleteDelayMsProp, kafkaConfig.logDeleteDelayMs)
     logProps.put(LogConfig.MinCleanableDirtyRatioProp, kafkaConfig.logCleanerMinCleanRatio)
     logProps.put(LogConfig.CleanupPolicyProp, kafkaConfig.logCleanupPolicy)
@@ -215,7 +220,10 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
         logManager = LogManager(config, zkUtils, brokerState, kafkaScheduler, time, brokerTopicStats)
         logManager.startup()
 
-        metadataCache = new MetadataCache(config.brokerId)
+        val metadataResponseCache =
+          if (config.metadataResponseCacheMaxEntries > 0) Some(new MetadataResponseCache(config.metadataResponseCacheMaxEntries))
+          else None
+        metadataCache = new MetadataCache(config.brokerId, metadataResponseCache)
         credentialProvider = new CredentialProvider(config.saslEnabledMechanisms)
 
         socketServer = new SocketServer(config, metrics, time, credentialProvider)
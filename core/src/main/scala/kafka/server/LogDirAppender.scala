@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.io.File
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+
+import com.yammer.metrics.core.Gauge
+import kafka.cluster.Partition
+import kafka.log.{LogAppendInfo, ValidatedAppend}
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{ShutdownableThread, threadsafe}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.mutable
+import scala.util.{Failure, Try}
+
+object LogDirAppender {
+  private val PollIntervalMs = 100L
+
+  private class AppendTask(val entries: Seq[(Partition, Try[ValidatedAppend])],
+                           val requiredAcks: Short,
+                           val callback: Seq[(TopicPartition, Try[LogAppendInfo])] => Unit,
+                           val enqueueTimeNs: Long)
+}
+
+/**
+ * Appends the records of client produce requests to the partitions of a log directory on a dedicated thread, so that
+ * the writes to a disk are made by a single thread rather than by every request handler thread. The records are
+ * validated by the request handler threads with `Partition.validateForLeader` before they are queued, so that the
+ * append thread only moves their offsets past the log end offset, updates the producer state and writes them.
+ *
+ * Each pass of the thread takes all the queued appends, appends those of each partition together with
+ * `Partition.appendValidatedToLeader`, which writes the records going to the same segment with a single gathering
+ * write, and then calls the callback of each queued append with its results. Request handler threads wait to queue an
+ * append if `queueSize` appends are already queued.
+ */
+@threadsafe
+class LogDirAppender(name: String, val logDir: File, queueSize: Int, time: Time)
+  extends ShutdownableThread(name, isInterruptible = false) with KafkaMetricsGroup {
+  import LogDirAppender._
+
+  private val queue = new ArrayBlockingQueue[AppendTask](queueSize)
+
+  private val tags = Map("logDirectory" -> logDir.getAbsolutePath)
+
+  newGauge("AppendQueueSize",
+    new Gauge[Int] {
+      def value = queue.size
+    },
+    tags)
+
+  private val queueTimeHist = newHistogram("AppendQueueTimeMs", biased = true, tags)
+  private val batchSizeHist = newHistogram("AppendBatchSize", biased = true, tags)
+
+  /**
+   * Queue the append of `entries`, whose partitions have their log in this log directory, with their records validated
+   * or the exceptions of their validation. `callback` is called on the append thread with the result of each append
+   * once they are all done.
+   */
+  def append(entries: Seq[(Partition, Try[ValidatedAppend])], requiredAcks: Short,
+             callback: Seq[(TopicPartition, Try[LogAppendInfo])] => Unit): Unit = {
+    queue.put(new AppendTask(entries, requiredAcks, callback, time.nanoseconds))
+  }
+
+  override def doWork(): Unit = {
+    val first = queue.poll(PollIntervalMs, TimeUnit.MILLISECONDS)
+    if (first != null) {
+      val tasks = new java.util.ArrayList[AppendTask]
+      tasks.add(first)
+      queue.drainTo(tasks)
+      appendTasks(tasks)
+    }
+  }
+
+  private def appendTasks(tasks: java.util.List[AppendTask]): Unit = {
+    val now = time.nanoseconds
+    batchSizeHist.update(tasks.size)
+
+    // the appends of each partition, in the order in which they were queued, with the task and entry they belong to
+    val appendsByPartition = mutable.LinkedHashMap.empty[Partition, mutable.ArrayBuffer[(Int, Int)]]
+    val results = new Array[Array[Try[LogAppendInfo]]](tasks.size)
+    for (taskIndex <- 0 until tasks.size) {
+      val task = tasks.get(taskIndex)
+      queueTimeHist.update(TimeUnit.NANOSECONDS.toMillis(now - task.enqueueTimeNs))
+      results(taskIndex) = new Array[Try[LogAppendInfo]](task.entries.size)
+      for (entryIndex <- task.entries.indices)
+        appendsByPartition.getOrElseUpdate(task.entries(entryIndex)._1, mutable.ArrayBuffer.empty) += taskIndex -> entryIndex
+    }
+
+    for ((partition, appends) <- appendsByPartition) {
+      val entries = appends.map { case (taskIndex, entryIndex) =>
+        val task = tasks.get(taskIndex)
+        task.entries(entryIndex)._2 -> task.requiredAcks.toInt
+      }
+      val appended =
+        try partition.appendValidatedToLeader(entries, isFromClient = true)
+        catch {
+          case e: Throwable => entries.map(_ => Failure(e))
+        }
+      appends.zip(appended).foreach { case ((taskIndex, entryIndex), result) => results(taskIndex)(entryIndex) = result }
+    }
+
+    for (taskIndex <- 0 until tasks.size) {
+      val task = tasks.get(taskIndex)
+      try task.callback(task.entries.map(_._1.topicPartition).zip(results(taskIndex)))
+      catch {
+        case e: Throwable => error(s"Error completing appends to partitions ${task.entries.map(_._1.topicPartition).mkString(",")}", e)
+      }
+    }
+  }
+
+  override def shutdown(): Unit = {
+    super.shutdown()
+    // the appends queued before the request handlers stopped are still made
+    val remaining = new java.util.ArrayList[AppendTask]
+    queue.drainTo(remaining)
+    if (!remaining.isEmpty)
+      appendTasks(remaining)
+    removeMetric("AppendQueueSize", tags)
+    removeMetric("AppendQueueTimeMs", tags)
+    removeMetric("AppendBatchSize", tags)
+  }
+}
@@ -17,15 +17,12 @@
 
 package kafka.server
 
-import java.util.concurrent.locks.ReentrantReadWriteLock
-
 import scala.collection.{Seq, Set, mutable}
 import scala.collection.JavaConverters._
 import kafka.cluster.{Broker, EndPoint}
 import kafka.api._
 import kafka.common.{BrokerEndPointNotAvailableException, TopicAndPartition}
 import kafka.controller.{KafkaController, LeaderIsrAndControllerEpoch}
-import kafka.utils.CoreUtils._
 import kafka.utils.Logging
 import org.apache.kafka.common.internals.Topic
 import org.apache.kafka.common.{Node, TopicPartition}
@@ -36,24 +33,29 @@ import org.apache.kafka.common.requests.{MetadataResponse, PartitionState, Updat
 /**
  *  A cache for the state (e.g., current leader) of each partition. This cache is updated through
  *  UpdateMetadataRequest from the controller. Every broker maintains the same cache, asynchronously.
+ *  If a `responseCache` is provided, it is invalidated on every update.
  */
-class MetadataCache(brokerId: Int) extends Logging {
+class MetadataCache(brokerId: Int, val responseCache: Option[MetadataResponseCache] = None) extends Logging {
   private val stateChangeLogger = KafkaController.stateChangeLogger
-  private val cache = mutable.Map[String, mutable.Map[Int, PartitionStateInfo]]()
-  private var controllerId: Option[Int] = None
-  private val aliveBrokers = mutable.Map[Int, Broker]()
-  private val aliveNodes = mutable.Map[Int, collection.Map[ListenerName, Node]]()
-  private val partitionMetadataLock = new ReentrantReadWriteLock()
+  private val partitionMetadataLock = new Object
+
+  // The state of the cache. A MetadataSnapshot is never modified after it has been published, updates (which are
+  // serialized by `partitionMetadataLock`) build a new snapshot and replace this reference. Readers do not take any
+  // lock, but must read this var ONCE and use that snapshot for the whole operation so that they see a consistent
+  // state.
+  @volatile private var metadataSnapshot: MetadataSnapshot = MetadataSnapshot(partitionStates = mutable.Map.empty,
+    controllerId = None, aliveBrokers = mutable.Map.empty, aliveNodes = mutable.Map.empty)
 
   this.logIdent = s"[Kafka Metadata Cache on broker $brokerId] "
 
   // This method is the main hotspot when it comes to the performance of metadata requests,
   // we should be careful about adding additional logic here.
   // filterUnavailableEndpoints exists to support v0 MetadataResponses
-  private def getEndpoints(brokers: Iterable[Int], listenerName: ListenerName, filterUnavailableEndpoints: Boolean): Seq[Node] = {
-    val result = new mutable.ArrayBuffer[Node](math.min(aliveBrokers.size, brokers.size))
+  private def getEndpoints(snapshot: MetadataSnapshot, brokers: Iterable[Int], listenerName: ListenerName,
+                           filterUnavailableEndpoints: Boolean): Seq[Node] = {
+    val result = new mutable.ArrayBuffer[Node](math.min(snapshot.aliveBrokers.size, brokers.size))
     brokers.foreach { brokerId =>
-      val endpoint = getAliveEndpoint(brokerId, listenerName) match {
+      val endpoint = getAliveEndpoint(snapshot, brokerId, listenerName) match {
         case None => if (!filterUnavailableEndpoints) Some(new Node(brokerId, "", -1)) else None
         case Some(node) => Some(node)
       }
@@ -63,16 +65,17 @@ class MetadataCache(brokerId: Int) extends Logging {
   }
 
   // errorUnavailableEndpoints exists to support v0 MetadataResponses
-  private def getPartitionMetadata(topic: String, listenerName: ListenerName, errorUnavailableEndpoints: Boolean): Option[Iterable[MetadataResponse.PartitionMetadata]] = {
-    cache.get(topic).map { partitions =>
+  private def getPartitionMetadata(snapshot: MetadataSnapshot, topic: String, listenerName: ListenerName,
+                                   errorUnavailableEndpoints: Boolean): Option[Iterable[MetadataResponse.PartitionMetadata]] = {
+    snapshot.partitionStates.get(topic).map { partitions =>
       partitions.map { case (partitionId, partitionState) =>
         val topicPartition = TopicAndPartition(topic, partitionId)
 
         val leaderAndIsr = partitionState.leaderIsrAndControllerEpoch.leaderAndIsr
-        val maybeLeader = getAliveEndpoint(leaderAndIsr.leader, listenerName)
+        val maybeLeader = getAliveEndpoint(snapshot, leaderAndIsr.leader, listenerName)
 
         val replicas = partitionState.allReplicas
-        val replicaInfo = getEndpoints(replicas, listenerName, errorUnavailableEndpoints)
+        val replicaInfo = getEndpoints(snapshot, replicas, listenerName, errorUnavailableEndpoints)
 
         maybeLeader match {
           case None =>
@@ -82,7 +85,7 @@ class MetadataCache(brokerId: Int) extends Logging {
 
           case Some(leader) =>
             val isr = leaderAndIsr.isr
-            val isrInfo = getEndpoints(isr, listenerName, errorUnavailableEndpoints)
+            val isrInfo = getEndpoints(snapshot, isr, listenerName, errorUnavailableEndpoints)
 
             if (replicaInfo.size < replicas.size) {
               debug(s"Error while fetching metadata for $topicPartition: replica information not available for " +
@@ -105,90 +108,66 @@ class MetadataCache(brokerId: Int) extends Logging {
   }
 
   def getAliveEndpoint(brokerId: Int, listenerName: ListenerName): Option[Node] =
-    aliveNodes.get(brokerId).map { nodeMap =>
+    getAliveEndpoint(metadataSnapshot, brokerId, listenerName)
+
+  private def getAliveEndpoint(snapshot: MetadataSnapshot, brokerId: Int, listenerName: ListenerName): Option[Node] =
+    snapshot.aliveNodes.get(brokerId).map { nodeMap =>
       nodeMap.getOrElse(listenerName,
         throw new BrokerEndPointNotAvailableException(s"Broker `$brokerId` does not have listener with name `$listenerName`"))
     }
 
   // errorUnavailableEndpoints exists to support v0 MetadataResponses
   def getTopicMetadata(topics: Set[String], listenerName: ListenerName, errorUnavailableEndpoints: Boolean = false): Seq[MetadataResponse.TopicMetadata] = {
-    inReadLock(partitionMetadataLock) {
-      topics.toSeq.flatMap { topic =>
-        getPartitionMetadata(topic, listenerName, errorUnavailableEndpoints).map { partitionMetadata =>
-          new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic), partitionMetadata.toBuffer.asJava)
-        }
+    val snapshot = metadataSnapshot
+    topics.toSeq.flatMap { topic =>
+      getPartitionMetadata(snapshot, topic, listenerName, errorUnavailableEndpoints).map { partitionMetadata =>
+        new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic), partitionMetadata.toBuffer.asJava)
       }
     }
   }
 
-  def getAllTopics(): Set[String] = {
-    inReadLock(partitionMetadataLock) {
-      cache.keySet.toSet
-    }
-  }
+  def getAllTopics(): Set[String] = metadataSnapshot.partitionStates.keySet.toSet
 
-  def getNonExistingTopics(topics: Set[String]): Set[String] = {
-    inReadLock(partitionMetadataLock) {
-      topics -- cache.keySet
-    }
-  }
-
-  def isBrokerAlive(brokerId: Int): Boolean = {
-    inReadLock(partitionMetadataLock) {
-      aliveBrokers.contains(brokerId)
-    }
-  }
+  def getNonExistingTopics(topics: Set[String]): Set[String] = topics -- metadataSnapshot.partitionStates.keySet
 
-  def getAliveBrokers: Seq[Broker] = {
-    inReadLock(partitionMetadataLock) {
-      aliveBrokers.values.toBuffer
-    }
-  }
+  def isBrokerAlive(brokerId: Int): Boolean = metadataSnapshot.aliveBrokers.contains(brokerId)
 
-  private def addOrUpdatePartitionInfo(topic: String,
-                                       partitionId: Int,
-                                       stateInfo: PartitionStateInfo) {
-    inWriteLock(partitionMetadataLock) {
-      val infos = cache.getOrElseUpdate(topic, mutable.Map())
-      infos(partitionId) = stateInfo
-    }
-  }
+  def getAliveBrokers: Seq[Broker] = metadataSnapshot.aliveBrokers.values.toBuffer
 
-  def getPartitionInfo(topic: String, partitionId: Int): Option[PartitionStateInfo] = {
-    inReadLock(partitionMetadataLock) {
-      cache.get(topic).flatMap(_.get(partitionId))
-    }
-  }
+  def getPartitionInfo(topic: String, partitionId: Int): Option[PartitionStateInfo] =
+    metadataSnapshot.partitionStates.get(topic).flatMap(_.get(partitionId))
 
   // if the leader is not known, return None;
   // if the leader is known and corresponding node is available, return Some(node)
   // if the leader is known but corresponding node with the listener name is not available, return Some(NO_NODE)
   def getPartitionLeaderEndpoint(topic: String, partitionId: Int, listenerName: ListenerName): Option[Node] = {
-    inReadLock(partitionMetadataLock) {
-      cache.get(topic).flatMap(_.get(partitionId)) map { partitionInfo =>
-        val leaderId = partitionInfo.leaderIsrAndControllerEpoch.leaderAndIsr.leader
-
-        aliveNodes.get(leaderId) match {
-          case Some(nodeMap) =>
-            nodeMap.getOrElse(listenerName, Node.noNode)
-          case None =>
-            Node.noNode
-        }
+    val snapshot = metadataSnapshot
+    snapshot.partitionStates.get(topic).flatMap(_.get(partitionId)) map { partitionInfo =>
+      val leaderId = partitionInfo.leaderIsrAndControllerEpoch.leaderAndIsr.leader
+
+      snapshot.aliveNodes.get(leaderId) match {
+        case Some(nodeMap) =>
+          nodeMap.getOrElse(listenerName, Node.noNode)
+        case None =>
+          Node.noNode
       }
     }
   }
 
-  def getControllerId: Option[Int] = controllerId
+  def getControllerId: Option[Int] = metadataSnapshot.controllerId
+
+  // visible for testing
+  private[server] def currentSnapshot: MetadataSnapshot = metadataSnapshot
 
   // This method returns the deleted TopicPartitions received from UpdateMetadataRequest
   def updateCache(correlationId: Int, updateMetadataRequest: UpdateMetadataRequest): Seq[TopicPartition] = {
-    inWriteLock(partitionMetadataLock) {
-      controllerId = updateMetadataRequest.controllerId match {
+    partitionMetadataLock synchronized {
+      val controllerId = updateMetadataRequest.controllerId match {
           case id if id < 0 => None
           case id => Some(id)
         }
-      aliveNodes.clear()
-      aliveBrokers.clear()
+      val aliveNodes = mutable.Map[Int, collection.Map[ListenerName, Node]]()
+      val aliveBrokers = mutable.Map[Int, Broker]()
       updateMetadataRequest.liveBrokers.asScala.foreach { broker =>
         // `aliveNodes` is a hot path for metadata requests for large clusters, so we use java.util.HashMap which
         // is a bit faster than scala.collection.mutable.HashMap. When we drop support for Scala 2.10, we could
@@ -203,22 +182,50 @@ class MetadataCache(brokerId: Int) extends Logging {
         aliveNodes(broker.id) = nodes.asScala
       }
 
+      // Copy the partition states of the current snapshot. The per-topic maps are shared with the current
+      // snapshot and are only copied before the partitions of a topic are updated.
+      val partitionStates = mutable.Map[String, mutable.Map[Int, PartitionStateInfo]]()
+      partitionStates ++= metadataSnapshot.partitionStates
+      val copiedTopics = mutable.Set[String]()
+      def topicPartitionStates(topic: String): Option[mutable.Map[Int, PartitionStateInfo]] =
+        if (copiedTopics.contains(topic))
+          partitionStates.get(topic)
+        else {
+          copiedTopics += topic
+          partitionStates.get(topic).map { infos =>
+            val copy = mutable.Map[Int, PartitionStateInfo]() ++= infos
+            partitionStates(topic) = copy
+            copy
+          }
+        }
+
       val deletedPartitions = new mutable.ArrayBuffer[TopicPartition]
       updateMetadataRequest.partitionStates.asScala.foreach { case (tp, info) =>
         val controllerId = updateMetadataRequest.controllerId
         val controllerEpoch = updateMetadataRequest.controllerEpoch
         if (info.leader == LeaderAndIsr.LeaderDuringDelete) {
-          removePartitionInfo(tp.topic, tp.partition)
+          topicPartitionStates(tp.topic).foreach { infos =>
+            infos.remove(tp.partition)
+            if (infos.isEmpty) partitionStates.remove(tp.topic)
+          }
           stateChangeLogger.trace(s"Broker $brokerId deleted partition $tp from metadata cache in response to UpdateMetadata " +
             s"request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
           deletedPartitions += tp
         } else {
           val partitionInfo = partitionStateToPartitionStateInfo(info)
-          addOrUpdatePartitionInfo(tp.topic, tp.partition, partitionInfo)
+          val infos = topicPartitionStates(tp.topic).getOrElse {
+            val infos = mutable.Map[Int, PartitionStateInfo]()
+            partitionStates(tp.topic) = infos
+            infos
+          }
+          infos(tp.partition) = partitionInfo
           stateChangeLogger.trace(s"Broker $brokerId cached leader info $partitionInfo for partition $tp in response to " +
             s"UpdateMetadata request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
         }
       }
+      metadataSnapshot = MetadataSnapshot(partitionStates, controllerId, aliveBrokers, aliveNodes)
+      // invalidate after the update so that responses of the new generation are built from the updated state
+      responseCache.foreach(_.invalidate())
       deletedPartitions
     }
   }
@@ -229,20 +236,14 @@ class MetadataCache(brokerId: Int) extends Logging {
     PartitionStateInfo(leaderInfo, partitionState.replicas.asScala.map(_.toInt))
   }
 
-  def contains(topic: String): Boolean = {
-    inReadLock(partitionMetadataLock) {
-      cache.contains(topic)
-    }
-  }
+  def contains(topic: String): Boolean = metadataSnapshot.partitionStates.contains(topic)
 
   def contains(tp: TopicPartition): Boolean = getPartitionInfo(tp.topic, tp.partition).isDefined
 
-  private def removePartitionInfo(topic: String, partitionId: Int): Boolean = {
-    cache.get(topic).map { infos =>
-      infos.remove(partitionId)
-      if (infos.isEmpty) cache.remove(topic)
-      true
-    }.getOrElse(false)
-  }
+  // The maps of a snapshot are mutable for efficiency, but must not be modified once the snapshot is published
+  private[server] case class MetadataSnapshot(partitionStates: mutable.Map[String, mutable.Map[Int, PartitionStateInfo]],
+                                      controllerId: Option[Int],
+                                      aliveBrokers: mutable.Map[Int, Broker],
+                                      aliveNodes: mutable.Map[Int, collection.Map[ListenerName, Node]])
 
 }
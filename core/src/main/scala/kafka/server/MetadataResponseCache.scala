@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+
+import kafka.metrics.KafkaMetricsGroup
+import org.apache.kafka.common.network.{ByteBufferSend, ListenerName, Send}
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.requests.{AbstractResponse, RequestHeader}
+
+import scala.collection.Set
+
+object MetadataResponseCache {
+
+  /**
+   * Identifies a metadata response. `topics` is None for requests of all topics.
+   */
+  case class Key(listenerName: ListenerName, version: Short, topics: Option[Set[String]])
+
+  private case class Entry(generation: Long, body: ByteBuffer)
+
+  /**
+   * Build the send for a serialized metadata response body. The body is shared, so it is never modified: the
+   * response header and, for versions that have one, the throttle time are written to a separate buffer.
+   */
+  def toSend(destination: String, header: RequestHeader, throttleTimeMs: Int, body: ByteBuffer): Send = {
+    val responseHeader = header.toResponseHeader.toStruct
+    val hasThrottleTime = ApiKeys.METADATA.responseSchema(header.apiVersion).get(AbstractResponse.THROTTLE_TIME_KEY_NAME) != null
+    val headerBuffer = ByteBuffer.allocate(responseHeader.sizeOf + (if (hasThrottleTime) 4 else 0))
+    responseHeader.writeTo(headerBuffer)
+    val bodyBuffer = body.duplicate()
+    // the throttle time is the first field of the response body
+    if (hasThrottleTime) {
+      headerBuffer.putInt(throttleTimeMs)
+      bodyBuffer.position(bodyBuffer.position + 4)
+    }
+    headerBuffer.flip()
+    val sizeBuffer = ByteBuffer.allocate(4)
+    sizeBuffer.putInt(headerBuffer.remaining + bodyBuffer.remaining)
+    sizeBuffer.flip()
+    new ByteBufferSend(destination, sizeBuffer, headerBuffer, bodyBuffer)
+  }
+}
+
+/**
+ * A cache of serialized metadata response bodies, so that the responses for clients which repeatedly request the
+ * metadata of the same topics (or of all topics) are only built and serialized once per metadata update. The bodies
+ * are serialized with a throttle time of 0, see `MetadataResponseCache.toSend`.
+ *
+ * Entries are tagged with the generation in which they were built. `invalidate` is called by `MetadataCache` whenever
+ * it is updated and moves to a new generation, so a response built from metadata which was concurrently updated is
+ * never returned. At most `maxEntries` responses are cached per generation.
+ */
+class MetadataResponseCache(maxEntries: Int) extends KafkaMetricsGroup {
+  import MetadataResponseCache._
+
+  private val entries = new ConcurrentHashMap[Key, Entry]
+  private val currentGeneration = new AtomicLong(0L)
+
+  private val hitRate = newMeter("HitsPerSec", "requests", TimeUnit.SECONDS)
+  private val missRate = newMeter("MissesPerSec", "requests", TimeUnit.SECONDS)
+
+  /**
+   * The current generation, which must be read before the metadata used to build a response is read from the
+   * metadata cache.
+   */
+  def generation: Long = currentGeneration.get
+
+  def get(key: Key): Option[ByteBuffer] = {
+    val entry = entries.get(key)
+    if (entry != null && entry.generation == generation) {
+      hitRate.mark()
+      Some(entry.body)
+    } else {
+      if (entry != null)
+        entries.remove(key, entry)
+      missRate.mark()
+      None
+    }
+  }
+
+  def put(key: Key, generation: Long, body: ByteBuffer): Unit = {
+    if (generation == this.generation && (entries.size < maxEntries || entries.containsKey(key)))
+      entries.put(key, Entry(generation, body))
+  }
+
+  def invalidate(): Unit = {
+    currentGeneration.incrementAndGet()
+    entries.clear()
+  }
+
+  def size: Int = entries.size
+
+}
@@ -17,24 +17,42 @@
 
 package kafka.server
 
+import java.util.concurrent.{ExecutorService, Executors, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+
 import kafka.cluster.BrokerEndPoint
 import org.apache.kafka.common.metrics.Metrics
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{Time, Utils}
 
 class ReplicaFetcherManager(brokerConfig: KafkaConfig, protected val replicaManager: ReplicaManager, metrics: Metrics,
                             time: Time, threadNamePrefix: Option[String] = None, quotaManager: ReplicationQuotaManager)
       extends AbstractFetcherManager("ReplicaFetcherManager on broker " + brokerConfig.brokerId,
-        "Replica", brokerConfig.numReplicaFetchers) {
+        "Replica", brokerConfig.numReplicaFetchers, brokerConfig.maxReplicaFetchers) {
+
+  // the threads shared by all fetcher threads to append the partitions of a fetch response in parallel
+  private val appendExecutor: Option[ExecutorService] =
+    if (brokerConfig.numReplicaFetcherAppendThreads > 0) {
+      val threadPrefix = threadNamePrefix.map(_ + "-").getOrElse("") + "replica-fetcher-append-"
+      val threadCount = new AtomicLong(0)
+      Some(Executors.newFixedThreadPool(brokerConfig.numReplicaFetcherAppendThreads, new ThreadFactory {
+        def newThread(runnable: Runnable): Thread = Utils.newThread(threadPrefix + threadCount.getAndIncrement(), runnable, true)
+      }))
+    } else None
 
   override def createFetcherThread(fetcherId: Int, sourceBroker: BrokerEndPoint): AbstractFetcherThread = {
     val prefix = threadNamePrefix.map(tp => s"${tp}:").getOrElse("")
     val threadName = s"${prefix}ReplicaFetcherThread-$fetcherId-${sourceBroker.id}"
-    new ReplicaFetcherThread(threadName, fetcherId, sourceBroker, brokerConfig, replicaManager, metrics, time, quotaManager)
+    new ReplicaFetcherThread(threadName, fetcherId, sourceBroker, brokerConfig, replicaManager, metrics, time, quotaManager,
+      appendExecutor = appendExecutor)
   }
 
   def shutdown() {
     info("shutting down")
     closeAllFetchers()
+    appendExecutor.foreach { executor =>
+      executor.shutdown()
+      executor.awaitTermination(30, TimeUnit.SECONDS)
+    }
     info("shutdown completed")
   }
 }
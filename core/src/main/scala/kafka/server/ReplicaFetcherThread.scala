@@ -18,6 +18,7 @@
 package kafka.server
 
 import java.util
+import java.util.concurrent.ExecutorService
 
 import kafka.admin.AdminUtils
 import kafka.api.{FetchRequest => _, _}
@@ -47,13 +48,15 @@ class ReplicaFetcherThread(name: String,
                            metrics: Metrics,
                            time: Time,
                            quota: ReplicationQuotaManager,
-                           leaderEndpointBlockingSend: Option[BlockingSend] = None)
+                           leaderEndpointBlockingSend: Option[BlockingSend] = None,
+                           appendExecutor: Option[ExecutorService] = None)
   extends AbstractFetcherThread(name = name,
                                 clientId = name,
                                 sourceBroker = sourceBroker,
                                 fetchBackOffMs = brokerConfig.replicaFetchBackoffMs,
                                 isInterruptible = false,
-                                includeLogTruncation = true) {
+                                includeLogTruncation = true,
+                                appendExecutor = appendExecutor) {
 
   type REQ = FetchRequest
   type PD = PartitionData
@@ -17,15 +17,16 @@
 package kafka.server
 
 import java.io.{File, IOException}
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException, ExecutorService, Executors, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
 
 import com.yammer.metrics.core.Gauge
 import kafka.api._
 import kafka.cluster.{Partition, Replica}
 import kafka.common.KafkaStorageException
 import kafka.controller.KafkaController
-import kafka.log.{Log, LogAppendInfo, LogManager}
+import kafka.log.{Log, LogAppendInfo, LogManager, ValidatedAppend}
+import kafka.log.remote.RemoteLogManager
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server.QuotaFactory.UnboundedQuota
 import kafka.server.checkpoints.OffsetCheckpointFile
@@ -42,10 +43,11 @@ import org.apache.kafka.common.requests.FetchRequest.PartitionData
 import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
 import org.apache.kafka.common.requests.{DeleteRecordsRequest, DeleteRecordsResponse, LeaderAndIsrRequest, PartitionState, StopReplicaRequest, UpdateMetadataRequest, _}
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{Time, Utils}
 
 import scala.collection.JavaConverters._
 import scala.collection._
+import scala.util.{Failure, Success, Try}
 
 /*
  * Result metadata of a log append operation on the log
@@ -203,6 +205,34 @@ class ReplicaManager(val config: KafkaConfig,
   val isrShrinkRate = newMeter("IsrShrinksPerSec", "shrinks", TimeUnit.SECONDS)
   val failedIsrUpdatesRate = newMeter("FailedIsrUpdatesPerSec", "failedUpdates", TimeUnit.SECONDS)
 
+  // Time taken by appendToLocalLog for produce requests, tagged by whether the partitions were appended in parallel
+  // or handed to the append threads of the log directories
+  private val sequentialAppendTimeHist = newHistogram("LocalAppendTimeMs", biased = true, Map("mode" -> "sequential"))
+  private val parallelAppendTimeHist = newHistogram("LocalAppendTimeMs", biased = true, Map("mode" -> "parallel"))
+  private val pipelineAppendTimeHist = newHistogram("LocalAppendTimeMs", biased = true, Map("mode" -> "pipeline"))
+
+  // Shared by all request handler threads to append the partitions of a produce request in parallel
+  private val produceAppendExecutor: Option[ExecutorService] =
+    if (config.numProduceAppendThreads > 0) {
+      val threadPrefix = threadNamePrefix.map(_ + "-").getOrElse("") + "produce-append-"
+      val threadCount = new AtomicLong(0)
+      Some(Executors.newFixedThreadPool(config.numProduceAppendThreads, new ThreadFactory {
+        def newThread(runnable: Runnable): Thread = Utils.newThread(threadPrefix + threadCount.getAndIncrement(), runnable, true)
+      }))
+    } else None
+
+  // The append thread of each log directory, which appends the records of client produce requests if the append
+  // pipeline is enabled
+  private val logDirAppenders: Map[File, LogDirAppender] =
+    if (config.logAppendPipelineEnable) {
+      val threadPrefix = threadNamePrefix.map(_ + "-").getOrElse("") + "log-dir-appender-"
+      logManager.logDirs.zipWithIndex.map { case (dir, i) =>
+        val appender = new LogDirAppender(threadPrefix + i, dir, config.logAppendPipelineQueueSize, time)
+        appender.start()
+        dir -> appender
+      }.toMap
+    } else Map.empty
+
   def underReplicatedPartitionCount: Int =
     getLeaderPartitions.count(_.isUnderReplicated)
 
@@ -277,6 +307,13 @@ class ReplicaManager(val config: KafkaConfig,
     // A follower can lag behind leader for up to config.replicaLagTimeMaxMs x 1.5 before it is removed from ISR
     scheduler.schedule("isr-expiration", maybeShrinkIsr _, period = config.replicaLagTimeMaxMs / 2, unit = TimeUnit.MILLISECONDS)
     scheduler.schedule("isr-change-propagation", maybePropagateIsrChanges _, period = 2500L, unit = TimeUnit.MILLISECONDS)
+    if (config.replicaFetcherRebalanceIntervalMs > 0)
+      scheduler.schedule("replica-fetcher-rebalance", replicaFetcherManager.rebalance _,
+        period = config.replicaFetcherRebalanceIntervalMs, unit = TimeUnit.MILLISECONDS)
+    logManager.remoteLogManager.foreach { remoteLogManager =>
+      scheduler.schedule("remote-log-tiering", () => tierLogs(remoteLogManager), delay = config.logCleanupIntervalMs,
+        period = config.logCleanupIntervalMs, unit = TimeUnit.MILLISECONDS)
+    }
   }
 
   def stopReplica(topicPartition: TopicPartition, deletePartition: Boolean): Errors  = {
@@ -370,34 +407,27 @@ class ReplicaManager(val config: KafkaConfig,
                     delayedProduceLock: Option[Object] = None) {
     if (isValidRequiredAcks(requiredAcks)) {
       val sTime = time.milliseconds
-      val localProduceResults = appendToLocalLog(internalTopicsAllowed = internalTopicsAllowed,
-        isFromClient = isFromClient, entriesPerPartition, requiredAcks)
-      debug("Produce to local log in %d ms".format(time.milliseconds - sTime))
-
-      val produceStatus = localProduceResults.map { case (topicPartition, result) =>
-        topicPartition ->
-                ProducePartitionStatus(
-                  result.info.lastOffset + 1, // required offset
-                  new PartitionResponse(result.error, result.info.firstOffset, result.info.logAppendTime)) // response status
-      }
-
-      if (delayedProduceRequestRequired(requiredAcks, entriesPerPartition, localProduceResults)) {
-        // create delayed produce operation
-        val produceMetadata = ProduceMetadata(requiredAcks, produceStatus)
-        val delayedProduce = new DelayedProduce(timeout, produceMetadata, this, responseCallback, delayedProduceLock)
-
-        // create a list of (topic, partition) pairs to use as keys for this delayed produce operation
-        val producerRequestKeys = entriesPerPartition.keys.map(new TopicPartitionOperationKey(_)).toSeq
-
-        // try to complete the request immediately, otherwise put it into the purgatory
-        // this is because while the delayed produce operation is being created, new
-        // requests may arrive and hence make this operation completable.
-        delayedProducePurgatory.tryCompleteElseWatch(delayedProduce, producerRequestKeys)
-
+      // Appends of coordinator writes happen while holding the group or transaction lock, so only client produce
+      // requests are appended in parallel or by the append threads to avoid waiting on other threads with a lock held.
+      if (isFromClient && delayedProduceLock.isEmpty && logDirAppenders.nonEmpty) {
+        appendToLocalLogInPipeline(internalTopicsAllowed, entriesPerPartition, requiredAcks) { localProduceResults =>
+          val appendTimeMs = time.milliseconds - sTime
+          pipelineAppendTimeHist.update(appendTimeMs)
+          debug("Produce to local log in %d ms".format(appendTimeMs))
+          completeAppend(timeout, requiredAcks, entriesPerPartition, localProduceResults, responseCallback, delayedProduceLock)
+        }
       } else {
-        // we can respond immediately
-        val produceResponseStatus = produceStatus.mapValues(status => status.responseStatus)
-        responseCallback(produceResponseStatus)
+        val appendInParallel = isFromClient && delayedProduceLock.isEmpty && produceAppendExecutor.isDefined &&
+          entriesPerPartition.size > 1
+        val localProduceResults = appendToLocalLog(internalTopicsAllowed = internalTopicsAllowed,
+          isFromClient = isFromClient, entriesPerPartition, requiredAcks, appendInParallel)
+        val appendTimeMs = time.milliseconds - sTime
+        if (isFromClient) {
+          if (appendInParallel) parallelAppendTimeHist.update(appendTimeMs)
+          else sequentialAppendTimeHist.update(appendTimeMs)
+        }
+        debug("Produce to local log in %d ms".format(appendTimeMs))
+        completeAppend(timeout, requiredAcks, entriesPerPartition, localProduceResults, responseCallback, delayedProduceLock)
       }
     } else {
       // If required.acks is outside accepted range, something is wrong with the client
@@ -410,6 +440,43 @@ class ReplicaManager(val config: KafkaConfig,
     }
   }
 
+  /**
+   * Respond to a produce request once its records are appended to the local logs, or create the delayed produce
+   * operation waiting for them to be replicated
+   */
+  private def completeAppend(timeout: Long,
+                             requiredAcks: Short,
+                             entriesPerPartition: Map[TopicPartition, MemoryRecords],
+                             localProduceResults: Map[TopicPartition, LogAppendResult],
+                             responseCallback: Map[TopicPartition, PartitionResponse] => Unit,
+                             delayedProduceLock: Option[Object]) {
+    val produceStatus = localProduceResults.map { case (topicPartition, result) =>
+      topicPartition ->
+              ProducePartitionStatus(
+                result.info.lastOffset + 1, // required offset
+                new PartitionResponse(result.error, result.info.firstOffset, result.info.logAppendTime)) // response status
+    }
+
+    if (delayedProduceRequestRequired(requiredAcks, entriesPerPartition, localProduceResults)) {
+      // create delayed produce operation
+      val produceMetadata = ProduceMetadata(requiredAcks, produceStatus)
+      val delayedProduce = new DelayedProduce(timeout, produceMetadata, this, responseCallback, delayedProduceLock)
+
+      // create a list of (topic, partition) pairs to use as keys for this delayed produce operation
+      val producerRequestKeys = entriesPerPartition.keys.map(new TopicPartitionOperationKey(_)).toSeq
+
+      // try to complete the request immediately, otherwise put it into the purgatory
+      // this is because while the delayed produce operation is being created, new
+      // requests may arrive and hence make this operation completable.
+      delayedProducePurgatory.tryCompleteElseWatch(delayedProduce, producerRequestKeys)
+
+    } else {
+      // we can respond immediately
+      val produceResponseStatus = produceStatus.mapValues(status => status.responseStatus)
+      responseCallback(produceResponseStatus)
+      }
+  }
+
   /**
    * Delete records on leader replicas of the partition, and wait for delete records operation be propagated to other replicas;
    * the callback function will be triggered either when timeout or logStartOffset of all live replicas have reached the specified offset
@@ -527,67 +594,160 @@ class ReplicaManager(val config: KafkaConfig,
   private def appendToLocalLog(internalTopicsAllowed: Boolean,
                                isFromClient: Boolean,
                                entriesPerPartition: Map[TopicPartition, MemoryRecords],
-                               requiredAcks: Short): Map[TopicPartition, LogAppendResult] = {
+                               requiredAcks: Short,
+                               appendInParallel: Boolean = false): Map[TopicPartition, LogAppendResult] = {
     trace("Append [%s] to local log ".format(entriesPerPartition))
-    entriesPerPartition.map { case (topicPartition, records) =>
-      brokerTopicStats.topicStats(topicPartition.topic).totalProduceRequestRate.mark()
-      brokerTopicStats.allTopicsStats.totalProduceRequestRate.mark()
-
-      // reject appending to internal topics if it is not allowed
-      if (Topic.isInternal(topicPartition.topic) && !internalTopicsAllowed) {
-        (topicPartition, LogAppendResult(
-          LogAppendInfo.UnknownLogAppendInfo,
-          Some(new InvalidTopicException(s"Cannot append to internal topic ${topicPartition.topic}"))))
-      } else {
-        try {
-          val partitionOpt = getPartition(topicPartition)
-          val info = partitionOpt match {
-            case Some(partition) =>
-              partition.appendRecordsToLeader(records, isFromClient, requiredAcks)
-
-            case None => throw new UnknownTopicOrPartitionException("Partition %s doesn't exist on %d"
-              .format(topicPartition, localBrokerId))
+    def append(topicPartition: TopicPartition, records: MemoryRecords) =
+      topicPartition -> appendToLocalLog(topicPartition, records, internalTopicsAllowed, isFromClient, requiredAcks)
+
+    produceAppendExecutor match {
+      case Some(executor) if appendInParallel =>
+        // Hand all but the first partition to the append executor and append the first one in the calling thread.
+        // The results are only returned once every partition has been appended, so the delayed produce is created
+        // exactly as in the sequential case.
+        val (first, rest) = entriesPerPartition.toSeq.splitAt(1)
+        val futures = rest.map { case (topicPartition, records) =>
+          executor.submit(new Callable[(TopicPartition, LogAppendResult)] {
+            def call(): (TopicPartition, LogAppendResult) = append(topicPartition, records)
+          })
+        }
+        val firstResult = first.map { case (topicPartition, records) => append(topicPartition, records) }
+        val restResults = rest.zip(futures).map { case ((topicPartition, _), future) =>
+          try future.get()
+          catch {
+            case e: ExecutionException =>
+              error("Error processing append operation on partition %s".format(topicPartition), e.getCause)
+              topicPartition -> LogAppendResult(LogAppendInfo.UnknownLogAppendInfo, Some(e.getCause))
           }
+        }
+        (firstResult ++ restResults).toMap
+      case _ =>
+        entriesPerPartition.map { case (topicPartition, records) => append(topicPartition, records) }
+    }
+  }
 
-          val numAppendedMessages =
-            if (info.firstOffset == -1L || info.lastOffset == -1L)
-              0
-            else
-              info.lastOffset - info.firstOffset + 1
-
-          // update stats for successfully appended bytes and messages as bytesInRate and messageInRate
-          brokerTopicStats.topicStats(topicPartition.topic).bytesInRate.mark(records.sizeInBytes)
-          brokerTopicStats.allTopicsStats.bytesInRate.mark(records.sizeInBytes)
-          brokerTopicStats.topicStats(topicPartition.topic).messagesInRate.mark(numAppendedMessages)
-          brokerTopicStats.allTopicsStats.messagesInRate.mark(numAppendedMessages)
+  private def appendToLocalLog(topicPartition: TopicPartition,
+                               records: MemoryRecords,
+                               internalTopicsAllowed: Boolean,
+                               isFromClient: Boolean,
+                               requiredAcks: Short): LogAppendResult = {
+    brokerTopicStats.topicStats(topicPartition.topic).totalProduceRequestRate.mark()
+    brokerTopicStats.allTopicsStats.totalProduceRequestRate.mark()
+
+    // reject appending to internal topics if it is not allowed
+    if (Topic.isInternal(topicPartition.topic) && !internalTopicsAllowed) {
+      LogAppendResult(
+        LogAppendInfo.UnknownLogAppendInfo,
+        Some(new InvalidTopicException(s"Cannot append to internal topic ${topicPartition.topic}")))
+    } else {
+      try {
+        val partitionOpt = getPartition(topicPartition)
+        val info = partitionOpt match {
+          case Some(partition) =>
+            partition.appendRecordsToLeader(records, isFromClient, requiredAcks)
 
-          trace("%d bytes written to log %s-%d beginning at offset %d and ending at offset %d"
-            .format(records.sizeInBytes, topicPartition.topic, topicPartition.partition, info.firstOffset, info.lastOffset))
-          (topicPartition, LogAppendResult(info))
-        } catch {
-          // NOTE: Failed produce requests metric is not incremented for known exceptions
-          // it is supposed to indicate un-expected failures of a broker in handling a produce request
-          case e: KafkaStorageException =>
-            fatal("Halting due to unrecoverable I/O error while handling produce request: ", e)
-            Exit.halt(1)
-            (topicPartition, null)
-          case e@ (_: UnknownTopicOrPartitionException |
-                   _: NotLeaderForPartitionException |
-                   _: RecordTooLargeException |
-                   _: RecordBatchTooLargeException |
-                   _: CorruptRecordException |
-                   _: InvalidTimestampException) =>
-            (topicPartition, LogAppendResult(LogAppendInfo.UnknownLogAppendInfo, Some(e)))
-          case t: Throwable =>
-            brokerTopicStats.topicStats(topicPartition.topic).failedProduceRequestRate.mark()
-            brokerTopicStats.allTopicsStats.failedProduceRequestRate.mark()
-            error("Error processing append operation on partition %s".format(topicPartition), t)
-            (topicPartition, LogAppendResult(LogAppendInfo.UnknownLogAppendInfo, Some(t)))
+          case None => throw new UnknownTopicOrPartitionException("Partition %s doesn't exist on %d"
+            .format(topicPartition, localBrokerId))
         }
+        appendedToLocalLog(topicPartition, records, info)
+      } catch {
+        case t: Throwable => failedToAppendToLocalLog(topicPartition, t)
       }
     }
   }
 
+  /**
+   * Validate the records of a client produce request and hand them to the append threads of the log directories of their
+   * partitions, and call `onComplete` with the results once all of them are appended. The partitions whose log is not local are
+   * appended in the calling thread, so that they fail as they would without the append threads.
+   */
+  private def appendToLocalLogInPipeline(internalTopicsAllowed: Boolean,
+                                         entriesPerPartition: Map[TopicPartition, MemoryRecords],
+                                         requiredAcks: Short)
+                                        (onComplete: Map[TopicPartition, LogAppendResult] => Unit): Unit = {
+    trace("Append [%s] to local log ".format(entriesPerPartition))
+    val results = new ConcurrentHashMap[TopicPartition, LogAppendResult]
+    val entriesPerAppender = mutable.Map.empty[LogDirAppender, mutable.ArrayBuffer[(Partition, Try[ValidatedAppend])]]
+    entriesPerPartition.foreach { case (topicPartition, records) =>
+      val appenderOpt =
+        if (Topic.isInternal(topicPartition.topic) && !internalTopicsAllowed) None
+        else for {
+          partition <- getPartition(topicPartition)
+          log <- partition.leaderReplicaIfLocal.flatMap(_.log)
+          appender <- logDirAppenders.get(log.dir.getParentFile)
+        } yield appender -> partition
+      appenderOpt match {
+        case Some((appender, partition)) =>
+          brokerTopicStats.topicStats(topicPartition.topic).totalProduceRequestRate.mark()
+          brokerTopicStats.allTopicsStats.totalProduceRequestRate.mark()
+          // the records are validated by this thread, the append thread only assigns their offsets and writes them
+          entriesPerAppender.getOrElseUpdate(appender, mutable.ArrayBuffer.empty) +=
+            partition -> partition.validateForLeader(records, isFromClient = true)
+        case None =>
+          results.put(topicPartition, appendToLocalLog(topicPartition, records, internalTopicsAllowed,
+            isFromClient = true, requiredAcks))
+      }
+    }
+
+    if (entriesPerAppender.isEmpty)
+      onComplete(results.asScala.toMap)
+    else {
+      // the last append thread to append its partitions completes the request
+      val remaining = new AtomicInteger(entriesPerAppender.size)
+      entriesPerAppender.foreach { case (appender, entries) =>
+        appender.append(entries, requiredAcks, { appended =>
+          appended.foreach { case (topicPartition, result) =>
+            results.put(topicPartition, result match {
+              case Success(info) => appendedToLocalLog(topicPartition, entriesPerPartition(topicPartition), info)
+              case Failure(e) => failedToAppendToLocalLog(topicPartition, e)
+            })
+          }
+          if (remaining.decrementAndGet() == 0)
+            onComplete(results.asScala.toMap)
+        })
+      }
+    }
+  }
+
+  private def appendedToLocalLog(topicPartition: TopicPartition, records: MemoryRecords, info: LogAppendInfo): LogAppendResult = {
+    val numAppendedMessages =
+      if (info.firstOffset == -1L || info.lastOffset == -1L)
+        0
+      else
+        info.lastOffset - info.firstOffset + 1
+
+    // update stats for successfully appended bytes and messages as bytesInRate and messageInRate
+    brokerTopicStats.topicStats(topicPartition.topic).bytesInRate.mark(records.sizeInBytes)
+    brokerTopicStats.allTopicsStats.bytesInRate.mark(records.sizeInBytes)
+    brokerTopicStats.topicStats(topicPartition.topic).messagesInRate.mark(numAppendedMessages)
+    brokerTopicStats.allTopicsStats.messagesInRate.mark(numAppendedMessages)
+
+    trace("%d bytes written to log %s-%d beginning at offset %d and ending at offset %d"
+      .format(records.sizeInBytes, topicPartition.topic, topicPartition.partition, info.firstOffset, info.lastOffset))
+    LogAppendResult(info)
+  }
+
+  private def failedToAppendToLocalLog(topicPartition: TopicPartition, t: Throwable): LogAppendResult = t match {
+    // NOTE: Failed produce requests metric is not incremented for known exceptions
+    // it is supposed to indicate un-expected failures of a broker in handling a produce request
+    case e: KafkaStorageException =>
+      fatal("Halting due to unrecoverable I/O error while handling produce request: ", e)
+      Exit.halt(1)
+      null
+    case e@ (_: UnknownTopicOrPartitionException |
+             _: NotLeaderForPartitionException |
+             _: RecordTooLargeException |
+             _: RecordBatchTooLargeException |
+             _: CorruptRecordException |
+             _: InvalidTimestampException) =>
+      LogAppendResult(LogAppendInfo.UnknownLogAppendInfo, Some(e))
+    case t: Throwable =>
+      brokerTopicStats.topicStats(topicPartition.topic).failedProduceRequestRate.mark()
+      brokerTopicStats.allTopicsStats.failedProduceRequestRate.mark()
+      error("Error processing append operation on partition %s".format(topicPartition), t)
+      LogAppendResult(LogAppendInfo.UnknownLogAppendInfo, Some(t))
+  }
+
   /**
    * Fetch messages from the leader replica, and wait until enough data can be fetched and return;
    * the callback function will be triggered either when timeout or required fetch info is satisfied
@@ -1083,6 +1243,26 @@ class ReplicaManager(val config: KafkaConfig,
     allPartitions.values.foreach(partition => partition.maybeShrinkIsr(config.replicaLagTimeMaxMs))
   }
 
+  /**
+   * Copy the closed segments of the leader logs with remote storage enabled to the remote tier up to their high
+   * watermark and apply the retention of the remote tier. The followers only refresh the remote segments of their
+   * logs, which their leader copies.
+   */
+  private def tierLogs(remoteLogManager: RemoteLogManager): Unit = {
+    for (partition <- allPartitions.values; replica <- partition.getReplica(localBrokerId); log <- replica.log
+         if log.config.remoteStorageEnable && !log.config.compact) {
+      try {
+        if (partition.leaderReplicaIfLocal.isDefined) {
+          remoteLogManager.copyLogSegments(log, replica.highWatermark.messageOffset)
+          remoteLogManager.deleteExpiredSegments(log)
+        } else
+          remoteLogManager.refreshLogSegments(partition.topicPartition)
+      } catch {
+        case e: Exception => error(s"Error while tiering the log of partition ${partition.topicPartition}", e)
+      }
+    }
+  }
+
   private def updateFollowerLogReadResults(replicaId: Int, readResults: Seq[(TopicPartition, LogReadResult)]) {
     debug("Recording follower broker %d log read results: %s ".format(replicaId, readResults))
     readResults.foreach { case (topicPartition, readResult) =>
@@ -1127,10 +1307,16 @@ class ReplicaManager(val config: KafkaConfig,
   // High watermark do not need to be checkpointed only when under unit tests
   def shutdown(checkpointHW: Boolean = true) {
     info("Shutting down")
+    // the append threads complete the produce requests they still have before the purgatories are shut down
+    logDirAppenders.values.foreach(_.shutdown())
     replicaFetcherManager.shutdown()
     delayedFetchPurgatory.shutdown()
     delayedProducePurgatory.shutdown()
     delayedDeleteRecordsPurgatory.shutdown()
+    produceAppendExecutor.foreach { executor =>
+      executor.shutdown()
+      executor.awaitTermination(30, TimeUnit.SECONDS)
+    }
     if (checkpointHW)
       checkpointHighWatermarks()
     info("Shut down completely")
@@ -40,6 +40,20 @@ object ReplicationUtils extends Logging {
     updatePersistentPath
   }
 
+  /**
+   * Update the leader and isr of the given partitions, each expected at the given zk version, as `updateLeaderAndIsr`
+   * does with pipelined ZooKeeper requests. Returns (true, newVersion) or (false, -1) for each partition in order.
+   */
+  def updateLeaderAndIsrs(zkUtils: ZkUtils, updates: Seq[(TopicAndPartition, LeaderAndIsr, Int)],
+                          controllerEpoch: Int): Seq[(Boolean, Int)] = {
+    val pathUpdates = updates.map { case (topicAndPartition, newLeaderAndIsr, zkVersion) =>
+      debug("Updated ISR for partition %s to %s".format(topicAndPartition, newLeaderAndIsr.isr.mkString(",")))
+      val path = getTopicPartitionLeaderAndIsrPath(topicAndPartition.topic, topicAndPartition.partition)
+      (path, zkUtils.leaderAndIsrZkData(newLeaderAndIsr, controllerEpoch), zkVersion)
+    }
+    zkUtils.conditionalUpdatePersistentPaths(pathUpdates, Some(checkLeaderAndIsrZkData))
+  }
+
   def propagateIsrChanges(zkUtils: ZkUtils, isrChangeSet: Set[TopicPartition]): Unit = {
     val isrChangeNotificationPath: String = zkUtils.createSequentialPersistentPath(
       ZkUtils.IsrChangeNotificationPath + "/" + IsrChangeNotificationPrefix,
@@ -76,6 +90,18 @@ object ReplicationUtils extends Logging {
     leaderAndIsrOpt.flatMap(leaderAndIsrStr => parseLeaderAndIsr(leaderAndIsrStr, leaderAndIsrPath, stat))
   }
 
+  /**
+   * The leader, isr and controller epoch of the given partitions read with pipelined ZooKeeper requests. Partitions
+   * without a leader and isr path are left out.
+   */
+  def getLeaderIsrAndEpochForPartitions(zkUtils: ZkUtils, partitions: Seq[TopicAndPartition])
+      : Map[TopicAndPartition, LeaderIsrAndControllerEpoch] = {
+    val paths = partitions.map(partition => getTopicPartitionLeaderAndIsrPath(partition.topic, partition.partition))
+    partitions.zip(paths).zip(zkUtils.readDataMaybeNull(paths)).flatMap { case ((partition, path), (leaderAndIsrOpt, stat)) =>
+      leaderAndIsrOpt.flatMap(leaderAndIsrStr => parseLeaderAndIsr(leaderAndIsrStr, path, stat)).map(partition -> _)
+    }.toMap
+  }
+
   private def parseLeaderAndIsr(leaderAndIsrStr: String, path: String, stat: Stat)
       : Option[LeaderIsrAndControllerEpoch] = {
     Json.parseFull(leaderAndIsrStr).flatMap {m =>
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.utils
+
+import java.lang.management.ManagementFactory
+
+/**
+ * Access to the CPU time and allocated bytes of the current thread through the platform `ThreadMXBean`.
+ * Both values are cumulative for the lifetime of the thread, so callers take a snapshot before and after
+ * the work they want to account for. If the JVM does not support a measurement, the corresponding method
+ * always returns 0.
+ */
+object ThreadResourceUsage extends Logging {
+
+  private val threadMXBean = ManagementFactory.getThreadMXBean
+
+  // Allocated bytes are only exposed by the HotSpot specific extension of ThreadMXBean
+  private val allocationMXBean: Option[com.sun.management.ThreadMXBean] = threadMXBean match {
+    case bean: com.sun.management.ThreadMXBean if bean.isThreadAllocatedMemorySupported =>
+      try {
+        if (!bean.isThreadAllocatedMemoryEnabled)
+          bean.setThreadAllocatedMemoryEnabled(true)
+        Some(bean)
+      } catch {
+        case e: UnsupportedOperationException =>
+          warn("Thread allocated memory measurement could not be enabled", e)
+          None
+      }
+    case _ => None
+  }
+
+  private val cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported && {
+    try {
+      if (!threadMXBean.isThreadCpuTimeEnabled)
+        threadMXBean.setThreadCpuTimeEnabled(true)
+      true
+    } catch {
+      case e: UnsupportedOperationException =>
+        warn("Thread CPU time measurement could not be enabled", e)
+        false
+    }
+  }
+
+  def currentThreadCpuTimeNanos: Long =
+    if (cpuTimeSupported) math.max(threadMXBean.getCurrentThreadCpuTime, 0L) else 0L
+
+  def currentThreadAllocatedBytes: Long = allocationMXBean match {
+    case Some(bean) => math.max(bean.getThreadAllocatedBytes(Thread.currentThread.getId), 0L)
+    case None => 0L
+  }
+
+}
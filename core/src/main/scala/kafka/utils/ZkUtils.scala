@@ -31,7 +31,7 @@ import org.I0Itec.zkclient.exception.{ZkBadVersionException, ZkException, ZkMars
 import org.I0Itec.zkclient.serialize.ZkSerializer
 import org.I0Itec.zkclient.{ZkClient, ZkConnection}
 import org.apache.kafka.common.config.ConfigException
-import org.apache.zookeeper.AsyncCallback.{DataCallback, StringCallback}
+import org.apache.zookeeper.AsyncCallback.{DataCallback, StatCallback, StringCallback}
 import org.apache.zookeeper.KeeperException.Code
 import org.apache.zookeeper.data.{ACL, Stat}
 import org.apache.zookeeper.{CreateMode, KeeperException, ZooDefs, ZooKeeper}
@@ -580,6 +580,48 @@ class ZkUtils(val zkClient: ZkClient,
     }
   }
 
+  /**
+   * Conditional update of the data of the given paths as `conditionalUpdatePersistentPath` does, with asynchronous
+   * requests pipelined on the ZooKeeper connection rather than a round trip per path. The updates are independent, unlike
+   * the operations of a ZooKeeper multi which fail together, so that a path updated concurrently does not fail the
+   * others. An update which fails for another reason than a version mismatch, such as a connection loss, is made again
+   * with a synchronous request. Returns (true, newVersion) or (false, -1) for each (path, data, expectVersion) in order.
+   */
+  def conditionalUpdatePersistentPaths(updates: Seq[(String, String, Int)],
+    optionalChecker: Option[(ZkUtils, String, String) => (Boolean, Int)] = None): Seq[(Boolean, Int)] = {
+    if (zkConnection == null)
+      return updates.map { case (path, data, expectVersion) =>
+        conditionalUpdatePersistentPath(path, data, expectVersion, optionalChecker)
+      }
+    val results = new Array[(Boolean, Int)](updates.size)
+    val latch = new CountDownLatch(updates.size)
+    val callback = new StatCallback {
+      def processResult(rc: Int, path: String, ctx: Object, stat: Stat) {
+        val index = ctx.asInstanceOf[Int]
+        Code.get(rc) match {
+          case Code.OK => results(index) = (true, stat.getVersion)
+          case Code.BADVERSION | Code.NONODE =>
+            debug("Pipelined conditional update of path %s with expected version %d failed due to %s"
+              .format(path, updates(index)._3, Code.get(rc)))
+            results(index) = (false, -1)
+          case code => debug("Pipelined conditional update of path %s failed due to %s, retrying synchronously".format(path, code))
+        }
+        latch.countDown()
+      }
+    }
+    val zk = zkConnection.getZookeeper
+    updates.zipWithIndex.foreach { case ((path, data, expectVersion), index) =>
+      zk.setData(path, ZKStringSerializer.serialize(data), expectVersion, callback, Int.box(index))
+    }
+    latch.await()
+    updates.indices.map { index =>
+      Option(results(index)).getOrElse {
+        val (path, data, expectVersion) = updates(index)
+        conditionalUpdatePersistentPath(path, data, expectVersion, optionalChecker)
+      }
+    }
+  }
+
   /**
    * Conditional update the persistent path data, return (true, newVersion) if it succeeds, otherwise (the current
    * version is not the expected version, etc.) return (false, -1). If path doesn't exist, throws ZkNoNodeException
@@ -652,6 +694,33 @@ class ZkUtils(val zkClient: ZkClient,
     dataAndStat
   }
 
+  /**
+   * Read the data of the given paths as `readDataMaybeNull` does, with asynchronous requests pipelined on the ZooKeeper
+   * connection rather than a round trip per path. A path whose read fails for another reason than its absence, such as
+   * a connection loss, is read again with a synchronous request. Returns the data and stat of each path in order.
+   */
+  def readDataMaybeNull(paths: Seq[String]): Seq[(Option[String], Stat)] = {
+    if (zkConnection == null)
+      return paths.map(readDataMaybeNull)
+    val results = new Array[(Option[String], Stat)](paths.size)
+    val latch = new CountDownLatch(paths.size)
+    val callback = new DataCallback {
+      def processResult(rc: Int, path: String, ctx: Object, data: Array[Byte], stat: Stat) {
+        val index = ctx.asInstanceOf[Int]
+        Code.get(rc) match {
+          case Code.OK => results(index) = (Some(ZKStringSerializer.deserialize(data).asInstanceOf[String]), stat)
+          case Code.NONODE => results(index) = (None, new Stat())
+          case code => debug("Pipelined read of path %s failed due to %s, retrying synchronously".format(path, code))
+        }
+        latch.countDown()
+      }
+    }
+    val zk = zkConnection.getZookeeper
+    paths.zipWithIndex.foreach { case (path, index) => zk.getData(path, false, callback, Int.box(index)) }
+    latch.await()
+    paths.indices.map(index => Option(results(index)).getOrElse(readDataMaybeNull(paths(index))))
+  }
+
   def readDataAndVersionMaybeNull(path: String): (Option[String], Int) = {
     val stat = new Stat()
     try {
@@ -695,12 +764,7 @@ class ZkUtils(val zkClient: ZkClient,
 
   def getPartitionLeaderAndIsrForTopics(topicAndPartitions: Set[TopicAndPartition]): mutable.Map[TopicAndPartition, LeaderIsrAndControllerEpoch] = {
     val ret = new mutable.HashMap[TopicAndPartition, LeaderIsrAndControllerEpoch]
-    for(topicAndPartition <- topicAndPartitions) {
-      ReplicationUtils.getLeaderIsrAndEpochForPartition(this, topicAndPartition.topic, topicAndPartition.partition) match {
-        case Some(leaderIsrAndControllerEpoch) => ret.put(topicAndPartition, leaderIsrAndControllerEpoch)
-        case None =>
-      }
-    }
+    ret ++= ReplicationUtils.getLeaderIsrAndEpochForPartitions(this, topicAndPartitions.toSeq)
     ret
   }
 
@@ -51,11 +51,22 @@ trait Timer {
   def shutdown(): Unit
 }
 
+object SystemTimer {
+  /* with the default tick and wheel size, the top wheel of 8 levels spans about 300 days */
+  val DefaultMaxLevels = 8
+}
+
+/**
+ * A `Timer` backed by hierarchical timing wheels, see `TimingWheel`. The hierarchy has at most `maxLevels` wheels, the
+ * tasks due after the span of the top wheel are held in its last bucket and cascaded again until they are within it.
+ */
 @threadsafe
 class SystemTimer(executorName: String,
                   tickMs: Long = 1,
                   wheelSize: Int = 20,
-                  startMs: Long = Time.SYSTEM.hiResClockMs) extends Timer {
+                  startMs: Long = Time.SYSTEM.hiResClockMs,
+                  maxLevels: Int = SystemTimer.DefaultMaxLevels,
+                  time: Time = Time.SYSTEM) extends Timer {
 
   // timeout timer
   private[this] val taskExecutor = Executors.newFixedThreadPool(1, new ThreadFactory() {
@@ -70,7 +81,9 @@ class SystemTimer(executorName: String,
     wheelSize = wheelSize,
     startMs = startMs,
     taskCounter = taskCounter,
-    delayQueue
+    delayQueue,
+    levels = maxLevels,
+    time = time
   )
 
   // Locks used to protect data structures while ticking
@@ -81,7 +94,10 @@ class SystemTimer(executorName: String,
   def add(timerTask: TimerTask): Unit = {
     readLock.lock()
     try {
-      addTimerTaskEntry(new TimerTaskEntry(timerTask, timerTask.delayMs + Time.SYSTEM.hiResClockMs))
+      val now = time.hiResClockMs
+      // tasks which would expire past Long.MaxValue never expire
+      val expirationMs = if (timerTask.delayMs > Long.MaxValue - now) Long.MaxValue else now + timerTask.delayMs
+      addTimerTaskEntry(new TimerTaskEntry(timerTask, expirationMs))
     } finally {
       readLock.unlock()
     }
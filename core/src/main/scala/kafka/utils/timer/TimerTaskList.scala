@@ -22,10 +22,11 @@ import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import kafka.utils.threadsafe
 import org.apache.kafka.common.utils.Time
 
+import scala.collection.mutable.ArrayBuffer
 import scala.math._
 
 @threadsafe
-private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
+private[timer] class TimerTaskList(taskCounter: AtomicInteger, time: Time = Time.SYSTEM) extends Delayed {
 
   // TimerTaskList forms a doubly linked cyclic list using a dummy root entry
   // root.next points to the head
@@ -104,21 +105,25 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
     }
   }
 
-  // Remove all task entries and apply the supplied function to each of them
+  // Remove all task entries and apply the supplied function to each of them. The function is applied once the
+  // entries are removed and the lock of the list is released, so that cancelling a task never waits for the
+  // tasks of the list to be reinserted or executed
   def flush(f: (TimerTaskEntry)=>Unit): Unit = {
+    val entries = new ArrayBuffer[TimerTaskEntry]
     synchronized {
       var head = root.next
       while (head ne root) {
         remove(head)
-        f(head)
+        entries += head
         head = root.next
       }
       expiration.set(-1L)
     }
+    entries.foreach(f)
   }
 
   def getDelay(unit: TimeUnit): Long = {
-    unit.convert(max(getExpiration - Time.SYSTEM.hiResClockMs, 0), TimeUnit.MILLISECONDS)
+    unit.convert(max(getExpiration - time.hiResClockMs, 0), TimeUnit.MILLISECONDS)
   }
 
   def compareTo(d: Delayed): Int = {
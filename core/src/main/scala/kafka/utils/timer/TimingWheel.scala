@@ -17,6 +17,7 @@
 package kafka.utils.timer
 
 import kafka.utils.nonthreadsafe
+import org.apache.kafka.common.utils.Time
 
 import java.util.concurrent.DelayQueue
 import java.util.concurrent.atomic.AtomicInteger
@@ -93,14 +94,30 @@ import java.util.concurrent.atomic.AtomicInteger
  * Its insert cost (including reinsert) and delete cost are O(m) and O(1), respectively while priority
  * queue based timers takes O(log N) for both insert and delete where N is the number of items in the queue.
  *
+ * The hierarchy is bounded to `levels` wheels, and is not grown past the wheel whose span would overflow a long. The
+ * tasks due after the span of the top wheel are put in its last bucket, the one which expires latest, and are
+ * reinserted when it expires as the tasks of any overflow bucket are, until they are within the span of the top wheel.
+ * A task is cascaded once per span of the top wheel, and the hierarchy never has more than `levels * wheelSize`
+ * buckets whatever the delays of the tasks.
+ *
  * This class is not thread-safe. There should not be any add calls while advanceClock is executing.
  * It is caller's responsibility to enforce it. Simultaneous add calls are thread-safe.
  */
 @nonthreadsafe
-private[timer] class TimingWheel(tickMs: Long, wheelSize: Int, startMs: Long, taskCounter: AtomicInteger, queue: DelayQueue[TimerTaskList]) {
+private[timer] class TimingWheel(tickMs: Long,
+                                 wheelSize: Int,
+                                 startMs: Long,
+                                 taskCounter: AtomicInteger,
+                                 queue: DelayQueue[TimerTaskList],
+                                 levels: Int = Int.MaxValue,
+                                 time: Time = Time.SYSTEM) {
 
   private[this] val interval = tickMs * wheelSize
-  private[this] val buckets = Array.tabulate[TimerTaskList](wheelSize) { _ => new TimerTaskList(taskCounter) }
+  private[this] val buckets = Array.tabulate[TimerTaskList](wheelSize) { _ => new TimerTaskList(taskCounter, time) }
+
+  // whether this is the top wheel of the hierarchy, which never has an overflow wheel. The span of the overflow wheel
+  // is kept below half of Long.MaxValue so that adding it to the current time never overflows
+  private[this] val isTopWheel = levels <= 1 || interval > Long.MaxValue / 2 / wheelSize
 
   private[this] var currentTime = startMs - (startMs % tickMs) // rounding down to multiple of tickMs
 
@@ -116,7 +133,9 @@ private[timer] class TimingWheel(tickMs: Long, wheelSize: Int, startMs: Long, ta
           wheelSize = wheelSize,
           startMs = currentTime,
           taskCounter = taskCounter,
-          queue
+          queue,
+          levels = levels - 1,
+          time = time
         )
       }
     }
@@ -131,9 +150,11 @@ private[timer] class TimingWheel(tickMs: Long, wheelSize: Int, startMs: Long, ta
     } else if (expiration < currentTime + tickMs) {
       // Already expired
       false
-    } else if (expiration < currentTime + interval) {
-      // Put in its own bucket
-      val virtualId = expiration / tickMs
+    } else if (expiration < currentTime + interval || isTopWheel) {
+      // Put in its own bucket, or in the last bucket if it is out of the interval of the top wheel
+      val virtualId =
+        if (expiration < currentTime + interval) expiration / tickMs
+        else (currentTime + interval) / tickMs - 1
       val bucket = buckets((virtualId % wheelSize.toLong).toInt)
       bucket.add(timerTaskEntry)
 
@@ -17,7 +17,7 @@
 
 package kafka.controller
 
-import java.util.concurrent.CountDownLatch
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch}
 import java.util.concurrent.atomic.AtomicInteger
 
 import com.yammer.metrics.Metrics
@@ -50,6 +50,46 @@ class ControllerEventManagerTest {
       () => throw new NullPointerException)
   }
 
+  @Test
+  def testCoalescableEventsAreMerged(): Unit = {
+    val controllerStats = new ControllerStats
+    val processedEvents = new ConcurrentLinkedQueue[ControllerEvent]
+    controllerEventManager = new ControllerEventManager(controllerStats.rateAndTimeMetrics, processedEvents.add(_))
+    controllerEventManager.start()
+
+    // Hold the event thread so that the coalescable events are queued behind the blocking event
+    val latch = new CountDownLatch(1)
+    val blockingEvent = ControllerTestUtils.createMockControllerEvent(ControllerState.BrokerChange, () => latch.await())
+    controllerEventManager.put(blockingEvent)
+    TestUtils.waitUntilTrue(() => controllerEventManager.state == ControllerState.BrokerChange,
+      "Controller state is not BrokerChange")
+
+    controllerEventManager.put(MergedEvent("isr", Seq(1)))
+    controllerEventManager.put(MergedEvent("topic", Seq(2)))
+    controllerEventManager.put(MergedEvent("isr", Seq(3)))
+    controllerEventManager.put(MergedEvent("isr", Seq(4)))
+    latch.countDown()
+
+    TestUtils.waitUntilTrue(() => processedEvents.size == 3, "Failed waiting for the events to be processed")
+    assertEquals(Seq(blockingEvent, MergedEvent("isr", Seq(1, 3, 4)), MergedEvent("topic", Seq(2))),
+      processedEvents.asScala.toSeq)
+
+    // an event taken off the queue is not merged into any more
+    controllerEventManager.put(MergedEvent("isr", Seq(5)))
+    TestUtils.waitUntilTrue(() => processedEvents.size == 4, "Failed waiting for the event to be processed")
+    assertEquals(MergedEvent("isr", Seq(5)), processedEvents.asScala.last)
+  }
+
+  private case class MergedEvent(key: String, values: Seq[Int]) extends CoalescableControllerEvent {
+    def state = ControllerState.IsrChange
+
+    def process(): Unit = {}
+
+    def coalescingKey = key
+
+    def coalesce(pending: CoalescableControllerEvent) = MergedEvent(key, pending.asInstanceOf[MergedEvent].values ++ values)
+  }
+
   private def check(metricName: String, controllerState: ControllerState, process: () => Unit): Unit = {
     val controllerStats = new ControllerStats
     val eventProcessedListenerCount = new AtomicInteger
@@ -18,8 +18,8 @@
 package kafka.controller
 
 import com.yammer.metrics.Metrics
-import com.yammer.metrics.core.Timer
-import kafka.api.LeaderAndIsr
+import com.yammer.metrics.core.{Histogram, Timer}
+import kafka.api.{ApiVersion, KAFKA_0_11_0_IV2, LeaderAndIsr}
 import kafka.common.TopicAndPartition
 import kafka.server.{KafkaConfig, KafkaServer}
 import kafka.utils.{TestUtils, ZkUtils}
@@ -130,6 +130,49 @@ class ControllerIntegrationTest extends ZooKeeperTestHarness {
     TestUtils.waitUntilMetadataIsPropagated(Seq(servers(controllerId)), tp1.topic, tp1.partition)
   }
 
+  @Test
+  def testMetadataPropagationOnBrokerRestart(): Unit = {
+    checkMetadataPropagationOnBrokerRestart(ApiVersion.latestVersion)
+  }
+
+  @Test
+  def testMetadataPropagationOnBrokerRestartWithFullUpdateMetadataRequests(): Unit = {
+    checkMetadataPropagationOnBrokerRestart(KAFKA_0_11_0_IV2)
+  }
+
+  private def checkMetadataPropagationOnBrokerRestart(interBrokerProtocolVersion: ApiVersion): Unit = {
+    servers = makeServers(3, interBrokerProtocolVersion = Some(interBrokerProtocolVersion))
+    val controllerId = TestUtils.waitUntilControllerElected(zkUtils)
+    val otherBrokerIds = servers.map(_.config.brokerId).filter(_ != controllerId)
+    val restartedBrokerId = otherBrokerIds.head
+    val tp = TopicAndPartition("t", 0)
+    val assignment = Map(tp.partition -> Seq(controllerId))
+    TestUtils.createTopic(zkUtils, tp.topic, partitionReplicaAssignment = assignment, servers = servers)
+    TestUtils.waitUntilMetadataIsPropagated(servers, tp.topic, tp.partition)
+
+    val propagationTimeMetricName = "kafka.controller:type=ControllerStats,name=RequestPropagationTimeMs,request=UpdateMetadata"
+    val propagationCount = histogram(propagationTimeMetricName).count
+    val requestBytesMetricName = "kafka.controller:type=ControllerStats,name=UpdateMetadataRequestBytes"
+    val requestBytesCount = histogram(requestBytesMetricName).count
+
+    // the broker which is not restarted learns of the failed and started broker from requests without the partition
+    servers(restartedBrokerId).shutdown()
+    servers(restartedBrokerId).awaitShutdown()
+    TestUtils.waitUntilTrue(() => !servers(otherBrokerIds(1)).apis.metadataCache.isBrokerAlive(restartedBrokerId),
+      "failed to propagate the failed broker")
+    servers(restartedBrokerId).startup()
+    TestUtils.waitUntilTrue(() => servers(otherBrokerIds(1)).apis.metadataCache.isBrokerAlive(restartedBrokerId),
+      "failed to propagate the started broker")
+    TestUtils.waitUntilMetadataIsPropagated(Seq(servers(restartedBrokerId)), tp.topic, tp.partition)
+    TestUtils.waitUntilMetadataIsPropagated(servers, tp.topic, tp.partition)
+
+    val updatedPropagationCount = histogram(propagationTimeMetricName).count
+    assertTrue(s"Histogram count $updatedPropagationCount should be greater than $propagationCount",
+      updatedPropagationCount > propagationCount)
+    assertTrue("The size of the sent UpdateMetadata requests should be recorded",
+      histogram(requestBytesMetricName).count > requestBytesCount && histogram(requestBytesMetricName).min > 0)
+  }
+
   @Test
   def testPartitionReassignment(): Unit = {
     servers = makeServers(2)
@@ -315,16 +358,26 @@ class ControllerIntegrationTest extends ZooKeeperTestHarness {
       leaderIsrAndControllerEpoch.leaderAndIsr.leader == leader &&
       leaderIsrAndControllerEpoch.leaderAndIsr.leaderEpoch == leaderEpoch
 
-  private def makeServers(numConfigs: Int, autoLeaderRebalanceEnable: Boolean = false, uncleanLeaderElectionEnable: Boolean = false) = {
+  private def makeServers(numConfigs: Int, autoLeaderRebalanceEnable: Boolean = false, uncleanLeaderElectionEnable: Boolean = false,
+                          interBrokerProtocolVersion: Option[ApiVersion] = None) = {
     val configs = TestUtils.createBrokerConfigs(numConfigs, zkConnect)
     configs.foreach { config =>
       config.setProperty(KafkaConfig.AutoLeaderRebalanceEnableProp, autoLeaderRebalanceEnable.toString)
       config.setProperty(KafkaConfig.UncleanLeaderElectionEnableProp, uncleanLeaderElectionEnable.toString)
       config.setProperty(KafkaConfig.LeaderImbalanceCheckIntervalSecondsProp, "1")
+      interBrokerProtocolVersion.foreach { version =>
+        config.setProperty(KafkaConfig.InterBrokerProtocolVersionProp, version.version)
+        config.setProperty(KafkaConfig.LogMessageFormatVersionProp, version.version)
+      }
     }
     configs.map(config => TestUtils.createServer(KafkaConfig.fromProps(config)))
   }
 
+  private def histogram(metricName: String): Histogram = {
+    Metrics.defaultRegistry.allMetrics.asScala.filterKeys(_.getMBeanName == metricName).values.headOption
+      .getOrElse(fail(s"Unable to find metric $metricName")).asInstanceOf[Histogram]
+  }
+
   private def timer(metricName: String): Timer = {
     Metrics.defaultRegistry.allMetrics.asScala.filterKeys(_.getMBeanName == metricName).values.headOption
       .getOrElse(fail(s"Unable to find metric $metricName")).asInstanceOf[Timer]
@@ -215,6 +215,116 @@ class LogCleanerManagerTest extends JUnitSuite with Logging {
     assertEquals(4L, cleanableOffsets._2)
   }
 
+  /**
+    * The cost/benefit policy counts the offset map cleared by each cleaning, so a large log which reclaims more bytes
+    * is cleaned before a small log with a higher dirty ratio, until its cleanings no longer reclaim anything.
+    */
+  @Test
+  def testCostBenefitSelectionPolicy(): Unit = {
+    val small = new TopicPartition("small", 0)
+    val large = new TopicPartition("large", 0)
+    val smallLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpDir))
+    val largeLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpDir))
+    while (smallLog.numberOfSegments < 4)
+      smallLog.appendAsLeader(records(smallLog.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+    while (largeLog.numberOfSegments < 40)
+      largeLog.appendAsLeader(records(largeLog.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+    val logs = new Pool[TopicPartition, Log]()
+    logs.put(small, smallLog)
+    logs.put(large, largeLog)
+    // the large log is less dirty than the small log
+    val largeCheckpoint = largeLog.logSegments.toSeq(15).baseOffset
+
+    def grab(policy: LogCleanerSelectionPolicy): (LogCleanerManager, Option[TopicPartition]) = {
+      val cleanerManager = new LogCleanerManager(Array(logDir), logs, policy, offsetMapBytes = 1024 * 1024, time = time)
+      cleanerManager.updateCheckpoints(logDir, Some(large -> largeCheckpoint))
+      (cleanerManager, cleanerManager.grabFilthiestCompactedLog(time).map(_.topicPartition))
+    }
+
+    assertEquals(Some(small), grab(new DirtyRatioSelectionPolicy)._2)
+    val (cleanerManager, selected) = grab(new CostBenefitSelectionPolicy)
+    assertEquals(Some(large), selected)
+
+    // once a cleaning of the large log reclaims nothing, the small log is cleaned first
+    val cleanedBytes = largeLog.size
+    cleanerManager.recordCleaning(large, cleanedBytes, reclaimedBytes = 0)
+    cleanerManager.doneCleaning(large, logDir, largeCheckpoint)
+    assertEquals(Some(small), cleanerManager.grabFilthiestCompactedLog(time).map(_.topicPartition))
+    cleanerManager.doneCleaning(small, logDir, 0L)
+
+    // the estimate recovers as bytes are appended to the large log after the cleaning
+    val bytesAppended = largeLog.bytesAppended
+    while (largeLog.bytesAppended - bytesAppended < 4 * cleanedBytes)
+      largeLog.appendAsLeader(records(largeLog.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+    assertEquals(Some(large), cleanerManager.grabFilthiestCompactedLog(time).map(_.topicPartition))
+  }
+
+  /**
+    * A cleaning which reclaimed nothing lowers the estimate of the next cleaning down to MinReclaimedRatio only.
+    */
+  @Test
+  def testEstimatedReclaimedRatio(): Unit = {
+    val history = CleaningHistory(0L, reclaimedRatio = 0.0, cleanedBytes = 1000L, bytesAppended = 5000L)
+    assertEquals(LogCleanerManager.MinReclaimedRatio, history.estimatedReclaimedRatio(5000L), 0.0)
+    assertEquals(0.5, history.estimatedReclaimedRatio(6000L), 0.0)
+    assertEquals(0.9, history.estimatedReclaimedRatio(14000L), 0.0)
+    // the log was reopened
+    assertEquals(LogCleanerManager.MinReclaimedRatio, history.estimatedReclaimedRatio(0L), 0.0)
+    assertEquals(1.0, CleaningHistory(0L, 1.0, 0L, 0L).estimatedReclaimedRatio(0L), 0.0)
+  }
+
+  /**
+    * A log past its maximum compaction lag is cleaned even below its minimum cleanable ratio.
+    */
+  @Test
+  def testMaxCompactionLag(): Unit = {
+    val maxCompactionLag = 60 * 60 * 1000
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.MaxCompactionLagMsProp, maxCompactionLag: java.lang.Integer)
+    val log = makeLog(config = LogConfig.fromProps(logConfig.originals, logProps))
+    while (log.numberOfSegments < 10)
+      log.appendAsLeader(records(log.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+
+    val topicPartition = new TopicPartition("log", 0)
+    val cleanerManager = createCleanerManager(log)
+    // most of the log is clean
+    cleanerManager.updateCheckpoints(logDir, Some(topicPartition -> log.logSegments.toSeq(8).baseOffset))
+    assertEquals(None, cleanerManager.grabFilthiestCompactedLog(time))
+
+    time.sleep(maxCompactionLag + 1)
+    assertEquals(Some(topicPartition), cleanerManager.grabFilthiestCompactedLog(time).map(_.topicPartition))
+  }
+
+  /**
+    * The compaction lag of a log is counted from its first dirty batch, not from the first batch of its segment.
+    */
+  @Test
+  def testMaxCompactionLagFromFirstDirtyBatch(): Unit = {
+    val maxCompactionLag = 60 * 60 * 1000
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.MaxCompactionLagMsProp, maxCompactionLag: java.lang.Integer)
+    val log = makeLog(config = LogConfig.fromProps(logConfig.originals, logProps))
+    while (log.numberOfSegments < 9)
+      log.appendAsLeader(records(log.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+    // the first dirty segment starts with batches which are clean and past the maximum compaction lag
+    for (_ <- 0 until 2)
+      log.appendAsLeader(records(log.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+    time.sleep(maxCompactionLag + 1)
+    val firstDirtyOffset = log.logEndOffset
+    while (log.numberOfSegments < 10)
+      log.appendAsLeader(records(log.logEndOffset.toInt, 0, time.milliseconds), leaderEpoch = 0)
+
+    val topicPartition = new TopicPartition("log", 0)
+    val cleanerManager = createCleanerManager(log)
+    cleanerManager.updateCheckpoints(logDir, Some(topicPartition -> firstDirtyOffset))
+    assertEquals(None, cleanerManager.grabFilthiestCompactedLog(time))
+
+    time.sleep(maxCompactionLag + 1)
+    assertEquals(Some(topicPartition), cleanerManager.grabFilthiestCompactedLog(time).map(_.topicPartition))
+  }
+
   private def createCleanerManager(log: Log): LogCleanerManager = {
     val logs = new Pool[TopicPartition, Log]()
     logs.put(new TopicPartition("log", 0), log)
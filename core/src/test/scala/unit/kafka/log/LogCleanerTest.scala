@@ -21,6 +21,7 @@ import java.io.File
 import java.nio._
 import java.nio.file.{Files, Paths}
 import java.util.Properties
+import java.util.concurrent.atomic.AtomicBoolean
 
 import kafka.common._
 import kafka.server.BrokerTopicStats
@@ -757,6 +758,161 @@ class LogCleanerTest extends JUnitSuite {
     checkRange(map, segments(3).baseOffset.toInt, log.logEndOffset.toInt)
   }
 
+  /**
+   * Test building and cleaning with the murmur3 offset map
+   */
+  @Test
+  def testCleanWithCompactOffsetMap(): Unit = {
+    val log = makeLog()
+    val cleaner = new Cleaner(id = 0,
+      offsetMap = new CompactOffsetMap(1000 * CompactOffsetMap.BytesPerEntry),
+      ioBufferSize = 64 * 1024,
+      maxIoBufferSize = 64 * 1024,
+      dupBufferLoadFactor = 0.75,
+      throttler = throttler,
+      time = time,
+      checkDone = noOpCheckDone)
+    // each key is written twice
+    writeToLog(log, (0 until 200).map(i => (i % 100, i)))
+    while (log.numberOfSegments < 2)
+      writeToLog(log, Seq((0, 1000)))
+
+    val activeKeys = log.activeSegment.log.records.asScala.map(record => TestUtils.readString(record.key).toInt).toSeq
+    cleaner.clean(LogToClean(new TopicPartition("test", 0), log, 0, log.activeSegment.baseOffset))
+    val cleanedKeys = keysInLog(log).toSeq.dropRight(activeKeys.size)
+    assertEquals("Each key should be kept once", cleanedKeys.distinct, cleanedKeys)
+    assertEquals((0 until 100).toSet, cleanedKeys.toSet)
+  }
+
+  @Test
+  def testCleanWithCopyThreads(): Unit = {
+    val serialLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    val parallelLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    for (log <- Seq(serialLog, parallelLog)) {
+      writeToLog(log, (0 until 500).map(i => (i % 50, i)))
+      writeToLog(log, Seq((0, 1000)))
+    }
+    assertTrue("The log should have several groups of segments", serialLog.numberOfSegments > 10)
+
+    val serialCleaner = makeSkimpyCleaner(copyThreads = 1)
+    val parallelCleaner = makeSkimpyCleaner(copyThreads = 4)
+    try {
+      val (serialEnd, serialStats) = serialCleaner.clean(LogToClean(new TopicPartition("test", 0), serialLog, 0,
+        serialLog.activeSegment.baseOffset))
+      val (parallelEnd, parallelStats) = parallelCleaner.clean(LogToClean(new TopicPartition("test", 1), parallelLog, 0,
+        parallelLog.activeSegment.baseOffset))
+
+      assertEquals(serialEnd, parallelEnd)
+      assertEquals(keysInLog(serialLog), keysInLog(parallelLog))
+      assertEquals(offsetsInLog(serialLog), offsetsInLog(parallelLog))
+      assertEquals(serialStats.bytesRead, parallelStats.bytesRead)
+      assertEquals(serialStats.messagesRead, parallelStats.messagesRead)
+      assertEquals(serialStats.messagesWritten, parallelStats.messagesWritten)
+      assertEquals(100, parallelCleaner.progress.percent)
+      assertEquals(0L, parallelCleaner.progress.bytesRemaining)
+    } finally {
+      serialCleaner.shutdown()
+      parallelCleaner.shutdown()
+    }
+  }
+
+  @Test
+  def testCleanWithCopyThreadsAbort(): Unit = {
+    // abort the cleaning once a copier cleans a segment, the calling thread waits for the copier to get a group
+    val copierAborted = new AtomicBoolean(false)
+    def checkDone(topicPartition: TopicPartition): Unit = {
+      if (Thread.currentThread.getName.startsWith("kafka-log-cleaner-copier")) {
+        copierAborted.set(true)
+        throw new LogCleaningAbortedException()
+      } else if (!copierAborted.get)
+        Thread.sleep(10)
+    }
+    val log = makeLog()
+    writeToLog(log, (0 until 500).map(i => (i % 50, i)))
+    writeToLog(log, Seq((0, 1000)))
+    val keys = keysInLog(log).toSet
+
+    val cleaner = makeSkimpyCleaner(copyThreads = 2, checkDone)
+    try {
+      intercept[LogCleaningAbortedException] {
+        cleaner.clean(LogToClean(new TopicPartition("test", 0), log, 0, log.activeSegment.baseOffset))
+      }
+      assertEquals(keys, keysInLog(log).toSet)
+      assertTrue("No cleaned segment should be left behind",
+        log.dir.listFiles.forall(!_.getName.endsWith(Log.CleanedFileSuffix)))
+    } finally {
+      cleaner.shutdown()
+    }
+  }
+
+  @Test
+  def testIncrementalCleaning(): Unit = {
+    val fullLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    val incrementalLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    val fullCleaner = makeSkimpyCleaner(copyThreads = 1)
+    val incrementalCleaner = makeSkimpyCleaner(copyThreads = 1, incremental = true)
+
+    def writeAndClean(keysAndValues: Seq[(Int, Int)], firstDirtyOffset: Long): Seq[(CleanerStats, Long)] = {
+      for ((log, cleaner) <- Seq(fullLog -> fullCleaner, incrementalLog -> incrementalCleaner)) yield {
+        writeToLog(log, keysAndValues)
+        // roll the segment of the last records
+        val end = log.logEndOffset
+        var key = 10000
+        while (log.activeSegment.baseOffset < end) {
+          writeToLog(log, Seq((key, key)))
+          key += 1
+        }
+        val (endOffset, stats) = cleaner.doClean(LogToClean(new TopicPartition("test", 0), log, firstDirtyOffset,
+          log.activeSegment.baseOffset), deleteHorizonMs = 0L)
+        (stats, endOffset)
+      }
+    }
+
+    // the first cleaning copies every segment and keeps the keys of the segments it writes
+    val Seq((_, firstEnd), (firstStats, incrementalFirstEnd)) = writeAndClean((0 until 200).map(i => (i, i)), 0L)
+    assertEquals(firstEnd, incrementalFirstEnd)
+    assertEquals(0, firstStats.segmentsSkipped)
+    val cleanSegments = incrementalLog.logSegments(0, firstEnd).toSeq
+    assertTrue(cleanSegments.forall(_.keyFilter.isDefined))
+    assertTrue("The clean section should have several segments", cleanSegments.size > 5)
+
+    // the second cleaning only copies the segments of the updated keys
+    val segmentOf5 = cleanSegments.filter(_.baseOffset <= 5).last
+    val Seq((_, secondEnd), (secondStats, incrementalSecondEnd)) = writeAndClean(Seq((5, 1000)), firstEnd)
+    assertEquals(secondEnd, incrementalSecondEnd)
+    assertTrue("Untouched clean segments should be skipped", secondStats.segmentsSkipped > 0)
+    assertFalse("The segment of the updated key should be cleaned", incrementalLog.logSegments.exists(_ eq segmentOf5))
+    assertTrue(secondStats.bytesRead < cleanSegments.map(_.size).sum)
+
+    assertEquals(keysInLog(fullLog), keysInLog(incrementalLog))
+    assertEquals(offsetsInLog(fullLog), offsetsInLog(incrementalLog))
+  }
+
+  @Test
+  def testIncrementalCleaningRemovesExpiredTombstones(): Unit = {
+    val log = makeLog()
+    val cleaner = makeSkimpyCleaner(copyThreads = 1, incremental = true)
+    writeToLog(log, (0 until 100).map(i => (i, i)))
+    log.appendAsLeader(tombstoneRecord(3), leaderEpoch = 0)
+    while (log.numberOfSegments < 10)
+      writeToLog(log, Seq((log.logEndOffset.toInt + 1000, 0)))
+
+    // the tombstone is retained by the first cleaning
+    val (firstEnd, _) = cleaner.doClean(LogToClean(new TopicPartition("test", 0), log, 0L, log.activeSegment.baseOffset),
+      deleteHorizonMs = 0L)
+    assertEquals(1, log.logSegments.map(_.log.records.asScala.count(!_.hasValue)).sum)
+    assertTrue(log.logSegments.exists(_.keyFilter.exists(_.hasDeletes)))
+
+    // and removed by a later cleaning past the delete horizon although the dirty section has none of its keys
+    val dirtyStart = log.logEndOffset.toInt
+    while (log.activeSegment.baseOffset <= dirtyStart)
+      writeToLog(log, Seq((log.logEndOffset.toInt + 1000, 0)))
+    val (_, stats) = cleaner.doClean(LogToClean(new TopicPartition("test", 0), log, firstEnd, log.activeSegment.baseOffset),
+      deleteHorizonMs = Long.MaxValue)
+    assertEquals(0, log.logSegments.map(_.log.records.asScala.count(!_.hasValue)).sum)
+    assertTrue(stats.segmentsSkipped > 0)
+  }
+
   /**
    * Tests recovery if broker crashes at the following stages during the cleaning sequence
    * <ol>
@@ -1050,6 +1206,18 @@ class LogCleanerTest extends JUnitSuite {
                 time = time,
                 checkDone = checkDone)
 
+  private def makeSkimpyCleaner(copyThreads: Int, checkDone: TopicPartition => Unit = noOpCheckDone, incremental: Boolean = false) =
+    new Cleaner(id = 0,
+                offsetMap = new SkimpyOffsetMap(1000 * 24),
+                ioBufferSize = 64 * 1024,
+                maxIoBufferSize = 64 * 1024,
+                dupBufferLoadFactor = 0.75,
+                throttler = throttler,
+                time = time,
+                checkDone = checkDone,
+                copyThreads = copyThreads,
+                incremental = incremental)
+
   private def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for((key, value) <- seq)
       yield log.appendAsLeader(record(key, value), leaderEpoch = 0).firstOffset
@@ -73,6 +73,11 @@ class LogConfigTest {
       case LogConfig.UncleanLeaderElectionEnableProp => assertPropertyInvalid(name, "not a boolean")
       case LogConfig.RetentionBytesProp => assertPropertyInvalid(name, "not_a_number")
       case LogConfig.RetentionMsProp => assertPropertyInvalid(name, "not_a_number" )
+      case LogConfig.LocalRetentionMsProp => assertPropertyInvalid(name, "not_a_number", "-3")
+      case LogConfig.LocalRetentionBytesProp => assertPropertyInvalid(name, "not_a_number", "-3")
+      case LogConfig.RemoteStorageEnableProp => assertPropertyInvalid(name, "not a boolean")
+      case LogConfig.TimeIndexIntervalBytesProp => assertPropertyInvalid(name, "not_a_number", "-2")
+      case LogConfig.MaxCompactionLagMsProp => assertPropertyInvalid(name, "not_a_number", "0")
       case LogConfig.CleanupPolicyProp => assertPropertyInvalid(name, "true", "foobar")
       case LogConfig.MinCleanableDirtyRatioProp => assertPropertyInvalid(name, "not_a_number", "-0.1", "1.2")
       case LogConfig.MinInSyncReplicasProp => assertPropertyInvalid(name, "not_a_number", "0", "-1")
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.util.Properties
+
+import kafka.server.BrokerTopicStats
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+import org.scalatest.junit.JUnitSuite
+
+class LogFlushServiceTest extends JUnitSuite {
+  val tmpDir = TestUtils.tempDir()
+  val time = new MockTime()
+  val brokerTopicStats = new BrokerTopicStats
+  var flushService: LogFlushService = _
+
+  @Before
+  def setUp(): Unit = {
+    flushService = new LogFlushService("test-log-flush-thread", tmpDir, time)
+  }
+
+  @After
+  def tearDown(): Unit = {
+    flushService.shutdown()
+    brokerTopicStats.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testRequestsForSameLogAreCoalesced(): Unit = {
+    val log1 = createLog("test-0")
+    val log2 = createLog("test-1")
+    append(log1, 10)
+    append(log2, 10)
+
+    flushService.requestFlush(log1, 5L)
+    flushService.requestFlush(log2, 3L)
+    flushService.requestFlush(log1, 8L)
+    flushService.requestFlush(log1, 6L)
+    assertEquals(2, flushService.pendingFlushes)
+
+    // the thread is not started, run a single pass
+    flushService.doWork()
+    assertEquals(0, flushService.pendingFlushes)
+    assertEquals(8L, log1.recoveryPoint)
+    assertEquals(3L, log2.recoveryPoint)
+  }
+
+  @Test
+  def testCancel(): Unit = {
+    val log = createLog("test-0")
+    append(log, 10)
+    flushService.requestFlush(log, 10L)
+    flushService.cancel(log)
+    assertEquals(0, flushService.pendingFlushes)
+    flushService.doWork()
+    assertEquals(0L, log.recoveryPoint)
+  }
+
+  @Test
+  def testFlushesOnServiceThread(): Unit = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.FlushMessagesProp, 5: java.lang.Integer)
+    val log = createLog("test-0", LogConfig(logProps))
+    flushService.start()
+
+    // appends past flush.messages request a flush instead of flushing inline
+    append(log, 10)
+    TestUtils.waitUntilTrue(() => log.recoveryPoint == 10L, "The log should be flushed by the flush thread")
+    assertEquals(0, flushService.pendingFlushes)
+  }
+
+  private def createLog(name: String, config: LogConfig = LogConfig()): Log = {
+    new Log(dir = new java.io.File(tmpDir, name), config = config, scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time, flushService = Some(flushService))
+  }
+
+  private def append(log: Log, numRecords: Int): Unit = {
+    for (_ <- 0 until numRecords)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes), leaderEpoch = 0)
+  }
+}
@@ -235,6 +235,132 @@ class LogManagerTest {
     }
   }
 
+  /**
+   * Test that with the load placement policy new logs are not assigned to the log directory with the most bytes
+   */
+  @Test
+  def testLoadPolicyAssignment() {
+    val dirs = Array(TestUtils.tempDir(), TestUtils.tempDir())
+    logManager.shutdown()
+    logManager = createLogManager(dirs, logDirPlacementPolicy = LogDirLoad.LoadPolicy)
+
+    val log = logManager.createLog(new TopicPartition("test", 0), logConfig)
+    for (_ <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes()), leaderEpoch = 0)
+    logManager.sampleLogDirLoad()
+
+    // the second log evens the number of logs, but the directory of the first log still has all the bytes
+    for (partition <- 1 to 2) {
+      val newLog = logManager.createLog(new TopicPartition("test", partition), logConfig)
+      assertNotEquals(log.dir.getParentFile, newLog.dir.getParentFile)
+    }
+  }
+
+  /**
+   * Test that a log can be moved to another log directory while it is appended to
+   */
+  @Test
+  def testMoveLog() {
+    val dirs = Array(TestUtils.tempDir(), TestUtils.tempDir())
+    logManager.shutdown()
+    logManager = createLogManager(dirs)
+    logManager.startup
+
+    val tp = new TopicPartition("test", 0)
+    val log = logManager.createLog(tp, logConfig)
+    val sourceDir = log.dir
+    val destDir = dirs.find(_ != sourceDir.getParentFile).get
+    for (i <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords(i.toString.getBytes), leaderEpoch = 0)
+
+    val appender = new Thread() {
+      override def run(): Unit = {
+        for (i <- 100 until 200)
+          log.appendAsLeader(TestUtils.singletonRecords(i.toString.getBytes), leaderEpoch = 0)
+      }
+    }
+    appender.start()
+    assertTrue(logManager.moveLog(tp, destDir))
+    assertFalse("The log is already being moved", logManager.moveLog(tp, destDir))
+    TestUtils.waitUntilTrue(() => !logManager.isLogMoving(tp), "The log should have been moved")
+    appender.join()
+
+    assertEquals(destDir, log.dir.getParentFile)
+    assertFalse(sourceDir.exists)
+    assertEquals(200L, log.logEndOffset)
+    for (i <- 0 until 200) {
+      val record = log.readUncommitted(i, 1024).records.records.iterator.next()
+      assertEquals(i.toString, Utils.utf8(record.value, record.valueSize))
+    }
+    assertFalse("The log is already in the directory", logManager.moveLog(tp, destDir))
+
+    // the moved log is loaded from its new directory
+    logManager.shutdown()
+    logManager = createLogManager(dirs)
+    val reloaded = logManager.getLog(tp).get
+    assertEquals(destDir, reloaded.dir.getParentFile)
+    assertEquals(200L, reloaded.logEndOffset)
+  }
+
+  /**
+   * Test that the cleaner offset checkpoint of a moved log is moved to its new directory
+   */
+  @Test
+  def testMoveLogMovesCleanerCheckpoint() {
+    val dirs = Array(TestUtils.tempDir(), TestUtils.tempDir())
+    logManager.shutdown()
+    logManager = createLogManager(dirs, cleanerConfig = CleanerConfig(enableCleaner = true))
+    logManager.startup
+
+    val tp = new TopicPartition("test", 0)
+    val log = logManager.createLog(tp, logConfig)
+    val sourceDir = log.dir.getParentFile
+    val destDir = dirs.find(_ != sourceDir).get
+    for (i <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords(i.toString.getBytes), leaderEpoch = 0)
+    logManager.cleaner.cleanerManager.updateCheckpoints(sourceDir, Some(tp -> 50L))
+
+    assertTrue(logManager.moveLog(tp, destDir))
+    TestUtils.waitUntilTrue(() => !logManager.isLogMoving(tp), "The log should have been moved")
+
+    def checkpointedOffsets(dir: File): collection.Map[TopicPartition, Long] =
+      new OffsetCheckpointFile(new File(dir, logManager.cleaner.cleanerManager.offsetCheckpointFile)).read()
+    assertEquals(None, checkpointedOffsets(sourceDir).get(tp))
+    assertEquals(Some(50L), checkpointedOffsets(destDir).get(tp))
+    assertEquals(Some(50L), logManager.cleaner.cleanerManager.allCleanerCheckpoints.get(tp))
+  }
+
+  /**
+   * Test that the future directory of an interrupted move is deleted when the log is still in its former directory and
+   * replaces it otherwise
+   */
+  @Test
+  def testCompleteOrAbandonLogMoveOnLoad() {
+    val dirs = Array(TestUtils.tempDir(), TestUtils.tempDir())
+    logManager.shutdown()
+    logManager = createLogManager(dirs)
+    val tp = new TopicPartition("test", 0)
+    val log = logManager.createLog(tp, logConfig)
+    for (_ <- 0 until 10)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes()), leaderEpoch = 0)
+    val sourceDir = log.dir
+    val destDir = dirs.find(_ != sourceDir.getParentFile).get
+    logManager.shutdown()
+
+    val abandonedFutureDir = new File(destDir, Log.logFutureDirName(sourceDir.getName))
+    assertTrue(abandonedFutureDir.mkdir())
+    logManager = createLogManager(dirs)
+    assertFalse(abandonedFutureDir.exists)
+    assertEquals(sourceDir, logManager.getLog(tp).get.dir)
+    logManager.shutdown()
+
+    val futureDir = new File(destDir, Log.logFutureDirName(sourceDir.getName))
+    assertTrue(sourceDir.renameTo(futureDir))
+    logManager = createLogManager(dirs)
+    assertEquals(new File(destDir, sourceDir.getName), logManager.getLog(tp).get.dir)
+    assertEquals(10L, logManager.getLog(tp).get.logEndOffset)
+  }
+
   /**
    * Test that it is not possible to open two log managers using the same data directory
    */
@@ -283,6 +409,41 @@ class LogManagerTest {
     verifyCheckpointRecovery(Seq(new TopicPartition("test-a", 1)), logManager)
   }
 
+  /**
+   * Test that the memory mappings of the indexes of inactive segments are capped, releasing idle indexes first.
+   */
+  @Test
+  def testReleaseIndexMmaps() {
+    logManager.shutdown()
+    logManager = createLogManager(maxIndexMmaps = 2)
+    logManager.startup
+
+    val log = logManager.createLog(new TopicPartition(name, 0), logConfig)
+    val setSize = TestUtils.singletonRecords("test".getBytes()).sizeInBytes
+    for (_ <- 0 until 200)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes()), leaderEpoch = 0)
+    val inactiveSegments = log.logSegments.toSeq.dropRight(1)
+    assertTrue("There should be more than 2 inactive segments", inactiveSegments.size > 2)
+    val inactiveIndexes = inactiveSegments.flatMap(segment => Seq(segment.index, segment.timeIndex))
+    def mappedIndexes = inactiveIndexes.filter(_.isMapped)
+
+    inactiveSegments.foreach { segment =>
+      segment.index.lookup(segment.baseOffset)
+      segment.timeIndex.lookup(0L)
+    }
+    assertEquals(inactiveIndexes.size, mappedIndexes.size)
+    logManager.releaseIndexMmaps()
+    assertEquals(2, mappedIndexes.size)
+
+    // read from the first segment so that its offset index is the only recently used one
+    log.readUncommitted(0, setSize)
+    val firstIndex = inactiveSegments.head.index
+    assertTrue(firstIndex.isMapped)
+    logManager.releaseIndexMmaps()
+    assertEquals(2, mappedIndexes.size)
+    assertTrue("The recently used index should stay mapped", firstIndex.isMapped)
+    assertEquals(OffsetPosition(0, 0), firstIndex.lookup(0))
+  }
 
   private def verifyCheckpointRecovery(topicPartitions: Seq[TopicPartition],
                                        logManager: LogManager) {
@@ -304,10 +465,15 @@ class LogManagerTest {
     }
   }
 
-  private def createLogManager(logDirs: Array[File] = Array(this.logDir)): LogManager = {
+  private def createLogManager(logDirs: Array[File] = Array(this.logDir), maxIndexMmaps: Int = 0,
+                               logDirPlacementPolicy: String = LogDirLoad.CountPolicy,
+                               cleanerConfig: CleanerConfig = CleanerConfig(enableCleaner = false)): LogManager = {
     TestUtils.createLogManager(
       defaultConfig = logConfig,
+      cleanerConfig = cleanerConfig,
       logDirs = logDirs,
-      time = this.time)
+      time = this.time,
+      maxIndexMmaps = maxIndexMmaps,
+      logDirPlacementPolicy = logDirPlacementPolicy)
   }
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.io.File
+import java.nio.channels.FileChannel
+import java.util
+import java.util.Properties
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Meter
+import kafka.server.BrokerTopicStats
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.record.{RecordBatch, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Test}
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class LogReadAheadTest extends JUnitSuite {
+  val tmpDir = TestUtils.tempDir()
+  val time = new MockTime()
+  val brokerTopicStats = new BrokerTopicStats
+  val advisor = new RecordingAdvisor
+  val readAhead = new LogReadAhead(readAheadBytes = 256, advisor)
+
+  @After
+  def tearDown(): Unit = {
+    readAhead.close()
+    brokerTopicStats.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testSequentialReadsOfSegment(): Unit = {
+    val streams = new SegmentReadStreams
+    assertEquals("A single read is not sequential", Seq.empty, streams.onRead(0, 100, 10000, 1000))
+    // the next read starts before the end of the previous one, which may have ended with a partial batch
+    assertEquals(Seq(PageCacheHint(willNeed = true, 200, 1000)), streams.onRead(90, 110, 10000, 1000))
+    // more than half of the read-ahead is still ahead of the reader
+    assertEquals(Seq.empty, streams.onRead(200, 400, 10000, 1000))
+    assertEquals(Seq(PageCacheHint(willNeed = true, 1200, 1000)), streams.onRead(600, 600, 10000, 1000))
+    assertEquals(Seq(PageCacheHint(willNeed = false, 0, 1200)), streams.onRead(1200, 100, 10000, 1000))
+
+    // a read elsewhere in the segment starts another stream, whose read-ahead stops at the end of the segment
+    assertEquals(Seq.empty, streams.onRead(9000, 100, 10000, 1000))
+    assertEquals(2, streams.size)
+    assertEquals(Seq(PageCacheHint(willNeed = true, 9200, 800)), streams.onRead(9100, 100, 10000, 1000))
+    assertEquals(Seq.empty, streams.onRead(9200, 800, 10000, 1000))
+  }
+
+  @Test
+  def testLeastRecentlyReadStreamIsForgotten(): Unit = {
+    val streams = new SegmentReadStreams
+    for (i <- 0 until LogReadAhead.MaxStreamsPerSegment)
+      streams.onRead(i * 1000, 100, 100000, 1000)
+    assertEquals(Seq(PageCacheHint(willNeed = true, 100, 1000)), streams.onRead(50, 50, 100000, 1000))
+
+    // the stream at 1000 has been read least recently
+    streams.onRead(50000, 100, 100000, 1000)
+    assertEquals(LogReadAhead.MaxStreamsPerSegment, streams.size)
+    assertEquals(Seq.empty, streams.onRead(1050, 50, 100000, 1000))
+    assertEquals(Seq(PageCacheHint(willNeed = true, 1100, 600)), streams.onRead(100, 600, 100000, 1000))
+  }
+
+  @Test
+  def testCatchUpAndTailReads(): Unit = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 2048: java.lang.Integer)
+    val log = new Log(dir = new File(tmpDir, "test-0"), config = LogConfig(logProps), scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time, readAhead = Some(readAhead))
+    for (_ <- 0 until 50)
+      log.appendAsLeader(TestUtils.singletonRecords(new Array[Byte](100)), leaderEpoch = 0)
+    assertTrue(log.numberOfSegments > 2)
+
+    val catchUpBytesBefore = meterCount("CatchUpBytesReadPerSec")
+    val tailBytesBefore = meterCount("TailBytesReadPerSec")
+    var catchUpBytes = 0L
+    var tailBytes = 0L
+    var offset = 0L
+    while (offset < log.logEndOffset) {
+      val fetchInfo = log.readUncommitted(offset, 300)
+      val batches = fetchInfo.records.batches.asScala.toSeq
+      if (fetchInfo.fetchOffsetMetadata.segmentBaseOffset == log.activeSegment.baseOffset)
+        tailBytes += fetchInfo.records.sizeInBytes
+      else
+        catchUpBytes += fetchInfo.records.sizeInBytes
+      offset = batches.last.nextOffset
+    }
+    assertEquals(catchUpBytes, meterCount("CatchUpBytesReadPerSec") - catchUpBytesBefore)
+    assertEquals(tailBytes, meterCount("TailBytesReadPerSec") - tailBytesBefore)
+
+    TestUtils.waitUntilTrue(() => advisor.hints.exists(_._2), "Sequential reads of inactive segments should be read ahead")
+    TestUtils.waitUntilTrue(() => advisor.hints.exists(!_._2), "Ranges already read should be dropped")
+    val inactiveSegmentFiles = log.logSegments.filter(_ != log.activeSegment).map(_.log.file).toSet
+    assertTrue("Only inactive segments should be read ahead", advisor.hints.forall(hint => inactiveSegmentFiles(hint._1)))
+  }
+
+  @Test
+  def testDefaultAdvisorReadsAheadMappedRange(): Unit = {
+    val segment = new LogSegment(tmpDir, 0L, 4096, 1024 * 1024, 0L, time)
+    segment.append(0L, 1L, RecordBatch.NO_TIMESTAMP, -1L, TestUtils.records(Seq(new SimpleRecord(new Array[Byte](5000)),
+      new SimpleRecord(new Array[Byte](5000)))))
+    val advisor = new DefaultPageCacheAdvisor
+    advisor.willNeed(segment.log.file, segment.log.channel, 100, segment.size - 100)
+    advisor.dontNeed(segment.log.file, segment.log.channel, 0, segment.size)
+    assertEquals(2, segment.read(0L, None, Int.MaxValue).records.records.asScala.size)
+    segment.close()
+  }
+
+  private def meterCount(name: String): Long = {
+    Metrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (metricName, meter: Meter) if metricName.getType == "LogReadAhead" && metricName.getName == name => meter.count
+    }.get
+  }
+
+  class RecordingAdvisor extends PageCacheAdvisor {
+    /* the file of each hint and whether it is a read-ahead hint */
+    private val recorded = mutable.ArrayBuffer.empty[(File, Boolean)]
+
+    def hints: Seq[(File, Boolean)] = synchronized(recorded.toList)
+
+    override def configure(configs: util.Map[String, _]): Unit = {}
+
+    override def willNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit =
+      synchronized(recorded += file -> true)
+
+    override def dontNeed(file: File, channel: FileChannel, position: Long, length: Long): Unit =
+      synchronized(recorded += file -> false)
+
+    override def close(): Unit = {}
+  }
+}
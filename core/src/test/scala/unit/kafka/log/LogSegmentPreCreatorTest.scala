@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.Properties
+
+import kafka.server.BrokerTopicStats
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Test}
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.JavaConverters._
+
+class LogSegmentPreCreatorTest extends JUnitSuite {
+  val tmpDir = TestUtils.tempDir()
+  val logDir = new File(tmpDir, "test-0")
+  val time = new MockTime()
+  val brokerTopicStats = new BrokerTopicStats
+  val preCreator = new LogSegmentPreCreator(time)
+  preCreator.start()
+
+  @After
+  def tearDown(): Unit = {
+    preCreator.shutdown()
+    brokerTopicStats.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testRollUsesPreparedSegment(): Unit = {
+    val log = createLog(preallocate = true)
+    appendRecords(log, 5)
+    log.roll()
+    TestUtils.waitUntilTrue(() => preCreator.isPrepared(log), "The next segment should be prepared after a roll")
+    assertTrue(LogSegmentPreCreator.preparedLogFile(logDir).exists)
+    assertEquals(log.initFileSize, LogSegmentPreCreator.preparedLogFile(logDir).length)
+
+    val preparedFileKey = fileKey(LogSegmentPreCreator.preparedLogFile(logDir))
+    appendRecords(log, 5)
+    val segment = log.roll()
+    assertEquals(Log.logFile(logDir, 10L), segment.log.file)
+    assertEquals("The prepared log file should be renamed", preparedFileKey, fileKey(segment.log.file))
+    assertEquals(0, segment.size)
+    assertEquals(0, segment.index.entries)
+    assertEquals(0, segment.timeIndex.entries)
+
+    val appendTimeMs = time.milliseconds
+    appendRecords(log, 5)
+    assertEquals(3, log.numberOfSegments)
+    assertEquals(10L, log.readUncommitted(10L, 1024).records.batches.asScala.head.baseOffset)
+    assertEquals(Some(12L), log.fetchOffsetsByTimestamp(appendTimeMs + 3).map(_.offset))
+
+    // the prepared segment is not left behind and the rolled segment is loaded like any other
+    log.close()
+    assertFalse(logDir.listFiles.exists(_.getName.endsWith(Log.PreparedFileSuffix)))
+    val reloaded = createLog(preallocate = true)
+    assertEquals(15L, reloaded.logEndOffset)
+    assertEquals(3, reloaded.numberOfSegments)
+    assertEquals(15, reloaded.logSegments.map(_.log.records.asScala.size).sum)
+    reloaded.close()
+  }
+
+  @Test
+  def testPreparedSegmentIsDiscardedWhenLogIsClosed(): Unit = {
+    val log = createLog(preallocate = false)
+    appendRecords(log, 1)
+    log.roll()
+    TestUtils.waitUntilTrue(() => preCreator.isPrepared(log), "The next segment should be prepared after a roll")
+    assertEquals(0L, LogSegmentPreCreator.preparedLogFile(logDir).length)
+    log.close()
+    assertFalse(preCreator.isPrepared(log))
+    assertFalse(logDir.listFiles.exists(_.getName.endsWith(Log.PreparedFileSuffix)))
+  }
+
+  private def createLog(preallocate: Boolean): Log = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 4096: java.lang.Integer)
+    logProps.put(LogConfig.PreAllocateEnableProp, preallocate: java.lang.Boolean)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    new Log(logDir, LogConfig(logProps), scheduler = time.scheduler, brokerTopicStats = brokerTopicStats, time = time,
+      segmentPreCreator = Some(preCreator))
+  }
+
+  private def fileKey(file: File): AnyRef = Files.readAttributes(file.toPath, classOf[BasicFileAttributes]).fileKey
+
+  private def appendRecords(log: Log, count: Int): Unit = {
+    for (_ <- 0 until count) {
+      time.sleep(1)
+      log.appendAsLeader(TestUtils.singletonRecords(new Array[Byte](100), timestamp = time.milliseconds), leaderEpoch = 0)
+    }
+  }
+}
@@ -16,7 +16,8 @@
  */
  package kafka.log
 
-import java.io.File
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
 
 import kafka.utils.TestUtils
 import kafka.utils.TestUtils.checkEquals
@@ -36,7 +37,7 @@ class LogSegmentTest {
   var logDir: File = _
 
   /* create a segment with the given base offset */
-  def createSegment(offset: Long, indexIntervalBytes: Int = 10): LogSegment = {
+  def createSegment(offset: Long, indexIntervalBytes: Int = 10, timeIndexIntervalBytes: Int = -1): LogSegment = {
     val msFile = TestUtils.tempFile()
     val ms = FileRecords.open(msFile)
     val idxFile = TestUtils.tempFile()
@@ -48,7 +49,7 @@ class LogSegmentTest {
     val idx = new OffsetIndex(idxFile, offset, 1000)
     val timeIdx = new TimeIndex(timeIdxFile, offset, 1500)
     val txnIndex = new TransactionIndex(offset, txnIdxFile)
-    val seg = new LogSegment(ms, idx, timeIdx, txnIndex, offset, indexIntervalBytes, 0, Time.SYSTEM)
+    val seg = new LogSegment(ms, idx, timeIdx, txnIndex, offset, indexIntervalBytes, timeIndexIntervalBytes, 0, Time.SYSTEM)
     segments += seg
     seg
   }
@@ -201,6 +202,29 @@ class LogSegmentTest {
     seg.append(40, 41, RecordBatch.NO_TIMESTAMP, -1L, records(40, "hello", "there"))
   }
 
+  /**
+   * Test that the time index can be denser than index.interval.bytes, and that the offset index is kept as dense, both
+   * when appending and when recovering
+   */
+  @Test
+  def testTimeIndexInterval() {
+    val messageSize = records(0, s"msg00").sizeInBytes
+    val seg = createSegment(40, indexIntervalBytes = messageSize * 4 - 1, timeIndexIntervalBytes = 0)
+    for (i <- 40 until 50)
+      seg.append(i, i, i * 10, i, records(i, s"msg$i"))
+    assertEquals(9, seg.timeIndex.entries)
+    assertEquals(9, seg.index.entries)
+    // the offset of the time index entry resolves to the position of its own batch
+    assertEquals(OffsetPosition(45, 5 * messageSize), seg.index.lookup(seg.timeIndex.lookup(450).offset))
+    assertEquals(45, seg.findOffsetByTimestamp(450).get.offset)
+    assertEquals(46, seg.findOffsetByTimestamp(451).get.offset)
+
+    seg.recover(new ProducerStateManager(topicPartition, logDir))
+    assertEquals(9, seg.timeIndex.entries)
+    assertEquals(9, seg.index.entries)
+    assertEquals(45, seg.findOffsetByTimestamp(450).get.offset)
+  }
+
   /**
    * Append messages with timestamp and search message by timestamp.
    */
@@ -437,6 +461,32 @@ class LogSegmentTest {
     assertEquals(size, fileSize)
   }
 
+  /**
+   * The deferred sanity checks of the indexes run on the first access of an index, not only on lookups, so that a
+   * corrupt time index does not feed the largest timestamp of the segment
+   */
+  @Test
+  def testDeferredIndexSanityCheckOnFirstIndexAccess() {
+    val tempDir = TestUtils.tempDir()
+    val seg = new LogSegment(tempDir, 40, 10, 1000, 0, Time.SYSTEM)
+    for (i <- 40 until 50)
+      seg.append(i, i, i * 10, i, records(i, s"msg$i"))
+    seg.close()
+
+    // the last entry of the time index has a timestamp below the first one
+    val timeIndexFile = Log.timeIndexFile(tempDir, 40)
+    val raf = new RandomAccessFile(timeIndexFile, "rw")
+    try raf.getChannel.write(ByteBuffer.allocate(8).putLong(0, -5L), timeIndexFile.length - 12)
+    finally raf.close()
+
+    val reopened = new LogSegment(tempDir, 40, 10, 1000, 0, Time.SYSTEM, fileAlreadyExists = true)
+    segments += reopened
+    reopened.deferIndexSanityCheck()
+    assertFalse(reopened.uncheckedIndexes.exists(_.isMapped))
+    assertEquals(490, reopened.largestTimestamp)
+    assertEquals(TimestampOffset(490, 49), reopened.timeIndex.lastEntry)
+  }
+
   @Test
   def shouldTruncateEvenIfOffsetPointsToAGapInTheLog() {
     val seg = createSegment(40)
@@ -21,6 +21,7 @@ import java.io._
 import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.util.Properties
+import java.util.concurrent.Executors
 
 import org.apache.kafka.common.errors._
 import kafka.api.ApiVersion
@@ -708,6 +709,80 @@ class LogTest {
     assertEquals("There should be exactly 2 segments.", 2, log.numberOfSegments)
   }
 
+  /**
+   * Test that the record sets appended together are assigned consecutive offsets, that they roll the log when they
+   * do not fit in the active segment, and that a record set which fails validation does not fail the others
+   */
+  @Test
+  def testAppendAllAsLeader() {
+    def createRecords(value: String) = TestUtils.singletonRecords(value = value.getBytes, timestamp = time.milliseconds)
+    val setSize = createRecords("0").sizeInBytes
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 10 * setSize: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    logProps.put(LogConfig.MaxMessageBytesProp, 2 * setSize: java.lang.Integer)
+    val log = new Log(logDir, LogConfig(logProps), logStartOffset = 0L, recoveryPoint = 0L, scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time)
+
+    val tooLarge = TestUtils.singletonRecords(value = new Array[Byte](3 * setSize), timestamp = time.milliseconds)
+    val records = (0 until 15).map(i => createRecords(i.toString)).patch(5, Seq(tooLarge), 0)
+    val results = log.appendAllAsLeader(records, leaderEpoch = 0)
+    assertEquals(16, results.size)
+    assertTrue(results(5).failed.get.isInstanceOf[RecordTooLargeException])
+    val appended = results.patch(5, Nil, 1).map(_.get)
+    assertEquals((0L until 15L).toList, appended.map(_.firstOffset).toList)
+    assertEquals(15L, log.logEndOffset)
+    assertEquals("The records should roll the log when the active segment is full", 2, log.numberOfSegments)
+    assertEquals(10L, log.activeSegment.baseOffset)
+
+    def checkRecords(log: Log): Unit = {
+      for (offset <- 0 until 15) {
+        val read = log.readUncommitted(offset, 100, Some(offset + 1)).records.records.asScala.head
+        assertEquals(offset.toLong, read.offset)
+        assertEquals(offset.toString, Utils.utf8(read.value, read.valueSize))
+      }
+    }
+    checkRecords(log)
+
+    // the indexes are rebuilt like those of records appended one at a time
+    log.close()
+    val reloaded = new Log(logDir, LogConfig(logProps), logStartOffset = 0L, recoveryPoint = 0L, scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time)
+    assertEquals(15L, reloaded.logEndOffset)
+    checkRecords(reloaded)
+    reloaded.close()
+  }
+
+  /**
+   * Test that the offsets of record sets validated before the log end offset moved are assigned from the log end offset
+   * when they are appended, in every message format, including the compressed 0.9.0 format whose offsets can only be
+   * assigned then
+   */
+  @Test
+  def testAppendValidatedAsLeader() {
+    for ((magic, messageFormatVersion) <- List(RecordBatch.MAGIC_VALUE_V0 -> "0.9.0", RecordBatch.MAGIC_VALUE_V1 -> "0.10.0",
+        RecordBatch.MAGIC_VALUE_V2 -> "0.11.0"); codec <- List(CompressionType.NONE, CompressionType.GZIP)) {
+      def createRecords(values: String*) =
+        TestUtils.records(values.map(value => new SimpleRecord(time.milliseconds, value.getBytes)), magic, codec)
+      val logProps = new Properties()
+      logProps.put(LogConfig.MessageFormatVersionProp, messageFormatVersion)
+      val log = new Log(TestUtils.randomPartitionLogDir(tmpDir), LogConfig(logProps), logStartOffset = 0L,
+        recoveryPoint = 0L, scheduler = time.scheduler, brokerTopicStats = brokerTopicStats, time = time)
+
+      val validated = Seq(createRecords("2", "3"), createRecords("4", "5")).map(log.validateAsLeader(_))
+      log.appendAsLeader(createRecords("0", "1"), leaderEpoch = 0)
+      val appended = log.appendValidatedAsLeader(validated, leaderEpoch = 0).map(_.get)
+      assertEquals(s"$codec in $messageFormatVersion", List(2L, 4L), appended.map(_.firstOffset).toList)
+      assertEquals(s"$codec in $messageFormatVersion", List(3L, 5L), appended.map(_.lastOffset).toList)
+      assertEquals(6L, log.logEndOffset)
+
+      val read = log.readUncommitted(0, Int.MaxValue).records.records.asScala.toList
+      assertEquals(s"$codec in $messageFormatVersion", (0L until 6L).toList, read.map(_.offset))
+      assertEquals((0 until 6).map(_.toString).toList, read.map(record => Utils.utf8(record.value, record.valueSize)))
+      log.close()
+    }
+  }
+
   /**
    * Test that we can open and append to an empty log
    */
@@ -1163,6 +1238,40 @@ class LogTest {
       time.milliseconds + numMessages - 1, log.activeSegment.timeIndex.lastEntry.timestamp)
   }
 
+  /**
+   * Test timestamp lookups across segments whose timestamps are not in order, as segments are added and removed
+   */
+  @Test
+  def testFetchOffsetsByTimestampAcrossSegments() {
+    val log = createLog(TestUtils.singletonRecords("test".getBytes, timestamp = 0L).sizeInBytes, messagesPerSegment = 1)
+    // one record per segment, the third segment has a smaller timestamp than the second one
+    val timestamps = Seq(100L, 300L, 200L, 400L, 400L, 500L)
+    for (timestamp <- timestamps)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes, timestamp = timestamp), leaderEpoch = 0)
+    assertEquals(timestamps.size, log.numberOfSegments)
+
+    assertEquals(Some(TimestampOffset(100L, 0L)), log.fetchOffsetsByTimestamp(50L))
+    assertEquals(Some(TimestampOffset(300L, 1L)), log.fetchOffsetsByTimestamp(150L))
+    // the second segment is the first one with a timestamp of at least 200
+    assertEquals(Some(TimestampOffset(300L, 1L)), log.fetchOffsetsByTimestamp(200L))
+    assertEquals(Some(TimestampOffset(400L, 3L)), log.fetchOffsetsByTimestamp(350L))
+    assertEquals(Some(TimestampOffset(500L, 5L)), log.fetchOffsetsByTimestamp(450L))
+    assertEquals(None, log.fetchOffsetsByTimestamp(501L))
+
+    // a record with a larger timestamp in the active segment is found without a new segment
+    log.appendAsLeader(TestUtils.singletonRecords("test".getBytes, timestamp = 600L), leaderEpoch = 0)
+    assertEquals(Some(TimestampOffset(600L, 6L)), log.fetchOffsetsByTimestamp(550L))
+
+    log.maybeIncrementLogStartOffset(2L)
+    log.deleteOldSegments()
+    assertEquals(Some(TimestampOffset(200L, 2L)), log.fetchOffsetsByTimestamp(50L))
+    assertEquals(Some(TimestampOffset(400L, 3L)), log.fetchOffsetsByTimestamp(250L))
+
+    log.truncateTo(4L)
+    assertEquals(Some(TimestampOffset(400L, 3L)), log.fetchOffsetsByTimestamp(350L))
+    assertEquals(None, log.fetchOffsetsByTimestamp(450L))
+  }
+
   /**
    * Test that if we manually delete an index segment it is rebuilt when the log is re-opened
    */
@@ -1285,6 +1394,50 @@ class LogTest {
     log.close()
   }
 
+  /**
+   * After a clean shutdown the indexes of the older segments are only checked when the segment is first read,
+   * and a corrupt index is rebuilt at that point.
+   */
+  @Test
+  def testDeferredIndexSanityCheckAfterCleanShutdown() {
+    val numMessages = 200
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 200: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    val config = LogConfig(logProps)
+    var log = new Log(logDir, config, logStartOffset = 0L, recoveryPoint = 0L, scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time)
+    for(i <- 0 until numMessages)
+      log.appendAsLeader(TestUtils.singletonRecords(value = TestUtils.randomBytes(10), timestamp = time.milliseconds + i * 10), leaderEpoch = 0)
+    val firstSegment = log.logSegments.head
+    val firstSegmentNextOffset = log.logSegments.toSeq(1).baseOffset
+    log.close()
+
+    // corrupt the indexes of the first segment
+    for (file <- Seq(firstSegment.index.file, firstSegment.timeIndex.file)) {
+      val bw = new BufferedWriter(new FileWriter(file))
+      bw.write("  ")
+      bw.close()
+    }
+
+    val cleanShutdownFile = new File(logDir.getParentFile, Log.CleanShutdownFile)
+    cleanShutdownFile.createNewFile()
+    try {
+      log = new Log(logDir, config, logStartOffset = 0L, recoveryPoint = numMessages, scheduler = time.scheduler,
+        brokerTopicStats = brokerTopicStats, time = time)
+      assertEquals(numMessages, log.logEndOffset)
+      assertFalse("Indexes of older segments should not be mapped on load", log.logSegments.head.uncheckedIndexes.exists(_.isMapped))
+      for (i <- 0L until firstSegmentNextOffset) {
+        assertEquals(i, log.readUncommitted(i, 100, None).records.batches.iterator.next().lastOffset)
+        assertEquals(i, log.fetchOffsetsByTimestamp(time.milliseconds + i * 10).get.offset)
+      }
+      assertEquals(firstSegmentNextOffset - 1, log.logSegments.head.index.lastOffset)
+      log.close()
+    } finally {
+      cleanShutdownFile.delete()
+    }
+  }
+
   /**
    * Test the Log truncate operations
    */
@@ -2351,6 +2504,74 @@ class LogTest {
     assertEquals(List(new AbortedTxn(pid1, 0L, 29L, 8L), new AbortedTxn(pid2, 8L, 74L, 36L)), abortedTransactions)
   }
 
+  @Test
+  def testConcurrentSegmentRecovery(): Unit = {
+    val log = createLog(64)
+    val epoch = 0.toShort
+    val pid1 = 1L
+    val pid2 = 2L
+    val appendPid1 = appendTransactionalAsLeader(log, pid1, epoch)
+    val appendPid2 = appendTransactionalAsLeader(log, pid2, epoch)
+
+    appendPid1(5) // nextOffset: 5
+    appendNonTransactionalAsLeader(log, 3) // 8
+    appendPid2(2) // 10
+    appendPid1(4) // 14
+    appendEndTxnMarkerAsLeader(log, pid1, epoch, ControlRecordType.ABORT) // 15
+    appendNonTransactionalAsLeader(log, 10) // 25
+    appendPid2(6) // 31
+    appendEndTxnMarkerAsLeader(log, pid2, epoch, ControlRecordType.ABORT) // 32
+    appendNonTransactionalAsLeader(log, 10) // 42
+
+    val numSegments = log.numberOfSegments
+    assertTrue("The log should have several segments", numSegments > 2)
+    log.logSegments.foreach(_.txnIndex.truncate())
+    log.close()
+
+    val pool = Executors.newFixedThreadPool(4)
+    val progress = new LogRecoveryProgress(time)
+    try {
+      val reloadedLog = new Log(logDir, log.config, logStartOffset = 0L, recoveryPoint = 0L, scheduler = time.scheduler,
+        brokerTopicStats = brokerTopicStats, time = time, segmentRecoveryPool = Some(pool),
+        recoveryProgress = Some(progress))
+      assertEquals(numSegments, reloadedLog.numberOfSegments)
+      assertEquals(42L, reloadedLog.logEndOffset)
+      assertEquals(0, progress.remainingSegments)
+      assertEquals(List(new AbortedTxn(pid1, 0L, 14L, 8L), new AbortedTxn(pid2, 8L, 31L, 32L)),
+        allAbortedTransactions(reloadedLog))
+      for (offset <- 0L until 42L) {
+        val batch = reloadedLog.readUncommitted(offset, 2048).records.batches.iterator.next()
+        assertTrue(batch.baseOffset <= offset && offset <= batch.lastOffset)
+      }
+      reloadedLog.close()
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  @Test
+  def testConcurrentSegmentRecoveryDeletesSegmentsAfterCorruption(): Unit = {
+    val log = createLog(128)
+    for (_ <- 0 until 50)
+      appendNonTransactionalAsLeader(log, 1)
+    val segments = log.logSegments.toSeq
+    assertTrue("The log should have several segments", segments.size > 3)
+    val corruptSegment = segments(1)
+    log.close()
+
+    TestUtils.appendNonsenseToFile(corruptSegment.log.file, 100)
+    val pool = Executors.newFixedThreadPool(4)
+    try {
+      val reloadedLog = new Log(logDir, log.config, logStartOffset = 0L, recoveryPoint = 0L, scheduler = time.scheduler,
+        brokerTopicStats = brokerTopicStats, time = time, segmentRecoveryPool = Some(pool))
+      assertEquals(2, reloadedLog.numberOfSegments)
+      assertEquals(segments(2).baseOffset, reloadedLog.logEndOffset)
+      reloadedLog.close()
+    } finally {
+      pool.shutdown()
+    }
+  }
+
   @Test
   def testRecoverOnlyLastSegment(): Unit = {
     val log = createLog(128)
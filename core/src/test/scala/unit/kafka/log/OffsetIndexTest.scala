@@ -20,6 +20,7 @@ package kafka.log
 import java.io._
 import org.junit.Assert._
 import java.util.{Collections, Arrays}
+import java.util.concurrent.{Callable, Executors}
 import org.junit._
 import org.scalatest.junit.JUnitSuite
 import scala.collection._
@@ -132,7 +133,94 @@ class OffsetIndexTest extends JUnitSuite {
     assertEquals(2, idxRo.entries)
     assertWriteFails("Append should fail on read-only index", idxRo, 53, classOf[IllegalArgumentException])
   }
-  
+
+  @Test
+  def testMmapIsNotReleasedWhileInUse() {
+    idx.append(51, 0)
+    idx.close()
+    val reading = new OffsetIndex(idx.file, baseOffset = idx.baseOffset, maxIndexSize = 30 * 8) {
+      def whileReading[T](fun: => T): T = maybeLock(lock)(fun)
+    }
+    assertEquals(OffsetPosition(51, 0), reading.lookup(51))
+    // the mapping is held for reading by this thread, the release of another thread does not wait for it
+    val released = reading.whileReading {
+      val executor = Executors.newSingleThreadExecutor()
+      try executor.submit(new Callable[Boolean] { def call(): Boolean = reading.releaseMmap() }).get
+      finally executor.shutdown()
+    }
+    assertFalse(released)
+    assertTrue(reading.isMapped)
+    assertTrue(reading.releaseMmap())
+    assertFalse(reading.isMapped)
+    assertEquals(OffsetPosition(51, 0), reading.lookup(51))
+  }
+
+  @Test
+  def testLazyMmapAndRelease() {
+    idx.append(51, 0)
+    idx.append(52, 1)
+    idx.close()
+
+    val reopened = new OffsetIndex(idx.file, baseOffset = idx.baseOffset, maxIndexSize = 30 * 8)
+    assertFalse("Reopened index should not be mapped until it is used", reopened.isMapped)
+    assertEquals(2, reopened.entries)
+    assertFalse(reopened.wasAccessed)
+
+    assertEquals(OffsetPosition(52, 1), reopened.lookup(52))
+    assertTrue(reopened.isMapped)
+    assertTrue(reopened.wasAccessed)
+
+    assertTrue(reopened.releaseMmap())
+    assertFalse(reopened.isMapped)
+    assertFalse("An index which is not mapped has nothing to release", reopened.releaseMmap())
+    reopened.clearAccessed()
+    assertFalse(reopened.wasAccessed)
+
+    // the index is mapped again, at the right position, on the next use
+    reopened.resize(30 * 8)
+    assertFalse(reopened.isMapped)
+    reopened.append(53, 2)
+    assertEquals(OffsetPosition(53, 2), reopened.lookup(60))
+    assertEquals(53, reopened.lastOffset)
+    assertEquals(3, reopened.entries)
+    reopened.close()
+  }
+
+  @Test
+  def testLookupBeforeWarmSection() {
+    val numEntries = 8 * 512
+    val idx = new OffsetIndex(nonExistantTempFile(), baseOffset = 0L, maxIndexSize = numEntries * 8)
+    // entry i maps offset 2 * (i + 1) to position 10 * i
+    def expectedLookup(offset: Long, lastEntryOffset: Long) = {
+      if (offset < 2) OffsetPosition(0, 0)
+      else {
+        val slotOffset = math.min(offset - offset % 2, lastEntryOffset)
+        OffsetPosition(slotOffset, (slotOffset / 2 - 1).toInt * 10)
+      }
+    }
+    for (i <- 0 until numEntries)
+      idx.append(2 * (i + 1), 10 * i)
+    // a single lookup only reads the first entries of the pages visited by a binary search of the 6 pages
+    assertEquals(expectedLookup(10, 2L * numEntries), idx.lookup(10))
+    assertTrue("A lookup should only read the pages it visits", idx.pageDirectorySize <= 3)
+    for (offset <- 0L to 2L * numEntries + 5)
+      assertEquals(expectedLookup(offset, 2L * numEntries), idx.lookup(offset))
+    assertTrue("Lookups before the warm section should fill the page directory", idx.pageDirectorySize > 3)
+    assertEquals(Some(OffsetPosition(6, 20)), idx.fetchUpperBoundOffset(OffsetPosition(2, 0), 15))
+    assertEquals(Some(OffsetPosition(202, 1000)), idx.fetchUpperBoundOffset(OffsetPosition(2, 0), 1000))
+
+    // after truncating, entries appended with different offsets must not be found through stale pages
+    idx.truncateTo(2L * 1000)
+    assertEquals(0, idx.pageDirectorySize)
+    for (i <- 999 until numEntries)
+      idx.append(2 * (i + 1) + 1, 10 * i)
+    assertEquals(OffsetPosition(1998, 9980), idx.lookup(1999))
+    assertEquals(OffsetPosition(2001, 9990), idx.lookup(2001))
+    assertEquals(OffsetPosition(4001, 19990), idx.lookup(4002))
+    assertEquals(OffsetPosition(1998, 9980), idx.lookup(2000))
+    idx.close()
+  }
+
   @Test
   def truncate() {
 	val idx = new OffsetIndex(nonExistantTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
@@ -18,6 +18,7 @@
 package kafka.log
 
 import java.nio._
+import java.nio.charset.StandardCharsets
 
 import kafka.utils.Exit
 import org.junit._
@@ -58,6 +59,84 @@ class OffsetMapTest extends JUnitSuite {
     assertEquals(map.get(key(i-1L)), i-1L)
   }
 
+  @Test
+  def testCompactOffsetMap() {
+    for (items <- Seq(10, 100, 1000, 5000)) {
+      val map = new CompactOffsetMap(items * 2 * CompactOffsetMap.BytesPerEntry)
+      for (i <- 0 until items)
+        map.put(key(i), i + 1000L)
+      for (i <- 0 until items)
+        assertEquals(i + 1000L, map.get(key(i)))
+      assertEquals(items, map.size)
+      assertEquals(-1L, map.get(key(items)))
+    }
+  }
+
+  @Test
+  def testCompactOffsetMapOverwriteAndClear() {
+    val map = new CompactOffsetMap(4000)
+    for (i <- 0 until 10)
+      map.put(key(i), i)
+    for (i <- 0 until 10)
+      map.put(key(i), i + 10)
+    assertEquals(10, map.size)
+    for (i <- 0 until 10)
+      assertEquals(i + 10L, map.get(key(i)))
+    assertEquals(19L, map.latestOffset)
+    map.clear()
+    for (i <- 0 until 10)
+      assertEquals(-1L, map.get(key(i)))
+    // the offsets are relative to the first offset put after clearing the map
+    map.put(key(0), 5000000000L)
+    assertEquals(5000000000L, map.get(key(0)))
+  }
+
+  @Test
+  def testCompactOffsetMapGetWhenFull() {
+    val map = new CompactOffsetMap(4096)
+    var i = 37L
+    while (map.size < map.slots) {
+      map.put(key(i), i)
+      i = i + 1L
+    }
+    assertEquals(-1L, map.get(key(i)))
+    assertEquals(i - 1L, map.get(key(i - 1L)))
+  }
+
+  @Test
+  def testCompactOffsetMapOffsetRange() {
+    val map = new CompactOffsetMap(4096)
+    assertTrue(map.canPut(Long.MaxValue))
+    map.put(key(0), 100L)
+    assertTrue(map.canPut(100L + Int.MaxValue))
+    assertFalse(map.canPut(101L + Int.MaxValue))
+    map.put(key(1), 100L + Int.MaxValue)
+    assertEquals(100L + Int.MaxValue, map.get(key(1)))
+  }
+
+  @Test
+  def testMurmur3() {
+    val hash = new Array[Long](2)
+    val buffer = ByteBuffer.wrap("The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8))
+    Murmur3.hash128(buffer, hash)
+    assertEquals(0xe34bbc7bbc071b6cL, hash(0))
+    assertEquals(0x7a433ca9c49a9347L, hash(1))
+    assertEquals("The position of the key should not change", 0, buffer.position)
+
+    // the hash of a key only depends on its remaining bytes
+    val slice = ByteBuffer.wrap("xxThe quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8))
+    slice.position(2)
+    val sliceHash = new Array[Long](2)
+    Murmur3.hash128(slice, sliceHash)
+    assertEquals(hash.toSeq, sliceHash.toSeq)
+  }
+
+  @Test
+  def testOffsetMapFactory() {
+    assertTrue(OffsetMap(4096, OffsetMap.Murmur3).isInstanceOf[CompactOffsetMap])
+    assertTrue(OffsetMap(4096, "MD5").isInstanceOf[SkimpyOffsetMap])
+  }
+
   def key(key: Long) = ByteBuffer.wrap(key.toString.getBytes)
   
   def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
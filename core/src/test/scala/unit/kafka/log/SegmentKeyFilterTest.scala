@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.JUnitSuite
+
+class SegmentKeyFilterTest extends JUnitSuite {
+
+  @Test
+  def testMightContain() {
+    val builder = new SegmentKeyFilter.Builder
+    for (i <- 0 until 10000)
+      builder.add(key(i))
+    val filter = builder.build()
+    assertFalse(filter.hasDeletes)
+
+    val buffer = new Array[Long](2)
+    for (i <- 0 until 10000)
+      assertTrue(s"Key $i should be in the filter", filter.mightContain(SegmentKeyFilter.hash(key(i), buffer)))
+    val falsePositives = (10000 until 20000).count(i => filter.mightContain(SegmentKeyFilter.hash(key(i), buffer)))
+    assertTrue(s"Too many false positives: $falsePositives", falsePositives < 300)
+  }
+
+  @Test
+  def testEmptyFilter() {
+    val filter = new SegmentKeyFilter.Builder().build()
+    val buffer = new Array[Long](2)
+    assertTrue((0 until 100).forall(i => !filter.mightContain(SegmentKeyFilter.hash(key(i), buffer))))
+  }
+
+  @Test
+  def testHasDeletes() {
+    val builder = new SegmentKeyFilter.Builder
+    builder.add(key(0))
+    builder.markDeletes()
+    assertTrue(builder.build().hasDeletes)
+  }
+
+  private def key(i: Int): ByteBuffer = ByteBuffer.wrap(i.toString.getBytes)
+}
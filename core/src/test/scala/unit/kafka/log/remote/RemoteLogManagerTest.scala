@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log.remote
+
+import java.io.File
+import java.util.Properties
+import java.util.concurrent.CountDownLatch
+
+import kafka.log.{Log, LogConfig}
+import kafka.server.{BrokerTopicStats, LogOffsetMetadata}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.record.RecordBatch
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Test}
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.JavaConverters._
+
+class RemoteLogManagerTest extends JUnitSuite {
+  val tmpDir = TestUtils.tempDir()
+  val storageDir = new File(tmpDir, "remote")
+  val time = new MockTime()
+  val brokerTopicStats = new BrokerTopicStats
+  val storageManager = createStorageManager()
+  val remoteLogManager = new RemoteLogManager(storageManager, new File(tmpDir, "cache"), 1024 * 1024, time)
+  val topicPartition = new TopicPartition("test", 0)
+
+  @After
+  def tearDown(): Unit = {
+    remoteLogManager.close()
+    brokerTopicStats.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testReadsBelowLocalLogStartOffsetAreServedFromRemoteTier(): Unit = {
+    val log = createLog(localRetentionBytes = 0L)
+    appendRecords(log, 50)
+    log.flush()
+
+    remoteLogManager.copyLogSegments(log, highWatermark = 30L)
+    val copiedOffset = remoteLogManager.copiedOffset(topicPartition)
+    assertTrue("Segments below the high watermark should be copied", copiedOffset > 0 && copiedOffset <= 30L)
+    assertEquals(Some(0L), remoteLogManager.logStartOffset(topicPartition))
+
+    // only the copied segments are deleted locally
+    log.deleteOldSegments()
+    assertEquals(copiedOffset, log.localLogStartOffset)
+    assertEquals(0L, log.logStartOffset)
+
+    for (offset <- Seq(0L, copiedOffset - 1, copiedOffset)) {
+      val batches = readUncommitted(log, offset)
+      assertTrue(batches.head.baseOffset <= offset && batches.head.lastOffset >= offset)
+    }
+    assertEquals(0L, readUncommitted(log, 0L).head.baseOffset)
+    log.close()
+  }
+
+  @Test
+  def testReadDoesNotWaitForSegmentFetch(): Unit = {
+    val fetchLatch = new CountDownLatch(1)
+    val blockingStorageManager = new LocalFileSystemRemoteStorageManager {
+      override def fetchLogSegment(topicPartition: TopicPartition, remoteSegment: RemoteLogSegment, dir: File): Unit = {
+        fetchLatch.await()
+        super.fetchLogSegment(topicPartition, remoteSegment, dir)
+      }
+    }
+    blockingStorageManager.configure(Map(LocalFileSystemRemoteStorageManager.StorageDirProp -> storageDir.getPath).asJava)
+    val blockingManager = new RemoteLogManager(blockingStorageManager, new File(tmpDir, "blocking-cache"), 1024 * 1024, time)
+    try {
+      val log = createLog(localRetentionBytes = 0L, manager = blockingManager)
+      appendRecords(log, 50)
+      log.flush()
+      blockingManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+      log.deleteOldSegments()
+
+      // the read returns while the segment is being fetched, so that a delayed fetch waits for its timeout
+      val fetchInfo = log.readUncommitted(0L, 1024)
+      assertEquals(0, fetchInfo.records.sizeInBytes)
+      assertEquals(LogOffsetMetadata.UnknownOffsetMetadata, fetchInfo.fetchOffsetMetadata)
+      assertEquals(0, log.readUncommitted(0L, 1024).records.sizeInBytes)
+
+      fetchLatch.countDown()
+      assertEquals(0L, readUncommitted(log, 0L).head.baseOffset)
+      log.close()
+    } finally {
+      fetchLatch.countDown()
+      blockingManager.close()
+    }
+  }
+
+  @Test
+  def testSegmentLargerThanCacheIsRead(): Unit = {
+    // the cache is smaller than one segment
+    val smallCacheManager = new RemoteLogManager(createStorageManager(), new File(tmpDir, "small-cache"), 100, time)
+    try {
+      val log = createLog(localRetentionBytes = 0L, manager = smallCacheManager)
+      appendRecords(log, 50)
+      log.flush()
+      smallCacheManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+      log.deleteOldSegments()
+      val secondSegmentOffset = smallCacheManager.copiedOffset(topicPartition) - 1
+
+      assertEquals(0L, readUncommitted(log, 0L).head.baseOffset)
+      // the segment read is evicted once another segment is fetched, which is kept until it is read in turn
+      val batches = readUncommitted(log, secondSegmentOffset)
+      assertTrue(batches.head.baseOffset <= secondSegmentOffset && batches.head.lastOffset >= secondSegmentOffset)
+      assertEquals(0L, readUncommitted(log, 0L).head.baseOffset)
+      log.close()
+    } finally smallCacheManager.close()
+  }
+
+  @Test
+  def testFetchOffsetsByTimestampSearchesRemoteTier(): Unit = {
+    val log = createLog(localRetentionBytes = 0L)
+    val baseTimestamp = time.milliseconds
+    appendRecords(log, 50, timestamp = offset => baseTimestamp + offset * 10)
+    log.flush()
+    remoteLogManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+    log.deleteOldSegments()
+    assertTrue(log.localLogStartOffset > 5L)
+
+    // the base offset of the remote segment is returned until it is fetched
+    var timestampOffset = log.fetchOffsetsByTimestamp(baseTimestamp + 50)
+    assertEquals(Some(0L), timestampOffset.map(_.offset))
+    TestUtils.waitUntilTrue(() => {
+      timestampOffset = log.fetchOffsetsByTimestamp(baseTimestamp + 50)
+      timestampOffset.exists(_.timestamp != RecordBatch.NO_TIMESTAMP)
+    }, "The remote segment should be searched once it is fetched")
+    assertEquals(Some(baseTimestamp + 50), timestampOffset.map(_.timestamp))
+    assertEquals(Some(5L), timestampOffset.map(_.offset))
+
+    // the timestamps of the local segments are still found locally
+    val localTimestamp = baseTimestamp + log.localLogStartOffset * 10
+    assertEquals(Some(log.localLogStartOffset), log.fetchOffsetsByTimestamp(localTimestamp).map(_.offset))
+    log.close()
+  }
+
+  @Test
+  def testOnlyFetchedSegmentsAreDeletedFromCacheDir(): Unit = {
+    val cacheDir = new File(tmpDir, "shared-cache")
+    cacheDir.mkdirs()
+    val otherFile = new File(cacheDir, "other")
+    otherFile.createNewFile()
+    val manager = new RemoteLogManager(createStorageManager(), cacheDir, 1024 * 1024, time)
+    val segmentsDir = new File(cacheDir, RemoteLogManager.SegmentsDirName)
+    assertTrue(segmentsDir.isDirectory)
+    manager.close()
+    assertTrue("Files not created by the manager should be kept", otherFile.exists)
+    assertFalse(segmentsDir.exists)
+  }
+
+  @Test
+  def testRemoteRetentionAdvancesLogStartOffset(): Unit = {
+    val log = createLog(localRetentionBytes = 0L, retentionBytes = 1000L)
+    appendRecords(log, 50)
+    log.flush()
+    remoteLogManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+    log.deleteOldSegments()
+    assertEquals(1, log.numberOfSegments)
+
+    assertTrue(remoteLogManager.deleteExpiredSegments(log) > 0)
+    val remoteLogStartOffset = remoteLogManager.logStartOffset(topicPartition)
+    assertTrue(remoteLogStartOffset.isDefined && remoteLogStartOffset.get > 0L)
+    assertEquals(remoteLogStartOffset.get, log.logStartOffset)
+    assertTrue(storageManager.listLogSegments(topicPartition).forall(_.baseOffset >= log.logStartOffset))
+    log.close()
+  }
+
+  @Test
+  def testRemoteSegmentsAreListedFromStorage(): Unit = {
+    val log = createLog(localRetentionBytes = -2L)
+    appendRecords(log, 50)
+    log.flush()
+    remoteLogManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+    // copying again does not copy the segments twice
+    remoteLogManager.copyLogSegments(log, highWatermark = log.logEndOffset)
+    val segments = storageManager.listLogSegments(topicPartition)
+    assertEquals(log.numberOfSegments - 1, segments.size)
+    assertEquals(log.logSegments.map(_.baseOffset).toSeq.init, segments.map(_.baseOffset))
+
+    val otherManager = new RemoteLogManager(createStorageManager(), new File(tmpDir, "other-cache"), 1024 * 1024, time)
+    try {
+      assertEquals(remoteLogManager.copiedOffset(topicPartition), otherManager.copiedOffset(topicPartition))
+      assertEquals(Some(0L), otherManager.logStartOffset(topicPartition))
+    } finally otherManager.close()
+    log.close()
+  }
+
+  private def createStorageManager(): RemoteStorageManager = {
+    val storageManager = new LocalFileSystemRemoteStorageManager
+    storageManager.configure(Map(LocalFileSystemRemoteStorageManager.StorageDirProp -> storageDir.getPath).asJava)
+    storageManager
+  }
+
+  private def createLog(localRetentionBytes: Long, retentionBytes: Long = -1L,
+                        manager: RemoteLogManager = remoteLogManager): Log = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.RetentionBytesProp, retentionBytes: java.lang.Long)
+    logProps.put(LogConfig.LocalRetentionBytesProp, localRetentionBytes: java.lang.Long)
+    logProps.put(LogConfig.RemoteStorageEnableProp, true: java.lang.Boolean)
+    new Log(dir = new File(tmpDir, topicPartition.toString), config = LogConfig(logProps), scheduler = time.scheduler,
+      brokerTopicStats = brokerTopicStats, time = time, remoteLogManager = Some(manager))
+  }
+
+  // a read of a segment which is not cached starts its fetch and returns no records, the client fetching again
+  private def readUncommitted(log: Log, offset: Long): Seq[RecordBatch] = {
+    var batches = Seq.empty[RecordBatch]
+    TestUtils.waitUntilTrue(() => {
+      batches = log.readUncommitted(offset, 1024).records.batches.asScala.toSeq
+      batches.nonEmpty
+    }, s"Offset $offset should be readable")
+    batches
+  }
+
+  private def appendRecords(log: Log, count: Int, timestamp: Long => Long = _ => RecordBatch.NO_TIMESTAMP): Unit = {
+    for (_ <- 0 until count)
+      log.appendAsLeader(TestUtils.singletonRecords(new Array[Byte](100), timestamp = timestamp(log.logEndOffset)),
+        leaderEpoch = 0)
+  }
+}
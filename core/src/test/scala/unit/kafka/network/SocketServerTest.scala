@@ -405,6 +405,36 @@ class SocketServerTest extends JUnitSuite {
 
   }
 
+  @Test
+  def testRequestLatencyPercentiles() {
+    val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    props.setProperty(KafkaConfig.RequestLatencyPercentilesEnableProp, "true")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, Time.SYSTEM, credentialProvider)
+    try {
+      overrideServer.startup()
+      val conn = connect(overrideServer)
+      val serializedBytes = producerRequestBytes
+      sendRequest(conn, serializedBytes)
+      processRequest(overrideServer.requestChannel)
+      assertEquals(serializedBytes.toSeq, receiveResponse(conn).toSeq)
+
+      val tags = Map("request" -> ApiKeys.PRODUCE.name, "listener" -> "PLAINTEXT").asJava
+      def metricValue(name: String): Double = Option(serverMetrics.metric(serverMetrics.metricName(name,
+        RequestLatencyPercentiles.MetricGroup, tags))).fold(Double.NaN)(_.value)
+      TestUtils.waitUntilTrue(() => !metricValue("total-time-ms-p999").isNaN,
+        "Request latency percentiles were not recorded")
+      RequestLatencyPercentiles.TimeNames.foreach { timeName =>
+        assertTrue(s"Unexpected $timeName", metricValue(s"$timeName-p50") >= 0.0)
+        assertTrue(s"Unexpected $timeName", metricValue(s"$timeName-max") >= 0.0)
+      }
+      assertTrue(metricValue("total-time-ms-p999") >= metricValue("total-time-ms-p50"))
+    } finally {
+      overrideServer.shutdown()
+      serverMetrics.close()
+    }
+  }
+
   @Test
   def testMetricCollectionAfterShutdown(): Unit = {
     server.shutdown()
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import com.yammer.metrics.Metrics
+import kafka.cluster.BrokerEndPoint
+import kafka.server.AbstractFetcherThread.{FetchRequest, PartitionData}
+import kafka.utils.TestUtils
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.requests.EpochEndOffset
+import org.junit.Assert._
+import org.junit.{After, Test}
+
+import scala.collection.JavaConverters._
+import scala.collection.Map
+
+class AbstractFetcherManagerTest {
+
+  private val broker = new BrokerEndPoint(0, "localhost", 9092)
+  private val hotPartition = new TopicPartition("hot", 0)
+  private val coldPartitions = (0 until 3).map(new TopicPartition("cold", _))
+
+  private var manager: TestFetcherManager = null
+
+  @After
+  def tearDown() {
+    if (manager != null)
+      manager.closeAllFetchers()
+    for (metricName <- Metrics.defaultRegistry().allMetrics().keySet().asScala)
+      Metrics.defaultRegistry().removeMetric(metricName)
+  }
+
+  @Test
+  def testRebalanceMovesPartitionsAwayFromHotPartition() {
+    manager = new TestFetcherManager(numFetchers = 1, maxFetchers = 2)
+    manager.addFetcherForPartitions((coldPartitions :+ hotPartition).map(_ -> BrokerAndInitialOffset(broker, 0L)).toMap)
+    val fetcher = manager.fetcherThread(0).get
+    TestUtils.waitUntilTrue(() => fetcher.fetchCount > 3, "Failed waiting for the partitions to be fetched")
+
+    manager.rebalance()
+
+    assertEquals("The hot partition should be left alone in its fetcher", 1, fetcher.partitionCount())
+    val newFetcher = manager.fetcherThread(1)
+    assertTrue("A second fetcher should be started", newFetcher.isDefined)
+    assertEquals(coldPartitions.size, newFetcher.get.partitionCount())
+    TestUtils.waitUntilTrue(() => newFetcher.get.fetchCount > 0, "Failed waiting for the moved partitions to be fetched")
+    assertTrue(coldPartitions.forall(tp => newFetcher.get.partitionStates.contains(tp)))
+
+    // a partition removed on a leader change is assigned by its hash again when it is re-added
+    manager.removeFetcherForPartitions(Set(coldPartitions.head))
+    manager.addFetcherForPartitions(Map(coldPartitions.head -> BrokerAndInitialOffset(broker, 0L)))
+    assertEquals(2, fetcher.partitionCount())
+    assertEquals(coldPartitions.size - 1, newFetcher.get.partitionCount())
+  }
+
+  @Test
+  def testRebalanceWithoutSpareFetcher() {
+    manager = new TestFetcherManager(numFetchers = 1, maxFetchers = 1)
+    manager.addFetcherForPartitions((coldPartitions :+ hotPartition).map(_ -> BrokerAndInitialOffset(broker, 0L)).toMap)
+    val fetcher = manager.fetcherThread(0).get
+    TestUtils.waitUntilTrue(() => fetcher.fetchCount > 3, "Failed waiting for the partitions to be fetched")
+
+    manager.rebalance()
+
+    assertEquals(coldPartitions.size + 1, fetcher.partitionCount())
+    assertTrue(manager.fetcherThread(1).isEmpty)
+  }
+
+  class TestFetcherManager(numFetchers: Int, maxFetchers: Int)
+    extends AbstractFetcherManager("test", "test-client", numFetchers, maxFetchers) {
+
+    private val fetchers = new java.util.concurrent.ConcurrentHashMap[Int, TestFetcherThread]
+
+    override def createFetcherThread(fetcherId: Int, sourceBroker: BrokerEndPoint): AbstractFetcherThread = {
+      val fetcher = new TestFetcherThread(s"test-fetcher-$fetcherId", sourceBroker)
+      fetchers.put(fetcherId, fetcher)
+      fetcher
+    }
+
+    def fetcherThread(fetcherId: Int): Option[TestFetcherThread] = Option(fetchers.get(fetcherId))
+  }
+
+  class TestFetchRequest(val offsets: Map[TopicPartition, Long]) extends FetchRequest {
+    override def isEmpty: Boolean = offsets.isEmpty
+
+    override def offset(topicPartition: TopicPartition): Long = offsets(topicPartition)
+  }
+
+  class TestPartitionData(records: MemoryRecords) extends PartitionData {
+    override def error: Errors = Errors.NONE
+
+    override def toRecords: MemoryRecords = records
+
+    override def highWatermark: Long = 0L
+
+    override def exception: Option[Throwable] = None
+  }
+
+  /**
+   * Each fetch returns a record of 10 KB for the hot partition and a record of 10 bytes for the other partitions.
+   */
+  class TestFetcherThread(name: String, sourceBroker: BrokerEndPoint)
+    extends AbstractFetcherThread(name, name, sourceBroker, fetchBackOffMs = 1, isInterruptible = true,
+      includeLogTruncation = false) {
+
+    type REQ = TestFetchRequest
+    type PD = PartitionData
+
+    @volatile var fetchCount = 0
+
+    override def processPartitionData(topicPartition: TopicPartition, fetchOffset: Long, partitionData: PartitionData): Unit = {}
+
+    override def handleOffsetOutOfRange(topicPartition: TopicPartition): Long = 0L
+
+    override def handlePartitionsWithErrors(partitions: Iterable[TopicPartition]): Unit = {}
+
+    override protected def fetch(fetchRequest: TestFetchRequest): Seq[(TopicPartition, PartitionData)] = {
+      Thread.sleep(1)
+      fetchCount += 1
+      fetchRequest.offsets.map { case (tp, offset) =>
+        val value = new Array[Byte](if (tp == hotPartition) 10 * 1024 else 10)
+        tp -> new TestPartitionData(MemoryRecords.withRecords(offset, CompressionType.NONE, new SimpleRecord(value)))
+      }.toSeq
+    }
+
+    override protected def buildFetchRequest(partitionMap: collection.Seq[(TopicPartition, PartitionFetchState)]): TestFetchRequest =
+      new TestFetchRequest(partitionMap.map { case (k, v) => (k, v.fetchOffset) }.toMap)
+
+    override def buildLeaderEpochRequest(allPartitions: Seq[(TopicPartition, PartitionFetchState)]): Map[TopicPartition, Int] = Map()
+
+    override def fetchEpochsFromLeader(partitions: Map[TopicPartition, Int]): Map[TopicPartition, EpochEndOffset] = Map()
+
+    override def maybeTruncate(fetchedEpochs: Map[TopicPartition, EpochEndOffset]): Map[TopicPartition, Long] = Map()
+  }
+}
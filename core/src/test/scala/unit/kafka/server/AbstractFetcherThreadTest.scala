@@ -17,6 +17,9 @@
 
 package kafka.server
 
+import java.util.concurrent.{ConcurrentHashMap, ExecutorService, Executors}
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.yammer.metrics.Metrics
 import kafka.cluster.BrokerEndPoint
 import kafka.server.AbstractFetcherThread.{FetchRequest, PartitionData}
@@ -25,7 +28,7 @@ import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.protocol.Errors
 import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
 import org.apache.kafka.common.requests.EpochEndOffset
-import org.junit.Assert.{assertFalse, assertTrue}
+import org.junit.Assert.{assertEquals, assertFalse, assertTrue}
 import org.junit.{Before, Test}
 
 import scala.collection.JavaConverters._
@@ -51,7 +54,8 @@ class AbstractFetcherThreadTest {
 
     // wait until all fetcher metrics are present
     TestUtils.waitUntilTrue(() =>
-      allMetricsNames == Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.ConsumerLag),
+      allMetricsNames == Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.ConsumerLag,
+        FetcherMetrics.FetcherMaxLag, FetcherMetrics.FetcherPartitionCount),
       "Failed waiting for all fetcher metrics to be registered")
 
     fetcherThread.shutdown()
@@ -104,8 +108,10 @@ class AbstractFetcherThreadTest {
   class DummyFetcherThread(name: String,
                            clientId: String,
                            sourceBroker: BrokerEndPoint,
-                           fetchBackOffMs: Int = 0)
-    extends AbstractFetcherThread(name, clientId, sourceBroker, fetchBackOffMs, isInterruptible = true, includeLogTruncation = false) {
+                           fetchBackOffMs: Int = 0,
+                           appendExecutor: Option[ExecutorService] = None)
+    extends AbstractFetcherThread(name, clientId, sourceBroker, fetchBackOffMs, isInterruptible = true,
+      includeLogTruncation = false, appendExecutor = appendExecutor) {
 
     type REQ = DummyFetchRequest
     type PD = PartitionData
@@ -152,6 +158,57 @@ class AbstractFetcherThreadTest {
     assertTrue(fetcherThread.logEndOffset == 2)
   }
 
+  @Test
+  def testParallelProcessPartitionData() {
+    val partitions = (0 until 4).map(new TopicPartition("topic", _))
+    val executor = Executors.newFixedThreadPool(4)
+    val fetcherThread = new ParallelFetcherThread("test", "client", new BrokerEndPoint(0, "localhost", 9092), executor)
+    try {
+      fetcherThread.start()
+      fetcherThread.addPartitions(partitions.map(_ -> 0L).toMap)
+
+      TestUtils.waitUntilTrue(() => fetcherThread.fetchedOffsets.forall(_ >= 10),
+        "Failed waiting for all partitions to be fetched")
+      assertTrue("The partitions of a fetch response should be processed in parallel", fetcherThread.maxConcurrency.get > 1)
+      assertTrue(fetcherThread.processingThreads.forall(_.startsWith("pool-")))
+      val partitionBytes = fetcherThread.drainPartitionBytes()
+      assertEquals(partitions.toSet, partitionBytes.keySet)
+      assertTrue(partitionBytes.values.forall(_ > 0))
+    } finally {
+      fetcherThread.shutdown()
+      executor.shutdownNow()
+    }
+  }
+
+  class ParallelFetcherThread(name: String,
+                              clientId: String,
+                              sourceBroker: BrokerEndPoint,
+                              appendExecutor: ExecutorService)
+    extends DummyFetcherThread(name, clientId, sourceBroker, appendExecutor = Some(appendExecutor)) {
+
+    private val concurrency = new AtomicInteger(0)
+    val maxConcurrency = new AtomicInteger(0)
+    val processingThreads = java.util.Collections.newSetFromMap(new ConcurrentHashMap[String, java.lang.Boolean]).asScala
+    @volatile var fetchedOffsets: Seq[Long] = Seq(0L)
+
+    override def processPartitionData(topicPartition: TopicPartition,
+                                      fetchOffset: Long,
+                                      partitionData: PartitionData): Unit = {
+      val current = concurrency.incrementAndGet()
+      maxConcurrency.synchronized(maxConcurrency.set(math.max(maxConcurrency.get, current)))
+      processingThreads += Thread.currentThread.getName
+      Thread.sleep(5)
+      concurrency.decrementAndGet()
+    }
+
+    override protected def fetch(fetchRequest: DummyFetchRequest): Seq[(TopicPartition, TestPartitionData)] = {
+      fetchedOffsets = fetchRequest.offsets.values.toSeq
+      fetchRequest.offsets.map { case (tp, offset) =>
+        tp -> new TestPartitionData(MemoryRecords.withRecords(offset, CompressionType.NONE, new SimpleRecord("hello".getBytes())))
+      }.toSeq
+    }
+  }
+
   class CorruptingFetcherThread(name: String,
                                 clientId: String,
                                 sourceBroker: BrokerEndPoint,
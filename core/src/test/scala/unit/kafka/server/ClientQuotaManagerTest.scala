@@ -330,6 +330,32 @@ class ClientQuotaManagerTest {
     }
   }
 
+  @Test
+  def testRequestResourceUsageMetrics() {
+    val metrics = newMetrics
+    val quotaManager = new ClientRequestQuotaManager(config, metrics, time)
+    def usageMetric(name: String, user: String, clientId: String) =
+      metrics.metrics().get(metrics.metricName(name, "Request", "", "user", user, "client-id", clientId))
+    try {
+      quotaManager.recordNetworkThreadUsage("ANONYMOUS", "test-client", 1000000)
+      quotaManager.recordRequestHandlerCpuUsage("ANONYMOUS", "test-client", 2000000)
+      quotaManager.recordAllocatedBytes("ANONYMOUS", "test-client", 4096)
+      quotaManager.recordDownConversionUsage("ANONYMOUS", "test-client", 3000000)
+      quotaManager.recordAllocatedBytes("ANONYMOUS", "other-client", 100)
+
+      // Usage is tracked per user and client-id even though no request quota has been configured
+      time.sleep(1000)
+      val networkThreadTime = usageMetric("network-thread-time", "ANONYMOUS", "test-client").value
+      assertTrue(s"Unexpected network thread time $networkThreadTime", networkThreadTime > 0)
+      assertEquals(2 * networkThreadTime, usageMetric("request-handler-cpu-time", "ANONYMOUS", "test-client").value, 0.0001)
+      assertEquals(3 * networkThreadTime, usageMetric("down-conversion-time", "ANONYMOUS", "test-client").value, 0.0001)
+      assertEquals(4096 / 100.0, usageMetric("allocated-bytes", "ANONYMOUS", "test-client").value /
+        usageMetric("allocated-bytes", "ANONYMOUS", "other-client").value, 0.0001)
+    } finally {
+      quotaManager.shutdown()
+    }
+  }
+
   @Test
   def testExpireThrottleTimeSensor() {
     val metrics = newMetrics
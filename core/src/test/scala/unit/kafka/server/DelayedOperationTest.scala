@@ -17,6 +17,8 @@
 
 package kafka.server
 
+import java.util.concurrent.{Callable, Executors}
+
 import org.apache.kafka.common.utils.Time
 import org.junit.{After, Before, Test}
 import org.junit.Assert._
@@ -117,6 +119,60 @@ class DelayedOperationTest {
     assertEquals(Nil, cancelledOperations)
   }
 
+  @Test
+  def testPurgeOnlyVisitsKeysOfCompletedOperations() {
+    val purgatory = DelayedOperationPurgatory[MockDelayedOperation](purgatoryName = "purge", purgeInterval = 0,
+      reaperEnabled = false)
+    try {
+      val r1 = new MockDelayedOperation(100000L)
+      val r2 = new MockDelayedOperation(100000L)
+      val r3 = new MockDelayedOperation(100000L)
+      purgatory.tryCompleteElseWatch(r1, Seq("test1", "test2"))
+      purgatory.tryCompleteElseWatch(r2, Seq("test2", "test3"))
+      purgatory.tryCompleteElseWatch(r3, Seq("test3"))
+      assertEquals(5, purgatory.watched)
+
+      // r1 is removed from the watch list of test1 and is left in the one of test2
+      r1.completable = true
+      assertEquals(1, purgatory.checkAndComplete("test1"))
+      assertEquals(4, purgatory.watched)
+
+      // r3 completed by expiration or by another thread is left in the watch list of test3
+      r3.forceComplete()
+      assertEquals(4, purgatory.watched)
+
+      purgatory.advanceClock(0L)
+      assertEquals("Only r2 should be left in the watch lists of test2 and test3", 2, purgatory.watched)
+      assertEquals(1, purgatory.delayed)
+    } finally {
+      purgatory.shutdown()
+    }
+  }
+
+  @Test
+  def testCheckAndCompleteFromMultipleThreads() {
+    val numThreads = 4
+    val numKeys = 1000
+    val operations = (0 until numKeys).map(_ => new MockDelayedOperation(100000L))
+    operations.zipWithIndex.foreach { case (operation, i) =>
+      assertFalse(purgatory.tryCompleteElseWatch(operation, Seq(s"key-$i", s"key-${(i + 1) % numKeys}")))
+    }
+    operations.foreach(_.completable = true)
+
+    val executor = Executors.newFixedThreadPool(numThreads)
+    try {
+      val futures = (0 until numThreads).map { thread =>
+        executor.submit(new Callable[Int] {
+          override def call(): Int = (thread until numKeys by numThreads).map(i => purgatory.checkAndComplete(s"key-$i")).sum
+        })
+      }
+      assertEquals("Every operation should be completed exactly once", numKeys, futures.map(_.get).sum)
+      assertTrue(operations.forall(_.isCompleted))
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
 
 
   class MockDelayedOperation(delayMs: Long) extends DelayedOperation(delayMs) {
@@ -16,14 +16,16 @@
   */
 package kafka.server
 
+import java.nio.ByteBuffer
 import java.util
 import util.Arrays.asList
 
+import kafka.api.LeaderAndIsr
 import kafka.common.BrokerEndPointNotAvailableException
-import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.{Node, TopicPartition}
+import org.apache.kafka.common.network.{ListenerName, Send}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors, SecurityProtocol}
-import org.apache.kafka.common.requests.{PartitionState, UpdateMetadataRequest}
+import org.apache.kafka.common.requests.{ByteBufferChannel, MetadataResponse, PartitionState, RequestHeader, UpdateMetadataRequest}
 import org.apache.kafka.common.requests.UpdateMetadataRequest.{Broker, EndPoint}
 import org.junit.Test
 import org.junit.Assert._
@@ -330,4 +332,116 @@ class MetadataCacheTest {
     assertEquals(initialBrokerIds, aliveBrokersFromCache.map(_.id).toSet)
   }
 
+  @Test
+  def updateCacheShouldNotMutatePreviousSnapshot() {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val broker0 = new Broker(0, Seq(new EndPoint("foo", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, null)
+    val broker1 = new Broker(1, Seq(new EndPoint("bar", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, null)
+
+    def updateCache(brokers: Set[Broker], partitionStates: Map[TopicPartition, PartitionState]) {
+      val updateMetadataRequest = new UpdateMetadataRequest.Builder(ApiKeys.UPDATE_METADATA_KEY.latestVersion, 0, 1,
+        partitionStates.asJava, brokers.asJava).build()
+      cache.updateCache(15, updateMetadataRequest)
+    }
+
+    val partitions = Seq(new TopicPartition("topic-0", 0), new TopicPartition("topic-0", 1),
+      new TopicPartition("topic-1", 0), new TopicPartition("topic-2", 0), new TopicPartition("topic-2", 1))
+    updateCache(Set(broker0, broker1), partitions.map { tp =>
+      tp -> new PartitionState(1, tp.partition % 2, 0, asList(0, 1), 3, asList(0, 1))
+    }.toMap)
+
+    val snapshot = cache.currentSnapshot
+    val partitionInfos = partitions.map(tp => tp -> cache.getPartitionInfo(tp.topic, tp.partition)).toMap
+    val aliveBrokers = cache.getAliveBrokers
+    val topicMetadata = cache.getTopicMetadata(Set("topic-0", "topic-1"), listenerName)
+
+    // move the leadership of topic-0 partition 0, delete topic-1 and the partition 1 of topic-2 whose partition 0 is
+    // not updated, so that the partition states of topic-2 are shared with the previous snapshot until the delete
+    updateCache(Set(broker1), Map(
+      new TopicPartition("topic-0", 0) -> new PartitionState(1, 1, 1, asList(1), 3, asList(0, 1)),
+      new TopicPartition("topic-1", 0) -> new PartitionState(1, LeaderAndIsr.LeaderDuringDelete, 1, asList(0, 1), 3, asList(0, 1)),
+      new TopicPartition("topic-2", 1) -> new PartitionState(1, LeaderAndIsr.LeaderDuringDelete, 1, asList(0, 1), 3, asList(0, 1))))
+
+    assertEquals(Set("topic-0", "topic-2"), cache.getAllTopics())
+    assertEquals(1, cache.getPartitionInfo("topic-0", 0).get.leaderIsrAndControllerEpoch.leaderAndIsr.leader)
+    assertEquals(partitionInfos(new TopicPartition("topic-0", 1)), cache.getPartitionInfo("topic-0", 1))
+    assertEquals(None, cache.getPartitionInfo("topic-1", 0))
+    assertEquals(partitionInfos(new TopicPartition("topic-2", 0)), cache.getPartitionInfo("topic-2", 0))
+    assertEquals(None, cache.getPartitionInfo("topic-2", 1))
+    assertEquals(Set(1), cache.getAliveBrokers.map(_.id).toSet)
+
+    // the previous snapshot and what was read from it are not affected
+    for (tp <- partitions) {
+      assertTrue(partitionInfos(tp).isDefined)
+      assertEquals(partitionInfos(tp), snapshot.partitionStates.get(tp.topic).flatMap(_.get(tp.partition)))
+    }
+    assertEquals(Set("topic-0", "topic-1", "topic-2"), snapshot.partitionStates.keySet)
+    assertEquals(Set(0, 1), snapshot.partitionStates("topic-2").keySet)
+    assertEquals(Set(0, 1), snapshot.aliveBrokers.keySet)
+    assertEquals(Set(0, 1), aliveBrokers.map(_.id).toSet)
+    assertEquals(Seq("topic-0", "topic-1"), topicMetadata.map(_.topic).sorted)
+    val partition0 = topicMetadata.find(_.topic == "topic-0").get.partitionMetadata.asScala.find(_.partition == 0).get
+    assertEquals(0, partition0.leader.id)
+  }
+
+  @Test
+  def testResponseCacheInvalidatedOnUpdate() {
+    val responseCache = new MetadataResponseCache(maxEntries = 1)
+    val cache = new MetadataCache(1, Some(responseCache))
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val allTopicsKey = MetadataResponseCache.Key(listenerName, ApiKeys.METADATA.latestVersion, None)
+    val topicKey = MetadataResponseCache.Key(listenerName, ApiKeys.METADATA.latestVersion, Some(Set("topic")))
+    val body = ByteBuffer.allocate(8)
+
+    val generation = responseCache.generation
+    responseCache.put(allTopicsKey, generation, body)
+    assertEquals(Some(body), responseCache.get(allTopicsKey))
+    // no more than `maxEntries` responses are cached
+    responseCache.put(topicKey, generation, body)
+    assertEquals(None, responseCache.get(topicKey))
+
+    val brokers = Set(new Broker(0, Seq(new EndPoint("foo", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, null))
+    val partitionStates = Map(
+      new TopicPartition("topic", 0) -> new PartitionState(1, 0, 0, asList(0), 3, asList(0)))
+    val updateMetadataRequest = new UpdateMetadataRequest.Builder(ApiKeys.UPDATE_METADATA_KEY.latestVersion, 0, 1,
+      partitionStates.asJava, brokers.asJava).build()
+    cache.updateCache(15, updateMetadataRequest)
+    assertEquals(None, responseCache.get(allTopicsKey))
+    assertEquals(0, responseCache.size)
+
+    // a response built from the metadata of a previous generation is not cached
+    responseCache.put(allTopicsKey, generation, body)
+    assertEquals(None, responseCache.get(allTopicsKey))
+    responseCache.put(allTopicsKey, responseCache.generation, body)
+    assertEquals(Some(body), responseCache.get(allTopicsKey))
+  }
+
+  @Test
+  def testCachedResponseSendMatchesResponseSend() {
+    val node = new Node(0, "foo", 9092)
+    val topicMetadata = new MetadataResponse.TopicMetadata(Errors.NONE, "topic", false, asList(
+      new MetadataResponse.PartitionMetadata(Errors.NONE, 0, node, asList(node), asList(node))))
+    def response(throttleTimeMs: Int) = new MetadataResponse(throttleTimeMs, asList(node), "cluster", 0, asList(topicMetadata))
+
+    def bytes(send: Send): ByteBuffer = {
+      val channel = new ByteBufferChannel(send.size)
+      while (!send.completed)
+        send.writeTo(channel)
+      channel.close()
+      channel.buffer
+    }
+
+    for (version <- ApiKeys.METADATA.oldestVersion to ApiKeys.METADATA.latestVersion) {
+      val header = new RequestHeader(ApiKeys.METADATA.id, version.toShort, "client", 5)
+      val body = response(0).serializeBody(version.toShort)
+      for (throttleTimeMs <- Seq(0, 100)) {
+        assertEquals(s"Unexpected cached response for version $version", bytes(response(throttleTimeMs).toSend("0", header)),
+          bytes(MetadataResponseCache.toSend("0", header, throttleTimeMs, body)))
+      }
+      // the shared body is not modified when a response is sent
+      assertEquals(response(0).serializeBody(version.toShort), body)
+    }
+  }
+
 }
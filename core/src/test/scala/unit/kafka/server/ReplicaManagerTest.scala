@@ -19,7 +19,7 @@ package kafka.server
 
 import java.io.File
 import java.util.Properties
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
 
 import kafka.log.LogConfig
 import kafka.utils.{MockScheduler, MockTime, TestUtils, ZkUtils}
@@ -33,6 +33,7 @@ import org.apache.kafka.common.requests.{IsolationLevel, LeaderAndIsrRequest, Pa
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
 import org.apache.kafka.common.requests.FetchRequest.PartitionData
 import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
+import org.apache.kafka.common.utils.Utils
 import org.apache.kafka.common.{Node, TopicPartition}
 import org.easymock.EasyMock
 import org.junit.Assert._
@@ -385,6 +386,138 @@ class ReplicaManagerTest {
     }
   }
 
+  @Test
+  def testParallelAppendToLocalLog() {
+    val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect)
+    props.put("log.dir", TestUtils.tempRelativeDir("data").getAbsolutePath)
+    props.put(KafkaConfig.NumProduceAppendThreadsProp, "2")
+    val config = KafkaConfig.fromProps(props)
+    val mockLogMgr = TestUtils.createLogManager(config.logDirs.map(new File(_)).toArray, LogConfig(new Properties()))
+    val metadataCache = EasyMock.createMock(classOf[MetadataCache])
+    EasyMock.expect(metadataCache.getAliveBrokers).andReturn(Seq(createBroker(0, "host0", 0))).anyTimes()
+    EasyMock.replay(metadataCache)
+    // the topic config is read from ZooKeeper once for every partition
+    val niceZkClient = EasyMock.createNiceMock(classOf[ZkClient])
+    EasyMock.replay(niceZkClient)
+    val rm = new ReplicaManager(config, metrics, time, ZkUtils(niceZkClient, isZkSecurityEnabled = false), new MockScheduler(time), mockLogMgr,
+      new AtomicBoolean(false), QuotaFactory.instantiate(config, metrics, time).follower, new BrokerTopicStats,
+      metadataCache, Option(this.getClass.getName))
+
+    try {
+      val brokerList = Seq[Integer](0).asJava
+      val partitions = (0 until 5).map(new TopicPartition(topic, _))
+      val partitionStates = partitions.map { tp =>
+        rm.getOrCreatePartition(tp).getOrCreateReplica(0)
+        tp -> new PartitionState(0, 0, 0, brokerList, 0, brokerList)
+      }.toMap
+      val leaderAndIsrRequest = new LeaderAndIsrRequest.Builder(0, 0, partitionStates.asJava,
+        Set(new Node(0, "host0", 0)).asJava).build()
+      rm.becomeLeaderOrFollower(0, leaderAndIsrRequest, (_, _) => ())
+
+      val unknownPartition = new TopicPartition("unknown", 0)
+      val entries = (partitions :+ unknownPartition).map { tp =>
+        tp -> MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(s"message $tp".getBytes),
+          new SimpleRecord(s"second message $tp".getBytes))
+      }.toMap
+
+      val result = new CallbackResult[Map[TopicPartition, PartitionResponse]]()
+      rm.appendRecords(
+        timeout = 1000,
+        requiredAcks = -1,
+        internalTopicsAllowed = false,
+        isFromClient = true,
+        entriesPerPartition = entries,
+        responseCallback = responses => result.fire(responses))
+
+      // the only replica is in the ISR, so the produce completes as soon as all partitions have been appended
+      val responses = result.assertFired
+      assertEquals(entries.keySet, responses.keySet)
+      partitions.foreach { tp =>
+        assertEquals(Errors.NONE, responses(tp).error)
+        assertEquals(0L, responses(tp).baseOffset)
+        assertEquals(2L, rm.getReplica(tp).get.logEndOffset.messageOffset)
+      }
+      assertEquals(Errors.UNKNOWN_TOPIC_OR_PARTITION, responses(unknownPartition).error)
+    } finally {
+      rm.shutdown(checkpointHW = false)
+    }
+
+    TestUtils.verifyNonDaemonThreadsStatus(this.getClass.getName)
+  }
+
+  @Test
+  def testPipelineAppendToLocalLog() {
+    val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect)
+    val logDirs = Seq(TestUtils.tempRelativeDir("data"), TestUtils.tempRelativeDir("data2"))
+    props.put("log.dirs", logDirs.map(_.getAbsolutePath).mkString(","))
+    props.put(KafkaConfig.LogAppendPipelineEnableProp, "true")
+    val config = KafkaConfig.fromProps(props)
+    val mockLogMgr = TestUtils.createLogManager(config.logDirs.map(new File(_)).toArray, LogConfig(new Properties()))
+    val metadataCache = EasyMock.createMock(classOf[MetadataCache])
+    EasyMock.expect(metadataCache.getAliveBrokers).andReturn(Seq(createBroker(0, "host0", 0))).anyTimes()
+    EasyMock.replay(metadataCache)
+    val niceZkClient = EasyMock.createNiceMock(classOf[ZkClient])
+    EasyMock.replay(niceZkClient)
+    val rm = new ReplicaManager(config, metrics, time, ZkUtils(niceZkClient, isZkSecurityEnabled = false), new MockScheduler(time), mockLogMgr,
+      new AtomicBoolean(false), QuotaFactory.instantiate(config, metrics, time).follower, new BrokerTopicStats,
+      metadataCache, Option(this.getClass.getName))
+
+    try {
+      val brokerList = Seq[Integer](0).asJava
+      val partitions = (0 until 4).map(new TopicPartition(topic, _))
+      val partitionStates = partitions.map { tp =>
+        rm.getOrCreatePartition(tp).getOrCreateReplica(0)
+        tp -> new PartitionState(0, 0, 0, brokerList, 0, brokerList)
+      }.toMap
+      val leaderAndIsrRequest = new LeaderAndIsrRequest.Builder(0, 0, partitionStates.asJava,
+        Set(new Node(0, "host0", 0)).asJava).build()
+      rm.becomeLeaderOrFollower(0, leaderAndIsrRequest, (_, _) => ())
+      // the partitions are spread over both log directories
+      assertEquals(logDirs.map(_.getAbsoluteFile).toSet,
+        partitions.map(tp => rm.getReplica(tp).get.log.get.dir.getParentFile.getAbsoluteFile).toSet)
+
+      // several requests to the same partitions are appended in the order they were made
+      val unknownPartition = new TopicPartition("unknown", 0)
+      val results = (0 until 3).map { i =>
+        val entries = (partitions :+ unknownPartition).map { tp =>
+          tp -> MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(s"message $i $tp".getBytes),
+            new SimpleRecord(s"second message $i $tp".getBytes))
+        }.toMap
+        val result = new AtomicReference[Map[TopicPartition, PartitionResponse]]()
+        rm.appendRecords(
+          timeout = 1000,
+          requiredAcks = -1,
+          internalTopicsAllowed = false,
+          isFromClient = true,
+          entriesPerPartition = entries,
+          responseCallback = responses => result.set(responses))
+        result
+      }
+
+      TestUtils.waitUntilTrue(() => results.forall(_.get != null), "The produce requests should be completed by the append threads")
+      results.zipWithIndex.foreach { case (result, i) =>
+        val responses = result.get
+        assertEquals((partitions :+ unknownPartition).toSet, responses.keySet)
+        partitions.foreach { tp =>
+          assertEquals(Errors.NONE, responses(tp).error)
+          assertEquals(2L * i, responses(tp).baseOffset)
+        }
+        assertEquals(Errors.UNKNOWN_TOPIC_OR_PARTITION, responses(unknownPartition).error)
+      }
+      partitions.foreach { tp =>
+        val replica = rm.getReplica(tp).get
+        assertEquals(6L, replica.logEndOffset.messageOffset)
+        assertEquals(6L, replica.highWatermark.messageOffset)
+        val value = replica.log.get.read(2L, 1024, None, isolationLevel = IsolationLevel.READ_UNCOMMITTED).records.records.asScala.head.value
+        assertEquals("message 1 " + tp, Utils.utf8(value, value.remaining))
+      }
+    } finally {
+      rm.shutdown(checkpointHW = false)
+    }
+
+    TestUtils.verifyNonDaemonThreadsStatus(this.getClass.getName)
+  }
+
   private class CallbackResult[T] {
     private var value: Option[T] = None
     private var fun: Option[T => Unit] = None
@@ -32,6 +32,7 @@ import kafka.cluster.{Broker, EndPoint}
 import kafka.common.TopicAndPartition
 import kafka.consumer.{ConsumerConfig, ConsumerTimeoutException, KafkaStream}
 import kafka.log._
+import kafka.log.remote.RemoteLogManager
 import kafka.message._
 import kafka.producer._
 import kafka.security.auth.{Acl, Authorizer, Resource}
@@ -1008,17 +1009,33 @@ object TestUtils extends Logging {
   def createLogManager(logDirs: Array[File] = Array.empty[File],
                        defaultConfig: LogConfig = LogConfig(),
                        cleanerConfig: CleanerConfig = CleanerConfig(enableCleaner = false),
-                       time: MockTime = new MockTime()): LogManager = {
+                       time: MockTime = new MockTime(),
+                       maxIndexMmaps: Int = 0,
+                       segmentRecoveryThreads: Int = 1,
+                       asyncFlushEnable: Boolean = false,
+                       readAheadBytes: Int = 0,
+                       remoteLogManager: Option[RemoteLogManager] = None,
+                       segmentPreCreator: Option[LogSegmentPreCreator] = None,
+                       logDirPlacementPolicy: String = LogDirLoad.CountPolicy): LogManager = {
     new LogManager(logDirs = logDirs,
                    topicConfigs = Map(),
                    defaultConfig = defaultConfig,
                    cleanerConfig = cleanerConfig,
                    ioThreads = 4,
+                   segmentRecoveryThreads = segmentRecoveryThreads,
                    flushCheckMs = 1000L,
+                   asyncFlushEnable = asyncFlushEnable,
                    flushRecoveryOffsetCheckpointMs = 10000L,
                    flushStartOffsetCheckpointMs = 10000L,
                    retentionCheckMs = 1000L,
                    maxPidExpirationMs = 60 * 60 * 1000,
+                   maxIndexMmaps = maxIndexMmaps,
+                   logDirPlacementPolicy = logDirPlacementPolicy,
+                   logDirBalanceEnable = false,
+                   logDirBalanceThreshold = 0.3,
+                   readAhead = new LogReadAhead(readAheadBytes, new DefaultPageCacheAdvisor),
+                   remoteLogManager = remoteLogManager,
+                   segmentPreCreator = segmentPreCreator,
                    scheduler = time.scheduler,
                    time = time,
                    brokerState = BrokerState(),
@@ -68,6 +68,24 @@ class ZkUtilsTest extends ZooKeeperTestHarness {
     assertTrue("Node should still be there", optionalData.isDefined)
   }
 
+  @Test
+  def testPipelinedReadsAndConditionalUpdates() {
+    zkUtils.createPersistentPath(path + "/a", "a")
+    zkUtils.createPersistentPath(path + "/b", "b")
+    zkUtils.updatePersistentPath(path + "/b", "b1")
+
+    val reads = zkUtils.readDataMaybeNull(Seq(path + "/a", path + "/missing", path + "/b"))
+    assertEquals(Seq(Some("a"), None, Some("b1")), reads.map(_._1))
+    assertEquals(Seq(0, 0, 1), reads.map(_._2.getVersion))
+
+    // Each update succeeds or fails on its own version, unlike the operations of a zookeeper multi
+    val updates = zkUtils.conditionalUpdatePersistentPaths(Seq((path + "/a", "a1", 0), (path + "/b", "b2", 0),
+      (path + "/missing", "c", 0)))
+    assertEquals(Seq((true, 1), (false, -1), (false, -1)), updates)
+    assertEquals(Some("a1"), zkUtils.readDataMaybeNull(path + "/a")._1)
+    assertEquals(Some("b1"), zkUtils.readDataMaybeNull(path + "/b")._1)
+  }
+
   @Test
   def testClusterIdentifierJsonParsing() {
     val clusterId = "test"
@@ -18,6 +18,7 @@ package kafka.utils.timer
 
 import java.util.concurrent.{CountDownLatch, ExecutorService, Executors, TimeUnit}
 
+import kafka.utils.MockTime
 import org.junit.Assert._
 import java.util.concurrent.atomic._
 import org.junit.{Test, After, Before}
@@ -105,4 +106,56 @@ class TimerTest {
 
     assertEquals("output should match", ids.sorted, output.toSeq)
   }
+
+  @Test
+  def testTaskExpirationWithBoundedLevels(): Unit = {
+    // two wheels of three 1 ms buckets, the tasks due after 9 ms are cascaded through the last bucket of the top wheel
+    val time = new MockTime
+    val boundedTimer = new SystemTimer("bounded", tickMs = 1, wheelSize = 3, startMs = time.hiResClockMs, maxLevels = 2,
+      time = time)
+    try {
+      val output = new ArrayBuffer[Int]()
+      val latches = (0 until 50).map { i =>
+        val latch = new CountDownLatch(1)
+        boundedTimer.add(new TestTask(i, i, latch, output))
+        latch
+      }
+      val neverExpiring = new TestTask(Long.MaxValue, -1, new CountDownLatch(1), output)
+      boundedTimer.add(neverExpiring)
+
+      assertTrue(latches(0).await(3, TimeUnit.SECONDS))
+      for (elapsed <- 1 until 50) {
+        time.sleep(1)
+        while (boundedTimer.advanceClock(0)) {}
+        assertTrue(s"Task $elapsed should expire after ${elapsed}ms", latches(elapsed).await(3, TimeUnit.SECONDS))
+        output.synchronized {
+          assertTrue(s"No task should expire before its expiration, expired $output after ${elapsed}ms",
+            output.forall(_ <= elapsed))
+        }
+      }
+      assertEquals("output should match", (0 until 50).toList, output.toList)
+      assertEquals("The task which never expires should be pending", 1, boundedTimer.size)
+    } finally {
+      boundedTimer.shutdown()
+    }
+  }
+
+  @Test
+  def testCancelledTasksAreRemovedImmediately(): Unit = {
+    val output = new ArrayBuffer[Int]()
+    val tasks = (0 until 1000).map { i =>
+      val task = new TestTask(10 + i % 100, i, new CountDownLatch(1), output)
+      timer.add(task)
+      task
+    }
+    assertEquals(1000, timer.size)
+    tasks.foreach(_.cancel())
+    assertEquals("Cancelled tasks should be removed from their buckets", 0, timer.size)
+
+    val latch = new CountDownLatch(1)
+    timer.add(new TestTask(150, 1000, latch, output))
+    while (timer.advanceClock(2000) && latch.getCount > 0) {}
+    assertTrue(latch.await(3, TimeUnit.SECONDS))
+    assertEquals("Only the task which was not cancelled should expire", List(1000), output.toList)
+  }
 }
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.controller;
+
+import kafka.api.LeaderAndIsr;
+import kafka.common.TopicAndPartition;
+import kafka.controller.LeaderIsrAndControllerEpoch;
+import kafka.utils.ReplicationUtils;
+import kafka.utils.ZkUtils;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.Tuple2;
+import scala.Tuple3;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+import scala.collection.immutable.List;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the zookeeper work of a newly elected controller against an embedded zookeeper server holding the leader
+ * and isr paths of `partitionCount` partitions: `read*` reads the leader and isr of every partition, as the controller
+ * does when it initializes its context, and `elect*` writes a new leader for every partition, as the election of the
+ * partitions of a failed broker does. The `Sequential` benchmarks make a round trip per partition while the
+ * `Pipelined` ones issue the requests of all the partitions before waiting for their responses.
+ */
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ControllerFailoverBenchmark {
+
+    private static final int PARTITIONS_PER_TOPIC = 100;
+    private static final int CONTROLLER_EPOCH = 1;
+
+    @Param({"1000", "10000"})
+    private int partitionCount;
+
+    private File snapshotDir;
+    private File logDir;
+    private ZooKeeperServer zookeeper;
+    private NIOServerCnxnFactory factory;
+    private ZkUtils zkUtils;
+    private TopicAndPartition[] partitions;
+    private LeaderAndIsr[] leaderAndIsrs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        snapshotDir = Files.createTempDirectory("zookeeper-snapshot").toFile();
+        logDir = Files.createTempDirectory("zookeeper-log").toFile();
+        zookeeper = new ZooKeeperServer(snapshotDir, logDir, 500);
+        factory = new NIOServerCnxnFactory();
+        factory.configure(new InetSocketAddress("127.0.0.1", 0), 0);
+        factory.startup(zookeeper);
+        zkUtils = ZkUtils.apply("127.0.0.1:" + zookeeper.getClientPort(), 30000, 30000, false);
+
+        List<Object> isr = JavaConverters.asScalaBufferConverter(Arrays.<Object>asList(0, 1, 2)).asScala().toList();
+        partitions = new TopicAndPartition[partitionCount];
+        leaderAndIsrs = new LeaderAndIsr[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new TopicAndPartition("topic-" + i / PARTITIONS_PER_TOPIC, i % PARTITIONS_PER_TOPIC);
+            leaderAndIsrs[i] = LeaderAndIsr.apply(i % 3, isr);
+            String path = ZkUtils.getTopicPartitionLeaderAndIsrPath(partitions[i].topic(), partitions[i].partition());
+            zkUtils.createPersistentPath(path, zkUtils.leaderAndIsrZkData(leaderAndIsrs[i], CONTROLLER_EPOCH),
+                zkUtils.defaultAcls(path));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        zkUtils.close();
+        factory.shutdown();
+        zookeeper.shutdown();
+        Utils.delete(logDir);
+        Utils.delete(snapshotDir);
+    }
+
+    @Benchmark
+    public int readLeaderAndIsrSequential() {
+        int count = 0;
+        for (TopicAndPartition partition : partitions) {
+            Option<LeaderIsrAndControllerEpoch> leaderIsrAndEpoch = ReplicationUtils.getLeaderIsrAndEpochForPartition(
+                zkUtils, partition.topic(), partition.partition());
+            if (leaderIsrAndEpoch.isDefined())
+                count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int readLeaderAndIsrPipelined() {
+        Seq<TopicAndPartition> partitionSeq = JavaConverters.asScalaBufferConverter(Arrays.asList(partitions)).asScala();
+        return ReplicationUtils.getLeaderIsrAndEpochForPartitions(zkUtils, partitionSeq).size();
+    }
+
+    @Benchmark
+    public int electLeadersSequential() {
+        int count = 0;
+        for (int i = 0; i < partitionCount; i++) {
+            LeaderAndIsr newLeaderAndIsr = nextLeader(leaderAndIsrs[i]);
+            Tuple2<Object, Object> result = ReplicationUtils.updateLeaderAndIsr(zkUtils, partitions[i].topic(),
+                partitions[i].partition(), newLeaderAndIsr, CONTROLLER_EPOCH, leaderAndIsrs[i].zkVersion());
+            if (updated(i, newLeaderAndIsr, result))
+                count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int electLeadersPipelined() {
+        java.util.List<Tuple3<TopicAndPartition, LeaderAndIsr, Object>> updates = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++)
+            updates.add(new Tuple3<TopicAndPartition, LeaderAndIsr, Object>(partitions[i], nextLeader(leaderAndIsrs[i]),
+                leaderAndIsrs[i].zkVersion()));
+        Seq<Tuple2<Object, Object>> results = ReplicationUtils.updateLeaderAndIsrs(zkUtils,
+            JavaConverters.asScalaBufferConverter(updates).asScala(), CONTROLLER_EPOCH);
+        int count = 0;
+        for (int i = 0; i < partitionCount; i++) {
+            if (updated(i, updates.get(i)._2(), results.apply(i)))
+                count++;
+        }
+        return count;
+    }
+
+    private LeaderAndIsr nextLeader(LeaderAndIsr leaderAndIsr) {
+        return leaderAndIsr.newLeader((leaderAndIsr.leader() + 1) % 3);
+    }
+
+    private boolean updated(int index, LeaderAndIsr newLeaderAndIsr, Tuple2<Object, Object> result) {
+        if (!(Boolean) result._1())
+            return false;
+        leaderAndIsrs[index] = newLeaderAndIsr.withZkVersion((Integer) result._2());
+        return true;
+    }
+}
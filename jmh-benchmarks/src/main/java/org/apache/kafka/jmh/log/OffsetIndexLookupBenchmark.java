@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffsetIndex;
+import kafka.log.OffsetPosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures `OffsetIndex.lookup` on a full 10 MB index against a plain binary search of the same index file, which is
+ * how lookups used to be done.
+ *
+ * With `cache = cold` the index is mapped again before every lookup, so that every page touched by the lookup incurs
+ * a page fault, as for the index of a segment which has not been read recently but whose page directory was filled by
+ * earlier lookups. With `cache = opened` a new index is opened before every lookup, so that the page directory is
+ * empty as well, as for the first lookup in a segment since the broker started. The index file itself stays in the
+ * page cache: dropping it requires root, run `echo 1 > /proc/sys/vm/drop_caches` between iterations to also measure
+ * major page faults. With `target = tail` lookups are for the last entries of the index, as for consumers which are
+ * caught up, with `target = random` they are spread over the whole index, as for lagging consumers.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetIndexLookupBenchmark {
+
+    private static final int INDEX_SIZE = 10 * 1024 * 1024;
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRIES = INDEX_SIZE / ENTRY_SIZE;
+    private static final int TARGET_COUNT = 1024;
+
+    @Param({"warm", "cold", "opened"})
+    private String cache;
+
+    @Param({"tail", "random"})
+    private String target;
+
+    private File dir;
+    private File file;
+    private OffsetIndex index;
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer binarySearchMmap;
+    private long[] targets;
+    private int nextTarget = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("kafka-index-benchmark").toFile();
+        file = new File(dir, "00000000000000000000.index");
+        OffsetIndex writableIndex = new OffsetIndex(file, 0L, INDEX_SIZE, true);
+        // one entry every 4 offsets, with a position increment of 4 KB
+        for (int i = 0; i < ENTRIES; i++)
+            writableIndex.append(4L * i + 1, 4096 * i);
+        writableIndex.close();
+
+        index = new OffsetIndex(file, 0L, INDEX_SIZE, false);
+        indexFile = new RandomAccessFile(file, "r");
+        binarySearchMmap = mapIndexFile();
+
+        Random random = new Random(42);
+        targets = new long[TARGET_COUNT];
+        long lastOffset = 4L * (ENTRIES - 1) + 1;
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            if (target.equals("tail"))
+                targets[i] = lastOffset - random.nextInt(4000);
+            else
+                targets[i] = 1 + (long) (random.nextDouble() * lastOffset);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        indexFile.close();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private MappedByteBuffer mapIndexFile() throws IOException {
+        return indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, INDEX_SIZE);
+    }
+
+    private long nextTarget() {
+        long offset = targets[nextTarget];
+        nextTarget = (nextTarget + 1) % TARGET_COUNT;
+        return offset;
+    }
+
+    @Benchmark
+    public OffsetPosition lookup() {
+        if (cache.equals("cold")) {
+            index.releaseMmap();
+        } else if (cache.equals("opened")) {
+            index.releaseMmap();
+            index = new OffsetIndex(file, 0L, INDEX_SIZE, false);
+        }
+        return index.lookup(nextTarget());
+    }
+
+    @Benchmark
+    public int binarySearchLookup() throws IOException {
+        if (!cache.equals("warm"))
+            binarySearchMmap = mapIndexFile();
+        long targetOffset = nextTarget();
+        MappedByteBuffer idx = binarySearchMmap;
+        int lo = 0;
+        int hi = ENTRIES - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            int relativeOffset = idx.getInt(mid * ENTRY_SIZE);
+            if (relativeOffset > targetOffset)
+                hi = mid - 1;
+            else if (relativeOffset < targetOffset)
+                lo = mid;
+            else
+                return idx.getInt(mid * ENTRY_SIZE + 4);
+        }
+        return idx.getInt(lo * ENTRY_SIZE + 4);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffsetMap;
+import kafka.log.OffsetMap$;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost per key of the offset map of the log cleaner: `put` fills a cleared map with `KEY_COUNT` keys of
+ * `keySize` bytes as the cleaner does when it builds the map, and `get` looks them up as the cleaner does when it
+ * cleans segments. Both maps are given the same memory, which the murmur3 map fills to half of its slots and the MD5
+ * map to all of its slots at the default load factor of 0.9.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetMapBenchmark {
+
+    private static final int KEY_COUNT = 100000;
+
+    @Param({"MD5", "murmur3"})
+    private String hashAlgorithm;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    private OffsetMap map;
+    private ByteBuffer[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // enough memory for KEY_COUNT keys of 24 bytes at a load factor of 0.9
+        map = OffsetMap$.MODULE$.apply((int) (KEY_COUNT / 0.9 * 24), hashAlgorithm);
+        Random random = new Random(0);
+        keys = new ByteBuffer[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            keys[i] = ByteBuffer.wrap(key);
+        }
+        putAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public OffsetMap put() {
+        map.clear();
+        putAll();
+        return map;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public long get() {
+        long sum = 0;
+        for (ByteBuffer key : keys)
+            sum += map.get(key);
+        return sum;
+    }
+
+    private void putAll() {
+        for (int i = 0; i < KEY_COUNT; i++)
+            map.put(keys[i], i);
+    }
+}
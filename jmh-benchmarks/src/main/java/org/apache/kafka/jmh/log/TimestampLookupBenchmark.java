@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import kafka.log.Log;
+import kafka.log.LogConfig;
+import kafka.log.LogSegment;
+import kafka.log.TimestampOffset;
+import kafka.server.BrokerTopicStats;
+import kafka.utils.KafkaScheduler;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.Iterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to find the offset of a timestamp in a log of `segmentCount` segments of `recordsPerSegment`
+ * records with increasing timestamps. With `mode = indexed` the lookup is made with `Log.fetchOffsetsByTimestamp`,
+ * which finds the segment with a binary search, and with `mode = linear` the segment is found by scanning the segments
+ * for the first one whose largest timestamp is at least the target, as `Log.fetchOffsetsByTimestamp` used to.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TimestampLookupBenchmark {
+
+    private static final int RECORD_SIZE = 100;
+
+    @Param({"linear", "indexed"})
+    private String mode;
+
+    @Param({"1000", "10000"})
+    private int segmentCount;
+
+    @Param({"10"})
+    private int recordsPerSegment;
+
+    private File dir;
+    private KafkaScheduler scheduler;
+    private BrokerTopicStats brokerTopicStats;
+    private Log log;
+    private long recordCount;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("kafka-timestamp-lookup-benchmark").toFile();
+        scheduler = new KafkaScheduler(1, "kafka-scheduler-", true);
+        scheduler.startup();
+        brokerTopicStats = new BrokerTopicStats();
+
+        byte[] value = new byte[RECORD_SIZE];
+        int batchSize = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(0L, value)).sizeInBytes();
+        Properties props = new Properties();
+        props.put(LogConfig.SegmentBytesProp(), batchSize * recordsPerSegment);
+        props.put(LogConfig.SegmentIndexBytesProp(), 4096);
+        props.put(LogConfig.MessageTimestampDifferenceMaxMsProp(), Long.MAX_VALUE);
+        log = new Log(new File(dir, "benchmark-0"), new LogConfig(props), 0L, 0L, scheduler, brokerTopicStats,
+            Time.SYSTEM, 60 * 60 * 1000, 10 * 60 * 1000, Option.empty(), Option.empty(), Option.empty(), Option.empty(),
+            Option.empty(), Option.empty());
+
+        recordCount = (long) segmentCount * recordsPerSegment;
+        for (long i = 0; i < recordCount; i++)
+            log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(i * 10, value)), 0, true);
+        random = new Random(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        scheduler.shutdown();
+        brokerTopicStats.close();
+        Utils.delete(dir);
+    }
+
+    @Benchmark
+    public Object lookup() {
+        long timestamp = (long) (random.nextDouble() * recordCount * 10);
+        if (mode.equals("indexed"))
+            return log.fetchOffsetsByTimestamp(timestamp);
+        else
+            return linearLookup(timestamp);
+    }
+
+    private Option<TimestampOffset> linearLookup(long timestamp) {
+        Iterator<LogSegment> segments = log.logSegments().iterator();
+        while (segments.hasNext()) {
+            LogSegment segment = segments.next();
+            if (segment.largestTimestamp() >= timestamp)
+                return segment.findOffsetByTimestamp(timestamp, log.logStartOffset());
+        }
+        return Option.empty();
+    }
+}
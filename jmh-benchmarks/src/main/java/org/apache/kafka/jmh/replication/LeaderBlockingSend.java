@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.replication;
+
+import kafka.server.BlockingSend;
+import kafka.server.FetchPartitionData;
+import kafka.server.QuotaFactory;
+import kafka.server.ReplicaManager;
+import org.apache.kafka.clients.ClientResponse;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.requests.AbstractRequest;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.EpochEndOffset;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.OffsetsForLeaderEpochRequest;
+import org.apache.kafka.common.requests.OffsetsForLeaderEpochResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.utils.Time;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends the requests of a follower straight to the replica manager of the leader, as the request handler threads of
+ * the leader would. A fetch request waits in the fetch purgatory of the leader up to its maximum wait time, and the
+ * records read from the log of the leader are copied into the response as they would be by the network.
+ */
+class LeaderBlockingSend implements BlockingSend {
+
+    private final ReplicaManager leader;
+    private final Time time;
+
+    LeaderBlockingSend(ReplicaManager leader, Time time) {
+        this.leader = leader;
+        this.time = time;
+    }
+
+    @Override
+    public ClientResponse sendRequest(AbstractRequest.Builder<? extends AbstractRequest> requestBuilder) {
+        AbstractRequest request = requestBuilder.build();
+        AbstractResponse response;
+        if (request instanceof FetchRequest)
+            response = fetch((FetchRequest) request);
+        else if (request instanceof OffsetsForLeaderEpochRequest)
+            response = lastOffsetsForLeaderEpoch((OffsetsForLeaderEpochRequest) request);
+        else
+            throw new IllegalArgumentException("Unexpected request " + request);
+        long now = time.milliseconds();
+        RequestHeader header = new RequestHeader(requestBuilder.apiKey().id, request.version(), "benchmark", 0);
+        return new ClientResponse(header, null, "leader", now, now, false, null, response);
+    }
+
+    private FetchResponse fetch(FetchRequest request) {
+        List<Tuple2<TopicPartition, FetchRequest.PartitionData>> fetchInfos = new ArrayList<>();
+        for (Map.Entry<TopicPartition, FetchRequest.PartitionData> entry : request.fetchData().entrySet())
+            fetchInfos.add(new Tuple2<>(entry.getKey(), entry.getValue()));
+
+        final CountDownLatch responded = new CountDownLatch(1);
+        final AtomicReference<Seq<Tuple2<TopicPartition, FetchPartitionData>>> result = new AtomicReference<>();
+        leader.fetchMessages(request.maxWait(), request.replicaId(), request.minBytes(), request.maxBytes(), false,
+            JavaConverters.asScalaBufferConverter(fetchInfos).asScala(), QuotaFactory.UnboundedQuota$.MODULE$,
+            new AbstractFunction1<Seq<Tuple2<TopicPartition, FetchPartitionData>>, BoxedUnit>() {
+                @Override
+                public BoxedUnit apply(Seq<Tuple2<TopicPartition, FetchPartitionData>> partitionData) {
+                    result.set(partitionData);
+                    responded.countDown();
+                    return BoxedUnit.UNIT;
+                }
+            }, request.isolationLevel());
+
+        try {
+            if (!responded.await(request.maxWait() + 30000L, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("The leader did not respond to " + request);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while waiting for the leader to respond to " + request, e);
+        }
+
+        LinkedHashMap<TopicPartition, FetchResponse.PartitionData> responseData = new LinkedHashMap<>();
+        for (Tuple2<TopicPartition, FetchPartitionData> partitionResult : JavaConverters.seqAsJavaListConverter(result.get()).asJava()) {
+            FetchPartitionData data = partitionResult._2();
+            List<FetchResponse.AbortedTransaction> abortedTransactions = data.abortedTransactions().isDefined() ?
+                JavaConverters.seqAsJavaListConverter(data.abortedTransactions().get()).asJava() : null;
+            long lastStableOffset = data.lastStableOffset().isDefined() ?
+                (Long) data.lastStableOffset().get() : FetchResponse.INVALID_LAST_STABLE_OFFSET;
+            responseData.put(partitionResult._1(), new FetchResponse.PartitionData(data.error(), data.highWatermark(),
+                lastStableOffset, data.logStartOffset(), abortedTransactions, copy(data.records())));
+        }
+        return new FetchResponse(responseData, 0);
+    }
+
+    private OffsetsForLeaderEpochResponse lastOffsetsForLeaderEpoch(OffsetsForLeaderEpochRequest request) {
+        scala.collection.Map<TopicPartition, EpochEndOffset> offsets = leader.lastOffsetForLeaderEpoch(
+            JavaConverters.mapAsScalaMapConverter(request.epochsByTopicPartition()).asScala());
+        return new OffsetsForLeaderEpochResponse(JavaConverters.mapAsJavaMapConverter(offsets).asJava());
+    }
+
+    private static MemoryRecords copy(Records records) {
+        if (records instanceof MemoryRecords)
+            return (MemoryRecords) records;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(records.sizeInBytes());
+            return MemoryRecords.readableRecords(((FileRecords) records).readInto(buffer, 0));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the records of the leader", e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.replication;
+
+import kafka.cluster.BrokerEndPoint;
+import kafka.cluster.Partition;
+import kafka.cluster.Replica;
+import kafka.log.Log;
+import kafka.log.LogConfig;
+import kafka.log.LogManager;
+import kafka.server.BlockingSend;
+import kafka.server.BrokerState;
+import kafka.server.BrokerTopicStats;
+import kafka.server.KafkaConfig;
+import kafka.server.MetadataCache;
+import kafka.server.QuotaType;
+import kafka.server.ReplicaFetcherThread;
+import kafka.server.ReplicaManager;
+import kafka.server.ReplicationQuotaManager;
+import kafka.server.ReplicationQuotaManagerConfig;
+import kafka.utils.KafkaScheduler;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.PartitionState;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import scala.Function1;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.runtime.BoxedUnit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The leader and `followerCount` followers of a partition, each with its own replica manager and log directory, in a
+ * single process. All the replicas start in the ISR. ZooKeeper and the controller are left out: the local replicas are
+ * created with their logs rather than by their partitions, which would read the topic configs from ZooKeeper, and they
+ * are made leader and followers without a LeaderAndIsr request, so that the ISR never has to be written.
+ *
+ * The followers are driven in one of two ways. Either `startFetchers` starts a fetcher thread for each follower, whose
+ * fetch requests wait in the fetch purgatory of the leader as they would over the network, or `fetch` makes each
+ * follower fetch once from the leader without waiting, in the calling thread, so that with a `ManualTime` a benchmark
+ * controls every step of the replication.
+ */
+public class ReplicationHarness {
+
+    public static final TopicPartition TOPIC_PARTITION = new TopicPartition("replication-benchmark", 0);
+
+    private static final int PRODUCE_TIMEOUT_MS = 30000;
+
+    private final Broker leader;
+    private final List<Broker> followers = new ArrayList<>();
+    private final LeaderBlockingSend leaderSend;
+    private boolean fetchersStarted = false;
+
+    public ReplicationHarness(int followerCount, Time time) throws IOException {
+        List<Integer> replicas = new ArrayList<>();
+        for (int id = 0; id <= followerCount; id++)
+            replicas.add(id);
+        PartitionState partitionState = new PartitionState(0, 0, 0, replicas, 0, replicas);
+
+        leader = new Broker(0, time, null);
+        leaderSend = new LeaderBlockingSend(leader.replicaManager, time);
+        leader.partition.makeLeader(0, partitionState, 0);
+        for (int id = 1; id <= followerCount; id++) {
+            Broker follower = new Broker(id, time, leader);
+            follower.partition.makeFollower(0, partitionState, 0);
+            followers.add(follower);
+        }
+    }
+
+    /**
+     * Start the fetcher thread of each follower. `fetch` must not be called afterwards.
+     */
+    public void startFetchers() {
+        for (Broker follower : followers) {
+            follower.fetcher.addPartitions(JavaConverters.mapAsScalaMapConverter(
+                Collections.<TopicPartition, Object>singletonMap(TOPIC_PARTITION, follower.log.logEndOffset())).asScala());
+            follower.fetcher.start();
+        }
+        fetchersStarted = true;
+    }
+
+    /**
+     * Produce `records` to the leader with `acks = all`. `callback` is called once all the replicas in the ISR have
+     * the records, by the thread which completes the produce request.
+     */
+    public void produce(MemoryRecords records, Function1<scala.collection.Map<TopicPartition, PartitionResponse>, BoxedUnit> callback) {
+        leader.replicaManager.appendRecords(PRODUCE_TIMEOUT_MS, (short) -1, false, true,
+            JavaConverters.mapAsScalaMapConverter(Collections.singletonMap(TOPIC_PARTITION, records)).asScala(),
+            callback, Option.<Object>empty());
+    }
+
+    /**
+     * Make each follower fetch from its log end offset without waiting and append the records it got, as its fetcher
+     * thread would.
+     */
+    public void fetch() {
+        for (Broker follower : followers) {
+            long fetchOffset = follower.log.logEndOffset();
+            LinkedHashMap<TopicPartition, FetchRequest.PartitionData> fetchData = new LinkedHashMap<>();
+            fetchData.put(TOPIC_PARTITION, new FetchRequest.PartitionData(fetchOffset, follower.log.logStartOffset(),
+                follower.config.replicaFetchMaxBytes()));
+            FetchRequest.Builder request = FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion(), follower.id,
+                0, 1, fetchData).setMaxBytes(follower.config.replicaFetchResponseMaxBytes());
+            FetchResponse response = (FetchResponse) leaderSend.sendRequest(request).responseBody();
+            FetchResponse.PartitionData partitionData = response.responseData().get(TOPIC_PARTITION);
+            if (partitionData.error != Errors.NONE)
+                throw new IllegalStateException("Follower " + follower.id + " failed to fetch from offset " + fetchOffset,
+                    partitionData.error.exception());
+            follower.fetcher.processPartitionData(TOPIC_PARTITION, fetchOffset, new ReplicaFetcherThread.PartitionData(partitionData));
+        }
+    }
+
+    /**
+     * Append `records` to the first follower as its fetcher thread would after fetching them from the leader. The
+     * offsets of the records must start at the log end offset of the follower.
+     */
+    public void appendToFollower(MemoryRecords records, long leaderHighWatermark) {
+        Broker follower = followers.get(0);
+        FetchResponse.PartitionData partitionData = new FetchResponse.PartitionData(Errors.NONE, leaderHighWatermark,
+            FetchResponse.INVALID_LAST_STABLE_OFFSET, 0L, null, records);
+        follower.fetcher.processPartitionData(TOPIC_PARTITION, follower.log.logEndOffset(),
+            new ReplicaFetcherThread.PartitionData(partitionData));
+    }
+
+    /**
+     * A record set of `count` records with random values of `size` bytes.
+     */
+    public static MemoryRecords records(int count, int size) {
+        Random random = new Random(0);
+        SimpleRecord[] records = new SimpleRecord[count];
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[size];
+            random.nextBytes(value);
+            records[i] = new SimpleRecord(value);
+        }
+        return MemoryRecords.withRecords(CompressionType.NONE, records);
+    }
+
+    public long leaderHighWatermark() {
+        return leader.partition.leaderReplicaIfLocal().get().highWatermark().messageOffset();
+    }
+
+    public long followerLogEndOffset() {
+        return followers.get(0).log.logEndOffset();
+    }
+
+    /**
+     * Delete the segments of the logs beyond their retention size, see `LogConfig.RetentionBytesProp`.
+     */
+    public void deleteOldSegments() {
+        leader.log.deleteOldSegments();
+        for (Broker follower : followers)
+            follower.log.deleteOldSegments();
+    }
+
+    public void close() throws IOException {
+        // the fetchers are stopped first so that none of them waits on the fetch purgatory of a stopped leader
+        for (Broker follower : followers)
+            follower.close(fetchersStarted);
+        leader.close(false);
+    }
+
+    private static class Broker {
+        private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+        private static final long RETENTION_BYTES = 4L * SEGMENT_BYTES;
+
+        private final int id;
+        private final File dir;
+        private final KafkaConfig config;
+        private final Metrics metrics;
+        private final KafkaScheduler scheduler;
+        private final BrokerTopicStats brokerTopicStats;
+        private final ReplicationQuotaManager leaderQuota;
+        private final ReplicationQuotaManager followerQuota;
+        private final LogManager logManager;
+        private final ReplicaManager replicaManager;
+        private final Partition partition;
+        private final Log log;
+        private final ReplicaFetcherThread fetcher;
+
+        Broker(int id, Time time, Broker leader) throws IOException {
+            this.id = id;
+            dir = Files.createTempDirectory("kafka-replication-benchmark-" + id).toFile();
+            Properties props = new Properties();
+            props.put(KafkaConfig.BrokerIdProp(), String.valueOf(id));
+            props.put(KafkaConfig.ZkConnectProp(), "localhost:2181");
+            props.put(KafkaConfig.LogDirProp(), dir.getAbsolutePath());
+            props.put(KafkaConfig.LogCleanerEnableProp(), "false");
+            config = KafkaConfig.fromProps(props);
+
+            metrics = new Metrics(time);
+            scheduler = new KafkaScheduler(1, "kafka-scheduler-" + id + "-", true);
+            scheduler.startup();
+            brokerTopicStats = new BrokerTopicStats();
+            ReplicationQuotaManagerConfig quotaConfig = new ReplicationQuotaManagerConfig(Long.MAX_VALUE,
+                ReplicationQuotaManagerConfig.DefaultNumQuotaSamples(), ReplicationQuotaManagerConfig.DefaultQuotaWindowSizeSeconds());
+            leaderQuota = new ReplicationQuotaManager(quotaConfig, metrics, QuotaType.LeaderReplication$.MODULE$, time);
+            followerQuota = new ReplicationQuotaManager(quotaConfig, metrics, QuotaType.FollowerReplication$.MODULE$, time);
+            logManager = LogManager.apply(config, JavaConverters.mapAsScalaMapConverter(Collections.<String, LogConfig>emptyMap()).asScala(),
+                new BrokerState(), scheduler, time, brokerTopicStats);
+            replicaManager = new ReplicaManager(config, metrics, time, null, scheduler, logManager, new AtomicBoolean(false),
+                leaderQuota, brokerTopicStats, new MetadataCache(id, Option.empty()), Option.apply("broker-" + id));
+
+            Properties logProps = new Properties();
+            logProps.put(LogConfig.SegmentBytesProp(), SEGMENT_BYTES);
+            logProps.put(LogConfig.RetentionBytesProp(), RETENTION_BYTES);
+            partition = replicaManager.getOrCreatePartition(TOPIC_PARTITION);
+            log = logManager.createLog(TOPIC_PARTITION, new LogConfig(logProps));
+            partition.addReplicaIfNotExists(new Replica(id, partition, time, 0L, Option.apply(log)));
+
+            if (leader != null) {
+                BrokerEndPoint leaderEndPoint = new BrokerEndPoint(leader.id, "localhost", 9092);
+                fetcher = new ReplicaFetcherThread("ReplicaFetcherThread-0-" + leader.id + "-on-" + id, 0, leaderEndPoint,
+                    config, replicaManager, metrics, time, followerQuota,
+                    Option.<BlockingSend>apply(new LeaderBlockingSend(leader.replicaManager, time)), Option.empty());
+            } else {
+                fetcher = null;
+            }
+        }
+
+        void close(boolean stopFetcher) throws IOException {
+            if (stopFetcher)
+                fetcher.shutdown();
+            replicaManager.shutdown(false);
+            logManager.shutdown();
+            scheduler.shutdown();
+            brokerTopicStats.close();
+            metrics.close();
+            Utils.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.replication;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.Map;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the latency of a produce request with `acks = all` to a partition with `followers` followers, from the
+ * append to the leader until every follower has fetched the records and the high watermark of the leader covers them.
+ * The fetcher threads of the followers wait on the fetch purgatory of the leader as they would over the network. Each
+ * request has `RECORDS_PER_REQUEST` records of `recordSize` bytes.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplicationLatencyBenchmark {
+
+    private static final int RECORDS_PER_REQUEST = 16;
+
+    @Param({"1", "2"})
+    private int followers;
+
+    @Param({"100", "1024"})
+    private int recordSize;
+
+    private ReplicationHarness harness;
+    private MemoryRecords records;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        harness = new ReplicationHarness(followers, Time.SYSTEM);
+        harness.startFetchers();
+        records = ReplicationHarness.records(RECORDS_PER_REQUEST, recordSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOldSegments() {
+        harness.deleteOldSegments();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        harness.close();
+    }
+
+    @Benchmark
+    public PartitionResponse produce() throws InterruptedException {
+        // the offsets are assigned in place, reset them as a client would have sent them
+        for (MutableRecordBatch batch : records.batches())
+            batch.setLastOffset(RECORDS_PER_REQUEST - 1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicReference<PartitionResponse> response = new AtomicReference<>();
+        harness.produce(records, new AbstractFunction1<Map<TopicPartition, PartitionResponse>, BoxedUnit>() {
+            @Override
+            public BoxedUnit apply(Map<TopicPartition, PartitionResponse> responses) {
+                response.set(responses.apply(ReplicationHarness.TOPIC_PARTITION));
+                completed.countDown();
+                return BoxedUnit.UNIT;
+            }
+        });
+        completed.await();
+        if (response.get().error != Errors.NONE)
+            throw new IllegalStateException("Produce failed", response.get().error.exception());
+        return response.get();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.replication;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.kafka.jmh.util.ManualTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.Map;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the replication of a partition with `followers` followers one step at a time, in a single thread and on a
+ * mock clock. `replicate` produces a request of `RECORDS_PER_REQUEST` records of `recordSize` bytes to the leader with
+ * `acks = all` and makes every follower fetch once: the leader reads its log and records the log end offset of each
+ * follower, which expands the ISR if needed and advances the high watermark until it completes the request of the
+ * previous call, and each follower appends the new records to its log. `followerAppend` only appends the records to the log of a follower, as its
+ * fetcher thread does with a fetch response.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplicationThroughputBenchmark {
+
+    private static final int RECORDS_PER_REQUEST = 16;
+
+    @Param({"1", "2"})
+    private int followers;
+
+    @Param({"100", "1024"})
+    private int recordSize;
+
+    private ReplicationHarness harness;
+    private MemoryRecords records;
+    private AtomicReference<PartitionResponse> previousResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        harness = new ReplicationHarness(followers, new ManualTime());
+        records = ReplicationHarness.records(RECORDS_PER_REQUEST, recordSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOldSegments() {
+        harness.deleteOldSegments();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        harness.close();
+    }
+
+    @Benchmark
+    public PartitionResponse replicate() {
+        // the offsets are assigned in place, reset them as a client would have sent them
+        for (MutableRecordBatch batch : records.batches())
+            batch.setLastOffset(RECORDS_PER_REQUEST - 1);
+        final AtomicReference<PartitionResponse> response = new AtomicReference<>();
+        harness.produce(records, new AbstractFunction1<Map<TopicPartition, PartitionResponse>, BoxedUnit>() {
+            @Override
+            public BoxedUnit apply(Map<TopicPartition, PartitionResponse> responses) {
+                response.set(responses.apply(ReplicationHarness.TOPIC_PARTITION));
+                return BoxedUnit.UNIT;
+            }
+        });
+        harness.fetch();
+        // the leader learns that the followers have the records of a request from their next fetch, which completes it
+        PartitionResponse completed = null;
+        if (previousResponse != null) {
+            completed = previousResponse.get();
+            if (completed == null)
+                throw new IllegalStateException("The fetches of the followers did not complete the produce request");
+            if (completed.error != Errors.NONE)
+                throw new IllegalStateException("Produce failed", completed.error.exception());
+        }
+        previousResponse = response;
+        return completed;
+    }
+
+    @Benchmark
+    public long followerAppend() {
+        long logEndOffset = harness.followerLogEndOffset();
+        // set as the leader would have
+        for (MutableRecordBatch batch : records.batches()) {
+            batch.setLastOffset(logEndOffset + RECORDS_PER_REQUEST - 1);
+            batch.setPartitionLeaderEpoch(0);
+        }
+        harness.appendToFollower(records, logEndOffset);
+        return harness.followerLogEndOffset();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.server.DelayedOperation;
+import kafka.server.DelayedOperationPurgatory;
+import kafka.server.TopicPartitionOperationKey;
+import kafka.utils.timer.SystemTimer;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a purgatory of `watchedOperations` operations which are never completed, spread over
+ * `keyCount` partition keys as the delayed fetches of idle consumers are, with `shards` watch list shards. A single
+ * shard has a single lock, as the purgatory used to. `checkAndComplete` checks the operations of a random key as a
+ * produce request does, and `tryCompleteElseWatch` watches a new operation on a random key and completes it with
+ * `checkAndComplete`.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(4)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DelayedOperationPurgatoryBenchmark {
+
+    private static final long DELAY_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"1", "512"})
+    private int shards;
+
+    @Param({"100000"})
+    private int watchedOperations;
+
+    @Param({"1000", "10000"})
+    private int keyCount;
+
+    private DelayedOperationPurgatory<BenchmarkOperation> purgatory;
+    private TopicPartitionOperationKey[] keys;
+    private Seq<Object>[] watchKeys;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setUp() {
+        purgatory = new DelayedOperationPurgatory<>("benchmark",
+            new SystemTimer("benchmark", 1, 20, Time.SYSTEM.hiResClockMs(), SystemTimer.DefaultMaxLevels(), Time.SYSTEM),
+            0, 1000, true, true, shards);
+        keys = new TopicPartitionOperationKey[keyCount];
+        watchKeys = new Seq[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = new TopicPartitionOperationKey("topic-" + i / 10, i % 10);
+            watchKeys[i] = JavaConverters.asScalaBufferConverter(Collections.<Object>singletonList(keys[i])).asScala();
+        }
+        for (int i = 0; i < watchedOperations; i++)
+            purgatory.tryCompleteElseWatch(new BenchmarkOperation(), watchKeys[i % keyCount]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        purgatory.shutdown();
+    }
+
+    @Benchmark
+    public int checkAndComplete() {
+        return purgatory.checkAndComplete(keys[ThreadLocalRandom.current().nextInt(keyCount)]);
+    }
+
+    @Benchmark
+    public int tryCompleteElseWatch() {
+        int key = ThreadLocalRandom.current().nextInt(keyCount);
+        BenchmarkOperation operation = new BenchmarkOperation();
+        purgatory.tryCompleteElseWatch(operation, watchKeys[key]);
+        operation.completable = true;
+        return purgatory.checkAndComplete(keys[key]);
+    }
+
+    private static class BenchmarkOperation extends DelayedOperation {
+        private volatile boolean completable = false;
+
+        BenchmarkOperation() {
+            super(DELAY_MS);
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return completable && forceComplete();
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
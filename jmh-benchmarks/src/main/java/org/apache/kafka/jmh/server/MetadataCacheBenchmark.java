@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.server.MetadataCache;
+import kafka.server.MetadataResponseCache;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.SecurityProtocol;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.PartitionState;
+import org.apache.kafka.common.requests.UpdateMetadataRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures `MetadataCache.getTopicMetadata` on its own and while another thread keeps applying UpdateMetadata
+ * requests which move the leadership of every partition, as the controller does during a failover.
+ */
+@State(Scope.Group)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class MetadataCacheBenchmark {
+
+    private static final int BROKER_COUNT = 10;
+    private static final int REPLICATION_FACTOR = 3;
+
+    @Param({"100", "1000"})
+    private int topicCount;
+
+    @Param({"10"})
+    private int partitionsPerTopic;
+
+    private final ListenerName listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT);
+
+    private MetadataCache metadataCache;
+    private scala.collection.Set<String> allTopics;
+    private scala.collection.Set<String> singleTopic;
+    private UpdateMetadataRequest[] updateMetadataRequests;
+    private int updateCount = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        metadataCache = new MetadataCache(0, Option.<MetadataResponseCache>empty());
+
+        Set<UpdateMetadataRequest.Broker> brokers = new HashSet<>();
+        for (int brokerId = 0; brokerId < BROKER_COUNT; brokerId++) {
+            UpdateMetadataRequest.EndPoint endPoint = new UpdateMetadataRequest.EndPoint("host-" + brokerId, 9092,
+                SecurityProtocol.PLAINTEXT, listenerName);
+            brokers.add(new UpdateMetadataRequest.Broker(brokerId, Collections.singletonList(endPoint), null));
+        }
+
+        Set<String> topics = new HashSet<>();
+        for (int topic = 0; topic < topicCount; topic++)
+            topics.add("topic-" + topic);
+
+        // the leader of every partition moves to the next replica with each request
+        updateMetadataRequests = new UpdateMetadataRequest[REPLICATION_FACTOR];
+        for (int leaderIndex = 0; leaderIndex < REPLICATION_FACTOR; leaderIndex++) {
+            Map<TopicPartition, PartitionState> partitionStates = new HashMap<>();
+            for (String topic : topics) {
+                for (int partition = 0; partition < partitionsPerTopic; partition++) {
+                    List<Integer> replicas = new ArrayList<>(REPLICATION_FACTOR);
+                    for (int replica = 0; replica < REPLICATION_FACTOR; replica++)
+                        replicas.add((partition + replica) % BROKER_COUNT);
+                    partitionStates.put(new TopicPartition(topic, partition), new PartitionState(1,
+                        replicas.get(leaderIndex), leaderIndex, replicas, 1, replicas));
+                }
+            }
+            updateMetadataRequests[leaderIndex] = new UpdateMetadataRequest.Builder(
+                ApiKeys.UPDATE_METADATA_KEY.latestVersion(), 1, 1, partitionStates, brokers).build();
+        }
+        updateMetadata();
+
+        allTopics = JavaConverters.asScalaSetConverter(topics).asScala();
+        singleTopic = JavaConverters.asScalaSetConverter(Collections.singleton("topic-0")).asScala();
+    }
+
+    private void updateMetadata() {
+        metadataCache.updateCache(updateCount, updateMetadataRequests[updateCount % updateMetadataRequests.length]);
+        updateCount++;
+    }
+
+    @Benchmark
+    @Group("readOnly")
+    public Seq<MetadataResponse.TopicMetadata> getTopicMetadataAllTopics() {
+        return metadataCache.getTopicMetadata(allTopics, listenerName, false);
+    }
+
+    @Benchmark
+    @Group("readOnlySingleTopic")
+    public Seq<MetadataResponse.TopicMetadata> getTopicMetadataSingleTopic() {
+        return metadataCache.getTopicMetadata(singleTopic, listenerName, false);
+    }
+
+    @Benchmark
+    @Group("concurrentUpdates")
+    @GroupThreads(3)
+    public Seq<MetadataResponse.TopicMetadata> getTopicMetadataWhileUpdating() {
+        return metadataCache.getTopicMetadata(allTopics, listenerName, false);
+    }
+
+    @Benchmark
+    @Group("concurrentUpdates")
+    @GroupThreads(1)
+    public void updateCache() {
+        updateMetadata();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.cluster.Partition;
+import kafka.cluster.Replica;
+import kafka.log.Log;
+import kafka.log.LogConfig;
+import kafka.log.LogManager;
+import kafka.server.BrokerState;
+import kafka.server.BrokerTopicStats;
+import kafka.server.KafkaConfig;
+import kafka.server.MetadataCache;
+import kafka.server.QuotaType;
+import kafka.server.ReplicaManager;
+import kafka.server.ReplicationQuotaManager;
+import kafka.server.ReplicationQuotaManagerConfig;
+import kafka.utils.KafkaScheduler;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.PartitionState;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.Map;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput of client produce requests appended by `ReplicaManager.appendRecords` with `acks = 1` from
+ * 8 request handler threads, with `log.append.pipeline.enable` off and on. With the pipeline off each request handler
+ * thread appends its records itself, with it on the request handler threads validate the records and hand them to the
+ * append thread of the log directory, and wait for it to complete the request. The threads produce to `partitions`
+ * partitions in turn, all in the same log directory. Each request holds a record set of 10 records of 100 bytes,
+ * compressed with `compression`.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProduceAppendBenchmark {
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long RETENTION_BYTES = 4L * SEGMENT_BYTES;
+    private static final int RECORDS_PER_REQUEST = 10;
+    private static final int RECORD_SIZE = 100;
+    private static final int PRODUCE_TIMEOUT_MS = 30000;
+
+    @Param({"false", "true"})
+    private boolean pipeline;
+
+    @Param({"1", "16"})
+    private int partitions;
+
+    @Param({"none", "lz4"})
+    private String compression;
+
+    private File dir;
+    private Metrics metrics;
+    private KafkaScheduler scheduler;
+    private BrokerTopicStats brokerTopicStats;
+    private LogManager logManager;
+    private ReplicaManager replicaManager;
+    private Log[] logs;
+    private TopicPartition[] topicPartitions;
+    private final AtomicInteger nextThread = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("kafka-produce-append-benchmark").toFile();
+        Properties props = new Properties();
+        props.put(KafkaConfig.BrokerIdProp(), "0");
+        props.put(KafkaConfig.ZkConnectProp(), "localhost:2181");
+        props.put(KafkaConfig.LogDirProp(), dir.getAbsolutePath());
+        props.put(KafkaConfig.LogCleanerEnableProp(), "false");
+        props.put(KafkaConfig.LogAppendPipelineEnableProp(), String.valueOf(pipeline));
+        KafkaConfig config = KafkaConfig.fromProps(props);
+
+        Time time = Time.SYSTEM;
+        metrics = new Metrics(time);
+        scheduler = new KafkaScheduler(1, "kafka-scheduler-", true);
+        scheduler.startup();
+        brokerTopicStats = new BrokerTopicStats();
+        ReplicationQuotaManagerConfig quotaConfig = new ReplicationQuotaManagerConfig(Long.MAX_VALUE,
+            ReplicationQuotaManagerConfig.DefaultNumQuotaSamples(), ReplicationQuotaManagerConfig.DefaultQuotaWindowSizeSeconds());
+        ReplicationQuotaManager quota = new ReplicationQuotaManager(quotaConfig, metrics,
+            QuotaType.LeaderReplication$.MODULE$, time);
+        logManager = LogManager.apply(config, JavaConverters.mapAsScalaMapConverter(Collections.<String, LogConfig>emptyMap()).asScala(),
+            new BrokerState(), scheduler, time, brokerTopicStats);
+        replicaManager = new ReplicaManager(config, metrics, time, null, scheduler, logManager, new AtomicBoolean(false),
+            quota, brokerTopicStats, new MetadataCache(0, Option.empty()), Option.<String>empty());
+
+        Properties logProps = new Properties();
+        logProps.put(LogConfig.SegmentBytesProp(), SEGMENT_BYTES);
+        logProps.put(LogConfig.RetentionBytesProp(), RETENTION_BYTES);
+        List<Integer> replicas = Collections.singletonList(0);
+        PartitionState partitionState = new PartitionState(0, 0, 0, replicas, 0, replicas);
+        logs = new Log[partitions];
+        topicPartitions = new TopicPartition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            topicPartitions[i] = new TopicPartition("produce-append-benchmark", i);
+            Partition partition = replicaManager.getOrCreatePartition(topicPartitions[i]);
+            logs[i] = logManager.createLog(topicPartitions[i], new LogConfig(logProps));
+            partition.addReplicaIfNotExists(new Replica(0, partition, time, 0L, Option.apply(logs[i])));
+            partition.makeLeader(0, partitionState, 0);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOldSegments() {
+        for (Log log : logs)
+            log.deleteOldSegments();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        replicaManager.shutdown(false);
+        logManager.shutdown();
+        scheduler.shutdown();
+        brokerTopicStats.close();
+        metrics.close();
+        Utils.delete(dir);
+    }
+
+    /**
+     * The record set of a request handler thread, which is reused for each of its requests.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private int nextPartition;
+        private MemoryRecords records;
+
+        @Setup(Level.Trial)
+        public void setUp(ProduceAppendBenchmark benchmark) {
+            nextPartition = benchmark.nextThread.getAndIncrement();
+            Random random = new Random(nextPartition);
+            SimpleRecord[] simpleRecords = new SimpleRecord[RECORDS_PER_REQUEST];
+            for (int i = 0; i < RECORDS_PER_REQUEST; i++) {
+                byte[] value = new byte[RECORD_SIZE];
+                random.nextBytes(value);
+                simpleRecords[i] = new SimpleRecord(value);
+            }
+            records = MemoryRecords.withRecords(CompressionType.forName(benchmark.compression), simpleRecords);
+        }
+    }
+
+    @Benchmark
+    public PartitionResponse produce(Producer producer) throws InterruptedException {
+        final TopicPartition topicPartition = topicPartitions[producer.nextPartition % partitions];
+        producer.nextPartition++;
+        // the offsets are assigned in place, reset them as a client would have sent them
+        for (MutableRecordBatch batch : producer.records.batches())
+            batch.setLastOffset(batch.lastOffset() - batch.baseOffset());
+
+        final CountDownLatch completed = new CountDownLatch(1);
+        final PartitionResponse[] response = new PartitionResponse[1];
+        replicaManager.appendRecords(PRODUCE_TIMEOUT_MS, (short) 1, false, true,
+            JavaConverters.mapAsScalaMapConverter(Collections.singletonMap(topicPartition, producer.records)).asScala(),
+            new AbstractFunction1<Map<TopicPartition, PartitionResponse>, BoxedUnit>() {
+                @Override
+                public BoxedUnit apply(Map<TopicPartition, PartitionResponse> responses) {
+                    response[0] = responses.apply(topicPartition);
+                    completed.countDown();
+                    return BoxedUnit.UNIT;
+                }
+            }, Option.<Object>empty());
+        completed.await();
+        if (response[0].error != Errors.NONE)
+            throw new IllegalStateException("Append failed", response[0].error.exception());
+        return response[0];
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.timer;
+
+import kafka.server.DelayedOperation;
+import kafka.utils.timer.SystemTimer;
+import org.apache.kafka.jmh.util.ManualTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost per task of the timer of the purgatories with `TASK_COUNT` tasks of random delays up to
+ * `maxDelayMs`: `add` adds the tasks to an empty timer, `cancel` cancels them all as the operations completed before
+ * their timeout are, and `advance` moves the clock past the delay of every task and expires them. The timer runs on a
+ * mock clock so that advancing it does not wait.
+ */
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerBenchmark {
+
+    private static final int TASK_COUNT = 1000000;
+
+    @State(Scope.Benchmark)
+    public static class Tasks {
+        @Param({"500", "30000"})
+        private long maxDelayMs;
+
+        private TimerBenchmarkTask[] tasks;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(0);
+            tasks = new TimerBenchmarkTask[TASK_COUNT];
+            for (int i = 0; i < TASK_COUNT; i++)
+                tasks[i] = new TimerBenchmarkTask(1 + (long) (random.nextDouble() * maxDelayMs));
+        }
+
+        private void addAll(SystemTimer timer) {
+            for (TimerBenchmarkTask task : tasks)
+                timer.add(task);
+        }
+
+        private void cancelAll() {
+            for (TimerBenchmarkTask task : tasks)
+                task.cancel();
+        }
+    }
+
+    private abstract static class TimerState {
+        protected ManualTime time;
+        protected SystemTimer timer;
+        private Tasks tasks;
+
+        protected void start(Tasks tasks) {
+            this.tasks = tasks;
+            time = new ManualTime();
+            timer = new SystemTimer("benchmark", 1, 20, time.hiResClockMs(), SystemTimer.DefaultMaxLevels(), time);
+        }
+
+        protected void close() {
+            tasks.cancelAll();
+            timer.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyTimer extends TimerState {
+        @Setup(Level.Invocation)
+        public void setUp(Tasks tasks) {
+            start(tasks);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FullTimer extends TimerState {
+        @Setup(Level.Invocation)
+        public void setUp(Tasks tasks) {
+            start(tasks);
+            tasks.addAll(timer);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public int add(Tasks tasks, EmptyTimer emptyTimer) {
+        tasks.addAll(emptyTimer.timer);
+        return emptyTimer.timer.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public int cancel(Tasks tasks, FullTimer fullTimer) {
+        tasks.cancelAll();
+        return fullTimer.timer.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public int advance(Tasks tasks, FullTimer fullTimer) {
+        fullTimer.time.sleep(tasks.maxDelayMs + 1);
+        while (fullTimer.timer.advanceClock(0L)) {
+        }
+        return fullTimer.timer.size();
+    }
+
+    private static class TimerBenchmarkTask extends DelayedOperation {
+        TimerBenchmarkTask(long delayMs) {
+            super(delayMs);
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return false;
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}